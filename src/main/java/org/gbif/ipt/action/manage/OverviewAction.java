@@ -48,6 +48,7 @@ import org.gbif.ipt.service.admin.UserAccountManager;
 import org.gbif.ipt.service.admin.VocabulariesManager;
 import org.gbif.ipt.service.manage.ResourceManager;
 import org.gbif.ipt.struts2.SimpleTextProvider;
+import org.gbif.ipt.task.DryRunReport;
 import org.gbif.ipt.task.GenerateDwca;
 import org.gbif.ipt.task.GenerateDwcaFactory;
 import org.gbif.ipt.task.ReportHandler;
@@ -132,6 +133,7 @@ public class OverviewAction extends ManagerBaseAction implements ReportHandler {
   private List<String> columns;
   private List<String[]> peek;
   private Integer mid;
+  private DryRunReport dryRun;
   private static final int PEEK_ROWS = 100;
 
   @Inject
@@ -1510,7 +1512,8 @@ public class OverviewAction extends ManagerBaseAction implements ReportHandler {
       ExtensionMapping mapping = resource.getMappings(id).get(mid);
       if (mapping != null) {
         try {
-          GenerateDwca worker = dwcaFactory.create(resource, this);
+          // previewing never touches the publication log of the last publication
+          GenerateDwca worker = dwcaFactory.createDryRun(resource, this, PEEK_ROWS);
           worker.report();
           File tmpDir = Files.createTempDir();
           worker.setDwcaFolder(tmpDir);
@@ -1560,10 +1563,31 @@ public class OverviewAction extends ManagerBaseAction implements ReportHandler {
     return SUCCESS;
   }
 
+  /**
+   * Dry run of the publication: generates a sample of the DwC-A, writing all mappings at the same time up to
+   * "peekRows" number of rows each and validating them, without publishing anything.
+   */
+  public String dryRun() {
+    if (resource == null) {
+      return NOT_FOUND;
+    }
+    try {
+      dryRun = resourceManager.dryRun(resource, PEEK_ROWS);
+    } catch (PublicationException e) {
+      LOG.error("Dry run of resource " + resource.getShortname() + " failed", e);
+      addActionError(getText("manage.overview.dryRun.error", new String[] {e.getMessage()}));
+    }
+    return SUCCESS;
+  }
+
   public List<String[]> getPeek() {
     return peek;
   }
 
+  public DryRunReport getDryRun() {
+    return dryRun;
+  }
+
   public List<String> getColumns() {
     return columns;
   }
@@ -24,16 +24,19 @@ import org.gbif.ipt.model.TextFileSource;
 import org.gbif.ipt.service.AlreadyExistingException;
 import org.gbif.ipt.service.ImportException;
 import org.gbif.ipt.service.InvalidFilenameException;
+import org.gbif.ipt.service.SourceException;
 import org.gbif.ipt.service.admin.RegistrationManager;
 import org.gbif.ipt.service.manage.ResourceManager;
 import org.gbif.ipt.service.manage.SourceManager;
 import org.gbif.ipt.struts2.SimpleTextProvider;
+import org.gbif.ipt.utils.SourceSnapshot;
 import org.gbif.utils.file.CompressionUtil;
 import org.gbif.utils.file.CompressionUtil.UnsupportedCompressionType;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -60,10 +63,15 @@ public class SourceAction extends ManagerBaseAction {
   private String fileContentType;
   private String fileFileName;
   private boolean analyze = false;
+  private boolean refreshSnapshot = false;
+  // snapshot header, loaded once per request
+  private SourceSnapshot snapshot;
+  private boolean snapshotLoaded = false;
   // preview
   private List<String> columns;
   private List<String[]> peek;
   private int peekRows = 10;
+  private int peekOffset = 0;
   private int analyzeRows = 1000;
 
   @Inject
@@ -251,6 +259,14 @@ public class SourceAction extends ManagerBaseAction {
     return jdbcSupport.optionMap();
   }
 
+  public Map<String, String> getPartitionModes() {
+    Map<String, String> modes = new LinkedHashMap<String, String>();
+    for (SqlSource.PartitionMode mode : SqlSource.PartitionMode.values()) {
+      modes.put(mode.name(), getText("sqlSource.partitionMode." + mode.name()));
+    }
+    return modes;
+  }
+
   public boolean getLogExists() {
     return dataDir.sourceLogFile(resource.getShortname(), source.getName()).exists();
   }
@@ -282,11 +298,22 @@ public class SourceAction extends ManagerBaseAction {
     return null;
   }
 
+  /**
+   * @return snapshot the rows of the sql source are read from, or null if there is none
+   */
+  public SourceSnapshot getSnapshot() {
+    if (!snapshotLoaded && source instanceof SqlSource) {
+      snapshot = sourceManager.snapshot((SqlSource) source);
+      snapshotLoaded = true;
+    }
+    return snapshot;
+  }
+
   public String peek() {
     if (source == null) {
       return NOT_FOUND;
     }
-    peek = sourceManager.peek(source, peekRows);
+    peek = sourceManager.peek(source, peekOffset, peekRows);
     columns = sourceManager.columns(source);
     return SUCCESS;
   }
@@ -341,7 +368,9 @@ public class SourceAction extends ManagerBaseAction {
     // existing source
     String result = INPUT;
     if (id != null && source != null) {
-      if (this.analyze || !source.isReadable()) {
+      if (this.refreshSnapshot && source instanceof SqlSource) {
+        refreshSnapshot((SqlSource) source);
+      } else if (this.analyze || !source.isReadable()) {
         problem = sourceManager.analyze(source);
       } else {
         result = SUCCESS;
@@ -387,12 +416,32 @@ public class SourceAction extends ManagerBaseAction {
     return result;
   }
 
+  /**
+   * Reads all rows of a sql source into a new snapshot.
+   */
+  private void refreshSnapshot(SqlSource src) {
+    try {
+      snapshot = sourceManager.refreshSnapshot(src);
+      snapshotLoaded = true;
+      addActionMessage(getText("manage.source.snapshot.refreshed",
+        new String[] {src.getName(), String.valueOf(snapshot.getRows())}));
+    } catch (SourceException e) {
+      addActionWarning(getText("manage.source.snapshot.error", new String[] {src.getName(), e.getMessage()}));
+    }
+  }
+
   public void setAnalyze(String analyze) {
     if (StringUtils.trimToNull(analyze) != null) {
       this.analyze = true;
     }
   }
 
+  public void setRefreshSnapshot(String refreshSnapshot) {
+    if (StringUtils.trimToNull(refreshSnapshot) != null) {
+      this.refreshSnapshot = true;
+    }
+  }
+
   public void setFile(File file) {
     this.file = file;
   }
@@ -416,6 +465,10 @@ public class SourceAction extends ManagerBaseAction {
     this.peekRows = previewSize > 0 ? previewSize : 10;
   }
 
+  public void setOffset(int offset) {
+    this.peekOffset = Math.max(offset, 0);
+  }
+
   public void setSource(Source source) {
     this.source = source;
   }
@@ -470,6 +523,17 @@ public class SourceAction extends ManagerBaseAction {
           addFieldError("sqlSource.database",
             getText("validation.short", new String[] {getText("sqlSource.database"), "2"}));
         }
+        if (src.getPartitions() < 0) {
+          addFieldError("sqlSource.partitions",
+            getText("validation.invalid", new String[] {getText("sqlSource.partitions")}));
+        } else if (src.getPartitions() > 1 && src.getPartitionColumn() == null) {
+          addFieldError("sqlSource.partitionColumn",
+            getText("validation.required", new String[] {getText("sqlSource.partitionColumn")}));
+        }
+        if (src.getSnapshotTtl() < 0) {
+          addFieldError("sqlSource.snapshotTtl",
+            getText("validation.invalid", new String[] {getText("sqlSource.snapshotTtl")}));
+        }
       }
       // alert user if the number of columns changed
       Integer originalNumberColumns = (Integer) session.get(Constants.SESSION_FILE_NUMBER_COLUMNS);
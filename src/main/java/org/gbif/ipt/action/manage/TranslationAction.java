@@ -53,6 +53,7 @@ public class TranslationAction extends ManagerBaseAction {
     private Term term;
     private TreeMap<String, String> sourceValues;
     private TreeMap<String, String> translatedValues;
+    private Map<String, Long> sourceCounts = new HashMap<String, Long>();
 
     /**
      * Return a map populated with all source value to translated value pairs.
@@ -74,6 +75,14 @@ public class TranslationAction extends ManagerBaseAction {
       return sourceValues;
     }
 
+    /**
+     * @return map with the number of rows using each original source value, e.g. {"k1", 120}. Entries relate to
+     * entries in sourceValues by their key, and are missing if the rows were not counted.
+     */
+    public Map<String, Long> getSourceCounts() {
+      return sourceCounts;
+    }
+
     /**
      * @return map with translated values, e.g. {"k1", "Observation"}. Entries relate to entries in sourceValues by
      * via their key.
@@ -99,6 +108,7 @@ public class TranslationAction extends ManagerBaseAction {
       TreeMap<String, String> translatedValues) {
       this.sourceValues = sourceValues;
       this.translatedValues = translatedValues;
+      this.sourceCounts = new HashMap<String, Long>();
       this.rowType = rowType;
       this.term = term;
     }
@@ -243,13 +253,14 @@ public class TranslationAction extends ManagerBaseAction {
       }
       // reinitialize translation, including maps
       trans.setTmap(this.mapping.getExtension().getRowType(), property, new TreeMap<String, String>(), new TreeMap<String, String>());
-      // reload new values
+      // reload new values, the most frequent first: keys are padded so that they sort in the same order
+      Map<String, Long> counts = sourceManager.countColumnValues(mapping.getSource(), field.getIndex(), 1000, 10000);
+      int width = String.valueOf(counts.size()).length();
       int i = 1;
-      for (String val : sourceManager.inspectColumn(mapping.getSource(), field.getIndex(), 1000, 10000)) {
-        StringBuilder key = new StringBuilder();
-        key.append('k');
-        key.append(i);
-        getSourceValuesMap().put(key.toString(), val);
+      for (Entry<String, Long> count : counts.entrySet()) {
+        String key = 'k' + StringUtils.leftPad(String.valueOf(i), width, '0');
+        getSourceValuesMap().put(key, count.getKey());
+        getSourceCountsMap().put(key, count.getValue());
         i++;
       }
       // keep existing translations
@@ -313,6 +324,10 @@ public class TranslationAction extends ManagerBaseAction {
     return trans.getSourceValues();
   }
 
+  public Map<String, Long> getSourceCountsMap() {
+    return trans.getSourceCounts();
+  }
+
   public Map<String, String> getTmap() {
     return trans.getTranslatedValues();
   }
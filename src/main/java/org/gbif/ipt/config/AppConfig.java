@@ -163,6 +163,98 @@ public class AppConfig {
     }
   }
 
+  /**
+   * @return maximum number of threads writing data files in parallel within a single archive generation, a value of 1
+   * or less meaning data files are written sequentially
+   */
+  public int getMaxDataFileThreads() {
+    try {
+      return Integer.parseInt(getProperty("dev.maxdatafilethreads"));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * @return maximum number of threads compressing the archive zip file in parallel within a single archive
+   * generation, a value of 1 or less meaning the zip file is compressed by the thread generating the archive
+   */
+  public int getMaxCompressionThreads() {
+    try {
+      return Integer.parseInt(getProperty("dev.maxcompressionthreads"));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * @return number of source lines between two checkpoints of a data file being written, from which an interrupted
+   * archive generation can be resumed, a value of 0 or less meaning no checkpoints are kept
+   */
+  public int getCheckpointInterval() {
+    try {
+      return Integer.parseInt(getProperty("dev.checkpointinterval"));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return maximum number of threads filtering and translating the rows of a single mapping while its data file is
+   * written, a value of 1 or less meaning rows are read, transformed and written by the same thread
+   */
+  public int getMaxTransformThreads() {
+    try {
+      return Integer.parseInt(getProperty("dev.maxtransformthreads"));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * @return maximum number of threads sorting runs of a single file in parallel when validating an archive, a value
+   * of 1 or less meaning runs are sorted by the thread validating the archive
+   */
+  public int getMaxSortThreads() {
+    try {
+      return Integer.parseInt(getProperty("dev.maxsortthreads"));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * @return maximum number of threads parsing ranges of a single large text file source in parallel, a value of 1 or
+   * less meaning text files are parsed by a single thread
+   */
+  public int getMaxParseThreads() {
+    try {
+      return Integer.parseInt(getProperty("dev.maxparsethreads"));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * @return maximum number of connections open at the same time to the database of a single sql source
+   */
+  public int getMaxSqlConnections() {
+    try {
+      return Integer.parseInt(getProperty("dev.maxsqlconnections"));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * @return directory sorted runs are spilled to when validating an archive, or null if not set, in which case they
+   * are spilled to the temporary directory of the data directory
+   */
+  public File getSortScratchDir() {
+    String dir = StringUtils.trimToNull(getProperty("dev.sortscratchdir"));
+    return dir == null ? null : new File(dir);
+  }
+
   public String getProperty(String key) {
     return properties.getProperty(key);
   }
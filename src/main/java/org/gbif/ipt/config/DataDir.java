@@ -32,6 +32,8 @@ public class DataDir {
   public static final String EML_XML_FILENAME = "eml.xml";
   public static final String DWCA_FILENAME = "dwca.zip";
   public static final String PUBLICATION_LOG_FILENAME = "publication.log";
+  public static final String PUBLICATION_LOG_DETAIL_FILENAME = "publication-detail.log.gz";
+  public static final String DWCA_CHECKPOINT_DIR = "dwca-checkpoint";
   private static final Random RANDOM = new Random();
 
   private static Logger log = Logger.getLogger(DataDir.class);
@@ -263,6 +265,30 @@ public class DataDir {
     return dataFile(RESOURCES_DIR + "/" + resourceName + "/" + PUBLICATION_LOG_FILENAME);
   }
 
+  /**
+   * Retrieves the gzip-compressed file holding all the publication log entries beyond the samples written to the
+   * publication log, only written in debug mode.
+   *
+   * @param resourceName resource short name
+   *
+   * @return publication log detail file
+   */
+  public File resourcePublicationLogDetailFile(String resourceName) {
+    return dataFile(RESOURCES_DIR + "/" + resourceName + "/" + PUBLICATION_LOG_DETAIL_FILENAME);
+  }
+
+  /**
+   * Retrieves the directory holding the checkpoint of the resource's last DwC-A generation that didn't complete, used
+   * to resume it.
+   *
+   * @param resourceName resource short name
+   *
+   * @return DwC-A generation checkpoint directory
+   */
+  public File resourceDwcaCheckpointDir(String resourceName) {
+    return dataFile(RESOURCES_DIR + "/" + resourceName + "/" + DWCA_CHECKPOINT_DIR);
+  }
+
   /**
    * Retrieves published RTF file for a specific version of a resource.
    *
@@ -351,6 +377,36 @@ public class DataDir {
     return dataFile(RESOURCES_DIR + "/" + resourceName + "/sources/" + sourceName + ".log");
   }
 
+  /**
+   * @param resourceName resource short name
+   * @param sourceName source name
+   *
+   * @return sidecar file holding the row index of a text file source, see TextFileIndex
+   */
+  public File sourceIndexFile(String resourceName, String sourceName) {
+    return dataFile(RESOURCES_DIR + "/" + resourceName + "/sources/" + sourceName + ".idx");
+  }
+
+  /**
+   * @param resourceName resource short name
+   * @param sourceName source name
+   *
+   * @return tab delimited copy of the sheet of an excel source
+   */
+  public File sourceShadowFile(String resourceName, String sourceName) {
+    return dataFile(RESOURCES_DIR + "/" + resourceName + "/sources/" + sourceName + ".tsv");
+  }
+
+  /**
+   * @param resourceName resource short name
+   * @param sourceName source name
+   *
+   * @return compressed snapshot of the rows of a sql source, see SourceSnapshot
+   */
+  public File sourceSnapshotFile(String resourceName, String sourceName) {
+    return dataFile(RESOURCES_DIR + "/" + resourceName + "/sources/" + sourceName + ".snapshot.gz");
+  }
+
   /**
    * Return a temporary directory with randomly-generated number added to name to uniquely identifier it.
    *
@@ -29,6 +29,7 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -105,6 +106,128 @@ public class JdbcSupport {
       return sql;
     }
 
+    /**
+     * Restricts a query to a single partition of its rows, the rows being partitioned by the remainder of the absolute
+     * value of an integer column divided by the number of partitions. Rows without a value fall into partition 0.
+     * Databases limiting rows with TOP compute remainders with the % operator, the others with the MOD function.
+     *
+     * @param sql query partitioned
+     * @param column column of the query partitioning the rows
+     * @param partitions number of partitions
+     * @param partition partition read, from 0 to partitions - 1
+     *
+     * @return the partition query
+     */
+    public String addPartition(String sql, String column, int partitions, int partition) {
+      String remainder = LIMIT_TYPE.TOP == limitType ? "ABS(" + column + ") % " + partitions
+        : "MOD(ABS(" + column + "), " + partitions + ")";
+      String filter = remainder + " = " + partition;
+      if (partition == 0) {
+        filter = "(" + filter + " OR " + column + " IS NULL)";
+      }
+      return addFilter(sql, filter);
+    }
+
+    /**
+     * Restricts a query to the rows with values of a numeric column within a range.
+     *
+     * @param sql query partitioned
+     * @param column column of the query partitioning the rows
+     * @param lower lowest value included, null for no lower bound
+     * @param upper value just above the range, null for no upper bound
+     * @param nulls true to include the rows without a value too
+     *
+     * @return the partition query
+     */
+    public String addRange(String sql, String column, @Nullable String lower, @Nullable String upper, boolean nulls) {
+      List<String> bounds = new ArrayList<String>();
+      if (lower != null) {
+        bounds.add(column + " >= " + lower);
+      }
+      if (upper != null) {
+        bounds.add(column + " < " + upper);
+      }
+      String filter = bounds.isEmpty() ? "1 = 1" : StringUtils.join(bounds, " AND ");
+      if (nulls) {
+        filter = "(" + filter + " OR " + column + " IS NULL)";
+      }
+      return addFilter(sql, filter);
+    }
+
+    /**
+     * @param sql query partitioned
+     * @param column column of the query partitioning the rows
+     *
+     * @return query selecting the minimum and maximum values of the column
+     */
+    public String addBounds(String sql, String column) {
+      return "SELECT MIN(" + column + "), MAX(" + column + ") FROM (" + stripSql(sql) + ") ipt_bounds";
+    }
+
+    /**
+     * Restricts a query to the rows changed since a watermark, the value of a column increasing whenever a row
+     * changes, e.g. a modification timestamp. Rows with the watermark value itself are included, so that rows changed
+     * while the watermark was read don't get missed.
+     *
+     * @param sql query restricted
+     * @param column column of the query holding the watermark
+     *
+     * @return the query, taking the watermark as its only parameter
+     */
+    public String addWatermark(String sql, String column) {
+      return addFilter(sql, column + " >= ?");
+    }
+
+    /**
+     * @param sql query
+     * @param column column of the query holding the watermark
+     *
+     * @return query selecting the highest watermark of the rows
+     */
+    public String addMaxWatermark(String sql, String column) {
+      return "SELECT MAX(" + column + ") FROM (" + stripSql(sql) + ") ipt_watermark";
+    }
+
+    /**
+     * Counts the rows of a query by value of a column, the most frequent values first. Rows without a value aren't
+     * counted.
+     *
+     * @param sql query
+     * @param column column of the query, quoted if needed
+     *
+     * @return query selecting the distinct values of the column and their number of rows
+     */
+    public String addValueCounts(String sql, String column) {
+      return "SELECT " + column + ", COUNT(*) FROM (" + stripSql(sql) + ") ipt_values WHERE " + column
+             + " IS NOT NULL GROUP BY " + column + " ORDER BY COUNT(*) DESC";
+    }
+
+    /**
+     * Orders the rows of a query by a key column, the rows without a key first whatever the database, so that reading
+     * the rows can be resumed after the last key read. Rows with the same key must not be split when resuming.
+     *
+     * @param sql query ordered
+     * @param column key column of the query, quoted if needed
+     * @param after true to restrict the query to the rows with a key greater than a key, given as its only parameter
+     *
+     * @return the ordered query
+     */
+    public String addKeyOrder(String sql, String column, boolean after) {
+      String ordered = after ? addFilter(sql, column + " > ?") : "SELECT * FROM (" + stripSql(sql) + ") ipt_filtered";
+      return ordered + " ORDER BY CASE WHEN " + column + " IS NULL THEN 0 ELSE 1 END, " + column;
+    }
+
+    /**
+     * Filters the rows of a query, wrapping it as a derived table which all supported databases accept.
+     */
+    private String addFilter(String sql, String filter) {
+      return "SELECT * FROM (" + stripSql(sql) + ") ipt_filtered WHERE " + filter;
+    }
+
+    private String stripSql(String sql) {
+      return StringUtils.removeEnd(StringUtils.trimToEmpty(sql), ";");
+    }
+
     public void enableLargeResultSet(Statement stmnt) throws SQLException {
       // force resultsset streaming for MYSQL only
       if (this.driver.startsWith("com.mysql")) {
@@ -3,6 +3,7 @@ package org.gbif.ipt.model;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.poi.hssf.usermodel.HSSFFormulaEvaluator;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
@@ -11,27 +12,49 @@ import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.xssf.usermodel.XSSFFormulaEvaluator;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.gbif.ipt.utils.FileUtils;
+import org.gbif.ipt.utils.MappedTextFileReader;
+import org.gbif.ipt.utils.XlsxSheetReader;
 import org.gbif.utils.file.ClosableReportingIterator;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import javax.annotation.Nullable;
 
 /**
  * Uses apache POI to parse excel spreadsheets.
  * A single file can have multiple sheets which each act as a separate source.
  * The same file can therefore be used for multiple ExcelFileSource instances.
+ * .xlsx workbooks are streamed with the XlsxSheetReader, only .xls workbooks being loaded in memory.
+ * The sheet is copied once into a tab delimited UTF-8 shadow file, rows being read from it like from a text file
+ * afterwards. The shadow file is written again whenever the file or the sheet index change.
  * POI usage example, see http://svn.apache.org/repos/asf/poi/trunk/src/examples/src/org/apache/poi/ss/examples/ToCSV.java
  */
 public class ExcelFileSource extends SourceBase implements FileSource {
 
   private static final Logger LOG = Logger.getLogger(ExcelFileSource.class);
   private static final String SUFFIX = ".xls";
+  private static final String SHADOW_ENCODING = "UTF-8";
+  private static final String SHADOW_DELIMITER = "\t";
+  // version of the shadow file format, shadow files of another version being written again
+  private static final int SHADOW_VERSION = 2;
+  // empty escape sequence starting blank rows, so that they are not skipped like blank lines of a text file
+  private static final String BLANK_ROW = "\\e";
 
   private int sheetIdx = 0;
   private int ignoreHeaderLines = 0;
   private File file;
+  // copy of the sheet as tab delimited text, not persisted with the resource
+  private File shadowFile;
   private long fileSize;
   private int rows;
   protected Date lastModified;
@@ -40,8 +63,9 @@ public class ExcelFileSource extends SourceBase implements FileSource {
     if (x == null) {
       return null;
     }
-    return x.replaceAll("\\t", "\\\\t").replaceAll("\\n", "\\\\n").replaceAll("\\r", "\\\\r")
-      .replaceAll("\\f", "\\\\f");
+    // backslashes are escaped too, so that unescaping restores any value
+    return x.replace("\\", "\\\\").replaceAll("\\t", "\\\\t").replaceAll("\\n", "\\\\n")
+      .replaceAll("\\r", "\\\\r").replaceAll("\\f", "\\\\f");
   }
 
   public File getFile() {
@@ -90,6 +114,153 @@ public class ExcelFileSource extends SourceBase implements FileSource {
     return book.getSheetAt(sheetIdx);
   }
 
+  public File getShadowFile() {
+    return shadowFile;
+  }
+
+  public void setShadowFile(File shadowFile) {
+    this.shadowFile = shadowFile;
+  }
+
+  /**
+   * @return fingerprint of the sheet copied into the shadow file, written as its first line
+   */
+  private String shadowFingerprint() {
+    return "#shadow " + SHADOW_VERSION + SHADOW_DELIMITER + sheetIdx + SHADOW_DELIMITER + file.length()
+           + SHADOW_DELIMITER + file.lastModified();
+  }
+
+  /**
+   * @return first line of the shadow file, or null if there is none
+   */
+  @Nullable
+  private String readShadowFingerprint() {
+    if (!shadowFile.exists()) {
+      return null;
+    }
+    try {
+      BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(shadowFile), SHADOW_ENCODING));
+      try {
+        return reader.readLine();
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("Cant read shadow file " + shadowFile.getName() + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Makes sure the shadow file is a copy of the sheet, writing it again if the file or the sheet index changed since
+   * it was written.
+   *
+   * @return true if the rows can be read from the shadow file
+   */
+  private synchronized boolean updateShadow() {
+    if (shadowFile == null || file == null || !file.exists()) {
+      return false;
+    }
+    String fingerprint = shadowFingerprint();
+    if (fingerprint.equals(readShadowFingerprint())) {
+      return true;
+    }
+    try {
+      writeShadow(fingerprint);
+      return true;
+    } catch (IOException e) {
+      LOG.warn("Cant write shadow file of excel source " + name + ", reading the workbook: " + e.getMessage());
+      shadowFile.delete();
+      return false;
+    }
+  }
+
+  /**
+   * Copies all rows of the sheet into the shadow file after the fingerprint line, values being formatted as Excel
+   * displays them and escaped, see {@link #escape(String)}. Blank rows start with an empty escape sequence, so that
+   * the shadow file has as many rows as the sheet.
+   */
+  private void writeShadow(String fingerprint) throws IOException {
+    LOG.info("Writing shadow file of excel source " + name);
+    File tmp = new File(shadowFile.getParentFile(), shadowFile.getName() + ".tmp");
+    boolean written = false;
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), SHADOW_ENCODING));
+    ClosableReportingIterator<String[]> iter = null;
+    try {
+      writer.write(fingerprint);
+      writer.write('\n');
+      iter = openWorkbookRows(0, 0);
+      while (iter.hasNext()) {
+        String[] row = iter.next();
+        if (iter.hasRowError()) {
+          throw new IOException(iter.getErrorMessage(), iter.getException());
+        }
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < row.length; i++) {
+          if (i > 0) {
+            line.append(SHADOW_DELIMITER);
+          }
+          line.append(row[i] == null ? "" : escape(row[i]));
+        }
+        if (StringUtils.isBlank(line)) {
+          writer.write(BLANK_ROW);
+        }
+        writer.write(line.toString());
+        writer.write('\n');
+      }
+      writer.close();
+      // replace the shadow file at once, so that it is never read half written
+      Files.move(tmp.toPath(), shadowFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      written = true;
+    } catch (InvalidFormatException e) {
+      throw new IOException("Cannot open invalid excel speadsheet", e);
+    } finally {
+      writer.close();
+      if (iter != null) {
+        iter.close();
+      }
+      if (!written) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * @return true if the file is an .xlsx workbook, which is streamed rather than loaded in memory
+   */
+  private boolean isXlsx() {
+    return XlsxSheetReader.isXlsx(file);
+  }
+
+  /**
+   * Opens an iterator over the rows of the sheet, reading them from the shadow file if possible.
+   *
+   * @param rowSize number of values of every row, 0 for rows as long as their last cell
+   * @param skipRows number of rows skipped
+   */
+  private ClosableReportingIterator<String[]> openRows(int rowSize, int skipRows)
+    throws IOException, InvalidFormatException {
+    if (updateShadow()) {
+      return new ShadowIterator(rowSize, skipRows);
+    }
+    return openWorkbookRows(rowSize, skipRows);
+  }
+
+  /**
+   * Opens an iterator over the rows of the sheet, reading them from the workbook.
+   *
+   * @param rowSize number of values of every row, 0 for rows as long as their last cell
+   * @param skipRows number of rows skipped
+   */
+  private ClosableReportingIterator<String[]> openWorkbookRows(int rowSize, int skipRows)
+    throws IOException, InvalidFormatException {
+    if (isXlsx()) {
+      return new XlsxSheetReader(file, sheetIdx, rowSize, skipRows);
+    }
+    return new RowIterator(rowSize, skipRows);
+  }
+
   public int getRows() {
     return rows;
   }
@@ -107,19 +278,15 @@ public class ExcelFileSource extends SourceBase implements FileSource {
     // FormulaEvaluator evaluate any formula in Excel cell and returns result
     private FormulaEvaluator formulaEvaluator;
 
-    RowIterator(ExcelFileSource source) throws IOException, InvalidFormatException {
+    RowIterator(int rowSize, int skipRows) throws IOException, InvalidFormatException {
       Workbook book = openBook();
       sheet = getSheet(book);
       // instantiate the appropriate FormulaEvaluator, depending on whether workbook is .xls or .xlsx
       formulaEvaluator = (book instanceof XSSFWorkbook) ? new XSSFFormulaEvaluator((XSSFWorkbook) book)
         : new HSSFFormulaEvaluator((HSSFWorkbook) book);
       iter = sheet.rowIterator();
-      rowSize = source.getColumns();
-    }
-
-    RowIterator(ExcelFileSource source, int skipRows) throws IOException, InvalidFormatException {
-      this(source);
-      while (skipRows > 0) {
+      this.rowSize = rowSize;
+      while (skipRows > 0 && iter.hasNext()) {
         iter.next();
         skipRows--;
       }
@@ -140,10 +307,14 @@ public class ExcelFileSource extends SourceBase implements FileSource {
         resetReportingIterator();
         try {
           Row row = iter.next();
-          for (int i = 0; i < rowSize; i++) {
+          if (rowSize <= 0) {
+            val = new String[Math.max(0, row.getLastCellNum())];
+          }
+          for (int i = 0; i < val.length; i++) {
             Cell c = row.getCell(i, Row.MissingCellPolicy.CREATE_NULL_AS_BLANK);
-            formulaEvaluator.evaluate(c);
-            val[i] = dataFormatter.formatCellValue(c, formulaEvaluator);
+            // only formulas need evaluating, the DataFormatter formatting their result
+            val[i] = c.getCellTypeEnum() == CellType.FORMULA ? dataFormatter.formatCellValue(c, formulaEvaluator)
+              : dataFormatter.formatCellValue(c);
           }
         } catch (Exception e) {
           LOG.debug("Exception caught: " + e.getMessage(), e);
@@ -180,9 +351,57 @@ public class ExcelFileSource extends SourceBase implements FileSource {
     }
   }
 
+  /**
+   * Reads the rows of the sheet copied into the shadow file, unescaping their values.
+   */
+  private class ShadowIterator implements ClosableReportingIterator<String[]> {
+
+    private final MappedTextFileReader reader;
+    private final int rowSize;
+
+    ShadowIterator(int rowSize, int skipRows) throws IOException {
+      // the first line is the fingerprint of the sheet
+      reader = new MappedTextFileReader(shadowFile, SHADOW_ENCODING, SHADOW_DELIMITER, null, 1 + skipRows, null);
+      this.rowSize = rowSize;
+    }
+
+    public void close() {
+      reader.close();
+    }
+
+    public boolean hasNext() {
+      return reader.hasNext();
+    }
+
+    public String[] next() {
+      String[] row = reader.next();
+      String[] val = new String[rowSize > 0 ? rowSize : row.length];
+      for (int i = 0; i < val.length; i++) {
+        val[i] = i < row.length ? unescape(row[i]) : "";
+      }
+      return val;
+    }
+
+    public void remove() {
+      // unsupported
+    }
+
+    public boolean hasRowError() {
+      return reader.hasRowError();
+    }
+
+    public String getErrorMessage() {
+      return reader.getErrorMessage();
+    }
+
+    public Exception getException() {
+      return reader.getException();
+    }
+  }
+
   public ClosableReportingIterator<String[]> rowIterator() {
     try {
-      return new RowIterator(this, ignoreHeaderLines);
+      return openRows(getColumns(), ignoreHeaderLines);
     } catch (Exception e) {
       LOG.error("Exception while reading excel source " + name, e);
     }
@@ -193,6 +412,9 @@ public class ExcelFileSource extends SourceBase implements FileSource {
    * @return list of available sheets, keyed on sheet index
    */
   public Map<Integer, String> sheets() throws IOException {
+    if (isXlsx()) {
+      return XlsxSheetReader.sheets(file);
+    }
     Workbook book = openBook();
     int cnt = book.getNumberOfSheets();
     Map<Integer, String> sheets = Maps.newHashMap();
@@ -206,7 +428,12 @@ public class ExcelFileSource extends SourceBase implements FileSource {
     if (rows > 0) {
       try {
         if (ignoreHeaderLines > 0) {
-          return Lists.newArrayList(new RowIterator(this, ignoreHeaderLines - 1).next());
+          ClosableReportingIterator<String[]> iter = openRows(getColumns(), ignoreHeaderLines - 1);
+          try {
+            return Lists.newArrayList(iter.next());
+          } finally {
+            iter.close();
+          }
 
         } else {
           List<String> columnList = Lists.newArrayList();
@@ -251,6 +478,12 @@ public class ExcelFileSource extends SourceBase implements FileSource {
 
   public Set<Integer> analyze() throws IOException {
     setFileSize(getFile().length());
+    if (updateShadow()) {
+      return analyzeShadow();
+    }
+    if (isXlsx()) {
+      return analyzeXlsx();
+    }
     // find row size
     Workbook book = openBook();
     Sheet sheet = getSheet(book);
@@ -269,12 +502,108 @@ public class ExcelFileSource extends SourceBase implements FileSource {
     return Sets.newHashSet();
   }
 
+  /**
+   * Counts the rows of the sheet copied into the shadow file, the columns being the cells of its first row. Rows
+   * without any value are counted like the sheet counts them, and reported as empty lines numbered from 1 like the
+   * rows of the sheet.
+   */
+  private Set<Integer> analyzeShadow() throws IOException {
+    // only the first value is decoded, telling blank rows
+    MappedTextFileReader reader =
+      new MappedTextFileReader(shadowFile, SHADOW_ENCODING, SHADOW_DELIMITER, null, 1, Sets.newHashSet(0));
+    try {
+      Set<Integer> emptyLines = Sets.newHashSet();
+      int count = 0;
+      while (reader.hasNext()) {
+        String[] row = reader.next();
+        if (reader.hasRowError()) {
+          throw new IOException(reader.getErrorMessage(), reader.getException());
+        }
+        if (count == 0) {
+          setColumns(row.length);
+        }
+        count++;
+        if (row[0] != null && row[0].startsWith(BLANK_ROW)) {
+          emptyLines.add(count);
+        }
+      }
+      setRows(count);
+      if (count == 0) {
+        setColumns(0);
+      }
+      setReadable(count > 0);
+      return emptyLines;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Counts the rows of an .xlsx sheet streaming it, the columns being the cells of its first row.
+   */
+  private Set<Integer> analyzeXlsx() throws IOException {
+    ClosableReportingIterator<String[]> iter = new XlsxSheetReader(file, sheetIdx, 0, 0);
+    try {
+      int count = 0;
+      while (iter.hasNext()) {
+        String[] row = iter.next();
+        if (iter.hasRowError()) {
+          throw new IOException(iter.getErrorMessage(), iter.getException());
+        }
+        if (count == 0) {
+          setColumns(row.length);
+        }
+        count++;
+      }
+      setRows(count);
+      if (count == 0) {
+        setColumns(0);
+      }
+      setReadable(count > 0);
+    } finally {
+      iter.close();
+    }
+
+    //TODO: report empty or irregular rows
+    return Sets.newHashSet();
+  }
+
   private String unescape(String x) {
-    if (x == null) {
-      return null;
+    if (x == null || x.indexOf('\\') < 0) {
+      return x;
+    }
+    StringBuilder sb = new StringBuilder(x.length());
+    for (int i = 0; i < x.length(); i++) {
+      char c = x.charAt(i);
+      if (c == '\\' && i + 1 < x.length()) {
+        char escaped = x.charAt(++i);
+        switch (escaped) {
+          case 't':
+            sb.append('\t');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'e':
+            // empty escape sequence of blank rows
+            break;
+          case '\\':
+            sb.append('\\');
+            break;
+          default:
+            sb.append(c).append(escaped);
+        }
+      } else {
+        sb.append(c);
+      }
     }
-    return x.replaceAll("\\\\t", String.valueOf('\t')).replaceAll("\\\\n", String.valueOf('\n'))
-      .replaceAll("\\\\r", String.valueOf('\r')).replaceAll("\\\\f", String.valueOf('\f'));
+    return sb.toString();
   }
 
 }
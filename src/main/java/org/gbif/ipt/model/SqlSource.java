@@ -2,18 +2,41 @@ package org.gbif.ipt.model;
 
 import org.gbif.ipt.config.JdbcSupport;
 
+import java.math.BigDecimal;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+
 /**
  * A SQL view based data source.
  * The view is configured via a fully custom and raw select statement that can use any db specific feature needed.
  */
 public class SqlSource extends SourceBase {
 
+  /**
+   * How the rows of a partitioned source are split between the queries reading them in parallel.
+   */
+  public enum PartitionMode {
+    // ranges of the values of a numeric column, between its minimum and maximum
+    RANGE,
+    // remainders of the values of an integer column divided by the number of partitions
+    MODULO
+  }
+
   private String sql;
   private JdbcSupport.JdbcInfo rdbms;
   private String host;
   private String database;
   private String username;
   private Password password = new Password();
+  private String partitionColumn;
+  private int partitions;
+  private PartitionMode partitionMode;
+  private String watermarkColumn;
+  private String deletedSql;
+  private boolean snapshot;
+  // hours after which the snapshot expires, 0 to keep it until refreshed
+  private int snapshotTtl = 24;
 
   public String getDatabase() {
     return database;
@@ -57,6 +80,150 @@ public class SqlSource extends SourceBase {
     return rdbms.addLimit(sql, limit);
   }
 
+  /**
+   * The configured sql wrapped in a query counting the rows it returns, as a derived table which all supported
+   * databases accept.
+   *
+   * @return the count sql string
+   */
+  public String getSqlCount() {
+    return "SELECT COUNT(*) FROM (" + StringUtils.removeEnd(StringUtils.trimToEmpty(sql), ";") + ") ipt_count";
+  }
+
+  /**
+   * The configured sql wrapped in a query counting its rows by value of a column, the most frequent values first.
+   *
+   * @param column column of the query, quoted if needed
+   *
+   * @return the final sql string
+   */
+  public String getSqlValueCounts(String column) {
+    return rdbms.addValueCounts(sql, column);
+  }
+
+  /**
+   * The configured sql ordered by a key column, the rows without a key first, e.g. to resume reading the rows after
+   * the last key read.
+   *
+   * @param column key column of the query, quoted if needed
+   * @param after true to read the rows after a key only, given as the only parameter of the query
+   *
+   * @return the final sql string
+   */
+  public String getSqlKeyOrder(String column, boolean after) {
+    return rdbms.addKeyOrder(sql, column, after);
+  }
+
+  /**
+   * @return column of the query partitioning the rows, see {@link #isPartitioned()}
+   */
+  public String getPartitionColumn() {
+    return partitionColumn;
+  }
+
+  /**
+   * @return number of partitions the rows are read in, 0 or 1 meaning the rows are read by a single query
+   */
+  public int getPartitions() {
+    return partitions;
+  }
+
+  public PartitionMode getPartitionMode() {
+    return partitionMode == null ? PartitionMode.MODULO : partitionMode;
+  }
+
+  /**
+   * @return true if the rows are read by several queries in parallel, each reading a partition of the rows
+   */
+  public boolean isPartitioned() {
+    return StringUtils.trimToNull(partitionColumn) != null && partitions > 1;
+  }
+
+  /**
+   * The configured sql restricted to a single partition of the rows in MODULO partition mode.
+   *
+   * @param partition partition read, from 0 to the number of partitions - 1
+   *
+   * @return the final sql string
+   */
+  public String getSqlPartition(int partition) {
+    return rdbms.addPartition(sql, partitionColumn.trim(), partitions, partition);
+  }
+
+  /**
+   * The configured sql restricted to a range of values of the partition column in RANGE partition mode.
+   *
+   * @param lower lowest value included, null for no lower bound
+   * @param upper value just above the range, null for no upper bound
+   * @param nulls true to include the rows without a value too
+   *
+   * @return the final sql string
+   */
+  public String getSqlRange(@Nullable BigDecimal lower, @Nullable BigDecimal upper, boolean nulls) {
+    return rdbms.addRange(sql, partitionColumn.trim(), lower == null ? null : lower.toPlainString(),
+      upper == null ? null : upper.toPlainString(), nulls);
+  }
+
+  /**
+   * @return the sql string selecting the minimum and maximum values of the partition column
+   */
+  public String getSqlBounds() {
+    return rdbms.addBounds(sql, partitionColumn.trim());
+  }
+
+  /**
+   * @return column of the query increasing whenever a row changes, see {@link #isIncremental()}
+   */
+  public String getWatermarkColumn() {
+    return watermarkColumn;
+  }
+
+  /**
+   * @return query selecting the IDs of the rows deleted since a watermark, given as its only parameter if it has one
+   */
+  public String getDeletedSql() {
+    return deletedSql;
+  }
+
+  /**
+   * @return true if only the rows changed since the last published version are read when publishing, the records of
+   * the other rows being taken from the last published version
+   */
+  public boolean isIncremental() {
+    return StringUtils.trimToNull(watermarkColumn) != null;
+  }
+
+  /**
+   * The configured sql restricted to the rows changed since a watermark, given as its only parameter.
+   *
+   * @return the final sql string
+   */
+  public String getSqlWatermark() {
+    return rdbms.addWatermark(sql, watermarkColumn.trim());
+  }
+
+  /**
+   * @return the sql string selecting the highest watermark of the rows
+   */
+  public String getSqlMaxWatermark() {
+    return rdbms.addMaxWatermark(sql, watermarkColumn.trim());
+  }
+
+  /**
+   * @return true if the rows are read once into a local snapshot, and read from the snapshot afterwards until it gets
+   * refreshed or expires
+   */
+  public boolean isSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * @return hours after which the snapshot of the rows expires, 0 if it never expires
+   */
+  public int getSnapshotTtl() {
+    return snapshotTtl;
+  }
+
   public String getUsername() {
     return username;
   }
@@ -69,6 +236,34 @@ public class SqlSource extends SourceBase {
     this.host = host;
   }
 
+  public void setPartitionColumn(String partitionColumn) {
+    this.partitionColumn = StringUtils.trimToNull(partitionColumn);
+  }
+
+  public void setPartitions(int partitions) {
+    this.partitions = partitions;
+  }
+
+  public void setPartitionMode(PartitionMode partitionMode) {
+    this.partitionMode = partitionMode;
+  }
+
+  public void setWatermarkColumn(String watermarkColumn) {
+    this.watermarkColumn = StringUtils.trimToNull(watermarkColumn);
+  }
+
+  public void setDeletedSql(String deletedSql) {
+    this.deletedSql = StringUtils.trimToNull(deletedSql);
+  }
+
+  public void setSnapshot(boolean snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  public void setSnapshotTtl(int snapshotTtl) {
+    this.snapshotTtl = snapshotTtl;
+  }
+
   public void setPassword(String password) {
     this.password.password = password;
   }
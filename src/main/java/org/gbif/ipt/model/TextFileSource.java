@@ -2,6 +2,10 @@ package org.gbif.ipt.model;
 
 import org.apache.log4j.Logger;
 import org.gbif.ipt.utils.FileUtils;
+import org.gbif.ipt.utils.MappedTextFileReader;
+import org.gbif.ipt.utils.ParallelTextFileReader;
+import org.gbif.ipt.utils.TextFileIndex;
+import org.gbif.ipt.utils.TextFileSplitter;
 import org.gbif.utils.file.ClosableReportingIterator;
 import org.gbif.utils.file.csv.CSVReader;
 import org.gbif.utils.file.csv.CSVReaderFactory;
@@ -9,6 +13,7 @@ import org.gbif.utils.file.csv.CSVReaderFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import javax.annotation.Nullable;
 
 /**
  * A delimited text file based source such as CSV or tab files.
@@ -17,6 +22,8 @@ public class TextFileSource extends SourceBase implements FileSource {
 
   private static final Logger LOG = Logger.getLogger(TextFileSource.class);
   private static final String SUFFIX = ".txt";
+  // smallest range of a file parsed by a thread of its own
+  private static final long MIN_PARALLEL_RANGE_SIZE = 64L * 1024 * 1024;
 
   private String fieldsTerminatedBy = "\t";
   private String fieldsEnclosedBy;
@@ -25,6 +32,8 @@ public class TextFileSource extends SourceBase implements FileSource {
   private long fileSize;
   private int rows;
   protected Date lastModified;
+  // index of the rows of the file, not persisted with the resource
+  private TextFileIndex index;
 
   private String escape(String x) {
     if (x == null) {
@@ -94,6 +103,173 @@ public class TextFileSource extends SourceBase implements FileSource {
     return null;
   }
 
+  /**
+   * Iterates over the rows of the file decoding only the values of the given columns, the others being left
+   * undecoded. The file is read memory-mapped if its encoding and delimiters allow it, see MappedTextFileReader,
+   * which is much faster for wide files of which only a few columns are read.
+   *
+   * @param columns indexes of the columns decoded, null to decode all columns
+   *
+   * @return iterator over the rows, or null if the file could not be read
+   */
+  public ClosableReportingIterator<String[]> rowIterator(@Nullable Set<Integer> columns) {
+    return rowIterator(columns, 1, true);
+  }
+
+  /**
+   * Iterates over the rows of the file decoding only the values of the given columns, like
+   * {@link #rowIterator(Set)}. Large files get split into ranges parsed in parallel, see ParallelTextFileReader.
+   *
+   * @param columns indexes of the columns decoded, null to decode all columns
+   * @param threads maximum number of threads parsing the file
+   * @param ordered true to iterate over the rows in the order of the file, false if the order doesn't matter
+   *
+   * @return iterator over the rows, or null if the file could not be read
+   */
+  public ClosableReportingIterator<String[]> rowIterator(@Nullable Set<Integer> columns, int threads,
+    boolean ordered) {
+    if (MappedTextFileReader.supports(encoding, fieldsTerminatedBy, getFieldQuoteChar())) {
+      try {
+        List<TextFileSplitter.Range> ranges = split(threads);
+        if (ranges.size() > 1) {
+          return new ParallelTextFileReader(file, encoding, fieldsTerminatedBy, getFieldQuoteChar(), columns, ranges,
+            ordered);
+        }
+        return new MappedTextFileReader(file, encoding, fieldsTerminatedBy, getFieldQuoteChar(), ignoreHeaderLines,
+          columns);
+      } catch (IOException e) {
+        LOG.warn("Cant map source " + getName() + ", reading it with a CSVReader: " + e.getMessage());
+      }
+    }
+    return rowIterator();
+  }
+
+  /**
+   * Iterates over the rows of the file starting at a position in the file, like {@link #rowIterator(Set, int, boolean)}
+   * in the order of the file, e.g. to resume reading the file from a row whose position was kept. Only files read
+   * memory-mapped can be read from a position, see PositionedRowIterator.
+   *
+   * @param columns indexes of the columns decoded, null to decode all columns
+   * @param threads maximum number of threads parsing the file
+   * @param start position in the file of the line of a row
+   *
+   * @return iterator over the rows from the position on, or null if the file can't be read from a position
+   */
+  public ClosableReportingIterator<String[]> rowIterator(@Nullable Set<Integer> columns, int threads, long start) {
+    if (MappedTextFileReader.supports(encoding, fieldsTerminatedBy, getFieldQuoteChar())) {
+      try {
+        List<TextFileSplitter.Range> ranges = TextFileSplitter.from(split(threads), start);
+        if (ranges.size() > 1) {
+          return new ParallelTextFileReader(file, encoding, fieldsTerminatedBy, getFieldQuoteChar(), columns, ranges,
+            true);
+        }
+        return new MappedTextFileReader(file, encoding, fieldsTerminatedBy, getFieldQuoteChar(), columns, start,
+          Long.MAX_VALUE);
+      } catch (IOException e) {
+        LOG.warn("Cant map source " + getName() + " from position " + start + ": " + e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Iterates over all rows of the file starting at a given row, e.g. to preview rows in the middle of the file. With
+   * a valid index, the file is read from the closest row indexed rather than from its first row.
+   *
+   * @param firstRow number of the first row iterated over, the first row after the header lines being row 0
+   *
+   * @return iterator over the rows, or null if the file could not be read
+   */
+  public ClosableReportingIterator<String[]> rowIterator(int firstRow) {
+    ClosableReportingIterator<String[]> iter = null;
+    int skip = firstRow;
+    // the index is read once, as it may be replaced at any time
+    TextFileIndex validIndex = getValidIndex();
+    TextFileIndex.Checkpoint checkpoint = validIndex == null ? null : validIndex.checkpoint(firstRow);
+    if (checkpoint != null) {
+      try {
+        iter = new MappedTextFileReader(file, encoding, fieldsTerminatedBy, getFieldQuoteChar(), null,
+          checkpoint.getOffset(), Long.MAX_VALUE);
+        skip = firstRow - checkpoint.getRow();
+      } catch (IOException e) {
+        LOG.warn("Cant map source " + getName() + ", reading it with a CSVReader: " + e.getMessage());
+      }
+    }
+    if (iter == null) {
+      iter = rowIterator();
+    }
+    while (iter != null && skip > 0 && iter.hasNext()) {
+      iter.next();
+      skip--;
+    }
+    return iter;
+  }
+
+  /**
+   * Splits the file into ranges parsed by a thread each, files smaller than 2 ranges not being split. The ranges are
+   * taken from the index if it is valid, without reading the file.
+   */
+  private List<TextFileSplitter.Range> split(int threads) throws IOException {
+    if (threads <= 1 || file.length() < 2 * MIN_PARALLEL_RANGE_SIZE) {
+      return Collections.emptyList();
+    }
+    if (getValidIndex() != null) {
+      return index.ranges(threads, MIN_PARALLEL_RANGE_SIZE);
+    }
+    return TextFileSplitter.split(file, ignoreHeaderLines, threads, MIN_PARALLEL_RANGE_SIZE);
+  }
+
+  /**
+   * @return index of the rows of the file if it still matches the file and the settings it is read with, or null
+   */
+  @Nullable
+  public TextFileIndex getValidIndex() {
+    return index != null && file != null && index.isValidFor(file, getIndexSettings()) ? index : null;
+  }
+
+  public void setIndex(@Nullable TextFileIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * @return settings the file is read with, the rows indexed depending on them
+   */
+  public String getIndexSettings() {
+    return encoding + "|" + fieldsTerminatedBy + "|" + fieldsEnclosedBy + "|" + ignoreHeaderLines;
+  }
+
+  /**
+   * @return true if the rows of the file can be indexed, see {@link #buildIndex(int)}
+   */
+  public boolean isIndexable() {
+    return file != null && MappedTextFileReader.supports(encoding, fieldsTerminatedBy, getFieldQuoteChar());
+  }
+
+  /**
+   * Builds the index of the rows of the file, reading large files on several threads, and keeps it.
+   *
+   * @param threads maximum number of threads reading the file
+   *
+   * @return index
+   *
+   * @throws IOException if the file could not be read, or its encoding isn't supported
+   */
+  public TextFileIndex buildIndex(int threads) throws IOException {
+    if (!isIndexable()) {
+      throw new IOException("Source " + getName() + " can't be indexed with encoding " + encoding);
+    }
+    List<TextFileSplitter.Range> ranges =
+      TextFileSplitter.split(file, ignoreHeaderLines, threads <= 1 ? 1 : threads, MIN_PARALLEL_RANGE_SIZE);
+    try {
+      index = TextFileIndex.build(file, getIndexSettings(), encoding, fieldsTerminatedBy, getFieldQuoteChar(),
+        ignoreHeaderLines, ranges, TextFileIndex.DEFAULT_INTERVAL);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while indexing source " + getName(), e);
+    }
+    return index;
+  }
+
   public List<String> columns() {
     try {
       CSVReader reader = getReader();
@@ -158,6 +334,30 @@ public class TextFileSource extends SourceBase implements FileSource {
     return SUFFIX;
   }
 
+  /**
+   * Analyzes the file like {@link #analyze()}, building the index of its rows at the same time, see
+   * {@link #buildIndex(int)}. Files that can't be indexed are analyzed with a CSVReader.
+   *
+   * @param threads maximum number of threads reading the file
+   *
+   * @return numbers of the empty lines
+   */
+  public Set<Integer> analyze(int threads) throws IOException {
+    if (!isIndexable()) {
+      return analyze();
+    }
+    setFileSize(getFile().length());
+
+    // the header only is read with a CSVReader
+    CSVReader reader = getReader();
+    setColumns(reader.header == null ? 0 : reader.header.length);
+    reader.close();
+    TextFileIndex built = buildIndex(threads);
+    setRows(built.getRows());
+    setReadable(true);
+    return built.getEmptyLines();
+  }
+
   public Set<Integer> analyze() throws IOException {
     setFileSize(getFile().length());
 
@@ -27,6 +27,16 @@ public class VersionHistory {
   private int recordsPublished;
   // record counts by extension: Map<rowType, count>
   private Map<String, Integer> recordsByExtension = Maps.newHashMap();
+  // fingerprint of the data the data files of this version were generated from
+  private String dataFingerprint;
+  // fingerprint of the configuration of the data, i.e. mappings, sources and extensions, of this version
+  private String configurationFingerprint;
+  // highest watermark of the incremental sql sources read for this version: Map<source name, watermark>
+  private Map<String, String> watermarksBySource;
+  // time spent generating this version by stage: Map<stage, milliseconds>
+  private Map<String, Long> generationMillisByStage;
+  // rate the data files of this version were written at by extension: Map<rowType, rows per second>
+  private Map<String, Long> rowsPerSecondByExtension;
 
   public VersionHistory(BigDecimal version, Date released, PublicationStatus publicationStatus) {
     this.version = version.toPlainString();
@@ -146,4 +156,81 @@ public class VersionHistory {
   public void setRecordsByExtension(Map<String, Integer> recordsByExtension) {
     this.recordsByExtension = recordsByExtension;
   }
+
+  /**
+   * @return fingerprint of the data (mappings, sources and extensions) the data files of this version were generated
+   * from, or null if unknown
+   */
+  @Nullable
+  public String getDataFingerprint() {
+    return dataFingerprint;
+  }
+
+  /**
+   * @param dataFingerprint fingerprint of the data the data files of this version were generated from
+   */
+  public void setDataFingerprint(String dataFingerprint) {
+    this.dataFingerprint = dataFingerprint;
+  }
+
+  /**
+   * @return fingerprint of the configuration of the data (mappings, sources and extensions) the data files of this
+   * version were generated with, or null if unknown
+   */
+  @Nullable
+  public String getConfigurationFingerprint() {
+    return configurationFingerprint;
+  }
+
+  /**
+   * @param configurationFingerprint fingerprint of the configuration the data files of this version were generated with
+   */
+  public void setConfigurationFingerprint(String configurationFingerprint) {
+    this.configurationFingerprint = configurationFingerprint;
+  }
+
+  /**
+   * @return highest watermark (map value) of the rows read for this version from each incremental sql source (map
+   * key), or an empty map if unknown. The rows changed since get read when publishing the next version
+   */
+  public Map<String, String> getWatermarksBySource() {
+    return watermarksBySource == null ? Maps.<String, String>newHashMap() : watermarksBySource;
+  }
+
+  /**
+   * @param watermarksBySource map of highest watermarks (map value) by incremental sql source (map key)
+   */
+  public void setWatermarksBySource(Map<String, String> watermarksBySource) {
+    this.watermarksBySource = watermarksBySource;
+  }
+
+  /**
+   * @return milliseconds spent generating this version (map value) by stage of the generation (map key), in the order
+   * the stages were run, or an empty map if unknown, e.g. for versions published before timings were recorded
+   */
+  public Map<String, Long> getGenerationMillisByStage() {
+    return generationMillisByStage == null ? Maps.<String, Long>newLinkedHashMap() : generationMillisByStage;
+  }
+
+  /**
+   * @param generationMillisByStage map of milliseconds spent (map value) by stage of the generation (map key)
+   */
+  public void setGenerationMillisByStage(Map<String, Long> generationMillisByStage) {
+    this.generationMillisByStage = generationMillisByStage;
+  }
+
+  /**
+   * @return rows read per second (map value) writing the data file of each extension (map key), or an empty map if
+   * unknown
+   */
+  public Map<String, Long> getRowsPerSecondByExtension() {
+    return rowsPerSecondByExtension == null ? Maps.<String, Long>newHashMap() : rowsPerSecondByExtension;
+  }
+
+  /**
+   * @param rowsPerSecondByExtension map of rows read per second (map value) by extension (map key)
+   */
+  public void setRowsPerSecondByExtension(Map<String, Long> rowsPerSecondByExtension) {
+    this.rowsPerSecondByExtension = rowsPerSecondByExtension;
+  }
 }
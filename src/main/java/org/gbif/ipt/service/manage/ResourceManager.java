@@ -13,6 +13,7 @@ import org.gbif.ipt.service.InvalidConfigException;
 import org.gbif.ipt.service.InvalidFilenameException;
 import org.gbif.ipt.service.PublicationException;
 import org.gbif.ipt.service.manage.impl.ResourceManagerImpl;
+import org.gbif.ipt.task.DryRunReport;
 import org.gbif.ipt.task.StatusReport;
 
 import java.io.File;
@@ -196,6 +197,22 @@ public interface ResourceManager {
    */
   boolean publish(Resource resource, BigDecimal version, @Nullable BaseAction action) throws PublicationException;
 
+  /**
+   * Runs a dry run of the publication of a resource, so that problems with its mappings show up within seconds: a
+   * sample of the darwin core archive is generated, writing all mappings at the same time up to a row limit each, and
+   * validated. Nothing gets published, and neither the version history nor the publication log is touched.
+   * </br>
+   * The dry run is carried out on the calling thread, so it never ties up a publishing thread.
+   *
+   * @param resource Resource
+   * @param rowLimit maximum number of records written for each mapping
+   *
+   * @return dry run report, holding the records sampled, the meta.xml archive descriptor and all messages reported
+   *
+   * @throws PublicationException if the sample could not be generated
+   */
+  DryRunReport dryRun(Resource resource, int rowLimit) throws PublicationException;
+
   /**
    * Registers the resource with the GBIF Registry. Instead of registering a new resource, the resource can instead
    * update an existing registered resource if a UUID corresponding to an existing registered resource (owned by the
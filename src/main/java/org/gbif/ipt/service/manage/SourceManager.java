@@ -3,14 +3,17 @@ package org.gbif.ipt.service.manage;
 import org.gbif.ipt.model.FileSource;
 import org.gbif.ipt.model.Resource;
 import org.gbif.ipt.model.Source;
+import org.gbif.ipt.model.SqlSource;
 import org.gbif.ipt.service.ImportException;
 import org.gbif.ipt.service.InvalidFilenameException;
 import org.gbif.ipt.service.SourceException;
 import org.gbif.ipt.service.manage.impl.SourceManagerImpl;
+import org.gbif.ipt.utils.SourceSnapshot;
 import org.gbif.utils.file.ClosableReportingIterator;
 
 import java.io.File;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nullable;
 
@@ -72,16 +75,43 @@ public interface SourceManager {
   /**
    * Retrieves a set of unique string values used in a given column of a source.
    * The maximum number of distinct values can be restricted.
+   * The values of sql sources are counted over all rows in the database, the most frequent values coming first.
    *
    * @param source    source
    * @param column    column to inspect, zero based numbering as used in the dwc archives
    * @param maxValues maximun number of distinct values to return. If zero or negative all values will be retrieved.
-   * @param maxRows   maximum number of rows to inspect. If zero or negative all rows will be scanned.
+   * @param maxRows   maximum number of rows to inspect. If zero or negative all rows will be scanned. Ignored if the
+   *                  database counts the values.
    *
    * @return unique values found in the column
    */
   Set<String> inspectColumn(Source source, int column, int maxValues, int maxRows) throws SourceException;
 
+  /**
+   * Counts the rows of each distinct string value used in a given column of a source, e.g. for translations to show
+   * how often values are used. The values of sql sources are counted over all rows in the database.
+   *
+   * @param source    source
+   * @param column    column to inspect, zero based numbering as used in the dwc archives
+   * @param maxValues maximun number of distinct values to count. If zero or negative all values will be counted.
+   * @param maxRows   maximum number of rows to inspect. If zero or negative all rows will be scanned. Ignored if the
+   *                  database counts the values.
+   *
+   * @return number of rows of each distinct value found in the column, the most frequent values first
+   */
+  Map<String, Long> countColumnValues(Source source, int column, int maxValues, int maxRows) throws SourceException;
+
+  /**
+   * Estimates the number of rows of a source, e.g. to estimate how long reading it takes: the row count of a file
+   * source, or the row count of the snapshot of a sql source. The rows of a sql source without a valid snapshot are
+   * counted by the database, which can take a while: the count gives up after a timeout.
+   *
+   * @param source source
+   *
+   * @return estimated number of rows, or -1 if it could not be estimated
+   */
+  long estimateRows(Source source);
+
   /**
    * Return sample rows from the dataset.
    *
@@ -92,6 +122,18 @@ public interface SourceManager {
    */
   List<String[]> peek(Source source, int rows);
 
+  /**
+   * Return sample rows from the dataset, starting at any row. Text file sources are read from the closest row in
+   * their row index, rather than from their first row.
+   *
+   * @param source source
+   * @param offset number of rows skipped
+   * @param rows   number of rows to return
+   *
+   * @return sample rows from the dataset
+   */
+  List<String[]> peek(Source source, int offset, int rows);
+
   /**
    * Create a ClosableReportingIterator iterator for a source.
    *
@@ -101,4 +143,99 @@ public interface SourceManager {
    */
   ClosableReportingIterator<String[]> rowIterator(Source source) throws SourceException;
 
+  /**
+   * Create a ClosableReportingIterator iterator for a source, reading only the values of the given columns if the
+   * source supports it. Text file sources then leave the other values undecoded, see MappedTextFileReader.
+   *
+   * @param source source
+   * @param columns indexes of the columns read, null to read all columns
+   *
+   * @return a ClosableReportingIterator for a source
+   */
+  ClosableReportingIterator<String[]> rowIterator(Source source, @Nullable Set<Integer> columns)
+    throws SourceException;
+
+  /**
+   * Create a ClosableReportingIterator iterator for a text file source starting at a position in its file, reading
+   * only the values of the given columns, e.g. to resume reading the source from a row whose position was kept, see
+   * PositionedRowIterator.
+   *
+   * @param source text file source
+   * @param columns indexes of the columns read, null to read all columns
+   * @param start position in the file of the line of a row
+   *
+   * @return a ClosableReportingIterator for the rows from the position on
+   */
+  ClosableReportingIterator<String[]> rowIterator(Source source, @Nullable Set<Integer> columns, long start)
+    throws SourceException;
+
+  /**
+   * Create a ClosableReportingIterator iterator for the rows of a sql source ordered by a key column, the rows without
+   * a key first, e.g. to resume reading the source after the key of the last row read. The rows are read from the
+   * database by a single query, even if the source is partitioned or has a snapshot.
+   *
+   * @param source sql source
+   * @param keyColumn index of the key column
+   * @param afterKey key of the last row read, only the rows with a greater key being read, null to read all rows
+   *
+   * @return a ClosableReportingIterator for the rows in key order
+   */
+  ClosableReportingIterator<String[]> rowIterator(SqlSource source, int keyColumn, @Nullable String afterKey)
+    throws SourceException;
+
+  /**
+   * Reads the highest watermark of the rows of an incremental sql source, see SqlSource.isIncremental(). Reading it
+   * before the rows are read, the rows changed meanwhile are read again next time. If the rows are read from a
+   * snapshot, the watermark read before the snapshot was taken is returned instead.
+   *
+   * @param source incremental sql source
+   *
+   * @return highest watermark, or null if the source has no rows with a watermark
+   */
+  @Nullable
+  String maxWatermark(SqlSource source) throws SourceException;
+
+  /**
+   * Create a ClosableReportingIterator iterator for the rows of an incremental sql source changed since a watermark.
+   *
+   * @param source incremental sql source
+   * @param watermark watermark read before the rows were last read, see maxWatermark()
+   *
+   * @return a ClosableReportingIterator for the rows changed
+   */
+  ClosableReportingIterator<String[]> rowIterator(SqlSource source, String watermark) throws SourceException;
+
+  /**
+   * Lists the IDs of the rows of an incremental sql source deleted since a watermark, running its query for deleted
+   * rows, e.g. on a table of tombstones.
+   *
+   * @param source incremental sql source
+   * @param watermark watermark read before the rows were last read, see maxWatermark()
+   *
+   * @return IDs of the rows deleted, empty if the source has no query for deleted rows
+   */
+  Set<String> deletedIds(SqlSource source, String watermark) throws SourceException;
+
+  /**
+   * Finds the snapshot of the rows of a sql source in snapshot mode, see SqlSource.isSnapshot().
+   *
+   * @param source sql source
+   *
+   * @return snapshot, or null if the source has none, it expired, or it was taken before the source was edited
+   */
+  @Nullable
+  SourceSnapshot snapshot(SqlSource source);
+
+  /**
+   * Reads all rows of a sql source into a new snapshot, replacing the snapshot taken before. The rows of sources in
+   * snapshot mode are read from the snapshot afterwards, until it gets refreshed again or expires.
+   *
+   * @param source sql source
+   *
+   * @return snapshot taken
+   *
+   * @throws SourceException if the rows could not be read, or the snapshot could not be written
+   */
+  SourceSnapshot refreshSnapshot(SqlSource source) throws SourceException;
+
 }
@@ -63,6 +63,7 @@ import org.gbif.ipt.service.manage.SourceManager;
 import org.gbif.ipt.service.registry.RegistryManager;
 import org.gbif.ipt.struts2.RequireManagerInterceptor;
 import org.gbif.ipt.struts2.SimpleTextProvider;
+import org.gbif.ipt.task.DryRunReport;
 import org.gbif.ipt.task.Eml2Rtf;
 import org.gbif.ipt.task.GenerateDwca;
 import org.gbif.ipt.task.GenerateDwcaFactory;
@@ -668,6 +669,9 @@ public class ResourceManagerImpl extends BaseManager implements ResourceManager,
     xstream.omitField(Resource.class, "type");
     // make files transient to allow moving the datadir
     xstream.omitField(TextFileSource.class, "file");
+    // the row index is persisted in a sidecar file of its own
+    xstream.omitField(TextFileSource.class, "index");
+    xstream.omitField(ExcelFileSource.class, "shadowFile");
 
     // persist only emails for users
     xstream.registerConverter(userConverter);
@@ -1088,6 +1092,9 @@ public class ResourceManagerImpl extends BaseManager implements ResourceManager,
             FileSource frSrc = (FileSource) src;
             frSrc.setFile(dataDir.sourceFile(resource, frSrc));
           }
+          if (src instanceof ExcelFileSource) {
+            ((ExcelFileSource) src).setShadowFile(dataDir.sourceShadowFile(resource.getShortname(), src.getName()));
+          }
         }
 
         // pre v2.2 resources: set IdentifierStatus if null
@@ -1332,6 +1339,24 @@ public class ResourceManagerImpl extends BaseManager implements ResourceManager,
     return dwca;
   }
 
+  public DryRunReport dryRun(Resource resource, int rowLimit) throws PublicationException {
+    // the status reported by a publication of the resource running at the same time must not be replaced
+    GenerateDwca worker = dwcaFactory.createDryRun(resource, new ReportHandler() {
+      public void report(String resourceShortname, StatusReport report) {
+      }
+    }, rowLimit);
+    try {
+      return worker.dryRun();
+    } catch (GeneratorException e) {
+      throw new PublicationException(PublicationException.TYPE.DWCA,
+        "Dry run of resource " + resource.getShortname() + " failed: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PublicationException(PublicationException.TYPE.DWCA,
+        "Dry run of resource " + resource.getShortname() + " was interrupted", e);
+    }
+  }
+
   /**
    * Update the resource's registration (if registered) and persist any changes to the resource.
    * </br>
@@ -16,6 +16,7 @@ package org.gbif.ipt.service.manage.impl;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -30,6 +31,8 @@ import org.gbif.ipt.config.DataDir;
 import org.gbif.ipt.model.*;
 import org.gbif.ipt.service.*;
 import org.gbif.ipt.service.manage.SourceManager;
+import org.gbif.ipt.utils.SourceSnapshot;
+import org.gbif.ipt.utils.TextFileIndex;
 import org.gbif.utils.file.ClosableIterator;
 import org.gbif.utils.file.ClosableReportingIterator;
 import org.gbif.utils.file.csv.UnkownDelimitersException;
@@ -38,10 +41,22 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 public class SourceManagerImpl extends BaseManager implements SourceManager {
 
@@ -50,8 +65,14 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
     private final ClosableReportingIterator<String[]> rows;
     private final int column;
 
-    ColumnIterator(FileSource source, int column) throws IOException {
-      rows = source.rowIterator();
+    ColumnIterator(FileSource source, int column, int threads) throws IOException {
+      // only the column inspected gets decoded, the rows of large text files being read in any order
+      this(source instanceof TextFileSource ? ((TextFileSource) source)
+        .rowIterator(Collections.singleton(column), threads, false) : source.rowIterator(), column);
+    }
+
+    ColumnIterator(ClosableReportingIterator<String[]> rows, int column) {
+      this.rows = rows;
       this.column = column;
     }
 
@@ -66,7 +87,7 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
 
     public Object next() {
       String[] row = rows.next();
-      if (row == null || row.length < column) {
+      if (row == null || row.length <= column) {
         return null;
       }
       return row[column];
@@ -91,7 +112,7 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
     }
 
     public SqlColumnIterator(SqlSource source, int column, int limit) throws SQLException {
-      this(source, column, source.getSqlLimited(limit));
+      this(source, column, source.getSqlLimited(limit), PREVIEW_TIMEOUT_SECS);
     }
 
     /**
@@ -102,26 +123,40 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
      * @param sql statement to query in the sql source
      */
     private SqlColumnIterator(SqlSource source, int column, String sql) throws SQLException {
+      this(source, column, sql, 0);
+    }
+
+    /**
+     * SqlColumnIterator constructor
+     *
+     * @param source of the sql data
+     * @param column to inspect, zero based numbering as used in the dwc archives
+     * @param sql statement to query in the sql source
+     * @param timeoutSecs query timeout in seconds, 0 for no timeout
+     */
+    private SqlColumnIterator(SqlSource source, int column, String sql, int timeoutSecs) throws SQLException {
+      sourceName = source.getName();
       this.conn = getDbConnection(source);
-      this.stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-      source.getRdbms().enableLargeResultSet(this.stmt);
       this.column = column + 1;
-      this.rs = stmt.executeQuery(sql);
-      this.hasNext = rs.next();
-      sourceName = source.getName();
+      Statement statement = null;
+      try {
+        statement = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        source.getRdbms().enableLargeResultSet(statement);
+        statement.setQueryTimeout(timeoutSecs);
+        this.rs = statement.executeQuery(sql);
+        this.hasNext = rs.next();
+      } catch (SQLException | RuntimeException e) {
+        // the pooled connection is given back if the query can't be run
+        closeQuery(null, statement, conn, sourceName);
+        throw e;
+      }
+      this.stmt = statement;
     }
 
     public void close() {
       if (rs != null) {
-        try {
-          rs.close();
-          stmt.close();
-          conn.close();
-        } catch (SQLException e) {
-          log.error("Cant close iterator for sql source " + sourceName, e);
-        }
+        closeQuery(rs, stmt, conn, sourceName);
       }
-
     }
 
     public boolean hasNext() {
@@ -160,27 +195,58 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
     private Exception exception;
 
     SqlRowIterator(SqlSource source) throws SQLException {
-      this.conn = getDbConnection(source);
-      this.stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-      source.getRdbms().enableLargeResultSet(this.stmt);
-      this.rs = stmt.executeQuery(source.getSql());
-      this.rowSize = rs.getMetaData().getColumnCount();
-      this.hasNext = rs.next();
+      this(source, source.getSql(), null);
+    }
+
+    /**
+     * @param source sql source read
+     * @param sql query reading the rows
+     * @param param value of the only parameter of the query, null if it has none
+     */
+    SqlRowIterator(SqlSource source, String sql, @Nullable Object param) throws SQLException {
+      this(source, sql, param, -1);
+    }
+
+    /**
+     * @param source sql source read
+     * @param sql query reading the rows
+     * @param param value of the only parameter of the query, null if it has none
+     * @param paramColumn index of the column the parameter is a value of as read by getString(), converted back to
+     *        the type of the column, or -1 if the parameter is given with its type
+     */
+    SqlRowIterator(SqlSource source, String sql, @Nullable Object param, int paramColumn) throws SQLException {
       sourceName = source.getName();
+      this.conn = getDbConnection(source);
+      Statement statement = null;
+      ResultSet result = null;
+      try {
+        if (param == null) {
+          statement = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+          source.getRdbms().enableLargeResultSet(statement);
+          result = statement.executeQuery(sql);
+        } else {
+          PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+          statement = ps;
+          source.getRdbms().enableLargeResultSet(ps);
+          ps.setObject(1, paramColumn < 0 ? param : columnValue(ps, paramColumn, param.toString()));
+          result = ps.executeQuery();
+        }
+        this.rowSize = result.getMetaData().getColumnCount();
+        this.hasNext = result.next();
+      } catch (SQLException | RuntimeException e) {
+        // the pooled connection is given back if the query can't be run
+        closeQuery(result, statement, conn, sourceName);
+        throw e;
+      }
+      this.stmt = statement;
+      this.rs = result;
       this.rowError = false;
     }
 
     public void close() {
       if (rs != null) {
-        try {
-          rs.close();
-          stmt.close();
-          conn.close();
-        } catch (SQLException e) {
-          log.error("Cant close iterator for sql source " + sourceName, e);
-        }
+        closeQuery(rs, stmt, conn, sourceName);
       }
-
     }
 
     public boolean hasNext() {
@@ -253,11 +319,198 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
       return exception;
     }
   }
+  /**
+   * Reads the rows of a partitioned sql source, running the query of every partition on a pooled connection of its
+   * own, several partitions being read in parallel. Rows are handed over in batches through a bounded queue, in the
+   * order partitions get read. If a partition can't be read the source is not read any further: rather than returning
+   * the rows of the other partitions only, hasNext() throws once the rows read so far were returned.
+   */
+  private class PartitionedSqlRowIterator implements ClosableReportingIterator<String[]> {
+
+    private final String sourceName;
+    private final int partitions;
+    private final ExecutorService executor;
+    private final BlockingQueue<SqlBatch> queue;
+    private int partitionsEnded = 0;
+    private Iterator<SqlRow> batch;
+    private SqlRow next;
+    private String errorMessage;
+    private Exception exception;
+    private boolean rowError;
+    private boolean closed = false;
+    // exception of the partition that could not be read
+    private Exception failure;
+
+    PartitionedSqlRowIterator(final SqlSource source) throws SQLException {
+      sourceName = source.getName();
+      List<String> queries = partitionQueries(source);
+      partitions = queries.size();
+      // no more threads than connections free, other sources of the same database being read too, one being left for
+      // previews
+      int threads = Math.min(partitions, Math.max(1, pool(source).getAvailable() - 1));
+      queue = new ArrayBlockingQueue<SqlBatch>(QUEUED_BATCHES * threads);
+      executor = Executors.newFixedThreadPool(threads);
+      log.debug("Reading sql source " + sourceName + " in " + partitions + " partitions on " + threads + " threads");
+      for (final String sql : queries) {
+        executor.submit(new Callable<Void>() {
+          public Void call() throws InterruptedException {
+            readPartition(source, sql, queue);
+            return null;
+          }
+        });
+      }
+      fetchNext();
+    }
+
+    /**
+     * @throws IllegalStateException if a partition could not be read
+     */
+    public boolean hasNext() {
+      if (next == null && failure != null) {
+        throw new IllegalStateException("Cant read partition of sql source " + sourceName + ": "
+                                        + failure.getMessage(), failure);
+      }
+      return next != null;
+    }
+
+    public String[] next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      SqlRow row = next;
+      rowError = row.exception != null;
+      exception = row.exception;
+      errorMessage = row.errorMessage;
+      fetchNext();
+      return row.values;
+    }
+
+    public void remove() {
+      // unsupported
+    }
+
+    public boolean hasRowError() {
+      return rowError || exception != null;
+    }
+
+    public String getErrorMessage() {
+      return errorMessage;
+    }
+
+    public Exception getException() {
+      return exception;
+    }
+
+    /**
+     * Stops reading, waiting for the partitions being read to close their connection.
+     */
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      next = null;
+      executor.shutdownNow();
+      try {
+        if (!executor.awaitTermination(CLOSE_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+          log.warn("Partitions of sql source " + sourceName + " did not stop in time");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Takes the next row from the batches read, waiting for them if needed.
+     */
+    private void fetchNext() {
+      next = null;
+      try {
+        while (batch == null || !batch.hasNext()) {
+          if (partitionsEnded == partitions) {
+            executor.shutdown();
+            return;
+          }
+          SqlBatch b = queue.take();
+          if (b.exception != null) {
+            // the rows of the partition would be missing, stop reading
+            log.warn("Exception caught reading partition of sql source " + sourceName + ": " + b.exception.getMessage());
+            fail(b.exception, b.exception.getMessage());
+            return;
+          }
+          if (b.rows == null) {
+            partitionsEnded++;
+          } else {
+            batch = b.rows.iterator();
+          }
+        }
+        next = batch.next();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail(e, "Interrupted while reading sql source " + sourceName);
+      }
+    }
+
+    private void fail(Exception e, String message) {
+      failure = e;
+      errorMessage = message;
+      partitionsEnded = partitions;
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Row read from a partition, possibly reporting an error.
+   */
+  private static class SqlRow {
+
+    private final String[] values;
+    private final String errorMessage;
+    private final Exception exception;
+
+    private SqlRow(String[] values, @Nullable String errorMessage, @Nullable Exception exception) {
+      this.values = values;
+      this.errorMessage = errorMessage;
+      this.exception = exception;
+    }
+  }
+
+  /**
+   * Rows read from a partition, or the end of a partition if there are no rows, possibly failed.
+   */
+  private static class SqlBatch {
+
+    private final List<SqlRow> rows;
+    private final Exception exception;
+
+    private SqlBatch(@Nullable List<SqlRow> rows, @Nullable Exception exception) {
+      this.rows = rows;
+      this.exception = exception;
+    }
+  }
+
 
   // default fetch sized used in SQL statements
   private static final int FETCH_SIZE = 10;
   // the maximum time in seconds that a driver will wait while attempting to connect to a database
   private static final int CONNECTION_TIMEOUT_SECS = 5;
+  // counting the rows of a sql source is only an estimate, given up on if the database takes too long
+  private static final int COUNT_TIMEOUT_SECS = 60;
+  // previews of a sql source run while a page is requested, and must never pin the request thread
+  private static final int PREVIEW_TIMEOUT_SECS = 60;
+  // rows read from a partition of a sql source are handed over in batches
+  private static final int BATCH_SIZE = 1000;
+  // batches queued for each thread reading partitions
+  private static final int QUEUED_BATCHES = 4;
+  private static final long CLOSE_TIMEOUT_SECS = 60;
+  // pooled connections idle for longer than this get closed
+  private static final long POOL_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  // connection pools keyed on driver, url and user, shared by the sql sources connecting with the same settings
+  private final Map<String, SqlConnectionPool> pools = new HashMap<String, SqlConnectionPool>();
+  // key of the pool used by each sql source, keyed on resource and source name
+  private final Map<String, String> sourcePools = new HashMap<String, String>();
+  private ScheduledExecutorService poolEvictor;
 
   private static final String ACCEPTED_FILE_NAMES = "[\\w.\\-\\s\\)\\(]+";
 
@@ -346,6 +599,11 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
         }
         src.setFile(ddFile);
         src.setLastModified(new Date());
+        if (src instanceof ExcelFileSource) {
+          // the sheet gets copied into the shadow file when analyzed, rows being read from it afterwards
+          ((ExcelFileSource) src)
+            .setShadowFile(dataDir.sourceShadowFile(resource.getShortname(), src.getName()));
+        }
 
         // add to resource, allow overwriting existing ones
         // if the file is uploaded not for the first time
@@ -384,6 +642,7 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
         if ((ss.getJdbcDriver() != null) && !ss.getJdbcDriver().contains("odbc")) {
             stmt.setFetchSize(FETCH_SIZE);
         }
+        stmt.setQueryTimeout(PREVIEW_TIMEOUT_SECS);
         rs = stmt.executeQuery(ss.getSqlLimited(FETCH_SIZE));
         // get number of columns
         ResultSetMetaData meta = rs.getMetaData();
@@ -429,10 +688,15 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
 
       Set<Integer> emptyLines;
       try {
-        emptyLines = src.analyze();
+        // large text files get counted on several threads, the order rows are counted in not mattering
+        emptyLines = src instanceof TextFileSource ? ((TextFileSource) src).analyze(cfg.getMaxParseThreads())
+          : src.analyze();
       } catch (IOException e) {
         return e.getMessage();
       }
+      if (src instanceof TextFileSource) {
+        saveIndex((TextFileSource) src);
+      }
 
       logWriter = new BufferedWriter(new FileWriter(logFile));
       logWriter.write(
@@ -469,7 +733,8 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
     }
 
     if (source instanceof SqlSource) {
-      return columns((SqlSource) source);
+      SourceSnapshot snapshot = snapshot((SqlSource) source);
+      return snapshot == null ? columns((SqlSource) source) : new ArrayList<String>(snapshot.getColumns());
     }
     return ((FileSource) source).columns();
   }
@@ -487,6 +752,7 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
         if ((source.getJdbcDriver() != null) && !source.getJdbcDriver().contains("odbc")) {
             stmt.setFetchSize(1);
         }
+        stmt.setQueryTimeout(PREVIEW_TIMEOUT_SECS);
         rs = stmt.executeQuery(source.getSqlLimited(1));
         // get column metadata
         ResultSetMetaData meta = rs.getMetaData();
@@ -530,6 +796,43 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
     return columns;
   }
 
+  /**
+   * Persists the row index of a text file source next to its file, if it has a valid one.
+   */
+  private void saveIndex(TextFileSource src) {
+    TextFileIndex index = src.getValidIndex();
+    if (index != null) {
+      File indexFile = dataDir.sourceIndexFile(src.getResource().getShortname(), src.getName());
+      try {
+        index.save(indexFile);
+      } catch (IOException e) {
+        log.warn("Cant write index file " + indexFile.getAbsolutePath() + ": " + e.getMessage());
+        FileUtils.deleteQuietly(indexFile);
+      }
+    }
+  }
+
+  /**
+   * Makes sure a text file source has a row index matching its file: the index persisted is loaded, and it is built
+   * again if the file or the settings it is read with changed since, or if there is none yet.
+   */
+  private void loadIndex(TextFileSource src) {
+    if (src.getValidIndex() != null || src.getResource() == null || !src.isIndexable()) {
+      return;
+    }
+    src.setIndex(TextFileIndex.load(dataDir.sourceIndexFile(src.getResource().getShortname(), src.getName())));
+    if (src.getValidIndex() == null) {
+      try {
+        log.debug("Indexing rows of source " + src.getName());
+        src.buildIndex(cfg.getMaxParseThreads());
+        saveIndex(src);
+      } catch (IOException e) {
+        log.warn("Cant index source " + src.getName() + ": " + e.getMessage());
+        src.setIndex(null);
+      }
+    }
+  }
+
   /*
    * (non-Javadoc)
    * @see org.gbif.ipt.service.manage.MappingConfigManager#delete(org.gbif.ipt.model.SourceBase.TextFileSource)
@@ -544,6 +847,7 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
       // also delete source data file
       TextFileSource fs = (TextFileSource) source;
       fs.getFile().delete();
+      FileUtils.deleteQuietly(dataDir.sourceIndexFile(resource.getShortname(), fs.getName()));
     }
     if (source instanceof ExcelFileSource) {
       // also delete source data file if no further source uses it
@@ -559,18 +863,228 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
       if (del) {
         es.getFile().delete();
       }
+      FileUtils.deleteQuietly(dataDir.sourceShadowFile(resource.getShortname(), es.getName()));
+    }
+    if (source instanceof SqlSource) {
+      // close the pooled connections no other source uses
+      releasePool(sourcePoolKey(resource, source), null);
+      FileUtils.deleteQuietly(dataDir.sourceSnapshotFile(resource.getShortname(), source.getName()));
     }
     return true;
   }
 
+  /**
+   * Builds the queries reading the partitions of a sql source. In RANGE mode, the range between the minimum and maximum
+   * values of the partition column is split into ranges of the same size, the first and last ranges being open so that
+   * rows added meanwhile are read too.
+   *
+   * @return queries reading a partition each, or the configured query only if the rows can't be partitioned
+   */
+  private List<String> partitionQueries(SqlSource source) throws SQLException {
+    List<String> queries = new ArrayList<String>();
+    int partitions = source.getPartitions();
+    if (source.getPartitionMode() == SqlSource.PartitionMode.MODULO) {
+      for (int i = 0; i < partitions; i++) {
+        queries.add(source.getSqlPartition(i));
+      }
+      return queries;
+    }
+    BigDecimal min;
+    BigDecimal max;
+    try (Connection con = getDbConnection(source)) {
+      if (con == null) {
+        throw new SQLException("Cant connect to sql source " + source.getName());
+      }
+      try (Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ResultSet rs = stmt.executeQuery(source.getSqlBounds())) {
+        if (!rs.next()) {
+          queries.add(source.getSql());
+          return queries;
+        }
+        min = rs.getBigDecimal(1);
+        max = rs.getBigDecimal(2);
+      }
+    }
+    if (min == null || max == null || min.compareTo(max) >= 0) {
+      // no values to partition by
+      queries.add(source.getSql());
+      return queries;
+    }
+    BigDecimal step = max.subtract(min).divide(BigDecimal.valueOf(partitions), MathContext.DECIMAL64);
+    BigDecimal lower = null;
+    for (int i = 0; i < partitions; i++) {
+      BigDecimal upper = i == partitions - 1 ? null : min.add(step.multiply(BigDecimal.valueOf(i + 1)));
+      queries.add(source.getSqlRange(lower, upper, i == 0));
+      lower = upper;
+    }
+    return queries;
+  }
+
+  /**
+   * Runs on a thread reading partitions: reads the rows of a partition into batches, ending with an end of partition
+   * batch, or with a failed batch if the partition can't be read for any reason, so that the rows are never waited for
+   * in vain.
+   */
+  private void readPartition(SqlSource source, String sql, BlockingQueue<SqlBatch> queue)
+    throws InterruptedException {
+    try (Connection con = getDbConnection(source)) {
+      if (con == null) {
+        throw new SQLException("Cant connect to sql source " + source.getName());
+      }
+      try (Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+        source.getRdbms().enableLargeResultSet(stmt);
+        try (ResultSet rs = stmt.executeQuery(sql)) {
+          int rowSize = rs.getMetaData().getColumnCount();
+          List<SqlRow> rows = new ArrayList<SqlRow>(BATCH_SIZE);
+          while (rs.next()) {
+            rows.add(readRow(rs, rowSize));
+            if (rows.size() == BATCH_SIZE) {
+              queue.put(new SqlBatch(rows, null));
+              rows = new ArrayList<SqlRow>(BATCH_SIZE);
+            }
+          }
+          if (!rows.isEmpty()) {
+            queue.put(new SqlBatch(rows, null));
+          }
+        }
+      }
+      queue.put(new SqlBatch(null, null));
+    } catch (InterruptedException e) {
+      // the iterator was closed
+      throw e;
+    } catch (Exception e) {
+      // runtime exceptions of the driver included
+      queue.put(new SqlBatch(null, e));
+    }
+  }
+
+  /**
+   * Reads the values of the current row, reporting the values read so far if a value can't be read.
+   */
+  private SqlRow readRow(ResultSet rs, int rowSize) {
+    String[] val = new String[rowSize];
+    int gotTo = 0; // field reached in row
+    try {
+      for (int i = 1; i <= rowSize; i++) {
+        val[i - 1] = rs.getString(i);
+        gotTo = i;
+      }
+      return new SqlRow(val, null, null);
+    } catch (SQLException exOnRow) {
+      log.debug("Exception caught reading row: " + exOnRow.getMessage(), exOnRow);
+      // construct error message showing exception and problem row
+      StringBuilder msg = new StringBuilder();
+      msg.append("Exception caught reading row: ");
+      msg.append(exOnRow.getMessage());
+      msg.append("\n");
+      msg.append("Row: ");
+      for (int i = 0; i < gotTo; i++) {
+        msg.append("[").append(val[i]).append("]");
+      }
+      return new SqlRow(val, msg.toString(), exOnRow);
+    }
+  }
+
+  private static String sourcePoolKey(@Nullable Resource resource, Source source) {
+    return (resource == null ? "" : resource.getShortname()) + "/" + source.getName();
+  }
+
+  /**
+   * Finds the connection pool of a sql source, creating it if needed. If the source connected with other settings
+   * before, i.e. it was edited since, the pool used before is closed unless another source still uses it.
+   */
+  private SqlConnectionPool pool(SqlSource source) {
+    String key = source.getJdbcDriver() + "|" + source.getJdbcUrl() + "|" + source.getUsername();
+    synchronized (pools) {
+      releasePool(sourcePoolKey(source.getResource(), source), key);
+      SqlConnectionPool pool = pools.get(key);
+      if (pool != null && !pool
+        .matches(source.getJdbcDriver(), source.getJdbcUrl(), source.getUsername(), source.getPassword())) {
+        // the password changed
+        pool.close();
+        pool = null;
+      }
+      if (pool == null) {
+        pool = new SqlConnectionPool(source.getJdbcDriver(), source.getJdbcUrl(), source.getUsername(),
+          source.getPassword(), cfg.getMaxSqlConnections(), POOL_IDLE_MILLIS);
+        pools.put(key, pool);
+      }
+      sourcePools.put(sourcePoolKey(source.getResource(), source), key);
+      if (poolEvictor == null) {
+        poolEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sql-connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+        poolEvictor.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            List<SqlConnectionPool> evicted;
+            synchronized (pools) {
+              evicted = new ArrayList<SqlConnectionPool>(pools.values());
+            }
+            for (SqlConnectionPool pool : evicted) {
+              pool.evictIdle();
+            }
+          }
+        }, 1, 1, TimeUnit.MINUTES);
+      }
+      return pool;
+    }
+  }
+
+  /**
+   * Stops a source using its connection pool, closing the pool if no other source uses it.
+   *
+   * @param sourceKey resource and source name
+   * @param keep key of a pool not to close, e.g. the pool the source uses from now on
+   */
+  private void releasePool(String sourceKey, @Nullable String keep) {
+    synchronized (pools) {
+      String key = sourcePools.get(sourceKey);
+      if (key == null || key.equals(keep)) {
+        return;
+      }
+      sourcePools.remove(sourceKey);
+      if (!sourcePools.containsValue(key)) {
+        SqlConnectionPool pool = pools.remove(key);
+        if (pool != null) {
+          log.debug("Closing connection pool " + key);
+          pool.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the result set, the statement and the connection of a query, each of them even if closing the one before
+   * failed, so that a pooled connection is always given back.
+   *
+   * @param rs result set, null if there is none
+   * @param stmt statement, null if there is none
+   * @param conn connection, null if there is none
+   * @param sourceName name of the sql source queried
+   */
+  private void closeQuery(@Nullable ResultSet rs, @Nullable Statement stmt, @Nullable Connection conn,
+    String sourceName) {
+    for (AutoCloseable closeable : new AutoCloseable[] {rs, stmt, conn}) {
+      if (closeable != null) {
+        try {
+          closeable.close();
+        } catch (Exception e) {
+          log.error("Cant close iterator for sql source " + sourceName, e);
+        }
+      }
+    }
+  }
+
   private Connection getDbConnection(SqlSource source) throws SQLException {
     Connection conn = null;
-    // try to connect to db via simple JDBC
+    // try to connect to db via simple JDBC, reusing pooled connections
     if (source.getHost() != null && source.getJdbcUrl() != null && source.getJdbcDriver() != null) {
       try {
-        DriverManager.setLoginTimeout(CONNECTION_TIMEOUT_SECS);
-        Class.forName(source.getJdbcDriver());
-        conn = DriverManager.getConnection(source.getJdbcUrl(), source.getUsername(), source.getPassword());
+        conn = pool(source).getConnection(CONNECTION_TIMEOUT_SECS);
 
         // If a SQLWarning object is available, log its
         // warning(s). There may be multiple warnings chained.
@@ -605,6 +1119,13 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
    * @see org.gbif.ipt.service.manage.SourceManager#inspectColumn(org.gbif.ipt.model.SourceBase, int, int)
    */
   public Set<String> inspectColumn(Source source, int column, int maxValues, int maxRows) throws SourceException {
+    if (source instanceof SqlSource && snapshot((SqlSource) source) == null) {
+      // the database counts the values of all rows, instead of the first rows being read
+      Map<String, Long> counts = countColumnValues((SqlSource) source, column, maxValues);
+      if (counts != null) {
+        return new LinkedHashSet<String>(counts.keySet());
+      }
+    }
     Set<String> values = new HashSet<String>();
     try (ClosableIterator<Object> iter = iterSourceColumn(source, column, maxRows)){
       // get distinct values
@@ -622,20 +1143,308 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
     return values;
   }
 
+  public Map<String, Long> countColumnValues(Source source, int column, int maxValues, int maxRows)
+    throws SourceException {
+    if (source instanceof SqlSource && snapshot((SqlSource) source) == null) {
+      Map<String, Long> counts = countColumnValues((SqlSource) source, column, maxValues);
+      if (counts != null) {
+        return counts;
+      }
+    }
+    final Map<String, Long> counts = new HashMap<String, Long>();
+    try (ClosableIterator<Object> iter = iterSourceColumn(source, column, maxRows)) {
+      int rows = 0;
+      while (iter.hasNext() && (maxRows < 1 || rows < maxRows)) {
+        Object obj = iter.next();
+        rows++;
+        if (obj != null) {
+          String val = obj.toString();
+          Long count = counts.get(val);
+          if (count != null) {
+            counts.put(val, count + 1);
+          } else if (maxValues < 1 || counts.size() < maxValues) {
+            counts.put(val, 1L);
+          }
+        }
+      }
+    } catch (Exception e) {
+      log.error(e);
+      throw new SourceException("Error reading source " + source.getName() + ": " + e.getMessage());
+    }
+    List<String> values = new ArrayList<String>(counts.keySet());
+    Collections.sort(values, new Comparator<String>() {
+      public int compare(String v1, String v2) {
+        return counts.get(v2).compareTo(counts.get(v1));
+      }
+    });
+    Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+    for (String val : values) {
+      sorted.put(val, counts.get(val));
+    }
+    return sorted;
+  }
+
+  /**
+   * Counts the rows of each distinct value of a column of a sql source with a query grouping its rows by value in the
+   * database. The column is referred to by its label, quoted as the database quotes identifiers.
+   *
+   * @return number of rows of each value, the most frequent first, or null if the database can't count them, e.g. if
+   * the label of the column is ambiguous
+   */
+  @Nullable
+  private Map<String, Long> countColumnValues(SqlSource source, int column, int maxValues) {
+    if (column < 0 || StringUtils.trimToNull(source.getSql()) == null) {
+      return null;
+    }
+    try (Connection con = getDbConnection(source)) {
+      if (con == null) {
+        return null;
+      }
+      String label = quotedColumnLabel(con, source, column);
+      if (label == null) {
+        return null;
+      }
+      try (Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+        stmt.setQueryTimeout(PREVIEW_TIMEOUT_SECS);
+        // limited through JDBC, as the limit clauses of some databases don't apply to grouped and sorted rows
+        if (maxValues > 0) {
+          stmt.setMaxRows(maxValues);
+        }
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        try (ResultSet rs = stmt.executeQuery(source.getSqlValueCounts(label))) {
+          while (rs.next() && (maxValues < 1 || counts.size() < maxValues)) {
+            String val = rs.getString(1);
+            if (val != null) {
+              counts.put(val, rs.getLong(2));
+            }
+          }
+        }
+        return counts;
+      }
+    } catch (SQLException e) {
+      log.debug("Cant count values of column " + column + " of sql source " + source + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Finds the label of a column of a sql source on a connection already held. The columns are described by the
+   * driver without running the query if it can, otherwise by running it for a single row.
+   *
+   * @return label of the column, or null if the query has no such column
+   */
+  @Nullable
+  private String columnLabel(Connection con, SqlSource source, int column) throws SQLException {
+    String sql = StringUtils.removeEnd(StringUtils.trimToEmpty(source.getSql()), ";");
+    try (PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+      ResultSetMetaData meta = ps.getMetaData();
+      if (meta != null) {
+        return column < meta.getColumnCount() ? meta.getColumnLabel(column + 1) : null;
+      }
+    }
+    try (Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+      stmt.setQueryTimeout(PREVIEW_TIMEOUT_SECS);
+      try (ResultSet rs = stmt.executeQuery(source.getSqlLimited(1))) {
+        ResultSetMetaData meta = rs.getMetaData();
+        return column < meta.getColumnCount() ? meta.getColumnLabel(column + 1) : null;
+      }
+    }
+  }
+
+  /**
+   * Finds the label of a column of a sql source on a connection already held, quoted as the database quotes
+   * identifiers, see {@link #columnLabel(Connection, SqlSource, int)}.
+   *
+   * @return quoted label of the column, or null if the query has no such column
+   */
+  @Nullable
+  private String quotedColumnLabel(Connection con, SqlSource source, int column) throws SQLException {
+    String label = columnLabel(con, source, column);
+    String quote = StringUtils.trimToNull(con.getMetaData().getIdentifierQuoteString());
+    if (label != null && quote != null) {
+      label = quote + label.replace(quote, quote + quote) + quote;
+    }
+    return label;
+  }
+
+  /**
+   * Converts a value of a column read as a string back to the type of the column, so that it can be compared with
+   * the column as a parameter of the query. The column is described by the driver without running the query, the
+   * type being guessed from the value like a watermark if the driver can't describe it.
+   *
+   * @param ps prepared query reading the column
+   * @param column index of the column
+   * @param value value of the column, as read by getString()
+   *
+   * @return value of the column, as a string if it can't be converted
+   */
+  private static Object columnValue(PreparedStatement ps, int column, String value) throws SQLException {
+    ResultSetMetaData meta = ps.getMetaData();
+    if (meta == null || column >= meta.getColumnCount()) {
+      return watermarkValue(value);
+    }
+    try {
+      switch (meta.getColumnType(column + 1)) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+          return new BigDecimal(value);
+        case Types.DATE:
+          return java.sql.Date.valueOf(value);
+        case Types.TIMESTAMP:
+          return Timestamp.valueOf(value);
+        default:
+          return value;
+      }
+    } catch (IllegalArgumentException e) {
+      // e.g. a date column read with a time
+      return value;
+    }
+  }
+
   /**
    * @param limit limit for the recordset passed into the sql. If negative or zero no limit will be used
    */
   private ClosableIterator<Object> iterSourceColumn(Source source, int column, int limit) throws Exception {
     if (source instanceof SqlSource) {
       SqlSource src = (SqlSource) source;
-      if (limit > 0) {
+      SourceSnapshot snapshot = snapshot(src);
+      if (snapshot != null) {
+        return new ColumnIterator(snapshot.rowIterator(), column);
+      } else if (limit > 0) {
         return new SqlColumnIterator(src, column, limit);
       } else {
         return new SqlColumnIterator(src, column);
       }
 
     } else {
-      return new ColumnIterator((FileSource) source, column);
+      if (source instanceof TextFileSource) {
+        loadIndex((TextFileSource) source);
+      }
+      return new ColumnIterator((FileSource) source, column, cfg.getMaxParseThreads());
+    }
+  }
+
+  public long estimateRows(Source source) {
+    if (source instanceof SqlSource) {
+      return estimateRows((SqlSource) source);
+    } else if (source instanceof FileSource) {
+      return ((FileSource) source).getRows();
+    }
+    return -1;
+  }
+
+  private long estimateRows(SqlSource source) {
+    SourceSnapshot snapshot = snapshot(source);
+    if (snapshot != null) {
+      return snapshot.getRows();
+    }
+    try (Connection con = getDbConnection(source)) {
+      if (con == null || StringUtils.trimToNull(source.getSql()) == null) {
+        return -1;
+      }
+      try (Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+        stmt.setQueryTimeout(COUNT_TIMEOUT_SECS);
+        try (ResultSet rs = stmt.executeQuery(source.getSqlCount())) {
+          return rs.next() ? rs.getLong(1) : -1;
+        }
+      }
+    } catch (SQLException e) {
+      // e.g. the database doesn't accept the count query, or it timed out
+      log.debug("Cant count rows of sql source " + source + ": " + e.getMessage());
+      return -1;
+    }
+  }
+
+  @Nullable
+  public String maxWatermark(SqlSource source) throws SourceException {
+    // the rows read from a snapshot are as old as the snapshot, rows changed since it was taken must be read next time
+    SourceSnapshot snapshot = snapshot(source);
+    if (snapshot != null) {
+      return snapshot.getWatermark();
+    }
+    return queryMaxWatermark(source);
+  }
+
+  @Nullable
+  private String queryMaxWatermark(SqlSource source) throws SourceException {
+    try (Connection con = getDbConnection(source)) {
+      if (con == null) {
+        throw new SQLException("Cant connect to sql source " + source.getName());
+      }
+      try (Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ResultSet rs = stmt.executeQuery(source.getSqlMaxWatermark())) {
+        Object value = rs.next() ? rs.getObject(1) : null;
+        if (value == null) {
+          return null;
+        } else if (value instanceof Number) {
+          return new BigDecimal(value.toString()).toPlainString();
+        }
+        // timestamps and dates print in the JDBC escape format they are parsed from again
+        return value.toString();
+      }
+    } catch (SQLException e) {
+      log.warn("Cant read watermark of sql source " + source, e);
+      throw new SourceException("Cant read watermark of sql source " + source.getName() + ": " + e.getMessage());
+    }
+  }
+
+  public Set<String> deletedIds(SqlSource source, String watermark) throws SourceException {
+    Set<String> ids = new HashSet<String>();
+    String sql = StringUtils.removeEnd(StringUtils.trimToEmpty(source.getDeletedSql()), ";");
+    if (sql.isEmpty()) {
+      return ids;
+    }
+    try (Connection con = getDbConnection(source)) {
+      if (con == null) {
+        throw new SQLException("Cant connect to sql source " + source.getName());
+      }
+      try (PreparedStatement stmt = con
+        .prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+        if (sql.indexOf('?') >= 0) {
+          stmt.setObject(1, watermarkValue(watermark));
+        }
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            String id = rs.getString(1);
+            if (id != null) {
+              ids.add(id);
+            }
+          }
+        }
+      }
+    } catch (SQLException e) {
+      log.warn("Cant read rows deleted from sql source " + source, e);
+      throw new SourceException("Cant read rows deleted from sql source " + source.getName() + ": " + e.getMessage());
+    }
+    return ids;
+  }
+
+  /**
+   * Parses a watermark into the type it was read as, so that the database compares it as such: a number, a timestamp,
+   * a date, or text otherwise.
+   */
+  private static Object watermarkValue(String watermark) {
+    try {
+      return new BigDecimal(watermark);
+    } catch (NumberFormatException e) {
+      // not a number
+    }
+    try {
+      return Timestamp.valueOf(watermark);
+    } catch (IllegalArgumentException e) {
+      // not a timestamp
+    }
+    try {
+      return java.sql.Date.valueOf(watermark);
+    } catch (IllegalArgumentException e) {
+      return watermark;
     }
   }
 
@@ -651,6 +1460,37 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
     return peek((FileSource) source, rows);
   }
 
+  /*
+   * (non-Javadoc)
+   * @see org.gbif.ipt.service.manage.SourceManager#peek(org.gbif.ipt.model.Source, int, int)
+   */
+  public List<String[]> peek(Source source, int offset, int rows) {
+    if (offset <= 0) {
+      return peek(source, rows);
+    }
+    List<String[]> preview = Lists.newArrayList();
+    if (source instanceof TextFileSource) {
+      // text files are read from the closest row indexed
+      TextFileSource src = (TextFileSource) source;
+      loadIndex(src);
+      try (ClosableReportingIterator<String[]> iter = src.rowIterator(offset)) {
+        while (iter != null && rows > 0 && iter.hasNext()) {
+          rows--;
+          preview.add(iter.next());
+        }
+      } catch (Exception e) {
+        log.warn("Cant peek into source " + source.getName(), e);
+      }
+    } else if (source != null) {
+      // other sources are read from their first row
+      List<String[]> skipped = peek(source, offset + rows);
+      if (skipped.size() > offset) {
+        preview.addAll(skipped.subList(offset, skipped.size()));
+      }
+    }
+    return preview;
+  }
+
   private List<String[]> peek(FileSource source, int rows) {
     List<String[]> preview = Lists.newArrayList();
     if (source != null) {
@@ -669,6 +1509,18 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
 
   private List<String[]> peek(SqlSource source, int rows) {
     List<String[]> preview = new ArrayList<String[]>();
+    SourceSnapshot snapshot = snapshot(source);
+    if (snapshot != null) {
+      try (ClosableReportingIterator<String[]> iter = snapshot.rowIterator()) {
+        while (rows > 0 && iter.hasNext()) {
+          rows--;
+          preview.add(iter.next());
+        }
+      } catch (Exception e) {
+        log.warn("Cant peek into snapshot of sql source " + source.getName(), e);
+      }
+      return preview;
+    }
     Connection con = null;
     Statement stmt = null;
     ResultSet rs = null;
@@ -680,6 +1532,7 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
         if ((source.getJdbcDriver() != null) && !source.getJdbcDriver().contains("odbc")) {
             stmt.setFetchSize(rows);
         }
+        stmt.setQueryTimeout(PREVIEW_TIMEOUT_SECS);
         rs = stmt.executeQuery(source.getSqlLimited(rows + 1));
         // loop over result
         while (rows > 0 && rs.next()) {
@@ -721,12 +1574,28 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
   }
 
   public ClosableReportingIterator<String[]> rowIterator(Source source) throws SourceException {
+    return rowIterator(source, null);
+  }
+
+  public ClosableReportingIterator<String[]> rowIterator(Source source, @Nullable Set<Integer> columns)
+    throws SourceException {
     if (source == null) {
       return null;
     }
     try {
       if (source instanceof SqlSource) {
-        return new SqlRowIterator((SqlSource) source);
+        SqlSource src = (SqlSource) source;
+        if (src.isSnapshot()) {
+          // the rows are read from the database once, and from the snapshot afterwards
+          SourceSnapshot snapshot = snapshot(src);
+          return (snapshot == null ? refreshSnapshot(src) : snapshot).rowIterator();
+        }
+        return src.isPartitioned() ? new PartitionedSqlRowIterator(src) : new SqlRowIterator(src);
+      }
+      if (source instanceof TextFileSource && columns != null) {
+        // the row index tells where to split large files without reading them first
+        loadIndex((TextFileSource) source);
+        return ((TextFileSource) source).rowIterator(columns, cfg.getMaxParseThreads(), true);
       }
       // both excel and file implement FileSource
       return ((FileSource) source).rowIterator();
@@ -736,4 +1605,103 @@ public class SourceManagerImpl extends BaseManager implements SourceManager {
       throw new SourceException("Cant build iterator for source " + source.getName() + " :" + e.getMessage());
     }
   }
+
+  public ClosableReportingIterator<String[]> rowIterator(Source source, @Nullable Set<Integer> columns, long start)
+    throws SourceException {
+    ClosableReportingIterator<String[]> iter = null;
+    if (source instanceof TextFileSource) {
+      // the row index tells where to split the rest of the file without reading it first
+      loadIndex((TextFileSource) source);
+      iter = ((TextFileSource) source).rowIterator(columns, cfg.getMaxParseThreads(), start);
+    }
+    if (iter == null) {
+      throw new SourceException("Cant read source " + source.getName() + " from position " + start);
+    }
+    return iter;
+  }
+
+  public ClosableReportingIterator<String[]> rowIterator(SqlSource source, int keyColumn, @Nullable String afterKey)
+    throws SourceException {
+    String label;
+    try (Connection con = getDbConnection(source)) {
+      label = con == null ? null : quotedColumnLabel(con, source, keyColumn);
+    } catch (SQLException e) {
+      throw new SourceException("Cant read key column of sql source " + source.getName() + " :" + e.getMessage());
+    }
+    if (label == null) {
+      throw new SourceException("Cant find key column " + keyColumn + " of sql source " + source.getName());
+    }
+    try {
+      return new SqlRowIterator(source, source.getSqlKeyOrder(label, afterKey != null), afterKey, keyColumn);
+    } catch (Exception e) {
+      log.error("Exception while reading rows of source " + source.getName() + " in key order", e);
+      throw new SourceException("Cant build iterator for source " + source.getName() + " :" + e.getMessage());
+    }
+  }
+
+  public ClosableReportingIterator<String[]> rowIterator(SqlSource source, String watermark)
+    throws SourceException {
+    try {
+      return new SqlRowIterator(source, source.getSqlWatermark(), watermarkValue(watermark));
+    } catch (Exception e) {
+      log.error("Exception while reading rows changed in source " + source.getName(), e);
+      throw new SourceException("Cant build iterator for source " + source.getName() + " :" + e.getMessage());
+    }
+  }
+
+  @Nullable
+  public SourceSnapshot snapshot(SqlSource source) {
+    if (!source.isSnapshot() || source.getResource() == null) {
+      return null;
+    }
+    SourceSnapshot snapshot = SourceSnapshot.load(snapshotFile(source));
+    if (snapshot == null
+        || !snapshot.isValidFor(snapshotFingerprint(source), TimeUnit.HOURS.toMillis(source.getSnapshotTtl()))) {
+      return null;
+    }
+    return snapshot;
+  }
+
+  public SourceSnapshot refreshSnapshot(SqlSource source) throws SourceException {
+    if (source.getResource() == null) {
+      throw new SourceException("Cant take snapshot of sql source " + source.getName() + " without resource");
+    }
+    File file = snapshotFile(source);
+    log.info("Taking snapshot of sql source " + source.getName());
+    // the watermark is read before the rows, so the rows changed while they are being read get read again
+    String watermark = null;
+    if (source.isIncremental()) {
+      try {
+        watermark = queryMaxWatermark(source);
+      } catch (SourceException e) {
+        log.warn("Snapshot of sql source " + source.getName() + " taken without watermark, all its rows will be read"
+                 + " again when publishing the next version");
+      }
+    }
+    try (ClosableReportingIterator<String[]> rows = source.isPartitioned() ? new PartitionedSqlRowIterator(source)
+      : new SqlRowIterator(source)) {
+      FileUtils.forceMkdir(file.getParentFile());
+      SourceSnapshot snapshot =
+        SourceSnapshot.write(file, snapshotFingerprint(source), columns(source), watermark, rows);
+      log.info("Snapshot of sql source " + source.getName() + " holds " + snapshot.getRows() + " rows in "
+               + snapshot.getSizeFormatted());
+      return snapshot;
+    } catch (Exception e) {
+      log.warn("Cant take snapshot of sql source " + source.getName() + ": " + e.getMessage());
+      throw new SourceException("Cant take snapshot of sql source " + source.getName() + ": " + e.getMessage());
+    }
+  }
+
+  private File snapshotFile(SqlSource source) {
+    return dataDir.sourceSnapshotFile(source.getResource().getShortname(), source.getName());
+  }
+
+  /**
+   * @return fingerprint of the settings the rows of a sql source depend on, a snapshot being valid for these only
+   */
+  private static String snapshotFingerprint(SqlSource source) {
+    return Hashing.sha1()
+      .hashString(source.getJdbcUrl() + "|" + source.getUsername() + "|" + source.getSql(), StandardCharsets.UTF_8)
+      .toString();
+  }
 }
@@ -0,0 +1,296 @@
+package org.gbif.ipt.service.manage.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of JDBC connections to a single database, so that sql sources don't open a new connection for every
+ * query they run.
+ * </br>
+ * Connections are handed out as proxies, closing a proxy returning its connection to the pool. At most maxSize
+ * connections are open at the same time, callers waiting for a connection to be returned otherwise. Connections idle
+ * for a while are validated before being handed out again, and connections idle for longer than the idle timeout get
+ * closed by {@link #evictIdle()}.
+ */
+class SqlConnectionPool {
+
+  private static final Logger LOG = Logger.getLogger(SqlConnectionPool.class);
+  // connections idle for longer than this are validated before being handed out again
+  private static final long VALIDATE_IDLE_MILLIS = 5000;
+  private static final int VALIDATION_TIMEOUT_SECS = 5;
+
+  private final String driver;
+  private final String url;
+  private final String user;
+  private final String password;
+  private final int maxSize;
+  private final long idleMillis;
+  private final Semaphore permits;
+  // idle connections, the connection returned last first
+  private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+  private boolean driverLoaded = false;
+  private boolean closed = false;
+
+  /**
+   * @param driver class name of the JDBC driver
+   * @param url JDBC url of the database
+   * @param user user name
+   * @param password password
+   * @param maxSize maximum number of connections open at the same time
+   * @param idleMillis time after which idle connections are closed
+   */
+  SqlConnectionPool(String driver, String url, String user, String password, int maxSize, long idleMillis) {
+    this.driver = driver;
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.maxSize = Math.max(1, maxSize);
+    this.idleMillis = idleMillis;
+    this.permits = new Semaphore(this.maxSize, true);
+  }
+
+  /**
+   * @return true if the pool connects to the database with the same settings
+   */
+  boolean matches(String driver, String url, String user, String password) {
+    return Objects.equals(this.driver, driver) && Objects.equals(this.url, url) && Objects.equals(this.user, user)
+           && Objects.equals(this.password, password);
+  }
+
+  /**
+   * Hands out an idle connection, or opens a new one if none is idle.
+   *
+   * @param timeoutSecs maximum time to wait for a connection to be returned, and to log into the database
+   *
+   * @return connection, returned to the pool when closed
+   *
+   * @throws SQLException if no connection could be opened, or none was returned in time
+   * @throws ClassNotFoundException if the JDBC driver can't be loaded
+   */
+  Connection getConnection(int timeoutSecs) throws SQLException, ClassNotFoundException {
+    try {
+      if (!permits.tryAcquire(timeoutSecs, TimeUnit.SECONDS)) {
+        throw new SQLException("All " + maxSize + " connections to " + url + " are in use");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection to " + url, e);
+    }
+    boolean handedOut = false;
+    try {
+      Connection conn = takeIdle();
+      if (conn == null) {
+        conn = open(timeoutSecs);
+      }
+      handedOut = true;
+      return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+        new PooledConnection(conn));
+    } finally {
+      if (!handedOut) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Closes the connections idle for longer than the idle timeout.
+   */
+  void evictIdle() {
+    long oldest = System.currentTimeMillis() - idleMillis;
+    List<Connection> evicted = new ArrayList<Connection>();
+    synchronized (this) {
+      Iterator<IdleConnection> iter = idle.descendingIterator();
+      while (iter.hasNext()) {
+        IdleConnection conn = iter.next();
+        if (conn.since >= oldest) {
+          break;
+        }
+        evicted.add(conn.conn);
+        iter.remove();
+      }
+    }
+    for (Connection conn : evicted) {
+      closeQuietly(conn);
+    }
+    if (!evicted.isEmpty()) {
+      LOG.debug("Closed " + evicted.size() + " idle connections to " + url);
+    }
+  }
+
+  /**
+   * Closes the idle connections, connections in use being closed when returned.
+   */
+  void close() {
+    List<IdleConnection> closing;
+    synchronized (this) {
+      closed = true;
+      closing = new ArrayList<IdleConnection>(idle);
+      idle.clear();
+    }
+    for (IdleConnection conn : closing) {
+      closeQuietly(conn.conn);
+    }
+  }
+
+  /**
+   * @return number of connections that can be handed out without waiting for one to be returned
+   */
+  int getAvailable() {
+    return permits.availablePermits();
+  }
+
+  /**
+   * @return number of idle connections
+   */
+  synchronized int getIdle() {
+    return idle.size();
+  }
+
+  /**
+   * @return the idle connection returned last that is still valid, or null if there is none
+   */
+  private Connection takeIdle() {
+    while (true) {
+      IdleConnection conn;
+      synchronized (this) {
+        conn = idle.pollFirst();
+      }
+      if (conn == null) {
+        return null;
+      }
+      if (System.currentTimeMillis() - conn.since < VALIDATE_IDLE_MILLIS || isValid(conn.conn)) {
+        return conn.conn;
+      }
+      LOG.debug("Closing invalid connection to " + url);
+      closeQuietly(conn.conn);
+    }
+  }
+
+  private Connection open(int timeoutSecs) throws SQLException, ClassNotFoundException {
+    if (!driverLoaded) {
+      Class.forName(driver);
+      driverLoaded = true;
+    }
+    DriverManager.setLoginTimeout(timeoutSecs);
+    return DriverManager.getConnection(url, user, password);
+  }
+
+  /**
+   * Returns a connection to the pool, or closes it if the pool is closed or the connection can't be reset.
+   */
+  private void release(Connection conn) {
+    boolean keep;
+    try {
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      conn.clearWarnings();
+      keep = !conn.isClosed();
+    } catch (SQLException e) {
+      LOG.debug("Closing connection to " + url + " that can't be reset: " + e.getMessage());
+      keep = false;
+    }
+    synchronized (this) {
+      keep = keep && !closed;
+      if (keep) {
+        idle.addFirst(new IdleConnection(conn));
+      }
+    }
+    if (!keep) {
+      closeQuietly(conn);
+    }
+    permits.release();
+  }
+
+  private boolean isValid(Connection conn) {
+    try {
+      return conn.isValid(VALIDATION_TIMEOUT_SECS);
+    } catch (SQLFeatureNotSupportedException e) {
+      return true;
+    } catch (AbstractMethodError e) {
+      // pre JDBC 4 driver, the connection can't be validated
+      return true;
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private void closeQuietly(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      LOG.debug("Connection to " + url + " could not be closed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Connection handed out, closing it returning the connection to the pool.
+   */
+  private class PooledConnection implements InvocationHandler {
+
+    private final Connection conn;
+    private boolean released = false;
+
+    private PooledConnection(Connection conn) {
+      this.conn = conn;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("equals".equals(name)) {
+        return proxy == args[0];
+      } else if ("hashCode".equals(name)) {
+        return System.identityHashCode(proxy);
+      } else if ("toString".equals(name)) {
+        return "Pooled connection to " + url;
+      } else if ("close".equals(name)) {
+        if (!released) {
+          released = true;
+          release(conn);
+        }
+        return null;
+      } else if ("isClosed".equals(name)) {
+        return released || conn.isClosed();
+      }
+      if (released) {
+        throw new SQLException("Connection was returned to the pool");
+      }
+      try {
+        return method.invoke(conn, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Connection idle since it was returned.
+   */
+  private static class IdleConnection {
+
+    private final Connection conn;
+    private final long since;
+
+    private IdleConnection(Connection conn) {
+      this.conn = conn;
+      this.since = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,326 @@
+package org.gbif.ipt.task;
+
+import org.gbif.ipt.utils.ExternalSorter;
+import org.gbif.ipt.utils.FingerprintSet;
+import org.gbif.utils.text.LineComparator;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.Ordering;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Checks the referential integrity of extension data files: every extension record must reference an existing core
+ * record through its coreid, otherwise it cannot be linked to any core record and is an orphan.
+ * </br>
+ * The core IDs are indexed as 64 bit fingerprints, kept off-heap in a FingerprintSet while the core data file is
+ * written, so that even hundreds of millions of core IDs don't weigh on the heap. Extension records are checked in
+ * the same streaming pass they are written in. Extension records written before the core data file was completed,
+ * e.g. when data files are written in parallel, are only spilled to a file if their coreid isn't indexed yet, and are
+ * checked once the core is completed.
+ * </br>
+ * A coreid whose fingerprint isn't in the index is certainly an orphan, and is reported straight away. A coreid whose
+ * fingerprint belongs to a single core ID is counted as a link: with 64 bit fingerprints, a coreid colliding with a
+ * core ID it doesn't equal is too unlikely to pay for an exact comparison of every link. Fingerprints shared by
+ * several core IDs, i.e. duplicate core IDs or collisions between core IDs, are marked while the core is indexed.
+ * Only a coreid whose fingerprint is marked is a candidate link: it gets spilled with the ordinal of the first core ID
+ * having the same fingerprint, and is compared exactly against the core IDs read back from the core ID store once all
+ * data files are written. Comparisons are case sensitive, like the linking of extension records to core records.
+ * </br>
+ * This class is thread-safe.
+ */
+public class CoreIdIndex implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(CoreIdIndex.class);
+  private static final String DELIMITER = "\t";
+  private static final String NEWLINE = "\n";
+
+  private final FingerprintSet coreIds = new FingerprintSet();
+  private final ExternalSorter sorter;
+  // fingerprints shared by several core IDs, created on the first one found
+  private FingerprintSet sharedIds;
+  private final File coreIdStoreFile;
+  private final File pendingFile;
+  private final File candidatesFile;
+  private Writer coreIdStore;
+  // extension records whose coreid wasn't indexed yet, checked once the core is completed
+  private Writer pending;
+  // extension records whose coreid fingerprint is shared by several core IDs, confirmed once all data files are
+  // written
+  private Writer candidates;
+  private int ordinal = 0;
+  private int candidateCount = 0;
+  private boolean coreCompleted = false;
+  private final Map<String, Integer> orphansByDataFile = new HashMap<String, Integer>();
+
+  /**
+   * @param workDir directory the core ID store and the extension records checked get spilled to, and candidate links
+   *        are sorted in
+   *
+   * @throws IOException if the core ID store could not be created
+   */
+  public CoreIdIndex(File workDir) throws IOException {
+    this(workDir, new ExternalSorter(workDir, 1));
+  }
+
+  /**
+   * @param workDir directory the core ID store and the extension records checked get spilled to
+   * @param sorter sorter the candidate links are sorted with
+   *
+   * @throws IOException if the core ID store could not be created
+   */
+  public CoreIdIndex(File workDir, ExternalSorter sorter) throws IOException {
+    this.sorter = sorter;
+    coreIdStoreFile = File.createTempFile("coreids", ".txt", workDir);
+    pendingFile = File.createTempFile("coreids-pending", ".txt", workDir);
+    candidatesFile = File.createTempFile("coreids-candidates", ".txt", workDir);
+    coreIdStore = org.gbif.utils.file.FileUtils.startNewUtf8File(coreIdStoreFile);
+  }
+
+  /**
+   * Indexes the ID of a core record, as written to the core data file.
+   *
+   * @param id core ID
+   *
+   * @throws IOException if the core ID could not be stored
+   */
+  public synchronized void addCoreId(@Nullable String id) throws IOException {
+    if (!Strings.isNullOrEmpty(id)) {
+      long fingerprint = fingerprint(id);
+      int first = coreIds.putIfAbsent(fingerprint, ordinal);
+      if (first != FingerprintSet.ABSENT) {
+        if (sharedIds == null) {
+          sharedIds = new FingerprintSet();
+        }
+        sharedIds.putIfAbsent(fingerprint, first);
+      }
+      coreIdStore.write(id + NEWLINE);
+      ordinal++;
+    }
+  }
+
+  /**
+   * Marks the core data file as completed, checking all extension records spilled in the meantime. This method must
+   * only be called once, after all core IDs have been indexed.
+   *
+   * @throws IOException if the spilled extension records could not be read
+   */
+  public synchronized void coreCompleted() throws IOException {
+    coreCompleted = true;
+    coreIdStore.close();
+    LOG.debug(coreIds.size() + " core IDs indexed, " + (sharedIds == null ? 0 : sharedIds.size())
+              + " of them shared, using " + coreIds.allocatedBytes() + " bytes");
+    if (pending == null) {
+      return;
+    }
+    pending.close();
+    pending = null;
+    BufferedReader reader = new BufferedReader(org.gbif.ipt.utils.FileUtils.getUtf8Reader(pendingFile));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.indexOf(DELIMITER);
+        check(line.substring(0, tab), line.substring(tab + 1));
+      }
+    } finally {
+      reader.close();
+      FileUtils.deleteQuietly(pendingFile);
+    }
+  }
+
+  /**
+   * Checks the coreid of an extension record references an existing core record. Records missing a coreid are
+   * ignored, they get reported as records missing an ID.
+   *
+   * @param dataFile name of the extension data file the record was written to
+   * @param coreId coreid of the extension record
+   *
+   * @throws IOException if the record could not be spilled, the core not being completed yet
+   */
+  public synchronized void validate(String dataFile, @Nullable String coreId) throws IOException {
+    if (Strings.isNullOrEmpty(coreId)) {
+      return;
+    }
+    if (coreCompleted) {
+      check(dataFile, coreId);
+    } else if (!isLinked(fingerprint(coreId))) {
+      if (pending == null) {
+        pending = org.gbif.utils.file.FileUtils.startNewUtf8File(pendingFile);
+      }
+      pending.write(dataFile + DELIMITER + coreId + NEWLINE);
+    }
+  }
+
+  /**
+   * @param dataFile name of the extension data file
+   *
+   * @return number of records of the extension data file referencing a core record that doesn't exist, only known
+   *         for certain once the links have been confirmed
+   */
+  public synchronized int getOrphans(String dataFile) {
+    Integer orphans = orphansByDataFile.get(dataFile);
+    return orphans == null ? 0 : orphans;
+  }
+
+  /**
+   * Confirms the candidate links, comparing the coreid of every extension record whose fingerprint is shared by
+   * several core IDs exactly against the core IDs, and counting those that don't match any as orphans. Candidates are
+   * rare, so sorting them is cheap. This method must only be called once, after all data files have been written.
+   *
+   * @throws IOException if the candidates could not be sorted or read, or the core ID store could not be read
+   */
+  public synchronized void confirmLinks() throws IOException {
+    if (candidates == null) {
+      return;
+    }
+    candidates.close();
+    candidates = null;
+    LOG.debug(candidateCount + " candidate link(s) to " + ordinal + " core IDs, confirming them");
+
+    // sort candidates by the ordinal of the first core ID having the same fingerprint, zero padded
+    File sortedFile = new File(candidatesFile.getParentFile(), "sorted_" + candidatesFile.getName());
+    // candidates not matching the first core ID having the same fingerprint, either collisions or duplicate core IDs
+    List<String[]> mismatches = new ArrayList<String[]>();
+    try {
+      sorter.sort(candidatesFile, sortedFile, new LineComparator(0, DELIMITER, null, Ordering.<String>natural()));
+
+      BufferedReader sorted = new BufferedReader(org.gbif.ipt.utils.FileUtils.getUtf8Reader(sortedFile));
+      BufferedReader store = new BufferedReader(org.gbif.ipt.utils.FileUtils.getUtf8Reader(coreIdStoreFile));
+      try {
+        int storeOrdinal = -1;
+        String firstId = null;
+        String line;
+        while ((line = sorted.readLine()) != null) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          String[] candidate = line.split(DELIMITER, 3);
+          int first = Integer.parseInt(candidate[0]);
+          while (storeOrdinal < first) {
+            firstId = store.readLine();
+            storeOrdinal++;
+          }
+          if (firstId == null) {
+            throw new IOException("Core ID #" + first + " missing in core ID store");
+          }
+          if (!firstId.equals(candidate[2])) {
+            mismatches.add(candidate);
+          }
+        }
+      } finally {
+        sorted.close();
+        store.close();
+      }
+    } finally {
+      FileUtils.deleteQuietly(sortedFile);
+    }
+    if (mismatches.isEmpty()) {
+      return;
+    }
+
+    // the few mismatches left are looked up among all core IDs
+    Set<String> mismatchIds = new HashSet<String>();
+    for (String[] candidate : mismatches) {
+      mismatchIds.add(candidate[2]);
+    }
+    Set<String> found = new HashSet<String>();
+    BufferedReader store = new BufferedReader(org.gbif.ipt.utils.FileUtils.getUtf8Reader(coreIdStoreFile));
+    try {
+      String id;
+      while ((id = store.readLine()) != null) {
+        if (mismatchIds.contains(id)) {
+          found.add(id);
+        }
+      }
+    } finally {
+      store.close();
+    }
+    for (String[] candidate : mismatches) {
+      if (!found.contains(candidate[2])) {
+        orphan(candidate[1], candidate[2]);
+      }
+    }
+  }
+
+  /**
+   * Called for every orphan extension record found, e.g. to log it.
+   *
+   * @param dataFile name of the extension data file the record was written to
+   * @param coreId coreid of the orphan extension record
+   */
+  protected void orphanFound(String dataFile, String coreId) {
+  }
+
+  /**
+   * Releases the index, and deletes the spill files.
+   */
+  public synchronized void close() {
+    try {
+      coreIdStore.close();
+      if (pending != null) {
+        pending.close();
+      }
+      if (candidates != null) {
+        candidates.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("Core ID spill files could not be closed: " + e.getMessage());
+    }
+    FileUtils.deleteQuietly(coreIdStoreFile);
+    FileUtils.deleteQuietly(pendingFile);
+    FileUtils.deleteQuietly(candidatesFile);
+  }
+
+  /**
+   * @param id core ID or coreid
+   *
+   * @return fingerprint of the ID, case sensitive
+   */
+  @VisibleForTesting
+  long fingerprint(String id) {
+    return FingerprintSet.fingerprint(id, false);
+  }
+
+  /**
+   * @param fingerprint fingerprint of a coreid
+   *
+   * @return true if the fingerprint belongs to a single core ID indexed so far, so that the coreid counts as a link
+   */
+  private boolean isLinked(long fingerprint) {
+    return coreIds.contains(fingerprint) && (sharedIds == null || !sharedIds.contains(fingerprint));
+  }
+
+  private void check(String dataFile, String coreId) throws IOException {
+    long fingerprint = fingerprint(coreId);
+    int first = coreIds.get(fingerprint);
+    if (first == FingerprintSet.ABSENT) {
+      orphan(dataFile, coreId);
+    } else if (sharedIds != null && sharedIds.contains(fingerprint)) {
+      if (candidates == null) {
+        candidates = org.gbif.utils.file.FileUtils.startNewUtf8File(candidatesFile);
+      }
+      candidates.write(Strings.padStart(String.valueOf(first), 10, '0') + DELIMITER + dataFile + DELIMITER + coreId
+                       + NEWLINE);
+      candidateCount++;
+    }
+  }
+
+  private void orphan(String dataFile, String coreId) {
+    orphansByDataFile.put(dataFile, getOrphans(dataFile) + 1);
+    orphanFound(dataFile, coreId);
+  }
+}
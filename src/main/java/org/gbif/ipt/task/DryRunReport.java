@@ -0,0 +1,93 @@
+package org.gbif.ipt.task;
+
+import java.util.List;
+
+import org.apache.log4j.Level;
+
+/**
+ * Outcome of a dry run of the generation of a resource's DwC-A: a sample of the records of each data file, the
+ * meta.xml archive descriptor, and the messages reported while generating and validating them, e.g. warnings about
+ * lines skipped or identifiers missing.
+ */
+public class DryRunReport {
+
+  private final List<DataFileSample> samples;
+  private final String metaXml;
+  private final List<TaskMessage> messages;
+
+  public DryRunReport(List<DataFileSample> samples, String metaXml, List<TaskMessage> messages) {
+    this.samples = samples;
+    this.metaXml = metaXml;
+    this.messages = messages;
+  }
+
+  /**
+   * @return sample of each data file, the core data file first
+   */
+  public List<DataFileSample> getSamples() {
+    return samples;
+  }
+
+  /**
+   * @return meta.xml archive descriptor
+   */
+  public String getMetaXml() {
+    return metaXml;
+  }
+
+  /**
+   * @return messages reported while generating and validating the data files
+   */
+  public List<TaskMessage> getMessages() {
+    return messages;
+  }
+
+  /**
+   * @return true if the sample passed validation, i.e. no errors were reported
+   */
+  public boolean isValid() {
+    for (TaskMessage message : messages) {
+      if (Level.ERROR.equals(message.getLevel())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records sampled from a data file, as written to the archive.
+   */
+  public static class DataFileSample {
+
+    private final String rowType;
+    private final String fileName;
+    private final List<String> columns;
+    private final List<String[]> rows;
+
+    public DataFileSample(String rowType, String fileName, List<String> columns, List<String[]> rows) {
+      this.rowType = rowType;
+      this.fileName = fileName;
+      this.columns = columns;
+      this.rows = rows;
+    }
+
+    public String getRowType() {
+      return rowType;
+    }
+
+    public String getFileName() {
+      return fileName;
+    }
+
+    /**
+     * @return names of the columns, from the header line
+     */
+    public List<String> getColumns() {
+      return columns;
+    }
+
+    public List<String[]> getRows() {
+      return rows;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package org.gbif.ipt.task;
+
+import org.gbif.ipt.model.ExcelFileSource;
+import org.gbif.ipt.model.Extension;
+import org.gbif.ipt.model.ExtensionMapping;
+import org.gbif.ipt.model.ExtensionProperty;
+import org.gbif.ipt.model.FileSource;
+import org.gbif.ipt.model.PropertyMapping;
+import org.gbif.ipt.model.RecordFilter;
+import org.gbif.ipt.model.Resource;
+import org.gbif.ipt.model.Source;
+import org.gbif.ipt.model.SqlSource;
+import org.gbif.ipt.model.TextFileSource;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Ordering;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Detects if the data files of a resource's DwC-A would change if generated again, by fingerprinting everything
+ * data files and meta.xml are generated from: the mappings, their file sources and the extension definitions.
+ * </br>
+ * File sources are fingerprinted by their configuration, and by the size and last modification date of their file.
+ * The data of SQL sources can change at any time without the IPT knowing, so resources having SQL sources have no
+ * data fingerprint and are always generated again. Their configuration can still be fingerprinted, e.g. to check an
+ * interrupted generation can be resumed with the same configuration.
+ */
+public class DwcaChangeDetector {
+
+  // changes whenever the way data files are generated changes, so that archives generated before get regenerated
+  private static final int FORMAT_VERSION = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private DwcaChangeDetector() {
+  }
+
+  /**
+   * Computes the fingerprint of the data of a resource. Two equal fingerprints mean the data files and meta.xml
+   * generated would be identical.
+   *
+   * @param resource resource
+   *
+   * @return fingerprint, or null if the data of the resource cannot be fingerprinted, e.g. it has an SQL source
+   */
+  @Nullable
+  public static String fingerprint(Resource resource) {
+    return fingerprint(resource, false);
+  }
+
+  /**
+   * Computes the fingerprint of the configuration of a resource's data, SQL sources being fingerprinted by their
+   * connection and query. Two equal fingerprints mean data files would be generated the same way, from the same files
+   * and queries.
+   *
+   * @param resource resource
+   *
+   * @return fingerprint
+   */
+  public static String configurationFingerprint(Resource resource) {
+    return fingerprint(resource, true);
+  }
+
+  @Nullable
+  private static String fingerprint(Resource resource, boolean configurationOnly) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(FORMAT_VERSION);
+    putString(hasher, resource.getCoreRowType());
+    boolean doiUsedForDatasetId = false;
+    for (ExtensionMapping mapping : resource.getMappings()) {
+      putExtension(hasher, mapping.getExtension());
+      if (!putSource(hasher, mapping.getSource(), configurationOnly)) {
+        return null;
+      }
+      putMapping(hasher, mapping);
+      doiUsedForDatasetId = doiUsedForDatasetId || mapping.isDoiUsedForDatasetId();
+    }
+    // the DOI only ends up in data files if used as datasetID
+    putString(hasher, doiUsedForDatasetId && resource.getDoi() != null ? resource.getDoi().toString() : null);
+    return hasher.hash().toString();
+  }
+
+  private static void putExtension(Hasher hasher, Extension extension) {
+    putString(hasher, extension.getRowType());
+    putString(hasher, extension.getUrl() == null ? null : extension.getUrl().toString());
+    putDate(hasher, extension.getIssued());
+    hasher.putInt(extension.getProperties().size());
+    for (ExtensionProperty property : extension.getProperties()) {
+      putString(hasher, property.getQualname());
+    }
+  }
+
+  /**
+   * @return false if the source cannot be fingerprinted
+   */
+  private static boolean putSource(Hasher hasher, @Nullable Source source, boolean configurationOnly) {
+    if (source == null) {
+      return configurationOnly;
+    }
+    putString(hasher, source.getName());
+    putString(hasher, source.getEncoding());
+    putString(hasher, source.getDateFormat());
+    putString(hasher, source.getMultiValueFieldsDelimitedBy());
+    hasher.putInt(source.getColumns());
+    if (source instanceof SqlSource) {
+      SqlSource sqlSource = (SqlSource) source;
+      putString(hasher, sqlSource.getRdbms() == null ? null : sqlSource.getJdbcUrl());
+      putString(hasher, sqlSource.getUsername());
+      putString(hasher, sqlSource.getSql());
+      putString(hasher, sqlSource.getWatermarkColumn());
+      putString(hasher, sqlSource.getDeletedSql());
+      return configurationOnly;
+    }
+    if (!(source instanceof FileSource)) {
+      return configurationOnly;
+    }
+    FileSource fileSource = (FileSource) source;
+    File file = fileSource.getFile();
+    if (file == null || !file.exists()) {
+      return configurationOnly;
+    }
+    putString(hasher, file.getAbsolutePath());
+    hasher.putLong(file.length());
+    hasher.putLong(file.lastModified());
+    putDate(hasher, fileSource.getLastModified());
+    if (source instanceof TextFileSource) {
+      TextFileSource textSource = (TextFileSource) source;
+      putString(hasher, textSource.getFieldsTerminatedBy());
+      putString(hasher, textSource.getFieldsEnclosedBy());
+      hasher.putInt(textSource.getIgnoreHeaderLines());
+    } else if (source instanceof ExcelFileSource) {
+      ExcelFileSource excelSource = (ExcelFileSource) source;
+      hasher.putInt(excelSource.getSheetIdx());
+      hasher.putInt(excelSource.getIgnoreHeaderLines());
+    }
+    return true;
+  }
+
+  private static void putMapping(Hasher hasher, ExtensionMapping mapping) {
+    putInteger(hasher, mapping.getIdColumn());
+    putString(hasher, mapping.getIdSuffix());
+    hasher.putBoolean(mapping.isDoiUsedForDatasetId());
+    RecordFilter filter = mapping.getFilter();
+    if (filter == null) {
+      hasher.putBoolean(false);
+    } else {
+      hasher.putBoolean(true);
+      putInteger(hasher, filter.getColumn());
+      putString(hasher, filter.getComparator() == null ? null : filter.getComparator().name());
+      putString(hasher, filter.getParam());
+      putString(hasher, filter.getFilterTime() == null ? null : filter.getFilterTime().name());
+    }
+    // fields are kept sorted by term
+    hasher.putInt(mapping.getFields().size());
+    for (PropertyMapping field : mapping.getFields()) {
+      putString(hasher, field.getTerm() == null ? null : field.getTerm().qualifiedName());
+      putInteger(hasher, field.getIndex());
+      putString(hasher, field.getDefaultValue());
+      Map<String, String> translation = field.getTranslation();
+      if (translation == null) {
+        hasher.putInt(-1);
+      } else {
+        List<String> keys = new ArrayList<String>(translation.keySet());
+        hasher.putInt(keys.size());
+        for (String key : Ordering.natural().nullsFirst().sortedCopy(keys)) {
+          putString(hasher, key);
+          putString(hasher, translation.get(key));
+        }
+      }
+    }
+  }
+
+  private static void putString(Hasher hasher, @Nullable String s) {
+    // length prefix keeps consecutive values apart, -1 marks null
+    if (s == null) {
+      hasher.putInt(-1);
+    } else {
+      hasher.putInt(s.length());
+      hasher.putString(s, UTF8);
+    }
+  }
+
+  private static void putInteger(Hasher hasher, @Nullable Integer i) {
+    hasher.putBoolean(i != null);
+    hasher.putInt(i == null ? 0 : i);
+  }
+
+  private static void putDate(Hasher hasher, @Nullable Date date) {
+    hasher.putLong(date == null ? -1 : date.getTime());
+  }
+}
@@ -4,14 +4,16 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Ordering;
-import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOCase;
-import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Level;
 import org.gbif.api.model.common.DOI;
@@ -23,22 +25,32 @@ import org.gbif.ipt.config.AppConfig;
 import org.gbif.ipt.config.Constants;
 import org.gbif.ipt.config.DataDir;
 import org.gbif.ipt.model.*;
+import org.gbif.ipt.service.SourceException;
 import org.gbif.ipt.service.admin.VocabulariesManager;
 import org.gbif.ipt.service.manage.SourceManager;
+import org.gbif.ipt.utils.ExternalSorter;
 import org.gbif.ipt.utils.MapUtils;
+import org.gbif.ipt.utils.ParallelZipOutputStream;
+import org.gbif.ipt.utils.PositionedRowIterator;
+import org.gbif.ipt.utils.RowPipeline;
 import org.gbif.utils.file.ClosableReportingIterator;
-import org.gbif.utils.file.CompressionUtil;
-import org.gbif.utils.file.csv.CSVReader;
-import org.gbif.utils.file.csv.CSVReaderFactory;
-import org.gbif.utils.text.LineComparator;
 
 import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class GenerateDwca extends ReportingTask implements Callable<Map<String, Integer>> {
 
@@ -46,31 +58,62 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     WAITING, STARTED, DATAFILES, METADATA, BUNDLING, COMPLETED, ARCHIVING, VALIDATING, CANCELLED, FAILED
   }
 
-  private static final Pattern escapeChars = Pattern.compile("[\t\n\r]");
   private final Resource resource;
   // record counts by extension <rowType, count>
   private Map<String, Integer> recordsByExtension = Maps.newHashMap();
   private Archive archive;
   private File dwcaFolder;
-  // status reporting
-  private int currRecords = 0;
-  private int currRecordsSkipped = 0;
-  private String currExtension;
-  private STATE state = STATE.WAITING;
+  // archive being generated, whose entries get written straight into the zip file
+  private ParallelZipOutputStream dwcaZip;
+  private File dwcaZipFile;
+  private final Set<String> dwcaZipEntries = new HashSet<String>();
+  // fingerprint of the data the data files get generated from, null if it cannot be fingerprinted
+  private String dataFingerprint;
+  // fingerprint of the configuration of the data, and highest watermarks of the incremental sql sources read
+  private String configurationFingerprint;
+  private final Map<String, String> watermarks = Maps.newHashMap();
+  // checkpoint data files get written with, so that an interrupted generation can be resumed, null if not kept
+  private GenerationCheckpoint checkpoint;
+  // guards file name allocation in, and registration of data files with, the archive being written
+  private final Object dwcaFolderLock = new Object();
+  // status reporting: data files being written (several at once in parallel mode), and the last one started
+  private final List<DataFile> dataFilesInProgress = new CopyOnWriteArrayList<DataFile>();
+  private volatile DataFile lastDataFile;
+  // data files get validated while they are written, when generating the archive (not when previewing a data file)
+  private boolean validateWhileWriting = false;
+  private final List<DataFileValidation> validations = new CopyOnWriteArrayList<DataFileValidation>();
+  // index of core IDs extension records are checked against, null if the resource has no extensions
+  private CoreIdIndex coreIdIndex;
+  private volatile STATE state = STATE.WAITING;
+  // throughput of each stage and data file, reported live
+  private final ProgressMetrics metrics = new ProgressMetrics();
+  // estimates the rows data files get written from in the background, as counting the rows of a sql source takes a
+  // while
+  private final ExecutorService rowEstimator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "dwca-row-estimator");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
   private final SourceManager sourceManager;
   private final VocabulariesManager vocabManager;
   private Map<String, String> basisOfRecords;
-  private Exception exception;
+  private volatile Exception exception;
   private AppConfig cfg;
+  // maximum number of records written for each mapping in a dry run, null if the archive gets published
+  private final Integer dryRunRowLimit;
   private static final int ID_COLUMN_INDEX = 0;
   public static final String CHARACTER_ENCODING = "UTF-8";
   private static final TermFactory TERM_FACTORY = TermFactory.instance();
-  private static final String SORTED_FILE_PREFIX = "sorted_";
-  private static final org.gbif.utils.file.FileUtils GBIF_FILE_UTILS = new org.gbif.utils.file.FileUtils();
   public static final String CANCELLED_STATE_MSG = "Archive generation cancelled";
   public static final String ID_COLUMN_NAME = "id";
   public static final String TEXT_FILE_EXTENSION = ".txt";
   public static final String WILDCARD_CHARACTER = "*";
+  private static final String SEGMENT_FILE_SUFFIX = ".segment";
+  private static final String META_FILENAME = "meta.xml";
+  // maximum number of mappings written at the same time in a dry run
+  private static final int DRY_RUN_MAX_THREADS = 8;
 
   public static final Set<DwcTerm> DWC_MULTI_VALUE_TERMS = ImmutableSet.of(DwcTerm.recordedBy, DwcTerm.preparations,
     DwcTerm.associatedMedia, DwcTerm.associatedReferences, DwcTerm.associatedSequences, DwcTerm.associatedTaxa,
@@ -79,21 +122,31 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     DwcTerm.typeStatus, DwcTerm.identifiedBy, DwcTerm.identificationReferences, DwcTerm.higherClassification,
     DwcTerm.measurementDeterminedBy);
 
-  private static final Comparator<String> IGNORE_CASE_COMPARATOR = Ordering.from(new Comparator<String>() {
-
-    public int compare(String o1, String o2) {
-      return o1.compareToIgnoreCase(o2);
-    }
-  }).nullsFirst();
-
-  @Inject
+  @AssistedInject
   public GenerateDwca(@Assisted Resource resource, @Assisted ReportHandler handler, DataDir dataDir,
     SourceManager sourceManager, AppConfig cfg, VocabulariesManager vocabManager) throws IOException {
-    super(1000, resource.getShortname(), handler, dataDir);
+    super(1000, resource.getShortname(), handler, dataDir, cfg.debug());
+    this.resource = resource;
+    this.sourceManager = sourceManager;
+    this.cfg = cfg;
+    this.vocabManager = vocabManager;
+    this.dryRunRowLimit = null;
+  }
+
+  /**
+   * Creates a worker for a dry run, or a preview of a data file, which never touches the publication log.
+   *
+   * @param rowLimit maximum number of records written for each mapping
+   */
+  @AssistedInject
+  public GenerateDwca(@Assisted Resource resource, @Assisted ReportHandler handler, @Assisted int rowLimit,
+    DataDir dataDir, SourceManager sourceManager, AppConfig cfg, VocabulariesManager vocabManager) {
+    super(1000, resource.getShortname(), handler, dataDir, (PublicationLog) null);
     this.resource = resource;
     this.sourceManager = sourceManager;
     this.cfg = cfg;
     this.vocabManager = vocabManager;
+    this.dryRunRowLimit = rowLimit;
   }
 
   /**
@@ -103,7 +156,7 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    * mapped (e.g. occurrenceID, taxonID, etc).
    *
    * @param mappings list of ExtensionMapping
-   * @param rowLimit maximum number of rows to write
+   * @param rowLimit maximum number of rows to write for each mapping
    * @throws IllegalArgumentException if not all mappings are mapped to the same extension
    * @throws InterruptedException if the thread was interrupted
    * @throws IOException if problems occurred while persisting new data files
@@ -116,11 +169,47 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
       return;
     }
 
-    // update reporting
-    currRecords = 0;
-    currRecordsSkipped = 0;
+    DataFile dataFile = openDataFile(mappings);
+
+    // open new file writer for single data file
+    Writer writer = new BufferedWriter(new OutputStreamWriter(openDataFileStream(dataFile), CHARACTER_ENCODING));
+
+    // ready to go though each mapping and dump the data
+    try {
+      // write header line 1 time only to file
+      writeHeaderLine(dataFile.propertyList, dataFile.totalColumns, dataFile.archiveFile, writer);
+
+      for (ExtensionMapping m : mappings) {
+        // write data (records) to file
+        dumpData(writer, getInputColumns(dataFile, m), m, dataFile, rowLimit, resource.getDoi(), null);
+      }
+    } catch (IOException e) {
+      // some error writing this file, report
+      log.error("Fatal DwC-A Generator Error encountered while writing header line to data file", e);
+      // set last error report!
+      setState(e);
+      throw new GeneratorException("Error writing header line to data file", e);
+    } finally {
+      writer.close();
+    }
+
+    closeDataFile(dataFile);
+  }
+
+  /**
+   * Prepares a new data file for a list of extension mappings that must all be mapped to the same extension: the
+   * archive file representing it is populated with the union of all mapped terms, and a unique file name is
+   * reserved in the DwC-A folder.
+   *
+   * @param mappings list of ExtensionMapping
+   *
+   * @return data file, ready to be written
+   * @throws IllegalArgumentException if not all mappings are mapped to the same extension
+   * @throws IOException if the data file could not be created
+   * @throws GeneratorException if the mapped terms could not be added to the archive file
+   */
+  private DataFile openDataFile(List<ExtensionMapping> mappings) throws IOException, GeneratorException {
     Extension ext = mappings.get(0).getExtension();
-    currExtension = ext.getTitle();
 
     // verify that all mappings share this extension
     for (ExtensionMapping m : mappings) {
@@ -149,67 +238,327 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     // reassign indexes ordered by Extension
     assignIndexesOrderedByExtension(propertyList, af);
 
-    // total column count is equal to id column + mapped columns
-    int totalColumns = 1 + propertyList.size();
-
     // create file name from extension name, with incremental suffix to resolve name conflicts (e.g. taxon.txt,
-    // taxon2.txt, taxon3.txt)
+    // taxon2.txt, taxon3.txt). The name is reserved straight away, so it is taken into account by the next name
     String extensionName = (ext.getName() == null) ? "f" : ext.getName().toLowerCase().replaceAll("\\s", "_");
-    String fn = createFileName(dwcaFolder, extensionName);
-
-    // open new file writer for single data file
-    File dataFile = new File(dwcaFolder, fn);
-    Writer writer = org.gbif.utils.file.FileUtils.startNewUtf8File(dataFile);
+    File file;
+    synchronized (dwcaFolderLock) {
+      if (dwcaZip == null) {
+        file = new File(dwcaFolder, createFileName(dwcaFolder, extensionName));
+        FileUtils.touch(file);
+      } else {
+        file = new File(dwcaFolder, createFileName(dwcaZipEntries, extensionName));
+        dwcaZipEntries.add(file.getName());
+      }
+    }
     // add source file location
-    af.addLocation(dataFile.getName());
+    af.addLocation(file.getName());
 
-    // ready to go though each mapping and dump the data
-    addMessage(Level.INFO, "Start writing data file for " + currExtension);
-    try {
-      boolean headerWritten = false;
-      for (ExtensionMapping m : mappings) {
-        // prepare index ordered list of all output columns apart from id column
-        PropertyMapping[] inCols = new PropertyMapping[totalColumns];
-        for (ArchiveField f : af.getFields().values()) {
-          if (f.getIndex() != null && f.getIndex() > ID_COLUMN_INDEX) {
-            inCols[f.getIndex()] = m.getField(f.getTerm().qualifiedName());
+    // prepare validation of the data file, carried out while it gets written
+    DataFileValidation validation = null;
+    if (validateWhileWriting) {
+      boolean core = resource.getCoreRowType() != null && resource.getCoreRowType().equalsIgnoreCase(ext.getRowType());
+      validation = newDataFileValidation(af, core);
+    }
+
+    DataFile dataFile = new DataFile(ext, af, propertyList, file, validation,
+      metrics.addDataFile(ext.getTitle(), ext.getRowType(), ProgressMetrics.UNKNOWN));
+    estimateRows(mappings, dataFile.metrics);
+    lastDataFile = dataFile;
+    dataFilesInProgress.add(dataFile);
+    addMessage(Level.INFO, "Start writing data file for " + ext.getTitle());
+    return dataFile;
+  }
+
+  /**
+   * Estimates the number of source rows a data file gets written from, used to estimate the time left. The rows are
+   * estimated in the background while the data file gets written, since the rows of a sql source get counted by the
+   * database, the data file having no estimate until then. Nothing is estimated for a dry run, which only reads a few
+   * rows of each source.
+   *
+   * @param mappings mappings the data file gets written from
+   * @param dataFileMetrics metrics of the data file, given the estimated number of source rows unless a source could
+   *        not be estimated
+   */
+  private void estimateRows(final List<ExtensionMapping> mappings,
+    final ProgressMetrics.DataFileMetrics dataFileMetrics) {
+    if (dryRunRowLimit != null) {
+      return;
+    }
+    rowEstimator.submit(new Runnable() {
+      public void run() {
+        long rows = 0;
+        for (ExtensionMapping mapping : mappings) {
+          long sourceRows = sourceManager.estimateRows(mapping.getSource());
+          if (sourceRows < 0 || Thread.currentThread().isInterrupted()) {
+            return;
           }
+          rows += sourceRows;
         }
+        dataFileMetrics.setExpectedRows(rows);
+      }
+    });
+  }
 
-        // write header line 1 time only to file
-        if (!headerWritten) {
-          writeHeaderLine(propertyList, totalColumns, af, writer);
-          headerWritten = true;
-        }
+  /**
+   * Prepares the index ordered list of all output columns apart from id column, for a single mapping.
+   *
+   * @param dataFile data file the mapping gets written to
+   * @param mapping mapping
+   *
+   * @return index ordered list of all output columns apart from id column
+   */
+  private PropertyMapping[] getInputColumns(DataFile dataFile, ExtensionMapping mapping) {
+    PropertyMapping[] inCols = new PropertyMapping[dataFile.totalColumns];
+    for (ArchiveField f : dataFile.archiveFile.getFields().values()) {
+      if (f.getIndex() != null && f.getIndex() > ID_COLUMN_INDEX) {
+        inCols[f.getIndex()] = mapping.getField(f.getTerm().qualifiedName());
+      }
+    }
+    return inCols;
+  }
 
-        // write data (records) to file
-        dumpData(writer, inCols, m, totalColumns, rowLimit, resource.getDoi());
-        // store record number by extension rowType
-        recordsByExtension.put(ext.getRowType(), currRecords);
+  /**
+   * Opens the stream a data file gets written to: a new entry in the archive zip file when the archive is being
+   * generated, or a new file in the DwC-A folder otherwise (e.g. when previewing a data file). Closing the stream
+   * completes the zip entry, leaving the zip file open for the next entry.
+   *
+   * @param dataFile data file to write
+   *
+   * @return stream to write data file to
+   * @throws IOException if the zip entry or file could not be created
+   */
+  private OutputStream openDataFileStream(DataFile dataFile) throws IOException {
+    if (dwcaZip == null) {
+      return new FileOutputStream(dataFile.file);
+    }
+    dwcaZip.putNextEntry(new ZipEntry(dataFile.file.getName()));
+    return new FilterOutputStream(dwcaZip) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
       }
+
+      @Override
+      public void close() throws IOException {
+        dwcaZip.closeEntry();
+      }
+    };
+  }
+
+  /**
+   * Opens a new temporary zip file, the archive entries get written to.
+   *
+   * @throws IOException if the zip file could not be created
+   */
+  private void openDwcaZip() throws IOException {
+    dwcaZipFile = dataDir.tmpFile("dwca", ".zip");
+    // written to a file, so that data files can reach 4GB
+    dwcaZip = new ParallelZipOutputStream(dwcaZipFile, cfg.getMaxCompressionThreads());
+  }
+
+  /**
+   * Reuses the data files and meta.xml of the last published version if the data they were generated from has not
+   * changed since, e.g. when only the metadata changed. They get copied into the archive as they are, without being
+   * generated, validated or compressed again.
+   *
+   * @return true if the data files were reused, false if they have to be generated
+   *
+   * @throws IOException if the zip file could not be recreated after the data files failed to be reused
+   * @throws InterruptedException if the thread was interrupted
+   */
+  private boolean reuseLastPublishedDataFiles() throws IOException, InterruptedException {
+    checkForInterruption();
+    VersionHistory last = resource.getLastPublishedVersion();
+    if (dataFingerprint == null || last == null || !dataFingerprint.equals(last.getDataFingerprint())
+        || last.getRecordsByExtension() == null) {
+      return false;
+    }
+    File lastDwcaFile = dataDir.resourceDwcaFile(resource.getShortname(), new BigDecimal(last.getVersion()));
+    if (!lastDwcaFile.exists()) {
+      return false;
+    }
+    setState(STATE.DATAFILES);
+    try {
+      dwcaZipEntries.addAll(dwcaZip.copyEntries(lastDwcaFile, Collections.singleton(DataDir.EML_XML_FILENAME)));
     } catch (IOException e) {
-      // some error writing this file, report
-      log.error("Fatal DwC-A Generator Error encountered while writing header line to data file", e);
-      // set last error report!
-      setState(e);
-      throw new GeneratorException("Error writing header line to data file", e);
-    } finally {
-      writer.close();
+      log.error("Data files of version #" + last.getVersion() + " could not be reused", e);
+      addMessage(Level.WARN, "Data files of version #" + last.getVersion() + " could not be reused: " + e.getMessage()
+                             + ". They will be generated again");
+      // start over with an empty zip file
+      dwcaZip.abort();
+      FileUtils.deleteQuietly(dwcaZipFile);
+      dwcaZipEntries.clear();
+      openDwcaZip();
+      return false;
     }
+    recordsByExtension.putAll(last.getRecordsByExtension());
+    addMessage(Level.INFO, "Data unchanged since version #" + last.getVersion()
+                           + ": its data files and meta.xml have been reused, only eml.xml gets replaced");
+    return true;
+  }
 
-    // add archive file to archive
-    if (resource.getCoreRowType() != null && resource.getCoreRowType().equalsIgnoreCase(ext.getRowType())) {
-      archive.setCore(af);
-    } else {
-      archive.addExtension(af);
+  /**
+   * Reads the highest watermark of every incremental sql source mapped to the core before its rows get read, so that
+   * the rows changed from then on get read when publishing the next version. Sources only mapped to extensions are
+   * skipped, their data files always being written from all rows. If a watermark can't be read, all rows of the source
+   * get read next time.
+   *
+   * @throws InterruptedException if the thread was interrupted
+   */
+  private void readWatermarks() throws InterruptedException {
+    checkForInterruption();
+    String coreRowType = resource.getCoreRowType();
+    for (ExtensionMapping mapping : resource.getMappings()) {
+      Source source = mapping.getSource();
+      if (source instanceof SqlSource && ((SqlSource) source).isIncremental() && coreRowType != null
+          && coreRowType.equalsIgnoreCase(mapping.getExtension().getRowType())
+          && !watermarks.containsKey(source.getName())) {
+        try {
+          String watermark = sourceManager.maxWatermark((SqlSource) source);
+          if (watermark != null) {
+            watermarks.put(source.getName(), watermark);
+          }
+        } catch (SourceException e) {
+          addMessage(Level.WARN, "Watermark of source " + source.getName() + " could not be read: " + e.getMessage()
+                                 + ". All its rows will be read again when publishing the next version");
+        }
+      }
     }
+  }
+
+  /**
+   * Opens the checkpoint data files get written with, if checkpoints are enabled. A checkpoint left by an interrupted
+   * generation is resumed, provided the data gets generated with the same configuration, otherwise it is discarded.
+   * A generation that fails discards its checkpoint, unless it failed reading its sources or writing its files, see
+   * {@link #isResumable(Throwable)}, so only interrupted generations are ever resumed.
+   *
+   * @throws IOException if the checkpoint could not be opened
+   */
+  private void openCheckpoint() throws IOException {
+    if (cfg.getCheckpointInterval() <= 0) {
+      return;
+    }
+    checkpoint = GenerationCheckpoint.open(dataDir.resourceDwcaCheckpointDir(resource.getShortname()),
+      DwcaChangeDetector.configurationFingerprint(resource));
+    if (checkpoint.isResumed()) {
+      addMessage(Level.INFO, "Resuming archive generation from the last checkpoint of an interrupted generation");
+    }
+  }
+
+  /**
+   * Deletes the checkpoint, if any, so that the next generation starts over.
+   */
+  private void discardCheckpoint() {
+    if (checkpoint != null) {
+      checkpoint.delete();
+      checkpoint = null;
+    }
+  }
+
+  /**
+   * Tells whether a failed generation can be resumed from its checkpoint, i.e. whether it failed with an I/O or sql
+   * error, e.g. a lost database connection, a source file that could not be read or a full disk. Other failures, e.g.
+   * caused by the data itself, are not retried, as the data they failed on may have changed by the next generation.
+   *
+   * @param e exception the generation failed with
+   *
+   * @return true if the checkpoint should be kept
+   */
+  private static boolean isResumable(Throwable e) {
+    for (Throwable cause : Throwables.getCausalChain(e)) {
+      if (cause instanceof IOException || cause instanceof SQLException || cause instanceof SourceException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the key column the sql source of a mapping is read in order of when checkpointed, as the database returns
+   * the rows in whatever order it reads them in otherwise. Resuming reads the rows after the key of the last
+   * checkpoint. The key column is the id column of the mapping, or else the partition column of the source. Text
+   * files and excel files always return their rows in the same order, and need no key column.
+   *
+   * @param mapping mapping written
+   *
+   * @return index of the key column, or -1 if the mapping source isn't a sql source or has no key column
+   */
+  private int keyColumn(ExtensionMapping mapping) {
+    if (!(mapping.getSource() instanceof SqlSource)) {
+      return -1;
+    }
+    if (mapping.getIdColumn() != null && mapping.getIdColumn() >= 0) {
+      return mapping.getIdColumn();
+    }
+    SqlSource source = (SqlSource) mapping.getSource();
+    if (source.isPartitioned()) {
+      List<String> columns = sourceManager.columns(source);
+      for (int i = 0; i < columns.size(); i++) {
+        if (source.getPartitionColumn().trim().equalsIgnoreCase(columns.get(i))) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds a file to the archive zip file, as a new entry.
+   *
+   * @param file file to add
+   * @param name name of the zip entry
+   *
+   * @throws IOException if the file could not be added
+   */
+  private void addZipEntry(File file, String name) throws IOException {
+    if (dwcaZip == null) {
+      // no archive is being generated, e.g. in a dry run: the file stays in the DwC-A folder
+      return;
+    }
+    dwcaZip.putNextEntry(new ZipEntry(name));
+    FileUtils.copyFile(file, dwcaZip);
+    dwcaZip.closeEntry();
+  }
+
+  /**
+   * Completes a data file once all its mappings have been written: the record count is stored and the archive file
+   * gets added to the archive, as the core file or as an extension.
+   *
+   * @param dataFile data file written
+   * @throws IOException if the extension records written before the core was completed could not be checked
+   */
+  private void closeDataFile(DataFile dataFile) throws IOException {
+    Extension ext = dataFile.extension;
+    int records = dataFile.records.get();
+    int recordsSkipped = dataFile.recordsSkipped.get();
+    boolean core = resource.getCoreRowType() != null && resource.getCoreRowType().equalsIgnoreCase(ext.getRowType());
+
+    // store record number by extension rowType
+    synchronized (dwcaFolderLock) {
+      recordsByExtension.put(ext.getRowType(), records);
+
+      // add archive file to archive
+      if (core) {
+        archive.setCore(dataFile.archiveFile);
+      } else {
+        archive.addExtension(dataFile.archiveFile);
+      }
+    }
+    // all core IDs are known: extension records can be checked against them
+    if (core && coreIdIndex != null) {
+      coreIdIndex.coreCompleted();
+    }
+    dataFilesInProgress.remove(dataFile);
+    dataFile.metrics.completed();
 
     // final reporting
-    addMessage(Level.INFO, "Data file written for " + currExtension + " with " + currRecords + " records and "
-      + totalColumns + " columns");
+    addMessage(Level.INFO, "Data file written for " + ext.getTitle() + " with " + records + " records and "
+      + dataFile.totalColumns + " columns in " + formatMillis(dataFile.metrics.getElapsedMillis()) + " ("
+      + dataFile.metrics.getRowsPerSecond() + " rows/s)");
     // how many records were skipped?
-    if (currRecordsSkipped > 0) {
-      addMessage(Level.WARN, "!!! " + currRecordsSkipped + " records were skipped for " + currExtension
+    if (recordsSkipped > 0) {
+      addMessage(Level.WARN, "!!! " + recordsSkipped + " records were skipped for " + ext.getTitle()
         + " due to errors interpreting line, or because the line was empty");
     }
   }
@@ -242,20 +591,19 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
   }
 
   /**
-   * Adds EML file to DwC-A folder.
+   * Adds EML file to DwC-A zip file.
    * 
-   * @throws GeneratorException if EML file could not be copied to DwC-A folder
+   * @throws GeneratorException if EML file could not be added to DwC-A zip file
    * @throws InterruptedException if executing thread was interrupted
    */
   private void addEmlFile() throws GeneratorException, InterruptedException {
     checkForInterruption();
     setState(STATE.METADATA);
     try {
-      FileUtils.copyFile(dataDir.resourceEmlFile(resource.getShortname()), new File(dwcaFolder,
-        DataDir.EML_XML_FILENAME));
+      addZipEntry(dataDir.resourceEmlFile(resource.getShortname()), DataDir.EML_XML_FILENAME);
       archive.setMetadataLocation(DataDir.EML_XML_FILENAME);
     } catch (IOException e) {
-      throw new GeneratorException("Problem occurred while adding EML file to DwC-A folder", e);
+      throw new GeneratorException("Problem occurred while adding EML file to DwC-A zip file", e);
     }
     // final reporting
     addMessage(Level.INFO, "EML file added");
@@ -286,8 +634,8 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
   }
 
   /**
-   * Zips the DwC-A folder. A temp version is created first, and when successful, it it moved into the resource's
-   * data directory.
+   * Completes the DwC-A zip file, all of whose entries have been written already while generating the archive. The
+   * temp version is then moved into the resource's data directory.
    * 
    * @throws GeneratorException if DwC-A could not be zipped or moved
    * @throws InterruptedException if executing thread was interrupted
@@ -295,12 +643,12 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
   private void bundleArchive() throws GeneratorException, InterruptedException {
     checkForInterruption();
     setState(STATE.BUNDLING);
-    File zip = null;
+    File zip = dwcaZipFile;
     BigDecimal version = resource.getEmlVersion();
     try {
-      // create zip
-      zip = dataDir.tmpFile("dwca", ".zip");
-      CompressionUtil.zipDir(dwcaFolder, zip);
+      // complete zip
+      dwcaZip.close();
+      dwcaZip = null;
       if (zip.exists()) {
         // move to data dir with versioned name
         File versionedFile = dataDir.resourceDwcaFile(resource.getShortname(), version);
@@ -325,7 +673,7 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
   }
 
   /**
-   * Validate the DwC-A:
+   * Validate the DwC-A, summarising the validation carried out on each data file while it was written:
    * -ensure that if the core record identifier is mapped (e.g. occurrenceID, taxonID, etc) it is present on all
    * rows, and is unique
    * 
@@ -337,19 +685,25 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     setState(STATE.VALIDATING);
 
     try {
-      // retrieve newly generated archive - decompressed
-      Archive arch = ArchiveFactory.openArchive(dwcaFolder);
-      // populate basisOfRecord lookup HashMap
-      loadBasisOfRecordMapFromVocabulary();
       // perform validation on core file (includes core ID and basisOfRecord validation)
-      validateCoreDataFile(arch.getCore(), !arch.getExtensions().isEmpty());
+      for (DataFileValidation validation : validations) {
+        if (validation.core) {
+          validateCoreDataFile(validation);
+        }
+      }
       // extra check for event core - publish warning if there aren't any associated occurrences
-      if (isEventCore(arch)) {
-        validateEventCore(arch);
+      if (isEventCore(archive)) {
+        validateEventCore(archive);
+      }
+      // confirm the links of extension records to core records, before counting orphans
+      if (coreIdIndex != null) {
+        coreIdIndex.confirmLinks();
       }
       // perform validation on extension files
-      if (!arch.getExtensions().isEmpty()) {
-        validateExtensionDataFiles(arch.getExtensions());
+      for (DataFileValidation validation : validations) {
+        if (!validation.core) {
+          validateExtensionDataFile(validation);
+        }
       }
     } catch (IOException e) {
       throw new GeneratorException("Problem occurred while validating DwC-A", e);
@@ -358,62 +712,6 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     addMessage(Level.INFO, "Archive validated");
   }
 
-  /**
-   * Sort the data file of a Darwin Core Archive by a column. Sorting is case sensitive.
-   * 
-   * @param file unsorted file
-   * @param column column to sort by file by
-   *
-   * @return the data file of the Archive sorted by column
-   * @throws IOException if the sort fails for whatever reason
-   */
-  private File sortCoreDataFile(ArchiveFile file, int column) throws IOException {
-    // retrieve the core file
-    File unsorted = file.getLocationFile();
-
-    // create a new file that will store the records sorted by column
-    File sorted = new File(unsorted.getParentFile(), SORTED_FILE_PREFIX + unsorted.getName());
-    // get the ignore column rows, delimiter, enclosed by, newline character
-    int headerLines = file.getIgnoreHeaderLines();
-    String columnDelimiter = file.getFieldsTerminatedBy();
-    Character enclosedBy = file.getFieldsEnclosedBy();
-    String newlineDelimiter = file.getLinesTerminatedBy();
-
-    // keep track of how long the sort takes
-    long time = System.currentTimeMillis();
-
-    // sort by column
-    LineComparator lineComparator =
-      new LineComparator(column, columnDelimiter, enclosedBy, IGNORE_CASE_COMPARATOR);
-    GBIF_FILE_UTILS
-      .sort(unsorted, sorted, CHARACTER_ENCODING, column, columnDelimiter, enclosedBy, newlineDelimiter,
-        headerLines, lineComparator, true);
-    log.debug("Finished sorting file " + unsorted.getAbsolutePath() + " in " + String
-      .valueOf((System.currentTimeMillis() - time) / 1000) + " secs, check: " + sorted.getAbsoluteFile().toString());
-
-    return sorted;
-  }
-
-  /**
-   * For each extension data file:
-   * </br>
-   * -validate each record has an id
-   * -validate basisOfRecord in extensions having occurrence rowType
-   * -validate occurrenceId in extensions having occurrence rowType (if mapped)
-   *
-   * @param extensions Set of Archive extension data files (not core data files)
-   *
-   * @throws InterruptedException
-   * @throws GeneratorException
-   * @throws IOException
-   */
-  private void validateExtensionDataFiles(Set<ArchiveFile> extensions)
-    throws InterruptedException, GeneratorException, IOException {
-    for (ArchiveFile extension: extensions) {
-      validateExtensionDataFile(extension);
-    }
-  }
-
   /**
    * Populate basisOfRecords map from XML vocabulary, used to validate basisOfRecord values.
    */
@@ -427,6 +725,8 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
   }
 
   /**
+   * Summarises the validation of an extension data file, carried out while it was written:
+   * </br>
    * Validates that each record has a non empty ID, which is used to link the extension record and core record together.
    * </br>
    * Validates that each occurrence record has an occurrenceID, and that each occurrenceID is unique.
@@ -435,15 +735,14 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    * Validates that each occurrence record has a basisOfRecord, and that each basisOfRecord matches the
    * DwC Type Vocabulary.
    *
-   * @param extFile extension file to validate
+   * @param validation validation of extension file
    *
-   * @throws GeneratorException   if validation was interrupted due to an error
-   * @throws InterruptedException if the thread was interrupted
-   * @throws java.io.IOException  if a problem occurred sorting file, or opening iterator on it for example
+   * @throws GeneratorException   if validation failed
+   * @throws java.io.IOException  if a problem occurred confirming duplicate occurrenceIds
    */
-  private void validateExtensionDataFile(ArchiveFile extFile)
-    throws GeneratorException, InterruptedException, IOException {
+  private void validateExtensionDataFile(DataFileValidation validation) throws GeneratorException, IOException {
     Preconditions.checkNotNull(resource.getCoreRowType());
+    ArchiveFile extFile = validation.archiveFile;
     addMessage(Level.INFO, "Validating the extension file: " + extFile.getTitle()
                            + ". Depending on the number of records, this can take a while.");
     // get the core record ID term
@@ -451,7 +750,6 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     Term occurrenceId = TERM_FACTORY.findTerm(Constants.DWC_OCCURRENCE_ID);
     Term basisOfRecord = TERM_FACTORY.findTerm(Constants.DWC_BASIS_OF_RECORD);
 
-    int basisOfRecordIndex = -1;
     if (isOccurrenceFile(extFile)) {
       // fail immediately if occurrence core doesn't contain basisOfRecord mapping
       if (!extFile.hasTerm(basisOfRecord)) {
@@ -471,8 +769,6 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
         addMessage(Level.WARN,
           "No occurrenceId found in occurrence extension. To be indexed by GBIF, each occurrence record within a resource must have a unique record level identifier.");
       }
-      // find index of basisOfRecord
-      basisOfRecordIndex = extFile.getField(basisOfRecord).getIndex();
     }
 
     // validate the extension ID has been mapped
@@ -485,83 +781,14 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     }
     addMessage(Level.INFO, "? Validating the ID field " + id.simpleName() + " is always present in extension data file. ");
 
-    // find index of column to sort file by - use occurrenceId term index if mapped, ID column otherwise
-    int sortColumnIndex = (extFile.hasTerm(occurrenceId) && extFile.getField(occurrenceId).getIndex() != null) ?
-      extFile.getField(occurrenceId).getIndex() : ID_COLUMN_INDEX;
-
-    // create a sorted data file
-    File sortedFile = sortCoreDataFile(extFile, sortColumnIndex);
-
-    // metrics
-    int recordsWithNoId = 0;
-    AtomicInteger recordsWithNoOccurrenceId = new AtomicInteger(0);
-    AtomicInteger recordsWithDuplicateOccurrenceId = new AtomicInteger(0);
-    AtomicInteger recordsWithNoBasisOfRecord = new AtomicInteger(0);
-    AtomicInteger recordsWithNonMatchingBasisOfRecord = new AtomicInteger(0);
-    AtomicInteger recordsWithAmbiguousBasisOfRecord = new AtomicInteger(0);
-
-    // create an iterator on the new sorted data file
-    CSVReader reader = CSVReaderFactory.build(sortedFile,
-            CHARACTER_ENCODING,
-            extFile.getFieldsTerminatedBy(),
-            extFile.getFieldsEnclosedBy(),
-            extFile.getIgnoreHeaderLines());
-
-    int line = 0;
-    String lastId = null;
-    try {
-      while (reader.hasNext()) {
-        line++;
-        if (line % 1000 == 0) {
-          checkForInterruption(line);
-          reportIfNeeded();
-        }
-        String[] record = reader.next();
-        if (record == null || record.length == 0) {
-          continue;
-        }
-        // Exception on reading row was encountered
-        if (reader.hasRowError() && reader.getException() != null) {
-          throw new GeneratorException("A fatal error was encountered while trying to validate sorted extension data file: "
-                  + reader.getErrorMessage(), reader.getException());
-        } else {
-          // check id exists
-          if (Strings.isNullOrEmpty(record[ID_COLUMN_INDEX])) {
-            recordsWithNoId++;
-          }
-          if (isOccurrenceFile(extFile)) {
-            if (extFile.hasTerm(occurrenceId)) {
-              lastId = validateIdentifier(record[sortColumnIndex], lastId, recordsWithNoOccurrenceId,
-                recordsWithDuplicateOccurrenceId);
-            }
-            validateBasisOfRecord(record[basisOfRecordIndex], line, recordsWithNoBasisOfRecord,
-              recordsWithNonMatchingBasisOfRecord, recordsWithAmbiguousBasisOfRecord);
-          }
-        }
-      }
-    } catch (InterruptedException e) {
-      // set last error report!
-      setState(e);
-      throw e;
-
-    } catch (Exception e) {
-      // some error validating this file, report
-      log.error("Exception caught while validating extension file", e);
-      // set last error report!
-      setState(e);
-      throw new GeneratorException("Error while validating extension file occurred on line " + line, e);
-
-    } finally {
-      // Exception on advancing cursor was encountered?
-      if (!reader.hasRowError() && reader.getErrorMessage() != null) {
-        writePublicationLogMessage("Error reading data: " + reader.getErrorMessage());
-      }
-      reader.close();
-      // always cleanup the sorted file, it must not be included in the dwca directory when compressed
-      FileUtils.deleteQuietly(sortedFile);
+    // confirm candidate duplicate occurrenceIds
+    int recordsWithDuplicateOccurrenceId = 0;
+    if (validation.idValidator != null) {
+      recordsWithDuplicateOccurrenceId = validation.idValidator.countDuplicates();
     }
 
     // some final reporting..
+    int recordsWithNoId = validation.recordsWithNoId.get();
     if (recordsWithNoId > 0) {
       addMessage(Level.ERROR, String.valueOf(recordsWithNoId)
                               + " line(s) in extension missing an ID " + id.simpleName() + ", which is required when linking the extension record and core record together");
@@ -572,34 +799,47 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
       writePublicationLogMessage("No lines in extension are missing an ID " + id.simpleName());
     }
 
+    // report extension records that can't be linked to any core record
+    if (coreIdIndex != null) {
+      int orphans = coreIdIndex.getOrphans(extFile.getLocation());
+      if (orphans > 0) {
+        addMessage(Level.WARN, String.valueOf(orphans) + " line(s) in extension " + extFile.getTitle()
+                               + " have an ID " + id.simpleName()
+                               + " not found in the core, so they can't be linked to any core record");
+      } else {
+        addMessage(Level.INFO, "\u2713 Validated each line in extension references an existing core record");
+        writePublicationLogMessage("No lines in extension " + extFile.getTitle() + " reference a missing core record");
+      }
+    }
+
     if (isOccurrenceFile(extFile)) {
-      if (extFile.hasTerm(occurrenceId)) {
-        summarizeIdentifierValidation(recordsWithNoOccurrenceId, recordsWithDuplicateOccurrenceId,
+      if (validation.idValidator != null) {
+        summarizeIdentifierValidation(validation.idValidator.getRecordsWithNoId(), recordsWithDuplicateOccurrenceId,
           occurrenceId.simpleName());
       }
-      summarizeBasisOfRecordValidation(recordsWithNoBasisOfRecord, recordsWithNonMatchingBasisOfRecord,
-        recordsWithAmbiguousBasisOfRecord);
+      summarizeBasisOfRecordValidation(validation.recordsWithNoBasisOfRecord,
+        validation.recordsWithNonMatchingBasisOfRecord, validation.recordsWithAmbiguousBasisOfRecord);
     }
   }
 
   /**
+   * Summarises the validation of the Archive's core data file, carried out while it was written.
+   * </br>
    * Validate the Archive's core data file has an ID for each row, and that each ID is unique. Perform this check
    * only if the core record ID term (e.g. occurrenceID, taxonID, etc) has actually been mapped.
    * </br>
    * If the core has rowType occurrence, validate the core data file has a basisOfRecord for each row, and
    * that each basisOfRecord matches the DwC Type Vocabulary.
-   * </br>
-   * If the core has rowType event, validate there are associated occurrences.
    *
-   * @param coreFile core ArchiveFile
-   * @param archiveHasExtensions true if Archive has extensions, false otherwise
+   * @param validation validation of core file
    *
-   * @throws GeneratorException   if validation was interrupted due to an error
-   * @throws InterruptedException if the thread was interrupted
-   * @throws java.io.IOException  if a problem occurred sorting core file, or opening iterator on it for example
+   * @throws GeneratorException   if validation failed
+   * @throws java.io.IOException  if a problem occurred confirming duplicate IDs
    */
-  private void validateCoreDataFile(ArchiveFile coreFile, boolean archiveHasExtensions) throws GeneratorException, InterruptedException, IOException {
+  private void validateCoreDataFile(DataFileValidation validation) throws GeneratorException, IOException {
     Preconditions.checkNotNull(resource.getCoreRowType());
+    ArchiveFile coreFile = validation.archiveFile;
+    boolean archiveHasExtensions = !archive.getExtensions().isEmpty();
     addMessage(Level.INFO, "Validating the core file: " + coreFile.getTitle()
                            + ". Depending on the number of records, this can take a while.");
 
@@ -607,7 +847,6 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     Term id = TERM_FACTORY.findTerm(AppConfig.coreIdTerm(resource.getCoreRowType()));
     Term basisOfRecord = TERM_FACTORY.findTerm(Constants.DWC_BASIS_OF_RECORD);
 
-    int basisOfRecordIndex = -1;
     if (isOccurrenceFile(coreFile)) {
       // fail immediately if occurrence core doesn't contain basisOfRecord mapping
       if (!coreFile.hasTerm(basisOfRecord)) {
@@ -619,120 +858,116 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
 
       addMessage(Level.INFO, "? Validating the core basisOfRecord is always present is always present and its "
                              + "value matches the Darwin Core Type Vocabulary.");
-
-      // find index of basisOfRecord
-      basisOfRecordIndex = coreFile.getField(basisOfRecord).getIndex();
     }
 
     // validate the core ID / record identifier (e.g. occurrenceID, taxonID) if it has been mapped
-    if (coreFile.hasTerm(id) || archiveHasExtensions) {
+    if (validation.idValidator != null) {
       String msg = "? Validating the core ID field " + id.simpleName() + " is always present and unique.";
       if (archiveHasExtensions) {
         msg = msg + " Note: the core ID field is required to link core records and extension records together. ";
       }
       addMessage(Level.INFO, msg);
-    }
-
-    // create a new core data file sorted by ID column 0
-    File sortedCore = sortCoreDataFile(coreFile, ID_COLUMN_INDEX);
 
-    // create an iterator on the new sorted core data file
-    CSVReader reader = CSVReaderFactory
-      .build(sortedCore, CHARACTER_ENCODING, coreFile.getFieldsTerminatedBy(), coreFile.getFieldsEnclosedBy(),
-        coreFile.getIgnoreHeaderLines());
+      // confirm candidate duplicate IDs, and report
+      int recordsWithDuplicateId = validation.idValidator.countDuplicates();
+      summarizeIdentifierValidation(validation.idValidator.getRecordsWithNoId(), recordsWithDuplicateId,
+        id.simpleName());
+    }
+    if (isOccurrenceFile(coreFile)) {
+      summarizeBasisOfRecordValidation(validation.recordsWithNoBasisOfRecord,
+        validation.recordsWithNonMatchingBasisOfRecord, validation.recordsWithAmbiguousBasisOfRecord);
+    }
+  }
 
-    // metrics
-    AtomicInteger recordsWithNoId = new AtomicInteger(0);
-    AtomicInteger recordsWithDuplicateId = new AtomicInteger(0);
-    AtomicInteger recordsWithNoBasisOfRecord = new AtomicInteger(0);
-    AtomicInteger recordsWithNonMatchingBasisOfRecord = new AtomicInteger(0);
-    AtomicInteger recordsWithAmbiguousBasisOfRecord = new AtomicInteger(0);
+  /**
+   * Prepares the validation of a data file, carried out while the data file gets written:
+   * -the core ID is validated if it is mapped, or if the archive has extensions (required to link core to extension)
+   * -the ID of extension records is validated, plus the occurrenceID of occurrence extensions if it is mapped
+   * -the basisOfRecord of occurrence data files is validated if it is mapped
+   *
+   * @param af data file, with all its fields and their indexes
+   * @param core true if the data file is the core data file
+   *
+   * @return validation of data file
+   * @throws IOException if the identifier validator work files could not be created
+   */
+  private DataFileValidation newDataFileValidation(ArchiveFile af, boolean core) throws IOException {
+    Term id = TERM_FACTORY.findTerm(AppConfig.coreIdTerm(resource.getCoreRowType()));
+    Term occurrenceId = TERM_FACTORY.findTerm(Constants.DWC_OCCURRENCE_ID);
+    Term basisOfRecord = TERM_FACTORY.findTerm(Constants.DWC_BASIS_OF_RECORD);
 
-    int line = 0;
-    String lastId = null;
-    try {
-      while (reader.hasNext()) {
-        line++;
-        if (line % 1000 == 0) {
-          checkForInterruption(line);
-          reportIfNeeded();
-        }
-        String[] record = reader.next();
-        if (record == null || record.length == 0) {
-          continue;
-        }
-        // Exception on reading row was encountered
-        if (reader.hasRowError() && reader.getException() != null) {
-          throw new GeneratorException(
-            "A fatal error was encountered while trying to validate sorted core data file: " + reader.getErrorMessage(),
-                  reader.getException());
-        } else {
-          // validate record id if it is mapped, or if archive has extensions (required to link core to extension)
-          if (coreFile.hasTerm(id) || archiveHasExtensions) {
-            lastId = validateIdentifier(record[ID_COLUMN_INDEX], lastId, recordsWithNoId, recordsWithDuplicateId);
-          }
-          if (isOccurrenceFile(coreFile)) {
-            validateBasisOfRecord(record[basisOfRecordIndex], line, recordsWithNoBasisOfRecord,
-              recordsWithNonMatchingBasisOfRecord, recordsWithAmbiguousBasisOfRecord);
-          }
-        }
+    IdentifierValidator idValidator = null;
+    int idIndex = ID_COLUMN_INDEX;
+    if (core) {
+      if (af.hasTerm(id) || resource.getMappedExtensions().size() > 1) {
+        idValidator = newIdentifierValidator();
       }
-    } catch (InterruptedException e) {
-      // set last error report!
-      setState(e);
-      throw e;
-    } catch (Exception e) {
-      // some error validating this file, report
-      log.error("Exception caught while validating archive", e);
-      // set last error report!
-      setState(e);
-      throw new GeneratorException("Error while validating archive occurred on line " + line, e);
-    } finally {
-      // Exception on advancing cursor was encountered?
-      if (!reader.hasRowError() && reader.getErrorMessage() != null) {
-        writePublicationLogMessage("Error reading data: " + reader.getErrorMessage());
-      }
-      reader.close();
-      // always cleanup the sorted file, it must not be included in the dwca directory when compressed
-      FileUtils.deleteQuietly(sortedCore);
+    } else if (isOccurrenceFile(af) && af.hasTerm(occurrenceId) && af.getField(occurrenceId).getIndex() != null) {
+      idValidator = newIdentifierValidator();
+      idIndex = af.getField(occurrenceId).getIndex();
     }
 
-    // some final reporting..
-    if (coreFile.hasTerm(id) || archiveHasExtensions) {
-      summarizeIdentifierValidation(recordsWithNoId, recordsWithDuplicateId, id.simpleName());
-    }
-    if (isOccurrenceFile(coreFile)) {
-      summarizeBasisOfRecordValidation(recordsWithNoBasisOfRecord, recordsWithNonMatchingBasisOfRecord,
-        recordsWithAmbiguousBasisOfRecord);
+    int basisOfRecordIndex = -1;
+    if (isOccurrenceFile(af) && af.hasTerm(basisOfRecord) && af.getField(basisOfRecord).getIndex() != null) {
+      basisOfRecordIndex = af.getField(basisOfRecord).getIndex();
     }
+
+    DataFileValidation validation = new DataFileValidation(af, core, idValidator, idIndex, basisOfRecordIndex);
+    validations.add(validation);
+    return validation;
   }
 
   /**
-   * Check id exists, and check that the id is unique, using case insensitive comparison against another id,
-   * e.g. FISHES:1 and fishes:1 are equal.
+   * Creates a new sorter for the work files of the archive validation, sorting on several cores and spilling sorted
+   * runs to the configured scratch directory, or next to the DwC-A folder if none is configured.
    *
-   * @param id                     identifier value
-   * @param lastId                 identifier value from last iteration
-   * @param recordsWithNoId        number of records with no id so far
-   * @param recordsWithDuplicateId number of records with duplicate ids so far
+   * @return sorter
+   */
+  private ExternalSorter newSorter() {
+    File scratchDir = cfg.getSortScratchDir() == null ? dwcaFolder.getParentFile() : cfg.getSortScratchDir();
+    return new ExternalSorter(scratchDir, cfg.getMaxSortThreads());
+  }
+
+  /**
+   * Creates a new streaming identifier validator, checking each id exists and is unique using case insensitive
+   * comparison, e.g. FISHES:1 and fishes:1 are equal. Its work files are created next to the DwC-A folder, so they
+   * never get included in the archive, and candidate duplicates are sorted on several cores, spilling sorted runs to
+   * the configured scratch directory. Every duplicate id confirmed is written to the publication log.
    *
-   * @return identifier value
+   * @return identifier validator, that must be closed after use
+   * @throws IOException if the validator work files could not be created
    */
-  private String validateIdentifier(String id, String lastId, AtomicInteger recordsWithNoId, AtomicInteger recordsWithDuplicateId) {
-    // check id exists
-    if (Strings.isNullOrEmpty(id)) {
-      recordsWithNoId.getAndIncrement();
-    }
+  private IdentifierValidator newIdentifierValidator() throws IOException {
+    return new IdentifierValidator(dwcaFolder.getParentFile(), newSorter()) {
+      @Override
+      protected void duplicateFound(String id) {
+        if (countPublicationLogEntry("Duplicate ids found")) {
+          writePublicationLogEntry("Duplicate ids found", "Duplicate id found: " + id);
+        }
+      }
+    };
+  }
 
-    // check id is unique, using case insensitive comparison. E.g. FISHES:1 and fishes:1 are equal
-    if (!Strings.isNullOrEmpty(lastId) && !Strings.isNullOrEmpty(id)) {
-      if (id.equalsIgnoreCase(lastId)) {
-        writePublicationLogMessage("Duplicate id found: " + id);
-        recordsWithDuplicateId.getAndIncrement();
+  /**
+   * Creates a new index of core IDs, extension records get checked against while written. Its spill files are created
+   * next to the DwC-A folder, so they never get included in the archive, and candidate links are sorted like the
+   * candidate duplicates of the identifier validator. Every orphan extension record found is written to the
+   * publication log.
+   *
+   * @return core ID index, that must be closed after use
+   * @throws IOException if the index spill files could not be created
+   */
+  private CoreIdIndex newCoreIdIndex() throws IOException {
+    return new CoreIdIndex(dwcaFolder.getParentFile(), newSorter()) {
+      @Override
+      protected void orphanFound(String dataFile, String coreId) {
+        String category = "Extension records in " + dataFile + " referencing a missing core record";
+        if (countPublicationLogEntry(category)) {
+          writePublicationLogEntry(category,
+            "Extension record in " + dataFile + " references missing core record: " + coreId);
+        }
       }
-    }
-    // set so id gets compared on next iteration
-    return id;
+    };
   }
 
   /**
@@ -741,12 +976,13 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    * (lower case comparison).
    *
    * @param bor                                 basisOfRecord value
-   * @param line                                line/record number
+   * @param line                                line number, in the file the record was read from
+   * @param origin                              file the record was read from, e.g. " in source occurrences"
    * @param recordsWithNoBasisOfRecord          number of records with no basisOfRecord so far
    * @param recordsWithNonMatchingBasisOfRecord number of records with basisOfRecord not matching vocabulary so far
    * @param recordsWithAmbiguousBasisOfRecord   number of records with ambiguous basisOfRecord so far
    */
-  private void validateBasisOfRecord(String bor, int line, AtomicInteger recordsWithNoBasisOfRecord,
+  private void validateBasisOfRecord(String bor, int line, String origin, AtomicInteger recordsWithNoBasisOfRecord,
     AtomicInteger recordsWithNonMatchingBasisOfRecord, AtomicInteger recordsWithAmbiguousBasisOfRecord) {
     // check basisOfRecord exists
     if (Strings.isNullOrEmpty(bor)) {
@@ -754,8 +990,11 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     } else {
       // check basisOfRecord matches vocabulary (lower case comparison). E.g. specimen matches Specimen are equal
       if (!basisOfRecords.containsKey(bor.toLowerCase())) {
-        writePublicationLogMessage("Line #" + String.valueOf(line) + " has basisOfRecord [" + bor
-                                   + "] that does not match the Darwin Core Type Vocabulary");
+        if (countPublicationLogEntry("Lines with basisOfRecord not matching the Darwin Core Type Vocabulary")) {
+          writePublicationLogEntry("Lines with basisOfRecord not matching the Darwin Core Type Vocabulary",
+            "Line #" + String.valueOf(line) + origin + " has basisOfRecord [" + bor
+            + "] that does not match the Darwin Core Type Vocabulary");
+        }
         recordsWithNonMatchingBasisOfRecord.getAndIncrement();
       }
       // check basisOfRecord matches ambiguous "occurrence" (lower case comparison)
@@ -771,7 +1010,7 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    *
    * @param arch Archive
    */
-  private void validateEventCore(Archive arch) throws GeneratorException {
+  private void validateEventCore(Archive arch) {
     boolean validEventCore = true;
     // test if occurrence extension mapped
     ArchiveFile occurrenceExtension = arch.getExtension(DwcTerm.Occurrence);
@@ -780,7 +1019,8 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     }
     // test if it has at least one record
     else {
-      if (!occurrenceExtension.iterator().hasNext()) {
+      Integer occurrences = recordsByExtension.get(Constants.DWC_ROWTYPE_OCCURRENCE);
+      if (occurrences == null || occurrences == 0) {
         validEventCore = false;
       }
     }
@@ -790,8 +1030,8 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
   }
 
   /**
-   * Report basisOfRecord validation (shared by two methods 1. validateBasisOfRecord(ArchiveFile archiveFile)
-   * 2. validateCoreDataFile(Archive arch).
+   * Report basisOfRecord validation (shared by two methods 1. validateExtensionDataFile(DataFileValidation validation)
+   * 2. validateCoreDataFile(DataFileValidation validation).
    *
    * @param recordsWithNoBasisOfRecord          number of records with no basisOfRecord
    * @param recordsWithNonMatchingBasisOfRecord number of records with basisOfRecord not matching DwC Type Vocabulary
@@ -845,8 +1085,8 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
   }
 
   /**
-   * Report identifier validation (shared by two methods 1. validateOccurrenceDataFile(ArchiveFile archiveFile)
-   * 2. validateCoreDataFile(Archive arch).
+   * Report identifier validation (shared by two methods 1. validateExtensionDataFile(DataFileValidation validation)
+   * 2. validateCoreDataFile(DataFileValidation validation).
    *
    * @param recordsWithNoId        number of records with no id
    * @param recordsWithDuplicateId number of records with duplicate ids
@@ -854,17 +1094,17 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    *
    * @throws GeneratorException if validation threshold exceeded
    */
-  private void summarizeIdentifierValidation(AtomicInteger recordsWithNoId, AtomicInteger recordsWithDuplicateId,
-    String term) throws GeneratorException {
+  private void summarizeIdentifierValidation(int recordsWithNoId, int recordsWithDuplicateId, String term)
+    throws GeneratorException {
     // add empty ids user message
-    if (recordsWithNoId.get() > 0) {
+    if (recordsWithNoId > 0) {
       addMessage(Level.ERROR, String.valueOf(recordsWithNoId) + " line(s) missing " + term);
     } else {
       writePublicationLogMessage("No lines are missing " + term);
     }
 
     // add duplicate ids user message
-    if (recordsWithDuplicateId.get() > 0) {
+    if (recordsWithDuplicateId > 0) {
       addMessage(Level.ERROR, String.valueOf(recordsWithDuplicateId) + " line(s) having a duplicate " + term
                               + " (please note comparisons are case insensitive)");
     } else {
@@ -872,7 +1112,7 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     }
 
     // if there was 1 or more records missing an ID, or having a duplicate ID, validation fails
-    if (recordsWithNoId.get() == 0 && recordsWithDuplicateId.get() == 0) {
+    if (recordsWithNoId == 0 && recordsWithDuplicateId == 0) {
       addMessage(Level.INFO, "✓ Validated each line has a " + term + ", and each " + term + " is unique");
     } else {
       addMessage(Level.ERROR, "Archive validation failed, because not every line has a unique " + term
@@ -911,25 +1151,66 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
       // initial reporting
       addMessage(Level.INFO, "Archive generation started for version #" + String.valueOf(resource.getEmlVersion()));
 
-      // create a temp dir to copy all dwca files to
+      // create a temp dir for work files, and the zip file all dwca files get written to
       dwcaFolder = dataDir.tmpDir();
       archive = new Archive();
+      openDwcaZip();
 
-      // create data files
-      createDataFiles();
+      // fingerprint the data before reading it, so that changes made while generating are detected next time
+      dataFingerprint = DwcaChangeDetector.fingerprint(resource);
 
-      // copy eml file
-      addEmlFile();
+      if (reuseLastPublishedDataFiles()) {
+        // copy eml file, the only file that changed
+        addEmlFile();
+      } else {
+        // validate data files in the same pass they are written in, populating basisOfRecord lookup HashMap first
+        validateWhileWriting = true;
+        loadBasisOfRecordMapFromVocabulary();
+        if (resource.getMappedExtensions().size() > 1) {
+          coreIdIndex = newCoreIdIndex();
+        }
 
-      // create meta.xml
-      createMetaFile();
+        // incremental sql sources are read from the watermark of the last published version on
+        configurationFingerprint = DwcaChangeDetector.configurationFingerprint(resource);
+        readWatermarks();
 
-      // perform some validation, e.g. ensure all core record identifiers are present and unique
-      validate();
+        // resume from the checkpoint left by an interrupted generation, if any
+        openCheckpoint();
+
+        // create data files
+        createDataFiles();
+
+        // copy eml file
+        addEmlFile();
+
+        // create meta.xml
+        createMetaFile();
+
+        // perform some validation, e.g. ensure all core record identifiers are present and unique
+        validate();
+      }
 
       // zip archive and copy to resource folder
       bundleArchive();
 
+      // the archive is complete, nothing is left to resume
+      discardCheckpoint();
+
+      // keep track of the data this version was generated from, so that its data files can be reused next time
+      VersionHistory versionHistory = resource.findVersionHistory(resource.getEmlVersion());
+      if (versionHistory != null) {
+        versionHistory.setDataFingerprint(dataFingerprint);
+        versionHistory.setConfigurationFingerprint(configurationFingerprint);
+        versionHistory.setWatermarksBySource(Maps.newHashMap(watermarks));
+        // keep track of the time generating this version took, to see the publication performance over time
+        versionHistory.setGenerationMillisByStage(metrics.getStageMillis());
+        Map<String, Long> rowsPerSecond = Maps.newHashMap();
+        for (ProgressMetrics.DataFileMetrics dataFile : metrics.getDataFiles()) {
+          rowsPerSecond.put(dataFile.getRowType(), dataFile.getRowsPerSecond());
+        }
+        versionHistory.setRowsPerSecondByExtension(rowsPerSecond);
+      }
+
       // reporting
       addMessage(Level.INFO, "Archive version #" + String.valueOf(resource.getEmlVersion()) + " generated successfully!");
 
@@ -938,6 +1219,11 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
 
       return recordsByExtension;
     } catch (GeneratorException e) {
+      // a failed generation is only resumed if it failed reading its sources or writing its files
+      if (!isResumable(e)) {
+        discardCheckpoint();
+      }
+
       // set last error report!
       setState(e);
 
@@ -957,11 +1243,31 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
       writeFailureToPublicationLog(e);
       throw e;
     } catch (Exception e) {
+      if (!isResumable(e)) {
+        discardCheckpoint();
+      }
       setState(e);
       writeFailureToPublicationLog(e);
       throw new GeneratorException(e);
     } finally {
-      // cleanup temp dir that was used to store dwca files
+      // counting rows is pointless once done
+      rowEstimator.shutdownNow();
+      // cleanup validation work files
+      for (DataFileValidation validation : validations) {
+        validation.close();
+      }
+      if (coreIdIndex != null) {
+        coreIdIndex.close();
+      }
+      // cleanup zip file, if generation was incomplete for example due to Exception
+      if (dwcaZip != null) {
+        dwcaZip.abort();
+        dwcaZip = null;
+      }
+      if (dwcaZipFile != null && dwcaZipFile.exists()) {
+        FileUtils.deleteQuietly(dwcaZipFile);
+      }
+      // cleanup temp dir that was used to store work files
       if (dwcaFolder != null && dwcaFolder.exists()) {
         FileUtils.deleteQuietly(dwcaFolder);
       }
@@ -970,6 +1276,98 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     }
   }
 
+  /**
+   * Generates a sample of the DwC-A without publishing anything, so that problems with the mappings show up within
+   * seconds: all mappings are written at the same time, each up to the row limit, and the sample gets validated.
+   * Nothing is bundled, no version is recorded, and the publication log of the last publication is left untouched.
+   * </br>
+   * Only available on workers created for a dry run. A failing validation doesn't fail the dry run, it is reported
+   * in the messages of the dry run report instead.
+   *
+   * @return dry run report, holding the records sampled, the meta.xml archive descriptor and the messages reported
+   * @throws GeneratorException if the sample could not be generated
+   * @throws InterruptedException if the thread was interrupted
+   */
+  public DryRunReport dryRun() throws GeneratorException, InterruptedException {
+    Preconditions.checkState(dryRunRowLimit != null, "Worker was not created for a dry run");
+    try {
+      checkForInterruption();
+      setState(STATE.STARTED);
+      addMessage(Level.INFO, "Dry run started, writing up to " + dryRunRowLimit + " records per mapping");
+
+      // the data files are written to a temp dir, no zip file is needed
+      dwcaFolder = dataDir.tmpDir();
+      archive = new Archive();
+      validateWhileWriting = true;
+      loadBasisOfRecordMapFromVocabulary();
+
+      createDataFiles();
+      createMetaFile();
+      try {
+        validate();
+      } catch (GeneratorException e) {
+        // the reason the validation failed has been reported already
+        log.debug("Dry run sample of resource " + resource.getShortname() + " failed validation: " + e.getMessage());
+      }
+
+      List<DryRunReport.DataFileSample> samples = readSamples();
+      String metaXml = FileUtils.readFileToString(new File(dwcaFolder, META_FILENAME), CHARACTER_ENCODING);
+      setState(STATE.COMPLETED);
+      return new DryRunReport(samples, metaXml, new ArrayList<TaskMessage>(report().getMessages()));
+    } catch (GeneratorException e) {
+      setState(e);
+      throw e;
+    } catch (InterruptedException e) {
+      setState(e);
+      throw e;
+    } catch (IOException e) {
+      setState(e);
+      throw new GeneratorException("Problem occurred while reading the dry run sample", e);
+    } finally {
+      for (DataFileValidation validation : validations) {
+        validation.close();
+      }
+      if (dwcaFolder != null && dwcaFolder.exists()) {
+        FileUtils.deleteQuietly(dwcaFolder);
+      }
+      closePublicationLogWriter();
+    }
+  }
+
+  /**
+   * Reads back the data files written in a dry run, the core data file first.
+   *
+   * @return sample of each data file
+   * @throws IOException if a data file could not be read
+   */
+  private List<DryRunReport.DataFileSample> readSamples() throws IOException {
+    List<ArchiveFile> archiveFiles = Lists.newArrayList();
+    if (archive.getCore() != null) {
+      archiveFiles.add(archive.getCore());
+    }
+    archiveFiles.addAll(archive.getExtensions());
+    List<DryRunReport.DataFileSample> samples = Lists.newArrayList();
+    for (ArchiveFile af : archiveFiles) {
+      List<String> columns = Lists.newArrayList();
+      List<String[]> rows = Lists.newArrayList();
+      BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(new File(dwcaFolder, af.getLocation())), CHARACTER_ENCODING));
+      try {
+        String line = reader.readLine();
+        if (line != null) {
+          columns.addAll(Arrays.asList(StringUtils.splitPreserveAllTokens(line, af.getFieldsTerminatedBy())));
+        }
+        while ((line = reader.readLine()) != null) {
+          rows.add(StringUtils.splitPreserveAllTokens(line, af.getFieldsTerminatedBy()));
+        }
+      } finally {
+        reader.close();
+      }
+      samples.add(new DryRunReport.DataFileSample(af.getRowType().qualifiedName(), af.getLocation(), columns, rows));
+    }
+    return samples;
+  }
+
   /**
    * Checks if the executing thread has been interrupted, i.e. DwC-A generation was cancelled.
    * 
@@ -985,51 +1383,473 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
   }
 
   /**
-   * Checks if the executing thread has been interrupted, i.e. DwC-A generation was cancelled.
-   * 
-   * @param line number of lines currently processed at the time of the check
-   * @throws InterruptedException if the thread was found to be interrupted
+   * Checks if the executing thread has been interrupted, i.e. DwC-A generation was cancelled.
+   * 
+   * @param line number of lines currently processed at the time of the check
+   * @throws InterruptedException if the thread was found to be interrupted
+   */
+  private void checkForInterruption(int line) throws InterruptedException {
+    if (Thread.interrupted()) {
+      StatusReport report = report();
+      String msg = "Interrupting dwca generator at line " + line + ". Last status: " + report.getState();
+      log.info(msg);
+      throw new InterruptedException(msg);
+    }
+  }
+
+  @Override
+  protected boolean completed() {
+    return STATE.COMPLETED == this.state;
+  }
+
+  /**
+   * Create data files.
+   * 
+   * @throws GeneratorException if the resource had no core file that was mapped
+   * @throws InterruptedException if the thread was interrupted
+   */
+  private void createDataFiles() throws GeneratorException, InterruptedException {
+    checkForInterruption();
+    setState(STATE.DATAFILES);
+    if (!resource.hasCore() || resource.getCoreRowType() == null
+        || resource.getCoreMappings().get(0).getSource() == null) {
+      throw new GeneratorException("Core is not mapped");
+    }
+    int threads = cfg.getMaxDataFileThreads();
+    if (dryRunRowLimit != null) {
+      // a dry run only writes a few records per mapping, so all mappings get written at the same time
+      int mappings = 0;
+      for (Extension ext : resource.getMappedExtensions()) {
+        mappings += resource.getMappings(ext.getRowType()).size();
+      }
+      threads = Math.min(mappings, DRY_RUN_MAX_THREADS);
+    }
+    // checkpoints are taken per segment, so data files get written in segments whenever checkpoints are kept
+    if (threads > 1 || checkpoint != null) {
+      createDataFilesInSegments(Math.max(threads, 1));
+    } else {
+      for (Extension ext : resource.getMappedExtensions()) {
+        report();
+        try {
+          List<ExtensionMapping> mappings = resource.getMappings(ext.getRowType());
+          DataFile dataFile = mappings == null || mappings.isEmpty() ? null : openIncrementalDataFile(mappings);
+          if (dataFile == null) {
+            addDataFile(mappings, null);
+          } else {
+            writeIncrementalDataFile(dataFile, mappings.get(0));
+            closeDataFile(dataFile);
+          }
+        } catch (IOException e) {
+          throw new GeneratorException("Problem occurred while writing data file", e);
+        } catch (IllegalArgumentException e) {
+          throw new GeneratorException("Problem occurred while writing data file", e);
+        }
+      }
+    }
+    // final reporting
+    addMessage(Level.INFO, "All data files completed");
+    report();
+  }
+
+  /**
+   * Create data files concurrently on a bounded pool of threads. Each mapping gets written to its own segment file,
+   * so that all extensions and all mappings within one extension get processed at the same time. Once all its
+   * segments are complete, a data file is assembled by appending the segments to the header line in mapping order.
+   * </br>
+   * When checkpoints are kept, data files completed by an interrupted generation are restored from the checkpoint
+   * instead of being written again, and segments resume from their last checkpoint, except segments of sql sources
+   * without key column, see {@link #keyColumn(ExtensionMapping)}.
+   *
+   * @param threads maximum number of segments written concurrently
+   *
+   * @throws GeneratorException if writing any data file failed
+   * @throws InterruptedException if the thread was interrupted
+   */
+  private void createDataFilesInSegments(int threads) throws GeneratorException, InterruptedException {
+    if (threads > 1) {
+      addMessage(Level.INFO, "Writing data files in parallel using up to " + threads + " threads");
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      // open all data files, submitting a segment for each of their mappings
+      Map<DataFile, List<Future<File>>> segmentsByDataFile = new LinkedHashMap<DataFile, List<Future<File>>>();
+      for (Extension ext : resource.getMappedExtensions()) {
+        List<ExtensionMapping> mappings = resource.getMappings(ext.getRowType());
+        if (mappings == null || mappings.isEmpty()) {
+          continue;
+        }
+        // data files updated incrementally are written straight away, the rows changed being few
+        DataFile dataFile = openIncrementalDataFile(mappings);
+        if (dataFile != null) {
+          writeIncrementalDataFile(dataFile, mappings.get(0));
+          segmentsByDataFile.put(dataFile, null);
+          continue;
+        }
+        dataFile = openDataFile(mappings);
+        List<Future<File>> segments = Lists.newArrayList();
+        // data files completed before the generation got interrupted are never written again
+        if (checkpoint == null || !checkpoint.isDataFileCompleted(dataFile.file.getName())) {
+          for (int i = 0; i < mappings.size(); i++) {
+            segments.add(executor.submit(new SegmentWriter(dataFile, mappings.get(i), i)));
+          }
+        }
+        segmentsByDataFile.put(dataFile, segments);
+      }
+      report();
+
+      // assemble data files in order, waiting for their segments to complete
+      for (Map.Entry<DataFile, List<Future<File>>> entry : segmentsByDataFile.entrySet()) {
+        if (entry.getValue() != null && entry.getValue().isEmpty()) {
+          // data files completed before the generation got interrupted have no segments, and get restored from the
+          // checkpoint
+          restoreDataFile(entry.getKey());
+        } else if (entry.getValue() != null) {
+          List<File> segmentFiles = Lists.newArrayList();
+          for (Future<File> segment : entry.getValue()) {
+            segmentFiles.add(getSegment(segment));
+          }
+          assembleDataFile(entry.getKey(), segmentFiles);
+        }
+        // data files updated incrementally have no list of segments at all, and are written already
+        closeDataFile(entry.getKey());
+        report();
+      }
+    } catch (IOException e) {
+      throw new GeneratorException("Problem occurred while writing data file", e);
+    } catch (IllegalArgumentException e) {
+      throw new GeneratorException("Problem occurred while writing data file", e);
+    } finally {
+      // interrupts all segments still being written, e.g. if generation was cancelled or another segment failed
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Waits for a segment to be written, unwrapping the exception it failed with if any.
+   *
+   * @param segment future segment file
+   *
+   * @return segment file written
+   * @throws GeneratorException if writing the segment failed
+   * @throws InterruptedException if the thread was interrupted, or the segment was cancelled
+   */
+  private File getSegment(Future<File> segment) throws GeneratorException, InterruptedException {
+    try {
+      return segment.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof GeneratorException) {
+        throw (GeneratorException) cause;
+      } else if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      throw new GeneratorException("Problem occurred while writing data file", cause);
+    }
+  }
+
+  /**
+   * Assembles a data file written in segments: the header line is written first, followed by each segment in
+   * mapping order. Segment files are removed once appended, so they don't end up in the archive.
+   * </br>
+   * When checkpoints are kept, the data file is compressed into the checkpoint first and recorded as completed,
+   * before being copied into the archive. This way a completed data file never gets written again.
+   *
+   * @param dataFile data file to assemble
+   * @param segmentFiles segment files, in mapping order
+   *
+   * @throws IOException if the data file could not be written
+   * @throws InterruptedException if the thread was interrupted
+   */
+  private void assembleDataFile(DataFile dataFile, List<File> segmentFiles) throws IOException, InterruptedException {
+    if (checkpoint == null) {
+      OutputStream out = openDataFileStream(dataFile);
+      try {
+        writeDataFile(dataFile, segmentFiles, out);
+      } finally {
+        out.close();
+      }
+      for (File segmentFile : segmentFiles) {
+        FileUtils.deleteQuietly(segmentFile);
+      }
+      return;
+    }
+    String name = dataFile.file.getName();
+    File zipFile = checkpoint.dataFileZip(name);
+    ParallelZipOutputStream zip = new ParallelZipOutputStream(zipFile, cfg.getMaxCompressionThreads());
+    boolean written = false;
+    try {
+      zip.putNextEntry(new ZipEntry(name));
+      writeDataFile(dataFile, segmentFiles, zip);
+      zip.closeEntry();
+      zip.close();
+      written = true;
+    } finally {
+      if (!written) {
+        zip.abort();
+        FileUtils.deleteQuietly(zipFile);
+      }
+    }
+    checkpoint.dataFileCompleted(name, segmentFiles.size(), dataFile.recordsSkipped.get());
+    dwcaZip.copyEntries(zipFile, Collections.<String>emptySet());
+  }
+
+  /**
+   * Writes the header line of a data file, followed by each of its segments in mapping order.
+   *
+   * @param dataFile data file to write
+   * @param segmentFiles segment files, in mapping order
+   * @param out stream to write data file to, left open
+   *
+   * @throws IOException if the data file could not be written
+   * @throws InterruptedException if the thread was interrupted
+   */
+  private void writeDataFile(DataFile dataFile, List<File> segmentFiles, OutputStream out)
+    throws IOException, InterruptedException {
+    Writer writer = new OutputStreamWriter(out, CHARACTER_ENCODING);
+    writeHeaderLine(dataFile.propertyList, dataFile.totalColumns, dataFile.archiveFile, writer);
+    writer.flush();
+    for (File segmentFile : segmentFiles) {
+      checkForInterruption();
+      Files.copy(segmentFile.toPath(), out);
+    }
+  }
+
+  /**
+   * Restores a data file completed before the generation got interrupted, copying it from the checkpoint into the
+   * archive. Its records are counted and validated again, as they would have been while being written.
+   *
+   * @param dataFile data file to restore
+   *
+   * @throws IOException if the data file could not be restored
+   */
+  private void restoreDataFile(DataFile dataFile) throws IOException {
+    String name = dataFile.file.getName();
+    File zipFile = checkpoint.dataFileZip(name);
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      ZipEntry entry = zip.getEntry(name);
+      if (entry == null) {
+        throw new IOException("Data file " + name + " is missing in checkpoint " + zipFile.getAbsolutePath());
+      }
+      replayDataFile(dataFile, zip.getInputStream(entry), true, " in data file " + name);
+    } finally {
+      zip.close();
+    }
+    dataFile.archiveFile.setIgnoreHeaderLines(1);
+    dataFile.recordsSkipped.addAndGet(checkpoint.getDataFileRecordsSkipped(name));
+    dwcaZip.copyEntries(zipFile, Collections.<String>emptySet());
+    addMessage(Level.INFO, "Data file for " + dataFile.extension.getTitle() + " restored from the last checkpoint");
+  }
+
+  /**
+   * Counts and validates the records of a data file, or of a segment, written before the generation got
+   * interrupted.
+   *
+   * @param dataFile data file the records were written to, whose record counts get updated
+   * @param in stream to read the records from, closed afterwards
+   * @param header true if the stream starts with the header line
+   * @param origin file the records are read from, as reported by validation
+   *
+   * @throws IOException if the records could not be read
+   */
+  private void replayDataFile(DataFile dataFile, InputStream in, boolean header, String origin) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, CHARACTER_ENCODING));
+    try {
+      if (header) {
+        reader.readLine();
+      }
+      int line = header ? 1 : 0;
+      String row;
+      while ((row = reader.readLine()) != null) {
+        replayRecord(dataFile, row, ++line, origin);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Counts and validates a single record of a data file, as it would have been while being written.
+   *
+   * @param dataFile data file the record was written to, whose record counts get updated
+   * @param row line of the record, without line break
+   * @param line line number of the record, in the file it is read from
+   * @param origin file the record is read from, as reported by validation
+   *
+   * @throws IOException if the record identifier could not be stored
+   */
+  private void replayRecord(DataFile dataFile, String row, int line, String origin) throws IOException {
+    // values were written trimmed and escaped, empty values being null
+    String[] record = row.split("\t", -1);
+    for (int i = 0; i < record.length; i++) {
+      if (record[i].isEmpty()) {
+        record[i] = null;
+      }
+    }
+    dataFile.records.incrementAndGet();
+    if (dataFile.validation != null) {
+      dataFile.validation.validate(record, line, origin);
+    }
+  }
+
+  /**
+   * Opens the core data file for an incremental update, if it gets written from a single incremental sql source
+   * whose watermark was recorded by the last published version, and that version was generated with the same
+   * configuration. Extension data files always get written from all rows, since the rows changed in an extension
+   * don't tell which of the other rows of the same core record are left.
+   *
+   * @param mappings mappings the data file gets written from
+   *
+   * @return data file to write with writeIncrementalDataFile, or null if it must be written from all rows
+   * @throws IOException if the data file could not be created
+   * @throws GeneratorException if the mapped terms could not be added to the archive file
    */
-  private void checkForInterruption(int line) throws InterruptedException {
-    if (Thread.interrupted()) {
-      StatusReport report = report();
-      String msg = "Interrupting dwca generator at line " + line + ". Last status: " + report.getState();
-      log.info(msg);
-      throw new InterruptedException(msg);
+  @Nullable
+  private DataFile openIncrementalDataFile(List<ExtensionMapping> mappings) throws IOException, GeneratorException {
+    ExtensionMapping mapping = mappings.get(0);
+    if (dryRunRowLimit != null || mappings.size() != 1 || !(mapping.getSource() instanceof SqlSource)
+        || !((SqlSource) mapping.getSource()).isIncremental() || resource.getCoreRowType() == null
+        || !resource.getCoreRowType().equalsIgnoreCase(mapping.getExtension().getRowType())) {
+      return null;
+    }
+    String sourceName = mapping.getSource().getName();
+    if (mapping.getIdColumn() == null || mapping.getIdColumn() < 0) {
+      addMessage(Level.WARN, "Records of source " + sourceName + " have no ID column to merge them by,"
+                             + " all its rows are read");
+      return null;
+    }
+    VersionHistory last = resource.getLastPublishedVersion();
+    String watermark = last == null ? null : last.getWatermarksBySource().get(sourceName);
+    if (watermark == null || !configurationFingerprint.equals(last.getConfigurationFingerprint())) {
+      addMessage(Level.INFO, "No version published with the current configuration to merge the rows changed into,"
+                             + " all rows of source " + sourceName + " are read");
+      return null;
+    }
+    File lastDwcaFile = dataDir.resourceDwcaFile(resource.getShortname(), new BigDecimal(last.getVersion()));
+    if (!lastDwcaFile.exists()) {
+      addMessage(Level.WARN, "Archive of version #" + last.getVersion() + " is missing, all rows of source "
+                             + sourceName + " are read");
+      return null;
+    }
+    DataFile dataFile = openDataFile(mappings);
+    ZipFile zip = new ZipFile(lastDwcaFile);
+    try {
+      if (zip.getEntry(dataFile.file.getName()) == null) {
+        addMessage(Level.WARN, "Data file " + dataFile.file.getName() + " is missing in the archive of version #"
+                               + last.getVersion() + ", all rows of source " + sourceName + " are read");
+        return dataFile;
+      }
+    } finally {
+      zip.close();
+    }
+    if (StringUtils.isBlank(((SqlSource) mapping.getSource()).getDeletedSql())) {
+      addMessage(Level.WARN, "Source " + sourceName + " has no query selecting the rows deleted, the records of rows"
+                             + " deleted since version #" + last.getVersion() + " are kept");
     }
+    dataFile.merge = new IncrementalMerge(last.getVersion(), lastDwcaFile, watermark);
+    return dataFile;
   }
 
-  @Override
-  protected boolean completed() {
-    return STATE.COMPLETED == this.state;
+  /**
+   * Writes a data file opened for an incremental update. The records of the rows changed since the watermark of the
+   * last published version are written to a segment file first, collecting their IDs together with the IDs of the
+   * rows deleted since. The data file then gets the records of the last published version whose IDs were not
+   * collected, followed by the segment.
+   *
+   * @param dataFile data file opened by openIncrementalDataFile
+   * @param mapping single mapping the data file gets written from
+   *
+   * @throws IOException if the data file could not be written
+   * @throws GeneratorException if the rows changed or deleted could not be read
+   * @throws InterruptedException if the thread was interrupted
+   */
+  private void writeIncrementalDataFile(DataFile dataFile, ExtensionMapping mapping)
+    throws IOException, GeneratorException, InterruptedException {
+    IncrementalMerge merge = dataFile.merge;
+    SqlSource source = (SqlSource) mapping.getSource();
+    if (merge != null) {
+      String idSuffix = StringUtils.trimToEmpty(mapping.getIdSuffix());
+      try {
+        for (String id : sourceManager.deletedIds(source, merge.watermark)) {
+          merge.replace(id + idSuffix);
+        }
+      } catch (SourceException e) {
+        throw new GeneratorException("Problem occurred while reading the rows deleted from " + source.getName(), e);
+      }
+    }
+    File segmentFile = new File(dwcaFolder, dataFile.file.getName() + SEGMENT_FILE_SUFFIX + 0);
+    Writer writer = org.gbif.utils.file.FileUtils.startNewUtf8File(segmentFile);
+    try {
+      dumpData(writer, getInputColumns(dataFile, mapping), mapping, dataFile, null, resource.getDoi(), null);
+    } finally {
+      writer.close();
+    }
+    int changed = dataFile.records.get();
+    int removed = 0;
+    OutputStream out = openDataFileStream(dataFile);
+    try {
+      Writer header = new OutputStreamWriter(out, CHARACTER_ENCODING);
+      writeHeaderLine(dataFile.propertyList, dataFile.totalColumns, dataFile.archiveFile, header);
+      header.flush();
+      if (merge != null) {
+        removed = copyUnchangedRecords(dataFile, merge, out);
+      }
+      Files.copy(segmentFile.toPath(), out);
+    } finally {
+      out.close();
+    }
+    FileUtils.deleteQuietly(segmentFile);
+    if (merge != null) {
+      addMessage(Level.INFO, changed + " records of rows changed in source " + source.getName() + " since "
+        + merge.watermark + " merged into the data file of version #" + merge.version + ", replacing or deleting "
+        + removed + " of its records");
+    }
   }
 
   /**
-   * Create data files.
-   * 
-   * @throws GeneratorException if the resource had no core file that was mapped
+   * Copies the records of the data file of the last published version whose IDs were not collected as changed or
+   * deleted, counting and validating them as they would have been while being written.
+   *
+   * @param dataFile data file written
+   * @param merge incremental update of the data file
+   * @param out stream the data file gets written to, left open
+   *
+   * @return number of records left out
+   * @throws IOException if the records could not be copied
    * @throws InterruptedException if the thread was interrupted
    */
-  private void createDataFiles() throws GeneratorException, InterruptedException {
-    checkForInterruption();
-    setState(STATE.DATAFILES);
-    if (!resource.hasCore() || resource.getCoreRowType() == null
-        || resource.getCoreMappings().get(0).getSource() == null) {
-      throw new GeneratorException("Core is not mapped");
-    }
-    for (Extension ext : resource.getMappedExtensions()) {
-      report();
-      try {
-        addDataFile(resource.getMappings(ext.getRowType()), null);
-      } catch (IOException e) {
-        throw new GeneratorException("Problem occurred while writing data file", e);
-      } catch (IllegalArgumentException e) {
-        throw new GeneratorException("Problem occurred while writing data file", e);
+  private int copyUnchangedRecords(DataFile dataFile, IncrementalMerge merge, OutputStream out)
+    throws IOException, InterruptedException {
+    ZipFile zip = new ZipFile(merge.lastDwcaFile);
+    try {
+      ZipEntry entry = zip.getEntry(dataFile.file.getName());
+      BufferedReader reader =
+        new BufferedReader(new InputStreamReader(zip.getInputStream(entry), CHARACTER_ENCODING));
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARACTER_ENCODING));
+      // skip the header line
+      reader.readLine();
+      String origin = " in the data file of version #" + merge.version;
+      int removed = 0;
+      int line = 1;
+      String row;
+      while ((row = reader.readLine()) != null) {
+        if (++line % 1000 == 0) {
+          checkForInterruption(line);
+        }
+        int tab = row.indexOf('\t');
+        if (merge.replacedIds.contains(tab < 0 ? row : row.substring(0, tab))) {
+          removed++;
+        } else {
+          writer.write(row);
+          writer.write('\n');
+          replayRecord(dataFile, row, line, origin);
+        }
       }
+      writer.flush();
+      return removed;
+    } finally {
+      zip.close();
     }
-    // final reporting
-    addMessage(Level.INFO, "All data files completed");
-    report();
   }
 
   /**
@@ -1042,7 +1862,9 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     checkForInterruption();
     setState(STATE.METADATA);
     try {
-      MetaDescriptorWriter.writeMetaFile(new File(dwcaFolder, "meta.xml"), archive);
+      File metaFile = new File(dwcaFolder, META_FILENAME);
+      MetaDescriptorWriter.writeMetaFile(metaFile, archive);
+      addZipEntry(metaFile, metaFile.getName());
     } catch (IOException e) {
       throw new GeneratorException("Meta.xml file could not be written", e);
     }
@@ -1067,7 +1889,7 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
       case STARTED:
         return "Starting archive generation";
       case DATAFILES:
-        return "Processing record " + currRecords + " for data file <em>" + currExtension + "</em>";
+        return currentDataFilesState();
       case METADATA:
         return "Creating metadata files";
       case BUNDLING:
@@ -1087,125 +1909,238 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     }
   }
 
+  /**
+   * @return progress of all data files currently being written, e.g. "Processing record 1000 for data file
+   * <em>Occurrence</em>, record 500 for data file <em>Multimedia</em>"
+   */
+  private String currentDataFilesState() {
+    List<DataFile> dataFiles = Lists.newArrayList(dataFilesInProgress);
+    if (dataFiles.isEmpty() && lastDataFile != null) {
+      dataFiles.add(lastDataFile);
+    }
+    if (dataFiles.isEmpty()) {
+      return "Processing data files";
+    }
+    StringBuilder sb = new StringBuilder("Processing ");
+    for (int i = 0; i < dataFiles.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append("record ").append(dataFiles.get(i).records.get()).append(" for data file <em>")
+        .append(dataFiles.get(i).extension.getTitle()).append("</em>");
+      ProgressMetrics.DataFileMetrics dataFileMetrics = dataFiles.get(i).metrics;
+      if (dataFileMetrics.getRowsRead() > 0) {
+        sb.append(" (").append(dataFileMetrics.getRowsPerSecond()).append(" rows/s");
+        long eta = dataFileMetrics.getEtaMillis();
+        if (eta != ProgressMetrics.UNKNOWN) {
+          sb.append(", about ").append(formatMillis(eta)).append(" left");
+        }
+        sb.append(")");
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return a duration rounded to seconds, minutes or hours, e.g. "42 s", "5 min" or "2.5 h"
+   */
+  private static String formatMillis(long millis) {
+    long seconds = millis / 1000;
+    if (seconds < 60) {
+      return seconds + " s";
+    } else if (seconds < 3600) {
+      return (seconds / 60) + " min";
+    }
+    return String.format(Locale.ENGLISH, "%.1f h", seconds / 3600.0);
+  }
+
+  /**
+   * Opens the iterator over the rows of a mapping's source. Checkpointed segments read sql sources in key order, after
+   * the key of the last checkpoint, and text files from the position of the row following the last checkpoint if it
+   * is known.
+   *
+   * @param mapping mapping
+   * @param dataFile data file written
+   * @param sourceColumns columns of the source read by the mapping
+   * @param segmentCheckpoint checkpoint of the segment written, null if no checkpoints are kept
+   *
+   * @return iterator over the rows of the source
+   * @throws SourceException if the source could not be read
+   */
+  private ClosableReportingIterator<String[]> rowIterator(ExtensionMapping mapping, DataFile dataFile,
+    Set<Integer> sourceColumns, @Nullable SegmentCheckpoint segmentCheckpoint) throws SourceException {
+    if (dataFile.merge != null) {
+      return sourceManager.rowIterator((SqlSource) mapping.getSource(), dataFile.merge.watermark);
+    } else if (segmentCheckpoint != null && segmentCheckpoint.keyColumn >= 0) {
+      return sourceManager.rowIterator((SqlSource) mapping.getSource(), segmentCheckpoint.keyColumn,
+        segmentCheckpoint.resumeKey);
+    } else if (segmentCheckpoint != null && segmentCheckpoint.isSeeking()) {
+      return sourceManager.rowIterator(mapping.getSource(), sourceColumns, segmentCheckpoint.resumeOffset);
+    }
+    return sourceManager.rowIterator(mapping.getSource(), sourceColumns);
+  }
+
   /**
    * Write data file for mapping.
    *
    * @param writer file writer for single data file
    * @param inCols index ordered list of all output columns apart from id column
    * @param mapping mapping
-   * @param dataFileRowSize number of columns in data file
-   * @param rowLimit maximum number of rows to write
+   * @param dataFile data file written, whose record counts get updated
+   * @param rowLimit maximum number of rows to write for the mapping
+   * @param segmentCheckpoint checkpoint of the segment written, null if no checkpoints are kept
    * @throws GeneratorException if there was an error writing data file for mapping.
    * @throws InterruptedException if the thread was interrupted
    */
-  private void dumpData(Writer writer, PropertyMapping[] inCols, ExtensionMapping mapping, int dataFileRowSize,
-    @Nullable Integer rowLimit, @Nullable DOI doi)
+  private void dumpData(Writer writer, PropertyMapping[] inCols, ExtensionMapping mapping, DataFile dataFile,
+    @Nullable Integer rowLimit, @Nullable DOI doi, @Nullable SegmentCheckpoint segmentCheckpoint)
     throws GeneratorException, InterruptedException {
-    final String idSuffix = StringUtils.trimToEmpty(mapping.getIdSuffix());
-    final RecordFilter filter = mapping.getFilter();
+    // decisions depending on the mapping configuration only are taken once, not for every row
+    final MappingPlan plan = MappingPlan.compile(inCols, mapping.isDoiUsedForDatasetId(), doi);
     // get maximum column index to check incoming rows for correctness
     int maxColumnIndex = mapping.getIdColumn() == null ? -1 : mapping.getIdColumn();
+    // only the columns read by the mapping need to be decoded from the source
+    Set<Integer> sourceColumns = new HashSet<Integer>();
+    if (mapping.getIdColumn() != null) {
+      sourceColumns.add(mapping.getIdColumn());
+    }
+    if (mapping.getFilter() != null && mapping.getFilter().getColumn() != null) {
+      sourceColumns.add(mapping.getFilter().getColumn());
+    }
     for (PropertyMapping pm : mapping.getFields()) {
       if (pm.getIndex() != null && maxColumnIndex < pm.getIndex()) {
         maxColumnIndex = pm.getIndex();
       }
+      if (pm.getIndex() != null) {
+        sourceColumns.add(pm.getIndex());
+      }
     }
 
+    // lines skipped are logged by category, only the first lines of each category being written to the publication log
+    String source = " in source " + mapping.getSource().getName();
+    String errorCategory = "Lines skipped due to errors" + source;
+    String emptyCategory = "Empty lines skipped" + source;
+    String wrongColumnsCategory = "Lines with fewer columns than mapped" + source;
+    String filteredCategory = "Lines not matching the filter criteria" + source;
+
     int recordsWithError = 0;
     int linesWithWrongColumnNumber = 0;
     int recordsFiltered = 0;
     int emptyLines = 0;
+    int recordsWritten = 0;
+    ProgressMetrics.MappingCounter counter = dataFile.metrics.newMappingCounter();
     ClosableReportingIterator<String[]> iter = null;
+    RowPipeline<SourceRow> pipeline = null;
+    // rows are written through a reusable buffer, flushed to the writer once all rows are written
+    TabRowWriter rowWriter = new TabRowWriter(writer);
     int line = 0;
+    // lines already processed before the last checkpoint get skipped, unless the source is read from the row after
+    // them, its rows being numbered from there
+    int resumeLine = segmentCheckpoint == null ? 0 : segmentCheckpoint.resumeLine;
+    int firstLine = segmentCheckpoint != null && segmentCheckpoint.isSeeking() ? resumeLine : 0;
+    int keyColumn = segmentCheckpoint == null ? -1 : segmentCheckpoint.keyColumn;
+    // key of the last row processed, if read in key order
+    String lastKey = null;
     try {
       // get the source iterator
-      iter = sourceManager.rowIterator(mapping.getSource());
-
-      while (iter.hasNext()) {
-        line++;
+      iter = rowIterator(mapping, dataFile, sourceColumns, segmentCheckpoint);
+
+      // rows are read ahead, and filtered and translated on other threads, coming back here in source order
+      final int totalColumns = dataFile.totalColumns;
+      pipeline = new RowPipeline<SourceRow>(new SourceRowReader(iter, firstLine, resumeLine, keyColumn),
+        new SourceRowTransformer(mapping, plan, maxColumnIndex), new Supplier<SourceRow>() {
+        public SourceRow get() {
+          return new SourceRow(totalColumns);
+        }
+      }, cfg.getMaxTransformThreads());
+
+      SourceRow row;
+      while ((row = pipeline.next()) != null) {
+        if (segmentCheckpoint != null && segmentCheckpoint.isDue(line) && segmentCheckpoint.canResumeAt(row, lastKey)) {
+          rowWriter.flush();
+          writer.flush();
+          segmentCheckpoint.save(line, row.offset, lastKey, recordsWithError + emptyLines, false);
+        }
+        line = row.line;
+        lastKey = row.key;
         if (line % 1000 == 0) {
           checkForInterruption(line);
+          counter.update(Math.max(0, line - resumeLine), recordsWritten,
+            recordsWithError + emptyLines + recordsFiltered, rowWriter.getBytesWritten());
           reportIfNeeded();
         }
-        String[] in = iter.next();
-        if (in == null || in.length == 0) {
+        if (row.status == RowStatus.SKIPPED) {
           continue;
         }
 
         // Exception on reading row was encountered, meaning record is incomplete and not written
-        if (iter.hasRowError()) {
-          writePublicationLogMessage("Error reading line #" + line + "\n" + iter.getErrorMessage());
+        if (row.status == RowStatus.ERROR) {
+          if (countPublicationLogEntry(errorCategory)) {
+            writePublicationLogEntry(errorCategory, "Error reading line #" + line + "\n" + row.errorMessage);
+          }
           recordsWithError++;
-          currRecordsSkipped++;
+          dataFile.recordsSkipped.incrementAndGet();
         }
         // empty line was encountered, meaning record only contains empty values and not written
-        else if (isEmptyLine(in)) {
-          writePublicationLogMessage("Empty line was skipped. SourceBase:"
-                                     + mapping.getSource().getName() + " Line #" + line + ": " + printLine(in));
+        else if (row.status == RowStatus.EMPTY) {
+          if (countPublicationLogEntry(emptyCategory)) {
+            writePublicationLogEntry(emptyCategory, "Empty line was skipped. SourceBase:"
+                                     + mapping.getSource().getName() + " Line #" + line + ": " + printLine(row.in));
+          }
           emptyLines++;
-          currRecordsSkipped++;
+          dataFile.recordsSkipped.incrementAndGet();
         } else {
 
-          if (in.length <= maxColumnIndex) {
-            writePublicationLogMessage("Line with fewer columns than mapped. SourceBase:"
-              + mapping.getSource().getName()
-              + " Line #" + line + " has " + in.length + " Columns: " + printLine(in));
-            // input row is smaller than the highest mapped column. Resize array by adding nulls
-            String[] in2 = new String[maxColumnIndex + 1];
-            System.arraycopy(in, 0, in2, 0, in.length);
-            in = in2;
+          if (row.sourceIn != null) {
+            if (countPublicationLogEntry(wrongColumnsCategory)) {
+              writePublicationLogEntry(wrongColumnsCategory, "Line with fewer columns than mapped. SourceBase:"
+                + mapping.getSource().getName()
+                + " Line #" + line + " has " + row.sourceIn.length + " Columns: " + printLine(row.sourceIn));
+            }
             linesWithWrongColumnNumber++;
           }
 
-          String[] record = new String[dataFileRowSize];
-
-          // filter this record?
-          boolean alreadyTranslated = false;
-          if (filter != null && filter.getColumn() != null && filter.getComparator() != null
-            && filter.getParam() != null) {
-            boolean matchesFilter;
-            if (filter.getFilterTime() == RecordFilter.FilterTime.AfterTranslation) {
-              applyTranslations(inCols, in, record, mapping.isDoiUsedForDatasetId(), doi);
-              matchesFilter = filter.matches(in);
-              alreadyTranslated = true;
-            } else {
-              matchesFilter = filter.matches(in);
-            }
-            if (!matchesFilter) {
-              writePublicationLogMessage("Line did not match the filter criteria and was skipped. SourceBase:"
-                + mapping.getSource().getName() + " Line #" + line + ": " + printLine(in));
-              recordsFiltered++;
-              continue;
-            }
+          // records with the same ID get replaced, even if the row changed doesn't match the filter anymore
+          if (dataFile.merge != null) {
+            dataFile.merge.replace(row.record[ID_COLUMN_INDEX]);
           }
 
-          // add id column - either an existing column or the line number
-          if (mapping.getIdColumn() == null) {
-            record[ID_COLUMN_INDEX] = null;
-          } else if (mapping.getIdColumn().equals(ExtensionMapping.IDGEN_LINE_NUMBER)) {
-            record[ID_COLUMN_INDEX] = line + idSuffix;
-          } else if (mapping.getIdColumn().equals(ExtensionMapping.IDGEN_UUID)) {
-            record[ID_COLUMN_INDEX] = UUID.randomUUID().toString();
-          } else if (mapping.getIdColumn() >= 0) {
-            record[ID_COLUMN_INDEX] = (Strings.isNullOrEmpty(in[mapping.getIdColumn()])) ? idSuffix
-              : in[mapping.getIdColumn()] + idSuffix;
+          if (row.status == RowStatus.FILTERED) {
+            if (countPublicationLogEntry(filteredCategory)) {
+              writePublicationLogEntry(filteredCategory,
+                "Line did not match the filter criteria and was skipped. SourceBase:"
+                + mapping.getSource().getName() + " Line #" + line + ": " + printLine(row.in));
+            }
+            recordsFiltered++;
+            continue;
           }
 
-          // go through all archive fields
-          if (!alreadyTranslated) {
-            applyTranslations(inCols, in, record, mapping.isDoiUsedForDatasetId(), doi);
-          }
-          String newRow = tabRow(record);
-          if (newRow != null) {
-            writer.write(newRow);
-            currRecords++;
+          if (rowWriter.write(row.record)) {
+            dataFile.records.incrementAndGet();
+            recordsWritten++;
+            // validate the record as written, e.g. its ID and basisOfRecord, reporting the line it was read from since
+            // the records of several mappings may be written at the same time
+            if (dataFile.validation != null) {
+              dataFile.validation.validate(row.record, line, source);
+            }
             // don't exceed row limit (e.g. only want to write X number of rows used to preview first X rows of file)
-            if (rowLimit != null && currRecords >= rowLimit) {
+            if (rowLimit != null && recordsWritten >= rowLimit) {
               break;
             }
           }
         }
       }
+      rowWriter.flush();
+      counter.update(Math.max(0, line - resumeLine), recordsWritten, recordsWithError + emptyLines + recordsFiltered,
+        rowWriter.getBytesWritten());
+      if (segmentCheckpoint != null) {
+        // a source that stopped early, e.g. losing its database connection, is resumed rather than completed
+        if (iter.getException() instanceof IOException || (!iter.hasRowError() && iter.getException() != null)) {
+          throw new IOException("Source stopped early: " + iter.getErrorMessage(), iter.getException());
+        }
+        writer.flush();
+        segmentCheckpoint.save(line, -1, lastKey, recordsWithError + emptyLines, true);
+      }
     } catch (InterruptedException e) {
       // set last error report!
       setState(e);
@@ -1218,6 +2153,14 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
       throw new GeneratorException("Error writing data file for mapping " + mapping.getExtension().getTitle()
         + " in source " + mapping.getSource().getName() + ", line " + line, e);
     } finally {
+      if (pipeline != null) {
+        // the source must not be read anymore once closed
+        try {
+          pipeline.close();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
       if (iter != null) {
         // Exception on advancing cursor encountered?
         if (!iter.hasRowError() && iter.getErrorMessage() != null) {
@@ -1269,9 +2212,14 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    * 
    * @param e exception
    */
-  private void setState(Exception e) {
+  private synchronized void setState(Exception e) {
+    // when data files are written in parallel, a failure cancels the remaining segments: keep reporting the failure
+    if (state == STATE.FAILED && e instanceof InterruptedException) {
+      return;
+    }
     exception = e;
     state = (exception instanceof InterruptedException) ? STATE.CANCELLED : STATE.FAILED;
+    metrics.completed();
     report();
   }
 
@@ -1282,9 +2230,19 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    */
   private void setState(STATE s) {
     state = s;
+    if (s == STATE.COMPLETED) {
+      metrics.completed();
+    } else {
+      metrics.startStage(s.name());
+    }
     report();
   }
 
+  @Override
+  protected ProgressMetrics currentMetrics() {
+    return metrics;
+  }
+
   /**
    * Generates a single tab delimited row from the list of values of the provided array.
    * </br>
@@ -1298,60 +2256,18 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    */
   @VisibleForTesting
   protected String tabRow(String[] columns) {
-    Preconditions.checkNotNull(columns);
-    boolean empty = true;
-    for (int i = 0; i < columns.length; i++) {
-      if (columns[i] != null) {
-        empty = false;
-        columns[i] = StringUtils.trimToNull(escapeChars.matcher(columns[i]).replaceAll(" "));
-      }
-    }
-    if (empty) {
-      return null;
-    }
-    return StringUtils.join(columns, '\t') + "\n";
-  }
-
-  /**
-   * Apply translations or default values to row, for all mapped properties.
-   * </br>
-   * The method starts by iterating through all mapped properties, checking each one if it has been translated or a
-   * default value provided. The original value in the row is then replaced with the translated or default value.
-   * A record array representing the values to be written to the data file is also updated.
-   *
-   * @param inCols values array, of columns in row that have been mapped
-   * @param in values array, of all columns in row
-   * @param doiUsedForDatasetId true if mapping should use resource DOI as datasetID, false otherwise
-   * @param doi DOI assigned to resource
-   */
-  private void applyTranslations(PropertyMapping[] inCols, String[] in, String[] record, boolean doiUsedForDatasetId,
-    DOI doi) {
-    for (int i = 1; i < inCols.length; i++) {
-      PropertyMapping pm = inCols[i];
-      String val = null;
-      if (pm != null) {
-        if (pm.getIndex() != null) {
-          val = in[pm.getIndex()];
-          // translate value?
-          if (pm.getTranslation() != null && pm.getTranslation().containsKey(val)) {
-            val = pm.getTranslation().get(val);
-            // update value in original record
-            in[pm.getIndex()] = val;
-          }
-        }
-        // use default value for null values
-        if (val == null) {
-          val = pm.getDefaultValue();
-        }
-        // use DOI for datasetID property?
-        if (pm.getTerm().qualifiedName().equalsIgnoreCase(Constants.DWC_DATASET_ID) && doiUsedForDatasetId
-            && doi != null) {
-          val = doi.toString();
-        }
+    StringWriter sw = new StringWriter();
+    TabRowWriter rowWriter = new TabRowWriter(sw);
+    try {
+      if (!rowWriter.write(columns)) {
+        return null;
       }
-      // add value to data file record
-      record[i] = val;
+      rowWriter.flush();
+    } catch (IOException e) {
+      // cannot happen writing to a StringWriter
+      throw new IllegalStateException(e);
     }
+    return sw.toString();
   }
 
   /**
@@ -1527,17 +2443,36 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
    * @return name of file for DwC-A file to be written
    */
   protected String createFileName(File dwcaFolder, String extensionName) {
+    List<String> fileNames = Lists.newArrayList();
+    for (File file : dwcaFolder.listFiles()) {
+      fileNames.add(file.getName());
+    }
+    return createFileName(fileNames, extensionName);
+  }
+
+  /**
+   * Same as createFileName(File, String), checking competing file names against the names of the files already
+   * written to the DwC-A zip file.
+   *
+   * @param existingFileNames names of the files already written
+   * @param extensionName name of extension writing file for
+   *
+   * @return name of file for DwC-A file to be written
+   */
+  private String createFileName(Collection<String> existingFileNames, String extensionName) {
     String wildcard = extensionName + WILDCARD_CHARACTER + TEXT_FILE_EXTENSION;
-    FileFilter fileFilter = new WildcardFileFilter(wildcard, IOCase.INSENSITIVE);
-    File[] files = dwcaFolder.listFiles(fileFilter);
-    if (files.length > 0) {
+    List<String> fileNames = Lists.newArrayList();
+    for (String fileName : existingFileNames) {
+      if (FilenameUtils.wildcardMatch(fileName, wildcard, IOCase.INSENSITIVE)) {
+        fileNames.add(fileName);
+      }
+    }
+    if (!fileNames.isEmpty()) {
       int max = 1;
-      String fileName = null;
-      for (File file: files) {
+      for (String fileName : fileNames) {
         try {
-          fileName = file.getName();
           int suffixEndIndex = fileName.indexOf(TEXT_FILE_EXTENSION);
-          String suffix = file.getName().substring(extensionName.length(), suffixEndIndex);
+          String suffix = fileName.substring(extensionName.length(), suffixEndIndex);
           int suffixInt = Integer.valueOf(suffix);
           if (suffixInt >= max) {
             max = suffixInt;
@@ -1581,4 +2516,460 @@ public class GenerateDwca extends ReportingTask implements Callable<Map<String,
     String joined = Joiner.on("").useForNull("").join(line);
     return StringUtils.isBlank(joined);
   }
+
+  /**
+   * Outcome of transforming a source row.
+   */
+  private enum RowStatus {
+    // null row, or row already processed before the last checkpoint
+    SKIPPED,
+    // row that could not be read completely
+    ERROR,
+    // row holding empty values only
+    EMPTY,
+    // row not matching the mapping's filter
+    FILTERED,
+    // row transformed into a data file record
+    RECORD
+  }
+
+  /**
+   * Reusable slot holding a source row, read and transformed into a data file record.
+   */
+  private static class SourceRow {
+
+    private int line;
+    private String[] in;
+    // position in the source file of the row, -1 if unknown
+    private long offset;
+    // value of the key column the source is read in order of, if any
+    private String key;
+    private String errorMessage;
+    private RowStatus status;
+    // the row as read, if it has fewer columns than mapped
+    private String[] sourceIn;
+    private final String[] record;
+
+    private SourceRow(int totalColumns) {
+      this.record = new String[totalColumns];
+    }
+  }
+
+  /**
+   * Reads the rows of a mapping's source, numbering them by line, and keeping where each row can be resumed from.
+   */
+  private static class SourceRowReader implements RowPipeline.Reader<SourceRow> {
+
+    private final ClosableReportingIterator<String[]> iter;
+    private final PositionedRowIterator positioned;
+    private final int resumeLine;
+    private final int keyColumn;
+    private int line;
+
+    /**
+     * @param iter iterator over the rows of the source
+     * @param firstLine number of lines before the first row read
+     * @param resumeLine number of lines processed before the last checkpoint, skipped
+     * @param keyColumn index of the key column the source is read in order of, -1 if none
+     */
+    private SourceRowReader(ClosableReportingIterator<String[]> iter, int firstLine, int resumeLine, int keyColumn) {
+      this.iter = iter;
+      this.positioned = iter instanceof PositionedRowIterator ? (PositionedRowIterator) iter : null;
+      this.line = firstLine;
+      this.resumeLine = resumeLine;
+      this.keyColumn = keyColumn;
+    }
+
+    public boolean read(SourceRow row) {
+      if (!iter.hasNext()) {
+        return false;
+      }
+      row.line = ++line;
+      row.in = iter.next();
+      row.offset = positioned == null ? -1 : positioned.getRowStart();
+      row.key = keyColumn >= 0 && row.in != null && keyColumn < row.in.length ? row.in[keyColumn] : null;
+      row.errorMessage = null;
+      row.sourceIn = null;
+      if (row.in == null || row.in.length == 0 || row.line <= resumeLine) {
+        row.status = RowStatus.SKIPPED;
+      } else if (iter.hasRowError()) {
+        row.status = RowStatus.ERROR;
+        row.errorMessage = iter.getErrorMessage();
+      } else {
+        row.status = null;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Transforms the rows of a mapping's source into data file records: rows get filtered and translated, and the id
+   * column is filled in. Rows may be transformed concurrently.
+   */
+  private class SourceRowTransformer implements RowPipeline.Transformer<SourceRow> {
+
+    private final ExtensionMapping mapping;
+    private final String idSuffix;
+    private final RecordFilter filter;
+    private final MappingPlan plan;
+    private final int maxColumnIndex;
+
+    private SourceRowTransformer(ExtensionMapping mapping, MappingPlan plan, int maxColumnIndex) {
+      this.mapping = mapping;
+      this.idSuffix = StringUtils.trimToEmpty(mapping.getIdSuffix());
+      RecordFilter filter = mapping.getFilter();
+      this.filter = filter != null && filter.getColumn() != null && filter.getComparator() != null
+                    && filter.getParam() != null ? filter : null;
+      this.plan = plan;
+      this.maxColumnIndex = maxColumnIndex;
+    }
+
+    public void transform(SourceRow row) {
+      if (row.status != null) {
+        return;
+      }
+      String[] in = row.in;
+      if (isEmptyLine(in)) {
+        row.status = RowStatus.EMPTY;
+        return;
+      }
+      if (in.length <= maxColumnIndex) {
+        // input row is smaller than the highest mapped column. Resize array by adding nulls
+        row.sourceIn = in;
+        String[] in2 = new String[maxColumnIndex + 1];
+        System.arraycopy(in, 0, in2, 0, in.length);
+        in = in2;
+        row.in = in2;
+      }
+
+      String[] record = row.record;
+
+      // add id column - either an existing column or the line number. The slot is reused, so it is always set,
+      // even for rows filtered out, e.g. to replace their record in an incremental update
+      Integer idColumn = mapping.getIdColumn();
+      record[ID_COLUMN_INDEX] = null;
+      if (ExtensionMapping.IDGEN_LINE_NUMBER.equals(idColumn)) {
+        record[ID_COLUMN_INDEX] = row.line + idSuffix;
+      } else if (ExtensionMapping.IDGEN_UUID.equals(idColumn)) {
+        record[ID_COLUMN_INDEX] = UUID.randomUUID().toString();
+      } else if (idColumn != null && idColumn >= 0) {
+        record[ID_COLUMN_INDEX] = (Strings.isNullOrEmpty(in[idColumn])) ? idSuffix : in[idColumn] + idSuffix;
+      }
+
+      // filter this record?
+      boolean alreadyTranslated = false;
+      if (filter != null) {
+        boolean matchesFilter;
+        if (filter.getFilterTime() == RecordFilter.FilterTime.AfterTranslation) {
+          plan.apply(in, record);
+          matchesFilter = filter.matches(in);
+          alreadyTranslated = true;
+        } else {
+          matchesFilter = filter.matches(in);
+        }
+        if (!matchesFilter) {
+          row.status = RowStatus.FILTERED;
+          return;
+        }
+      }
+
+      // go through all archive fields
+      if (!alreadyTranslated) {
+        plan.apply(in, record);
+      }
+      row.status = RowStatus.RECORD;
+    }
+  }
+
+  /**
+   * A single data file written for all mappings to the same extension, and its progress.
+   */
+  private static class DataFile {
+
+    private final Extension extension;
+    private final ArchiveFile archiveFile;
+    private final List<ExtensionProperty> propertyList;
+    // total column count is equal to id column + mapped columns
+    private final int totalColumns;
+    private final File file;
+    // validation carried out while writing the data file, null if it isn't validated
+    private final DataFileValidation validation;
+    // record counts, shared by all mappings written concurrently to the data file
+    private final AtomicInteger records = new AtomicInteger(0);
+    private final AtomicInteger recordsSkipped = new AtomicInteger(0);
+    private final ProgressMetrics.DataFileMetrics metrics;
+    // incremental update of the data file of the last published version, null if written from all rows
+    private IncrementalMerge merge;
+
+    private DataFile(Extension extension, ArchiveFile archiveFile, List<ExtensionProperty> propertyList, File file,
+      @Nullable DataFileValidation validation, ProgressMetrics.DataFileMetrics metrics) {
+      this.extension = extension;
+      this.archiveFile = archiveFile;
+      this.propertyList = propertyList;
+      this.totalColumns = 1 + propertyList.size();
+      this.file = file;
+      this.validation = validation;
+      this.metrics = metrics;
+    }
+  }
+
+  /**
+   * Incremental update of the data file of the last published version: only the rows changed since its watermark get
+   * read, their records replacing the records with the same ID, and the records of the rows deleted since get removed.
+   */
+  private static class IncrementalMerge {
+
+    private final String version;
+    private final File lastDwcaFile;
+    private final String watermark;
+    // IDs of the records replaced or deleted, as written to the data file
+    private final Set<String> replacedIds = new HashSet<String>();
+
+    private IncrementalMerge(String version, File lastDwcaFile, String watermark) {
+      this.version = version;
+      this.lastDwcaFile = lastDwcaFile;
+      this.watermark = watermark;
+    }
+
+    /**
+     * @param id ID of a record replaced or deleted, as read
+     */
+    private void replace(@Nullable String id) {
+      String cleaned = TabRowWriter.clean(id);
+      if (cleaned != null) {
+        replacedIds.add(cleaned);
+      }
+    }
+  }
+
+  /**
+   * Statistics of a data file validation, collected while records are written to the data file so that validating
+   * the archive doesn't need to read and parse every data file again. Records may be validated concurrently when
+   * data files are written in parallel.
+   */
+  private class DataFileValidation {
+
+    private final ArchiveFile archiveFile;
+    private final boolean core;
+    // validates the identifier that must be unique: the core ID, or the occurrenceID in occurrence extensions
+    private final IdentifierValidator idValidator;
+    private final int idIndex;
+    private final int basisOfRecordIndex;
+    // metrics
+    private final AtomicInteger recordsWithNoId = new AtomicInteger(0);
+    private final AtomicInteger recordsWithNoBasisOfRecord = new AtomicInteger(0);
+    private final AtomicInteger recordsWithNonMatchingBasisOfRecord = new AtomicInteger(0);
+    private final AtomicInteger recordsWithAmbiguousBasisOfRecord = new AtomicInteger(0);
+
+    private DataFileValidation(ArchiveFile archiveFile, boolean core, @Nullable IdentifierValidator idValidator,
+      int idIndex, int basisOfRecordIndex) {
+      this.archiveFile = archiveFile;
+      this.core = core;
+      this.idValidator = idValidator;
+      this.idIndex = idIndex;
+      this.basisOfRecordIndex = basisOfRecordIndex;
+    }
+
+    /**
+     * Validates a record, as written to the data file.
+     *
+     * @param record record values, trimmed and escaped
+     * @param line line number, in the file the record was read from
+     * @param origin file the record was read from, e.g. " in source occurrences"
+     *
+     * @throws IOException if the record identifier could not be stored
+     */
+    private void validate(String[] record, int line, String origin) throws IOException {
+      // check extension record id exists, required to link the extension record to its core record
+      if (!core && Strings.isNullOrEmpty(record[ID_COLUMN_INDEX])) {
+        recordsWithNoId.getAndIncrement();
+      }
+      // index the core ID, or check the extension record references an existing core record
+      if (coreIdIndex != null) {
+        if (core) {
+          coreIdIndex.addCoreId(record[ID_COLUMN_INDEX]);
+        } else {
+          coreIdIndex.validate(archiveFile.getLocation(), record[ID_COLUMN_INDEX]);
+        }
+      }
+      if (idValidator != null) {
+        synchronized (idValidator) {
+          idValidator.validate(record[idIndex]);
+        }
+      }
+      if (basisOfRecordIndex >= 0) {
+        validateBasisOfRecord(record[basisOfRecordIndex], line, origin, recordsWithNoBasisOfRecord,
+          recordsWithNonMatchingBasisOfRecord, recordsWithAmbiguousBasisOfRecord);
+      }
+    }
+
+    private void close() {
+      if (idValidator != null) {
+        idValidator.close();
+      }
+    }
+  }
+
+  /**
+   * Writes the records of a single mapping to a segment file, which is later appended to its data file.
+   */
+  private class SegmentWriter implements Callable<File> {
+
+    private final DataFile dataFile;
+    private final ExtensionMapping mapping;
+    private final int index;
+
+    private SegmentWriter(DataFile dataFile, ExtensionMapping mapping, int index) {
+      this.dataFile = dataFile;
+      this.mapping = mapping;
+      this.index = index;
+    }
+
+    public File call() throws Exception {
+      if (checkpoint != null) {
+        // sql sources without key column can't be resumed, and are always written again
+        int keyColumn = keyColumn(mapping);
+        if (keyColumn >= 0 || !(mapping.getSource() instanceof SqlSource)) {
+          return resume(keyColumn);
+        }
+      }
+      File segmentFile = new File(dwcaFolder, dataFile.file.getName() + SEGMENT_FILE_SUFFIX + index);
+      Writer writer = org.gbif.utils.file.FileUtils.startNewUtf8File(segmentFile);
+      try {
+        dumpData(writer, getInputColumns(dataFile, mapping), mapping, dataFile, dryRunRowLimit, resource.getDoi(),
+          null);
+      } finally {
+        writer.close();
+      }
+      return segmentFile;
+    }
+
+    /**
+     * Writes the segment in the checkpoint, resuming from its last checkpoint if any: anything written after the
+     * last checkpoint is discarded, and the records written before it are counted and validated again.
+     *
+     * @param keyColumn index of the key column a sql source is read in order of, -1 for files
+     */
+    private File resume(int keyColumn) throws Exception {
+      String name = dataFile.file.getName();
+      File segmentFile = checkpoint.segmentFile(name, index);
+      GenerationCheckpoint.SegmentProgress progress = checkpoint.getSegmentProgress(name, index);
+      if (segmentFile.length() < progress.getBytes()) {
+        log.warn("Segment file " + segmentFile.getAbsolutePath() + " is shorter than checkpointed, writing it again");
+        progress = new GenerationCheckpoint.SegmentProgress(0, 0, 0, false);
+      }
+      RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+      try {
+        raf.setLength(progress.getBytes());
+      } finally {
+        raf.close();
+      }
+      if (progress.getBytes() > 0) {
+        replayDataFile(dataFile, new FileInputStream(segmentFile), false,
+          " in segment " + index + " of data file " + name);
+      }
+      dataFile.recordsSkipped.addAndGet(progress.getRecordsSkipped());
+      if (progress.isCompleted()) {
+        return segmentFile;
+      }
+      FileOutputStream out = new FileOutputStream(segmentFile, true);
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARACTER_ENCODING));
+      try {
+        dumpData(writer, getInputColumns(dataFile, mapping), mapping, dataFile, null, resource.getDoi(),
+          new SegmentCheckpoint(name, index, out, progress, keyColumn));
+      } finally {
+        writer.close();
+      }
+      return segmentFile;
+    }
+  }
+
+  /**
+   * Takes the checkpoints of a single segment being written, every so many source lines.
+   * </br>
+   * Reading the source is resumed from the row following the last checkpoint: a sql source is read in key order, from
+   * the rows after the key of the last row processed, and a text file read memory-mapped from the position of the
+   * next row. Other sources are read again from their first row, skipping the lines processed before.
+   */
+  private class SegmentCheckpoint {
+
+    private final String dataFileName;
+    private final int index;
+    private final FileOutputStream out;
+    private final int interval;
+    // number of source lines processed, and of records skipped, up to the checkpoint resumed from
+    private final int resumeLine;
+    private final int resumedRecordsSkipped;
+    // where reading the source resumes: the position of the next row in a text file, or the key of the last row
+    private final long resumeOffset;
+    private final String resumeKey;
+    // index of the key column a sql source is read in order of, -1 for files
+    private final int keyColumn;
+    // number of source lines processed at the last checkpoint saved
+    private int savedLine;
+
+    private SegmentCheckpoint(String dataFileName, int index, FileOutputStream out,
+      GenerationCheckpoint.SegmentProgress progress, int keyColumn) {
+      this.dataFileName = dataFileName;
+      this.index = index;
+      this.out = out;
+      this.interval = cfg.getCheckpointInterval();
+      this.resumeLine = progress.getLines();
+      this.resumedRecordsSkipped = progress.getRecordsSkipped();
+      this.resumeOffset = progress.getOffset();
+      this.resumeKey = progress.getKey();
+      this.keyColumn = keyColumn;
+      this.savedLine = resumeLine;
+    }
+
+    /**
+     * @return true if the source is read from the row following the last checkpoint, rather than from its first row
+     */
+    private boolean isSeeking() {
+      return keyColumn >= 0 ? resumeKey != null : resumeOffset >= 0;
+    }
+
+    /**
+     * @param line number of source lines processed
+     *
+     * @return true if a checkpoint is due
+     */
+    private boolean isDue(int line) {
+      return line >= savedLine + interval;
+    }
+
+    /**
+     * Tells whether reading the source can be resumed from a row, i.e. whether a checkpoint can be taken just before
+     * it. A sql source is resumed after the key of the last row processed, so rows sharing a key must not be split,
+     * keys being compared ignoring case like many databases do.
+     *
+     * @param row next row
+     * @param lastKey key of the last row processed
+     *
+     * @return true if a checkpoint can be taken before the row
+     */
+    private boolean canResumeAt(SourceRow row, @Nullable String lastKey) {
+      return keyColumn < 0 || lastKey != null && !lastKey.equalsIgnoreCase(row.key);
+    }
+
+    /**
+     * Saves a checkpoint, once everything written to the segment file so far has been flushed to disk.
+     *
+     * @param line number of source lines processed
+     * @param offset position in the source file of the next row, -1 if unknown
+     * @param lastKey key of the last row processed, if read in key order
+     * @param recordsSkipped number of records skipped since the checkpoint resumed from
+     * @param completed true if all source lines were processed
+     *
+     * @throws IOException if the checkpoint could not be saved
+     */
+    private void save(int line, long offset, @Nullable String lastKey, int recordsSkipped, boolean completed)
+      throws IOException {
+      out.getFD().sync();
+      checkpoint.saveSegmentProgress(dataFileName, index, new GenerationCheckpoint.SegmentProgress(
+        Math.max(line, resumeLine), out.getChannel().position(), resumedRecordsSkipped + recordsSkipped, completed,
+        offset, keyColumn < 0 ? null : lastKey));
+      savedLine = line;
+    }
+  }
 }
@@ -5,4 +5,16 @@ import org.gbif.ipt.model.Resource;
 public interface GenerateDwcaFactory {
 
   GenerateDwca create(Resource resource, ReportHandler handler);
+
+  /**
+   * Creates a worker for a dry run of the DwC-A generation, or a preview of a data file, writing each mapping up to a
+   * row limit. It never touches the publication log.
+   *
+   * @param resource resource
+   * @param handler ReportHandler
+   * @param rowLimit maximum number of records written for each mapping
+   *
+   * @return worker
+   */
+  GenerateDwca createDryRun(Resource resource, ReportHandler handler, int rowLimit);
 }
@@ -0,0 +1,287 @@
+package org.gbif.ipt.task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Checkpoint of a DwC-A generation, from which the generation can be resumed after it got interrupted, e.g. by a
+ * restart or a lost database connection.
+ * </br>
+ * The checkpoint lives in its own directory, holding the segment files written for each mapping, the data files
+ * completed (compressed, ready to be copied into the archive) and a properties file recording the progress made:
+ * the data files completed, and for each segment the number of source lines processed, the number of bytes written
+ * and the number of records skipped up to the last checkpoint, along with where to resume reading the source: the
+ * position in the file of the next row of a text file, or the key of the last row of a sql source read in key order.
+ * The progress file is replaced atomically, and only after the files it refers to have been flushed to disk.
+ * </br>
+ * A checkpoint is only valid for the configuration fingerprint it was created with: opening it with another
+ * fingerprint discards it.
+ */
+public class GenerationCheckpoint {
+
+  private static final Logger LOG = Logger.getLogger(GenerationCheckpoint.class);
+  private static final String PROGRESS_FILENAME = "checkpoint.properties";
+  private static final String FINGERPRINT = "fingerprint";
+  private static final String DATA_FILE_PREFIX = "datafile.";
+  private static final String SEGMENT_PREFIX = "segment.";
+  private static final String SEGMENT_FILE_SUFFIX = ".segment";
+  private static final String DATA_FILE_ZIP_SUFFIX = ".zip";
+
+  private final File dir;
+  private final Properties progress;
+  private final boolean resumed;
+
+  private GenerationCheckpoint(File dir, Properties progress, boolean resumed) {
+    this.dir = dir;
+    this.progress = progress;
+    this.resumed = resumed;
+  }
+
+  /**
+   * Opens the checkpoint kept in a directory, or starts a new one if there is no checkpoint for the fingerprint.
+   *
+   * @param dir checkpoint directory
+   * @param fingerprint fingerprint of the configuration the archive is generated with
+   *
+   * @return checkpoint
+   *
+   * @throws IOException if the checkpoint directory could not be read or created
+   */
+  public static GenerationCheckpoint open(File dir, String fingerprint) throws IOException {
+    File progressFile = new File(dir, PROGRESS_FILENAME);
+    if (progressFile.exists()) {
+      Properties progress = new Properties();
+      InputStream in = new FileInputStream(progressFile);
+      try {
+        progress.load(in);
+      } finally {
+        in.close();
+      }
+      if (fingerprint.equals(progress.getProperty(FINGERPRINT))) {
+        return new GenerationCheckpoint(dir, progress, true);
+      }
+      LOG.info("Discarding checkpoint made with another configuration: " + dir.getAbsolutePath());
+    }
+    // start over from an empty directory
+    FileUtils.deleteQuietly(dir);
+    FileUtils.forceMkdir(dir);
+    Properties progress = new Properties();
+    progress.setProperty(FINGERPRINT, fingerprint);
+    GenerationCheckpoint checkpoint = new GenerationCheckpoint(dir, progress, false);
+    checkpoint.save();
+    return checkpoint;
+  }
+
+  /**
+   * @return true if the checkpoint existed already, i.e. an interrupted generation gets resumed
+   */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  /**
+   * @param dataFileName name of the data file
+   *
+   * @return file the completed data file is kept in, a zip file with a single entry named after the data file
+   */
+  public File dataFileZip(String dataFileName) {
+    return new File(dir, dataFileName + DATA_FILE_ZIP_SUFFIX);
+  }
+
+  /**
+   * @param dataFileName name of the data file
+   *
+   * @return true if the data file was completed
+   */
+  public synchronized boolean isDataFileCompleted(String dataFileName) {
+    return progress.containsKey(DATA_FILE_PREFIX + dataFileName + ".skipped") && dataFileZip(dataFileName).exists();
+  }
+
+  /**
+   * @param dataFileName name of a completed data file
+   *
+   * @return number of records skipped writing the data file
+   */
+  public synchronized int getDataFileRecordsSkipped(String dataFileName) {
+    return Integer.parseInt(progress.getProperty(DATA_FILE_PREFIX + dataFileName + ".skipped", "0"));
+  }
+
+  /**
+   * Records a data file as completed, its segments being discarded.
+   *
+   * @param dataFileName name of the data file, whose zip file must have been written
+   * @param segments number of segments the data file was written in
+   * @param recordsSkipped number of records skipped writing the data file
+   *
+   * @throws IOException if the checkpoint could not be saved
+   */
+  public synchronized void dataFileCompleted(String dataFileName, int segments, int recordsSkipped)
+    throws IOException {
+    progress.setProperty(DATA_FILE_PREFIX + dataFileName + ".skipped", String.valueOf(recordsSkipped));
+    for (int i = 0; i < segments; i++) {
+      progress.remove(segmentKey(dataFileName, i, "lines"));
+      progress.remove(segmentKey(dataFileName, i, "bytes"));
+      progress.remove(segmentKey(dataFileName, i, "skipped"));
+      progress.remove(segmentKey(dataFileName, i, "completed"));
+      progress.remove(segmentKey(dataFileName, i, "offset"));
+      progress.remove(segmentKey(dataFileName, i, "key"));
+    }
+    save();
+    for (int i = 0; i < segments; i++) {
+      FileUtils.deleteQuietly(segmentFile(dataFileName, i));
+    }
+  }
+
+  /**
+   * @param dataFileName name of the data file
+   * @param index index of the mapping the segment is written for
+   *
+   * @return file the segment is written to
+   */
+  public File segmentFile(String dataFileName, int index) {
+    return new File(dir, dataFileName + SEGMENT_FILE_SUFFIX + index);
+  }
+
+  /**
+   * @param dataFileName name of the data file
+   * @param index index of the mapping the segment is written for
+   *
+   * @return progress of the segment at its last checkpoint, nothing written if the segment has no checkpoint
+   */
+  public synchronized SegmentProgress getSegmentProgress(String dataFileName, int index) {
+    return new SegmentProgress(
+      Integer.parseInt(progress.getProperty(segmentKey(dataFileName, index, "lines"), "0")),
+      Long.parseLong(progress.getProperty(segmentKey(dataFileName, index, "bytes"), "0")),
+      Integer.parseInt(progress.getProperty(segmentKey(dataFileName, index, "skipped"), "0")),
+      Boolean.parseBoolean(progress.getProperty(segmentKey(dataFileName, index, "completed"), "false")),
+      Long.parseLong(progress.getProperty(segmentKey(dataFileName, index, "offset"), "-1")),
+      progress.getProperty(segmentKey(dataFileName, index, "key")));
+  }
+
+  /**
+   * Saves the progress of a segment. The segment file must have been flushed up to the number of bytes given.
+   *
+   * @param dataFileName name of the data file
+   * @param index index of the mapping the segment is written for
+   * @param segmentProgress progress of the segment
+   *
+   * @throws IOException if the checkpoint could not be saved
+   */
+  public synchronized void saveSegmentProgress(String dataFileName, int index, SegmentProgress segmentProgress)
+    throws IOException {
+    progress.setProperty(segmentKey(dataFileName, index, "lines"), String.valueOf(segmentProgress.lines));
+    progress.setProperty(segmentKey(dataFileName, index, "bytes"), String.valueOf(segmentProgress.bytes));
+    progress.setProperty(segmentKey(dataFileName, index, "skipped"), String.valueOf(segmentProgress.recordsSkipped));
+    progress.setProperty(segmentKey(dataFileName, index, "completed"), String.valueOf(segmentProgress.completed));
+    progress.setProperty(segmentKey(dataFileName, index, "offset"), String.valueOf(segmentProgress.offset));
+    if (segmentProgress.key == null) {
+      progress.remove(segmentKey(dataFileName, index, "key"));
+    } else {
+      progress.setProperty(segmentKey(dataFileName, index, "key"), segmentProgress.key);
+    }
+    save();
+  }
+
+  /**
+   * Deletes the checkpoint, once the generation completed.
+   */
+  public synchronized void delete() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  private static String segmentKey(String dataFileName, int index, String property) {
+    return SEGMENT_PREFIX + dataFileName + "." + index + "." + property;
+  }
+
+  /**
+   * Replaces the progress file atomically, so that a checkpoint is never left half written.
+   */
+  private void save() throws IOException {
+    File tmp = new File(dir, PROGRESS_FILENAME + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      progress.store(out, "DwC-A generation checkpoint");
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), new File(dir, PROGRESS_FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Progress of a segment at a checkpoint.
+   */
+  public static class SegmentProgress {
+
+    private final int lines;
+    private final long bytes;
+    private final int recordsSkipped;
+    private final boolean completed;
+    private final long offset;
+    private final String key;
+
+    /**
+     * @param lines number of source lines processed
+     * @param bytes number of bytes written to the segment file
+     * @param recordsSkipped number of records skipped
+     * @param completed true if all source lines were processed
+     */
+    public SegmentProgress(int lines, long bytes, int recordsSkipped, boolean completed) {
+      this(lines, bytes, recordsSkipped, completed, -1, null);
+    }
+
+    /**
+     * @param lines number of source lines processed
+     * @param bytes number of bytes written to the segment file
+     * @param recordsSkipped number of records skipped
+     * @param completed true if all source lines were processed
+     * @param offset position in the source file of the next row, -1 if unknown
+     * @param key key of the last row read from a sql source in key order, null if unknown
+     */
+    public SegmentProgress(int lines, long bytes, int recordsSkipped, boolean completed, long offset,
+      @Nullable String key) {
+      this.lines = lines;
+      this.bytes = bytes;
+      this.recordsSkipped = recordsSkipped;
+      this.completed = completed;
+      this.offset = offset;
+      this.key = key;
+    }
+
+    public int getLines() {
+      return lines;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public int getRecordsSkipped() {
+      return recordsSkipped;
+    }
+
+    public boolean isCompleted() {
+      return completed;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    @Nullable
+    public String getKey() {
+      return key;
+    }
+  }
+}
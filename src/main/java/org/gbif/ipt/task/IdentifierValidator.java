@@ -0,0 +1,207 @@
+package org.gbif.ipt.task;
+
+import org.gbif.ipt.utils.ExternalSorter;
+import org.gbif.ipt.utils.FingerprintSet;
+import org.gbif.utils.text.LineComparator;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Ordering;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Validates that identifiers are always present and unique in a single streaming pass, without sorting the data
+ * file they are read from. Comparisons are case insensitive, e.g. FISHES:1 and fishes:1 are equal.
+ * </br>
+ * Each identifier is reduced to a 64 bit fingerprint, kept off-heap in a FingerprintSet together with the ordinal of
+ * the first identifier having that fingerprint. All identifiers are also appended to an identifier store on disk.
+ * An identifier whose fingerprint was seen before is only a candidate duplicate: it gets spilled to a candidates file
+ * with the ordinal of the first identifier having the same fingerprint. When counting duplicates, the candidates are
+ * sorted by ordinal and compared exactly against the identifiers read back from the store, so fingerprint collisions
+ * are never reported as duplicates. For valid data files there are no candidates, and no sorting at all.
+ * </br>
+ * Identifiers must not contain line breaks, which is the case for all values written to data files.
+ */
+public class IdentifierValidator implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(IdentifierValidator.class);
+  private static final String DELIMITER = "\t";
+  private static final String NEWLINE = "\n";
+
+  private final FingerprintSet fingerprints = new FingerprintSet();
+  private final ExternalSorter sorter;
+  private final File idStoreFile;
+  private final File candidatesFile;
+  private Writer idStore;
+  private Writer candidates;
+  private int ordinal = 0;
+  private int recordsWithNoId = 0;
+  private int candidateCount = 0;
+
+  /**
+   * @param workDir directory the identifier store and candidates files are created in, and candidates are sorted in
+   *
+   * @throws IOException if the identifier store could not be created
+   */
+  public IdentifierValidator(File workDir) throws IOException {
+    this(workDir, new ExternalSorter(workDir, 1));
+  }
+
+  /**
+   * @param workDir directory the identifier store and candidates files are created in
+   * @param sorter sorter the candidates are sorted with
+   *
+   * @throws IOException if the identifier store could not be created
+   */
+  public IdentifierValidator(File workDir, ExternalSorter sorter) throws IOException {
+    this.sorter = sorter;
+    idStoreFile = File.createTempFile("ids", ".txt", workDir);
+    candidatesFile = File.createTempFile("ids-candidates", ".txt", workDir);
+    idStore = org.gbif.utils.file.FileUtils.startNewUtf8File(idStoreFile);
+  }
+
+  /**
+   * Validates the next identifier: checks it exists, and checks if it is a candidate duplicate.
+   *
+   * @param id identifier value
+   *
+   * @throws IOException if the identifier could not be stored
+   */
+  public void validate(@Nullable String id) throws IOException {
+    if (Strings.isNullOrEmpty(id)) {
+      recordsWithNoId++;
+      return;
+    }
+    int first = fingerprints.putIfAbsent(FingerprintSet.fingerprint(id, true), ordinal);
+    if (first != FingerprintSet.ABSENT) {
+      if (candidates == null) {
+        candidates = org.gbif.utils.file.FileUtils.startNewUtf8File(candidatesFile);
+      }
+      candidates.write(Strings.padStart(String.valueOf(first), 10, '0') + DELIMITER + id + NEWLINE);
+      candidateCount++;
+    }
+    idStore.write(id + NEWLINE);
+    ordinal++;
+  }
+
+  /**
+   * @return number of identifiers validated that were missing
+   */
+  public int getRecordsWithNoId() {
+    return recordsWithNoId;
+  }
+
+  /**
+   * Confirms the candidate duplicates, calling duplicateFound for every confirmed duplicate. This method must only
+   * be called once, after all identifiers have been validated.
+   *
+   * @return number of identifiers that duplicate an identifier validated before
+   *
+   * @throws IOException if the candidates could not be sorted or read, or the identifier store could not be read
+   */
+  public int countDuplicates() throws IOException {
+    idStore.close();
+    if (candidates == null) {
+      return 0;
+    }
+    candidates.close();
+    LOG.debug(candidateCount + " candidate duplicate(s) out of " + ordinal + " identifiers, confirming them");
+
+    // sort candidates by the ordinal of the first identifier having the same fingerprint, zero padded
+    File sortedFile = new File(candidatesFile.getParentFile(), "sorted_" + candidatesFile.getName());
+    int duplicates = 0;
+    try {
+      sorter.sort(candidatesFile, sortedFile, new LineComparator(0, DELIMITER, null, Ordering.<String>natural()));
+
+      BufferedReader sorted = new BufferedReader(org.gbif.ipt.utils.FileUtils.getUtf8Reader(sortedFile));
+      BufferedReader store = new BufferedReader(org.gbif.ipt.utils.FileUtils.getUtf8Reader(idStoreFile));
+      try {
+        int storeOrdinal = -1;
+        int groupOrdinal = -1;
+        Set<String> group = new HashSet<String>();
+        String line;
+        while ((line = sorted.readLine()) != null) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          int tab = line.indexOf(DELIMITER);
+          int first = Integer.parseInt(line.substring(0, tab));
+          String id = line.substring(tab + 1);
+          if (first != groupOrdinal) {
+            // new group: read the first identifier having this fingerprint from the store
+            String firstId = null;
+            while (storeOrdinal < first) {
+              firstId = store.readLine();
+              storeOrdinal++;
+            }
+            if (firstId == null) {
+              throw new IOException("Identifier #" + first + " missing in identifier store");
+            }
+            group.clear();
+            group.add(normalize(firstId));
+            groupOrdinal = first;
+          }
+          if (!group.add(normalize(id))) {
+            duplicates++;
+            duplicateFound(id);
+          }
+        }
+      } finally {
+        sorted.close();
+        store.close();
+      }
+    } finally {
+      FileUtils.deleteQuietly(sortedFile);
+    }
+    return duplicates;
+  }
+
+  /**
+   * Called for every duplicate identifier confirmed, e.g. to log it.
+   *
+   * @param id duplicate identifier
+   */
+  protected void duplicateFound(String id) {
+  }
+
+  /**
+   * Closes the identifier store and candidates file, and deletes them.
+   */
+  public void close() {
+    try {
+      idStore.close();
+      if (candidates != null) {
+        candidates.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("Identifier validation files could not be closed: " + e.getMessage());
+    }
+    FileUtils.deleteQuietly(idStoreFile);
+    FileUtils.deleteQuietly(candidatesFile);
+  }
+
+  /**
+   * Normalizes an identifier so that identifiers equal ignoring case have the same normalized value, using the same
+   * comparison as String.compareToIgnoreCase.
+   *
+   * @param id identifier
+   *
+   * @return normalized identifier
+   */
+  private static String normalize(String id) {
+    char[] chars = id.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    }
+    return new String(chars);
+  }
+}
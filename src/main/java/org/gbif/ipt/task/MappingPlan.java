@@ -0,0 +1,188 @@
+package org.gbif.ipt.task;
+
+import org.gbif.api.model.common.DOI;
+import org.gbif.ipt.config.Constants;
+import org.gbif.ipt.model.PropertyMapping;
+
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Immutable execution plan of the mapped properties of a single ExtensionMapping, compiled once per publication.
+ * </br>
+ * The plan resolves all decisions that depend on the mapping configuration only: the source column each data file
+ * column is projected from, its default value, whether it is a constant (e.g. the resource DOI used as datasetID),
+ * and its translation table. Applying the plan to a row is then a single pass over flat arrays.
+ * </br>
+ * Applying the plan gives exactly the same result as the mapped properties would: values are translated in the
+ * source row, in column order, default values replace null values, and constant columns always hold their constant.
+ */
+public class MappingPlan {
+
+  // no source column, e.g. property with default value only
+  private static final int NO_SOURCE = -1;
+
+  // index of source column, by data file column
+  private final int[] sourceIndexes;
+  // default value used for null values, by data file column
+  private final String[] defaults;
+  // constant value overriding any value, by data file column
+  private final String[] constants;
+  // translation table, by data file column
+  private final TranslationTable[] translations;
+
+  private MappingPlan(int[] sourceIndexes, String[] defaults, String[] constants, TranslationTable[] translations) {
+    this.sourceIndexes = sourceIndexes;
+    this.defaults = defaults;
+    this.constants = constants;
+    this.translations = translations;
+  }
+
+  /**
+   * Compiles the plan of a mapping.
+   *
+   * @param inCols index ordered list of all data file columns, the id column at index 0 being ignored
+   * @param doiUsedForDatasetId true if mapping should use resource DOI as datasetID, false otherwise
+   * @param doi DOI assigned to resource
+   *
+   * @return plan
+   */
+  public static MappingPlan compile(PropertyMapping[] inCols, boolean doiUsedForDatasetId, @Nullable DOI doi) {
+    int[] sourceIndexes = new int[inCols.length];
+    String[] defaults = new String[inCols.length];
+    String[] constants = new String[inCols.length];
+    TranslationTable[] translations = new TranslationTable[inCols.length];
+    sourceIndexes[0] = NO_SOURCE;
+    for (int i = 1; i < inCols.length; i++) {
+      PropertyMapping pm = inCols[i];
+      sourceIndexes[i] = NO_SOURCE;
+      if (pm != null) {
+        if (pm.getIndex() != null) {
+          sourceIndexes[i] = pm.getIndex();
+          Map<String, String> translation = pm.getTranslation();
+          if (translation != null && !translation.isEmpty()) {
+            translations[i] = new TranslationTable(translation);
+          }
+        }
+        defaults[i] = pm.getDefaultValue();
+        // use DOI for datasetID property?
+        if (doiUsedForDatasetId && doi != null
+            && pm.getTerm().qualifiedName().equalsIgnoreCase(Constants.DWC_DATASET_ID)) {
+          constants[i] = doi.toString();
+        }
+      }
+    }
+    return new MappingPlan(sourceIndexes, defaults, constants, translations);
+  }
+
+  /**
+   * Applies translations and default values to a row. The original value in the row is replaced with the translated
+   * value, and the record holding the values to be written to the data file is filled, apart from its id column.
+   *
+   * @param in values array, of all columns in row
+   * @param record values array, of all columns in data file
+   */
+  public void apply(String[] in, String[] record) {
+    for (int i = 1; i < sourceIndexes.length; i++) {
+      int index = sourceIndexes[i];
+      String val = null;
+      if (index != NO_SOURCE) {
+        val = in[index];
+        TranslationTable translation = translations[i];
+        if (translation != null) {
+          int slot = translation.find(val);
+          if (slot != TranslationTable.ABSENT) {
+            val = translation.value(slot);
+            // update value in original record
+            in[index] = val;
+          }
+        }
+      }
+      if (val == null) {
+        val = defaults[i];
+      }
+      if (constants[i] != null) {
+        val = constants[i];
+      }
+      record[i] = val;
+    }
+  }
+
+  /**
+   * Read-only open addressing table of the translations of a single property, keyed by source value.
+   */
+  static class TranslationTable {
+
+    static final int ABSENT = -1;
+    // slot used for the null source value
+    private static final int NULL_SLOT = -2;
+
+    private final String[] keys;
+    private final String[] values;
+    private final int mask;
+    private final boolean hasNullKey;
+    private final String nullKeyValue;
+
+    TranslationTable(Map<String, String> translation) {
+      int capacity = 2;
+      while (capacity < translation.size() * 2) {
+        capacity <<= 1;
+      }
+      keys = new String[capacity];
+      values = new String[capacity];
+      mask = capacity - 1;
+      boolean nullKey = false;
+      String nullValue = null;
+      for (Map.Entry<String, String> entry : translation.entrySet()) {
+        String key = entry.getKey();
+        if (key == null) {
+          nullKey = true;
+          nullValue = entry.getValue();
+          continue;
+        }
+        int slot = slot(key);
+        while (keys[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = entry.getValue();
+      }
+      hasNullKey = nullKey;
+      nullKeyValue = nullValue;
+    }
+
+    private int slot(String key) {
+      int h = key.hashCode();
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @param key source value
+     *
+     * @return slot of the source value, or ABSENT if it has no translation
+     */
+    int find(@Nullable String key) {
+      if (key == null) {
+        return hasNullKey ? NULL_SLOT : ABSENT;
+      }
+      int slot = slot(key);
+      String k;
+      while ((k = keys[slot]) != null) {
+        if (k.equals(key)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return ABSENT;
+    }
+
+    /**
+     * @param slot slot returned by find
+     *
+     * @return translated value
+     */
+    String value(int slot) {
+      return slot == NULL_SLOT ? nullKeyValue : values[slot];
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package org.gbif.ipt.task;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput metrics of a task, updated live while it runs: the time spent in each stage of the task, and for each
+ * data file the rows read, written and skipped, the bytes written and the rate rows are read at.
+ * </br>
+ * If the number of rows to read is known, e.g. from the row count of a text file source or a SQL count, the time left
+ * to write the data files is estimated from the rate rows have been read at so far.
+ * </br>
+ * This class is thread-safe.
+ */
+public class ProgressMetrics {
+
+  public static final long UNKNOWN = -1;
+
+  private final long started = System.currentTimeMillis();
+  // elapsed milliseconds of each stage, in the order stages were started
+  private final Map<String, Long> stageMillis = new LinkedHashMap<String, Long>();
+  private String stage;
+  private long stageStarted;
+  private final List<DataFileMetrics> dataFiles = new CopyOnWriteArrayList<DataFileMetrics>();
+
+  /**
+   * Starts a new stage, completing the current one.
+   *
+   * @param name name of the stage
+   */
+  public synchronized void startStage(String name) {
+    completed();
+    stage = name;
+    stageStarted = System.currentTimeMillis();
+  }
+
+  /**
+   * Completes the current stage, e.g. once the task has completed or failed.
+   */
+  public synchronized void completed() {
+    if (stage != null) {
+      Long millis = stageMillis.get(stage);
+      stageMillis.put(stage, (millis == null ? 0 : millis) + System.currentTimeMillis() - stageStarted);
+      stage = null;
+    }
+  }
+
+  /**
+   * @return elapsed milliseconds of each stage in the order they were started, including the current stage so far
+   */
+  public synchronized Map<String, Long> getStageMillis() {
+    Map<String, Long> millis = new LinkedHashMap<String, Long>(stageMillis);
+    if (stage != null) {
+      Long before = millis.get(stage);
+      millis.put(stage, (before == null ? 0 : before) + System.currentTimeMillis() - stageStarted);
+    }
+    return millis;
+  }
+
+  /**
+   * @return milliseconds elapsed since the task started
+   */
+  public long getElapsedMillis() {
+    return System.currentTimeMillis() - started;
+  }
+
+  /**
+   * Starts tracking a new data file.
+   *
+   * @param name name of the data file, e.g. the title of its extension
+   * @param rowType rowType of the data file
+   * @param expectedRows number of rows expected to be read, or UNKNOWN
+   *
+   * @return metrics of the data file
+   */
+  public DataFileMetrics addDataFile(String name, String rowType, long expectedRows) {
+    DataFileMetrics metrics = new DataFileMetrics(name, rowType, expectedRows);
+    dataFiles.add(metrics);
+    return metrics;
+  }
+
+  /**
+   * @return metrics of each data file, in the order they were started
+   */
+  public List<DataFileMetrics> getDataFiles() {
+    return dataFiles;
+  }
+
+  /**
+   * Estimates the time left until all data files started are written: the time left of the slowest data file.
+   *
+   * @return estimated milliseconds left, or UNKNOWN if the number of rows to read is unknown for a data file, or no
+   *         rows have been read yet
+   */
+  public long getEtaMillis() {
+    long eta = UNKNOWN;
+    for (DataFileMetrics dataFile : dataFiles) {
+      long left = dataFile.getEtaMillis();
+      if (left == UNKNOWN) {
+        return UNKNOWN;
+      }
+      eta = Math.max(eta, left);
+    }
+    return eta;
+  }
+
+  /**
+   * Metrics of a single data file, which may be written by several mappings at the same time.
+   */
+  public static class DataFileMetrics {
+
+    private final String name;
+    private final String rowType;
+    private volatile long expectedRows;
+    private final long started = System.currentTimeMillis();
+    private volatile long completed = 0;
+    private final AtomicLong rowsRead = new AtomicLong(0);
+    private final AtomicLong rowsWritten = new AtomicLong(0);
+    private final AtomicLong rowsSkipped = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+
+    private DataFileMetrics(String name, String rowType, long expectedRows) {
+      this.name = name;
+      this.rowType = rowType;
+      this.expectedRows = expectedRows;
+    }
+
+    /**
+     * @return counter of a single mapping written to the data file
+     */
+    public MappingCounter newMappingCounter() {
+      return new MappingCounter(this);
+    }
+
+    /**
+     * Marks the data file as completely written, stopping its clock.
+     */
+    public void completed() {
+      completed = System.currentTimeMillis();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getRowType() {
+      return rowType;
+    }
+
+    /**
+     * @return number of rows expected to be read, or UNKNOWN
+     */
+    public long getExpectedRows() {
+      return expectedRows;
+    }
+
+    /**
+     * Sets the number of rows expected to be read, once estimated after the data file was started.
+     *
+     * @param expectedRows number of rows expected to be read, or UNKNOWN
+     */
+    public void setExpectedRows(long expectedRows) {
+      this.expectedRows = expectedRows;
+    }
+
+    public long getRowsRead() {
+      return rowsRead.get();
+    }
+
+    public long getRowsWritten() {
+      return rowsWritten.get();
+    }
+
+    /**
+     * @return number of rows read but not written, e.g. because they were empty or filtered out
+     */
+    public long getRowsSkipped() {
+      return rowsSkipped.get();
+    }
+
+    public long getBytesWritten() {
+      return bytesWritten.get();
+    }
+
+    public boolean isCompleted() {
+      return completed > 0;
+    }
+
+    /**
+     * @return milliseconds spent writing the data file so far
+     */
+    public long getElapsedMillis() {
+      return (completed > 0 ? completed : System.currentTimeMillis()) - started;
+    }
+
+    /**
+     * @return rows read per second
+     */
+    public long getRowsPerSecond() {
+      long elapsed = getElapsedMillis();
+      return elapsed == 0 ? 0 : rowsRead.get() * 1000 / elapsed;
+    }
+
+    /**
+     * @return estimated milliseconds left until the data file is written, 0 once completed, or UNKNOWN if the number
+     *         of rows to read is unknown or no rows have been read yet
+     */
+    public long getEtaMillis() {
+      if (completed > 0) {
+        return 0;
+      }
+      long read = rowsRead.get();
+      if (expectedRows < 0 || read == 0) {
+        return UNKNOWN;
+      }
+      return Math.max(0, expectedRows - read) * getElapsedMillis() / read;
+    }
+  }
+
+  /**
+   * Counts the rows of a single mapping written to a data file, adding them to the data file's metrics in batches.
+   * This class is not thread-safe: each mapping has its own counter.
+   */
+  public static class MappingCounter {
+
+    private final DataFileMetrics dataFile;
+    private long rowsRead;
+    private long rowsWritten;
+    private long rowsSkipped;
+    private long bytesWritten;
+
+    private MappingCounter(DataFileMetrics dataFile) {
+      this.dataFile = dataFile;
+    }
+
+    /**
+     * Updates the data file's metrics with the totals of the mapping so far.
+     *
+     * @param rowsRead rows of the mapping read so far
+     * @param rowsWritten rows of the mapping written so far
+     * @param rowsSkipped rows of the mapping skipped so far
+     * @param bytesWritten bytes of the mapping written so far
+     */
+    public void update(long rowsRead, long rowsWritten, long rowsSkipped, long bytesWritten) {
+      dataFile.rowsRead.addAndGet(rowsRead - this.rowsRead);
+      dataFile.rowsWritten.addAndGet(rowsWritten - this.rowsWritten);
+      dataFile.rowsSkipped.addAndGet(rowsSkipped - this.rowsSkipped);
+      dataFile.bytesWritten.addAndGet(bytesWritten - this.bytesWritten);
+      this.rowsRead = rowsRead;
+      this.rowsWritten = rowsWritten;
+      this.rowsSkipped = rowsSkipped;
+      this.bytesWritten = bytesWritten;
+    }
+  }
+}
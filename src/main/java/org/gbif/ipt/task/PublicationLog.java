@@ -0,0 +1,287 @@
+package org.gbif.ipt.task;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Publication log file written asynchronously, so that writing messages never waits for the disk.
+ * </br>
+ * Messages are put on a bounded queue and written in batches by a dedicated thread, in the order they were put. A
+ * writer only waits once the queue is full, so that a slow disk can't make messages pile up in memory.
+ * </br>
+ * Messages repeated for many rows, e.g. rows skipped because they are empty, are grouped by category. Only a sample of
+ * the first entries of each category is written to the log file, while all entries are counted exactly. The counts
+ * are written to the log file once closed. If a detail file is given, the entries beyond the sample are written to it
+ * gzip-compressed instead of being dropped, e.g. to investigate problems in debug mode.
+ * </br>
+ * This class is thread-safe.
+ */
+public class PublicationLog implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(PublicationLog.class);
+  public static final int DEFAULT_SAMPLE_SIZE = 1000;
+  private static final int QUEUE_CAPACITY = 10000;
+  private static final int BATCH_SIZE = 1000;
+  // time the writer waits for new messages before flushing the messages written so far
+  private static final long FLUSH_INTERVAL_MILLIS = 200;
+  private static final String NEWLINE = "\n";
+
+  private final File detailFile;
+  private final int sampleSize;
+  private final Writer writer;
+  private final Writer detailWriter;
+  private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+  private final Map<String, Category> categories = new LinkedHashMap<String, Category>();
+  private final AtomicLong dropped = new AtomicLong(0);
+  private final Thread writerThread;
+  private volatile boolean closed = false;
+  private volatile boolean failed = false;
+
+  /**
+   * Creates the log file, replacing any existing one, and starts writing to it.
+   *
+   * @param logFile publication log file
+   * @param sampleSize number of entries of each category written to the log file
+   * @param detailFile gzip-compressed file all entries beyond the sample get written to, null to drop them
+   *
+   * @throws IOException if the log file or detail file could not be created
+   */
+  public PublicationLog(File logFile, int sampleSize, @Nullable File detailFile) throws IOException {
+    this.sampleSize = sampleSize;
+    this.detailFile = detailFile;
+    this.writer = new BufferedWriter(new FileWriter(logFile));
+    if (detailFile != null) {
+      try {
+        this.detailWriter =
+          new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(detailFile)), "UTF-8"));
+      } catch (IOException e) {
+        writer.close();
+        throw e;
+      }
+    } else {
+      this.detailWriter = null;
+    }
+    writerThread = new Thread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, "publication-log-" + logFile.getParentFile().getName());
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Writes a message to the log file.
+   *
+   * @param message message
+   */
+  public void write(String message) {
+    put(new Entry(message, false));
+  }
+
+  /**
+   * Counts an entry of a category, telling if its message needs to be written. Call it before building the message,
+   * so that messages beyond the sample don't even get built unless they go to the detail file.
+   *
+   * @param category category of the entry
+   *
+   * @return true if the message of the entry must be written with {@link #write(String, String)}
+   */
+  public boolean count(String category) {
+    return category(category).count.incrementAndGet() <= sampleSize || detailWriter != null;
+  }
+
+  /**
+   * Writes the message of an entry counted before, to the log file if it is part of the sample of its category, or
+   * to the detail file otherwise.
+   *
+   * @param category category of the entry
+   * @param message message
+   */
+  public void write(String category, String message) {
+    if (category(category).written.incrementAndGet() <= sampleSize) {
+      put(new Entry(message, false));
+    } else if (detailWriter != null) {
+      put(new Entry(message, true));
+    }
+  }
+
+  /**
+   * @param category category
+   *
+   * @return number of entries of the category counted so far
+   */
+  public long getCount(String category) {
+    return category(category).count.get();
+  }
+
+  /**
+   * Waits for all messages to be written, writes the count of each category, and closes the log file and the detail
+   * file. Messages written afterwards are dropped.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    boolean interrupted = false;
+    while (writerThread.isAlive()) {
+      try {
+        writerThread.join();
+      } catch (InterruptedException e) {
+        // the messages put so far must be written anyway, e.g. when the publication was cancelled
+        interrupted = true;
+      }
+    }
+    try {
+      writeSummary();
+    } catch (IOException e) {
+      LOG.error("Publication log file could not be written to: " + e.getMessage(), e);
+    } finally {
+      closeQuietly(writer);
+      closeQuietly(detailWriter);
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private synchronized Category category(String name) {
+    Category category = categories.get(name);
+    if (category == null) {
+      category = new Category();
+      categories.put(name, category);
+    }
+    return category;
+  }
+
+  /**
+   * Puts an entry on the queue, waiting for room if the queue is full. If the writing thread was interrupted, e.g.
+   * because the publication was cancelled, the entry is only put if there is room left.
+   */
+  private void put(Entry entry) {
+    if (closed || failed) {
+      return;
+    }
+    if (!queue.offer(entry)) {
+      try {
+        queue.put(entry);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        dropped.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Runs on the writer thread: writes the entries in batches until closed, flushing whenever the queue runs empty.
+   */
+  private void drain() {
+    List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+    try {
+      while (true) {
+        Entry entry = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (entry == null) {
+          writer.flush();
+          if (closed && queue.isEmpty()) {
+            return;
+          }
+          continue;
+        }
+        batch.add(entry);
+        queue.drainTo(batch, BATCH_SIZE - 1);
+        for (Entry e : batch) {
+          Writer w = e.detail ? detailWriter : writer;
+          w.write(e.message);
+          w.write(NEWLINE);
+        }
+        batch.clear();
+      }
+    } catch (IOException e) {
+      LOG.error("Publication log file could not be written to: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      LOG.error("Publication log writer was interrupted");
+    }
+    // stop accepting messages, and release any writer waiting for room
+    failed = true;
+    queue.clear();
+  }
+
+  private void writeSummary() throws IOException {
+    if (failed) {
+      return;
+    }
+    Map<String, Category> counted;
+    synchronized (this) {
+      counted = new LinkedHashMap<String, Category>(categories);
+    }
+    for (Map.Entry<String, Category> entry : counted.entrySet()) {
+      long count = entry.getValue().count.get();
+      StringBuilder sb = new StringBuilder(entry.getKey()).append(": ").append(count).append(" in total");
+      if (count > sampleSize) {
+        sb.append(", only the first ").append(sampleSize).append(" were written");
+        if (detailWriter != null) {
+          sb.append(" (the others are written to ").append(detailFile.getName()).append(")");
+        }
+      }
+      writer.write(sb.toString());
+      writer.write(NEWLINE);
+    }
+    if (dropped.get() > 0) {
+      writer.write(dropped.get() + " messages were dropped because the publication was interrupted" + NEWLINE);
+    }
+    writer.flush();
+  }
+
+  private static void closeQuietly(@Nullable Writer w) {
+    if (w != null) {
+      try {
+        w.close();
+      } catch (IOException e) {
+        LOG.error("Publication log file could not be closed: " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Entries counted and written for a category.
+   */
+  private static class Category {
+
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong written = new AtomicLong(0);
+  }
+
+  /**
+   * Message waiting to be written.
+   */
+  private static class Entry {
+
+    private final String message;
+    // written to the detail file rather than the log file
+    private final boolean detail;
+
+    private Entry(String message, boolean detail) {
+      this.message = message;
+      this.detail = detail;
+    }
+  }
+}
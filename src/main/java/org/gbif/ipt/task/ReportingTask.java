@@ -2,14 +2,14 @@ package org.gbif.ipt.task;
 
 import org.gbif.ipt.config.DataDir;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.annotation.Nullable;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -19,10 +19,11 @@ public abstract class ReportingTask {
   protected final DataDir dataDir;
   private final String resourceShortname;
   private final ReportHandler handler;
-  private List<TaskMessage> messages = new ArrayList<TaskMessage>();
+  // messages may be added concurrently, e.g. by data files being written in parallel
+  private List<TaskMessage> messages = new CopyOnWriteArrayList<TaskMessage>();
   private final int reportingIntervall;
   private StatusReport lastReport;
-  protected BufferedWriter publicationLogWriter;
+  protected PublicationLog publicationLog;
 
   /**
    * Constructor.
@@ -32,15 +33,46 @@ public abstract class ReportingTask {
    * @param handler            ReportHandler
    * @param dataDir            DataDir
    *
-   * @throws IOException if BufferedWriter to publication log file writer could not be created
+   * @throws IOException if publication log file could not be created
    */
   protected ReportingTask(int reportingIntervall, String resourceShortname, ReportHandler handler, DataDir dataDir)
     throws IOException {
+    this(reportingIntervall, resourceShortname, handler, dataDir, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param reportingIntervall interval reporting is carried out in milliseconds
+   * @param resourceShortname  shortname of resource
+   * @param handler            ReportHandler
+   * @param dataDir            DataDir
+   * @param debug              true to write all publication log entries beyond the samples to the detail file
+   *
+   * @throws IOException if publication log file could not be created
+   */
+  protected ReportingTask(int reportingIntervall, String resourceShortname, ReportHandler handler, DataDir dataDir,
+    boolean debug) throws IOException {
+    this(reportingIntervall, resourceShortname, handler, dataDir, getPublicationLog(dataDir, resourceShortname, debug));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param reportingIntervall interval reporting is carried out in milliseconds
+   * @param resourceShortname  shortname of resource
+   * @param handler            ReportHandler
+   * @param dataDir            DataDir
+   * @param publicationLog     publication log messages get written to, null to only report messages, e.g. when
+   *                           previewing a resource so that the publication log of its last publication is kept
+   */
+  protected ReportingTask(int reportingIntervall, String resourceShortname, ReportHandler handler, DataDir dataDir,
+    @Nullable PublicationLog publicationLog) {
     this.resourceShortname = resourceShortname;
     this.handler = handler;
     this.reportingIntervall = reportingIntervall;
     this.dataDir = dataDir;
-    this.publicationLogWriter = getPublicationLogWriter(resourceShortname);
+    this.publicationLog = publicationLog;
   }
 
   /**
@@ -70,6 +102,14 @@ public abstract class ReportingTask {
 
   protected abstract String currentState();
 
+  /**
+   * @return throughput metrics of the task, or null if it doesn't keep any
+   */
+  @Nullable
+  protected ProgressMetrics currentMetrics() {
+    return null;
+  }
+
   /**
    * Reports back the state of the task to the reporting handler configured.
    * Call this method at least once a second inside your task if possible, so users keep updated.
@@ -77,9 +117,9 @@ public abstract class ReportingTask {
   public StatusReport report() {
     Exception e = currentException();
     if (e != null) {
-      lastReport = new StatusReport(e, currentState(), messages);
+      lastReport = new StatusReport(e, currentState(), messages, currentMetrics());
     } else {
-      lastReport = new StatusReport(completed(), currentState(), messages);
+      lastReport = new StatusReport(completed(), currentState(), messages, currentMetrics());
     }
     handler.report(resourceShortname, lastReport);
     return lastReport;
@@ -96,44 +136,76 @@ public abstract class ReportingTask {
   }
 
   /**
-   * Create new publication log writer ("publication.log") in resource directory. The method does not replace any
-   * existing version of the file.
+   * Create new publication log ("publication.log") in resource directory, written asynchronously. In debug mode, all
+   * entries beyond the samples are written to the detail file ("publication-detail.log.gz") too, otherwise any
+   * existing detail file is removed as it would be outdated.
    *
+   * @param dataDir           DataDir
    * @param resourceShortname resource short name
+   * @param debug             true to write the detail file
    *
-   * @return BufferedWriter
+   * @return PublicationLog
    *
-   * @throws IOException if publication log writer could not be created
+   * @throws IOException if publication log could not be created
    */
-  private BufferedWriter getPublicationLogWriter(String resourceShortname) throws IOException {
+  private static PublicationLog getPublicationLog(DataDir dataDir, String resourceShortname, boolean debug)
+    throws IOException {
     File logFile = dataDir.resourcePublicationLogFile(resourceShortname);
-    return new BufferedWriter(new FileWriter(logFile));
+    File detailFile = dataDir.resourcePublicationLogDetailFile(resourceShortname);
+    if (!debug) {
+      FileUtils.deleteQuietly(detailFile);
+    }
+    return new PublicationLog(logFile, PublicationLog.DEFAULT_SAMPLE_SIZE, debug ? detailFile : null);
   }
 
   /**
-   * Write log message to publication log file as a new line but suffocate any exception thrown.
+   * Write log message to publication log file as a new line, if there is a publication log. The message is written
+   * asynchronously, and any exception thrown writing it is logged only.
    *
    * @param message message to write
    */
   protected void writePublicationLogMessage(String message) {
-    try {
-      publicationLogWriter.write(message + "\n");
-    } catch (IOException e) {
-      log.error("Publication log file could not be written to by writer: " + e.getMessage(), e);
+    if (publicationLog != null) {
+      publicationLog.write(message);
+    }
+  }
+
+  /**
+   * Counts an entry of a category of publication log messages repeated for many rows, e.g. lines skipped, telling if
+   * its message needs to be written. Only the first entries of each category get written, so that expensive messages
+   * only need to be built if this method returns true:
+   * <pre>
+   * if (countPublicationLogEntry(category)) {
+   *   writePublicationLogEntry(category, message);
+   * }
+   * </pre>
+   *
+   * @param category category of the entry
+   *
+   * @return true if the message of the entry must be written with {@link #writePublicationLogEntry(String, String)}
+   */
+  protected boolean countPublicationLogEntry(String category) {
+    return publicationLog != null && publicationLog.count(category);
+  }
+
+  /**
+   * Write the message of an entry counted with {@link #countPublicationLogEntry(String)} to the publication log file.
+   *
+   * @param category category of the entry
+   * @param message  message to write
+   */
+  protected void writePublicationLogEntry(String category, String message) {
+    if (publicationLog != null) {
+      publicationLog.write(category, message);
     }
   }
 
   /**
-   * Close publication log file writer, if the writer is not null.
+   * Close publication log, waiting for all messages to be written, if the log is not null.
    */
   protected void closePublicationLogWriter() {
-    if (publicationLogWriter != null) {
-      try {
-        publicationLogWriter.flush();
-        publicationLogWriter.close();
-      } catch (IOException e) {
-        log.error("Publication log file writer could not be closed: " + e.getMessage(), e);
-      }
+    if (publicationLog != null) {
+      publicationLog.close();
     }
   }
 }
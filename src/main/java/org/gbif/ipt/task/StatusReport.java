@@ -3,6 +3,7 @@ package org.gbif.ipt.task;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import javax.annotation.Nullable;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -13,22 +14,34 @@ public class StatusReport {
   private final long timestamp;
   private final String state;
   private final List<TaskMessage> messages;
+  private final ProgressMetrics metrics;
 
   public StatusReport(boolean completed, String state, List<TaskMessage> messages) {
+    this(completed, state, messages, null);
+  }
+
+  public StatusReport(boolean completed, String state, List<TaskMessage> messages,
+    @Nullable ProgressMetrics metrics) {
     this.completed = completed;
     this.state = state;
     this.messages = messages;
     this.timestamp = new Date().getTime();
     this.exception = null;
-
+    this.metrics = metrics;
   }
 
   public StatusReport(Exception exception, String state, List<TaskMessage> messages) {
+    this(exception, state, messages, null);
+  }
+
+  public StatusReport(Exception exception, String state, List<TaskMessage> messages,
+    @Nullable ProgressMetrics metrics) {
     this.completed = true;
     this.state = state;
     this.messages = messages;
     this.timestamp = new Date().getTime();
     this.exception = exception;
+    this.metrics = metrics;
   }
 
   public StatusReport(String state, List<TaskMessage> messages) {
@@ -37,6 +50,7 @@ public class StatusReport {
     this.messages = messages;
     this.timestamp = new Date().getTime();
     this.exception = null;
+    this.metrics = null;
   }
 
   public Exception getException() {
@@ -59,6 +73,14 @@ public class StatusReport {
     return messages;
   }
 
+  /**
+   * @return throughput metrics of the task, updated live while it runs, or null if the task doesn't keep any
+   */
+  @Nullable
+  public ProgressMetrics getMetrics() {
+    return metrics;
+  }
+
   public String getState() {
     return state;
   }
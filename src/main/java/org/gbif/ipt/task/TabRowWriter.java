@@ -0,0 +1,170 @@
+package org.gbif.ipt.task;
+
+import java.io.IOException;
+import java.io.Writer;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Writes tab delimited rows to a Writer, through a reusable character buffer.
+ * </br>
+ * Each value is scanned once: leading and trailing characters up to and including space are trimmed, and tab,
+ * carriage return and line feed characters within the value are replaced with a space, exactly like
+ * StringUtils.trimToNull(value.replaceAll("[\t\n\r]", " ")) would. Values are copied straight into the buffer, so
+ * writing a row does not create any objects unless a value needs cleaning.
+ * </br>
+ * This class is not thread-safe. Rows are only guaranteed to reach the underlying writer once flush is called.
+ */
+public class TabRowWriter {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Writer writer;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int length = 0;
+  private long bytesWritten = 0;
+
+  /**
+   * @param writer writer rows are written to
+   */
+  public TabRowWriter(Writer writer) {
+    this.writer = Preconditions.checkNotNull(writer);
+  }
+
+  /**
+   * Writes a single tab delimited row ending in a newline character, unless all values are null.
+   * </br>
+   * Values get cleaned in place, so that the array holds the values as written afterwards: a value that is empty
+   * once trimmed is replaced with null.
+   *
+   * @param columns the array of values to write, may not be null
+   *
+   * @return true if the row was written, false if the provided array only contained null values
+   *
+   * @throws IOException if the row could not be written
+   */
+  public boolean write(String[] columns) throws IOException {
+    Preconditions.checkNotNull(columns);
+    boolean empty = true;
+    for (String column : columns) {
+      if (column != null) {
+        empty = false;
+        break;
+      }
+    }
+    if (empty) {
+      return false;
+    }
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        append('\t');
+      }
+      if (columns[i] != null) {
+        columns[i] = append(columns[i]);
+      }
+    }
+    append('\n');
+    return true;
+  }
+
+  /**
+   * Writes all buffered characters to the underlying writer, without flushing the writer itself.
+   *
+   * @throws IOException if the characters could not be written
+   */
+  public void flush() throws IOException {
+    if (length > 0) {
+      writer.write(buffer, 0, length);
+      bytesWritten += utf8Length(buffer, length);
+      length = 0;
+    }
+  }
+
+  /**
+   * @param value value
+   *
+   * @return the value as it gets written, null if it is empty once trimmed
+   */
+  @Nullable
+  public static String clean(@Nullable String value) {
+    return value == null ? null : StringUtils.trimToNull(replaceLineBreakingChars(value));
+  }
+
+  /**
+   * @return number of bytes of all rows flushed so far, encoded in UTF-8
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return number of bytes of the characters encoded in UTF-8, a surrogate pair taking 4 bytes
+   */
+  private static long utf8Length(char[] chars, int length) {
+    long bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = chars[i];
+      if (c >= 0x80) {
+        // surrogates take 2 bytes each, other characters 2 or 3 bytes
+        bytes += (c < 0x800 || Character.isSurrogate(c)) ? 1 : 2;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Appends a cleaned value to the buffer.
+   *
+   * @param value value
+   *
+   * @return the value as written: the same instance if it needed no cleaning, or null if it is empty once trimmed
+   */
+  private String append(String value) throws IOException {
+    int end = value.length();
+    int start = 0;
+    while (start < end && value.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && value.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    if (start == end) {
+      return null;
+    }
+    boolean escaped = false;
+    int from = start;
+    while (from < end) {
+      if (length == BUFFER_SIZE) {
+        flush();
+      }
+      int n = Math.min(end - from, BUFFER_SIZE - length);
+      value.getChars(from, from + n, buffer, length);
+      for (int i = length; i < length + n; i++) {
+        char c = buffer[i];
+        if (c == '\t' || c == '\n' || c == '\r') {
+          buffer[i] = ' ';
+          escaped = true;
+        }
+      }
+      length += n;
+      from += n;
+    }
+    if (escaped) {
+      return replaceLineBreakingChars(value.substring(start, end));
+    }
+    return start == 0 && end == value.length() ? value : value.substring(start, end);
+  }
+
+  private void append(char c) throws IOException {
+    if (length == BUFFER_SIZE) {
+      flush();
+    }
+    buffer[length++] = c;
+  }
+
+  private static String replaceLineBreakingChars(String value) {
+    return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+}
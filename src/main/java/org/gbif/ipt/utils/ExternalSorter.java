@@ -0,0 +1,329 @@
+package org.gbif.ipt.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Sorts the lines of a UTF-8 text file too large to be sorted in memory, using several cores.
+ * </br>
+ * The file is read in runs of a fixed number of lines. Runs are sorted concurrently on a pool of threads, and spilled
+ * deflate-compressed to a scratch directory, so that sorting needs much less disk space and I/O than the file itself.
+ * The sorted runs are then merged into the sorted file with a k-way merge, in several passes if there are more runs
+ * than can be merged at once. A file holding a single run is sorted in memory, without spilling anything.
+ * </br>
+ * The sort is stable: lines comparing equal keep their original order. The number of runs being sorted at the same
+ * time is bounded, so that at most threads + 1 runs are ever held in memory.
+ */
+public class ExternalSorter {
+
+  private static final Logger LOG = Logger.getLogger(ExternalSorter.class);
+  public static final int DEFAULT_RUN_SIZE = 100000;
+  // maximum number of runs merged at once, bounding the number of files open
+  private static final int MAX_MERGE_FAN_IN = 64;
+  private static final String CHARACTER_ENCODING = "UTF-8";
+  private static final String NEWLINE = "\n";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File scratchDir;
+  private final int threads;
+  private final int runSize;
+
+  /**
+   * Creates a new sorter, with the default run size.
+   *
+   * @param scratchDir directory sorted runs are spilled to
+   * @param threads number of threads sorting runs, 1 or less meaning runs get sorted by the calling thread
+   */
+  public ExternalSorter(File scratchDir, int threads) {
+    this(scratchDir, threads, DEFAULT_RUN_SIZE);
+  }
+
+  /**
+   * Creates a new sorter.
+   *
+   * @param scratchDir directory sorted runs are spilled to
+   * @param threads number of threads sorting runs, 1 or less meaning runs get sorted by the calling thread
+   * @param runSize number of lines sorted in memory at once
+   */
+  public ExternalSorter(File scratchDir, int threads, int runSize) {
+    if (runSize < 1) {
+      throw new IllegalArgumentException("Runs must hold at least 1 line");
+    }
+    this.scratchDir = scratchDir;
+    this.threads = threads;
+    this.runSize = runSize;
+  }
+
+  /**
+   * Sorts the lines of a file, each line ending with a newline character in the sorted file.
+   *
+   * @param input file to sort
+   * @param sorted sorted file, created or overwritten
+   * @param comparator comparator lines get sorted with
+   *
+   * @throws IOException if the file could not be sorted
+   */
+  public void sort(File input, File sorted, Comparator<String> comparator) throws IOException {
+    FileUtils.forceMkdir(scratchDir);
+    // all files spilled, deleted once sorted
+    List<File> spilled = Collections.synchronizedList(new ArrayList<File>());
+    List<File> runs = new ArrayList<File>();
+    ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), CHARACTER_ENCODING),
+      BUFFER_SIZE);
+    try {
+      Deque<Future<File>> runsInFlight = new ArrayDeque<Future<File>>();
+      List<String> run = readRun(reader);
+      if (run.size() < runSize) {
+        // fits in a single run: nothing to spill or merge
+        Collections.sort(run, comparator);
+        writeLines(run, new FileOutputStream(sorted));
+        return;
+      }
+      while (!run.isEmpty()) {
+        RunSorter runSorter = new RunSorter(run, comparator, spilled);
+        if (executor == null) {
+          runs.add(runSorter.call());
+        } else {
+          runsInFlight.add(executor.submit(runSorter));
+          // bound the number of runs held in memory
+          if (runsInFlight.size() >= threads) {
+            runs.add(getRun(runsInFlight.poll()));
+          }
+        }
+        run = readRun(reader);
+      }
+      while (!runsInFlight.isEmpty()) {
+        runs.add(getRun(runsInFlight.poll()));
+      }
+      LOG.debug("Merging " + runs.size() + " sorted runs of " + input.getName());
+
+      // merge in several passes if there are too many runs to merge at once
+      while (runs.size() > MAX_MERGE_FAN_IN) {
+        List<File> merged = new ArrayList<File>();
+        for (int i = 0; i < runs.size(); i += MAX_MERGE_FAN_IN) {
+          List<File> group = runs.subList(i, Math.min(i + MAX_MERGE_FAN_IN, runs.size()));
+          File mergedRun = newRunFile(spilled);
+          merged.add(mergedRun);
+          merge(group, compressed(new FileOutputStream(mergedRun)), comparator);
+          for (File file : group) {
+            FileUtils.deleteQuietly(file);
+          }
+        }
+        runs = merged;
+      }
+      merge(runs, new FileOutputStream(sorted), comparator);
+    } finally {
+      reader.close();
+      if (executor != null) {
+        executor.shutdownNow();
+        try {
+          // runs still being spilled, e.g. if another run failed, must be complete before being deleted
+          executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      synchronized (spilled) {
+        for (File file : spilled) {
+          FileUtils.deleteQuietly(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the next run of lines.
+   *
+   * @return lines read, empty if there were no lines left
+   */
+  private List<String> readRun(BufferedReader reader) throws IOException {
+    List<String> run = new ArrayList<String>(Math.min(runSize, BUFFER_SIZE));
+    String line;
+    while (run.size() < runSize && (line = reader.readLine()) != null) {
+      run.add(line);
+    }
+    return run;
+  }
+
+  /**
+   * Waits for a run to be sorted and spilled, unwrapping the exception it failed with if any.
+   */
+  private File getRun(Future<File> run) throws IOException {
+    try {
+      return run.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sorting");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Sorting run failed", cause);
+    }
+  }
+
+  /**
+   * Merges sorted runs, lines comparing equal being taken from the earlier run first.
+   *
+   * @param runs compressed sorted runs, in original order
+   * @param out stream the merged lines are written to, closed afterwards
+   * @param comparator comparator the runs were sorted with
+   */
+  private void merge(List<File> runs, OutputStream out, final Comparator<String> comparator) throws IOException {
+    PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+      public int compare(RunReader r1, RunReader r2) {
+        int c = comparator.compare(r1.line, r2.line);
+        return c == 0 ? r1.index - r2.index : c;
+      }
+    });
+    List<RunReader> readers = new ArrayList<RunReader>();
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARACTER_ENCODING), BUFFER_SIZE);
+    try {
+      for (int i = 0; i < runs.size(); i++) {
+        RunReader reader = new RunReader(runs.get(i), i);
+        readers.add(reader);
+        if (reader.next()) {
+          heads.add(reader);
+        }
+      }
+      while (!heads.isEmpty()) {
+        RunReader head = heads.poll();
+        writer.write(head.line);
+        writer.write(NEWLINE);
+        if (head.next()) {
+          heads.add(head);
+        }
+      }
+    } finally {
+      writer.close();
+      for (RunReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  private File newRunFile(List<File> spilled) throws IOException {
+    File file = File.createTempFile("sort-run", ".deflate", scratchDir);
+    spilled.add(file);
+    return file;
+  }
+
+  private static OutputStream compressed(OutputStream out) {
+    return new DeflaterOutputStream(new BufferedOutputStream(out, BUFFER_SIZE), new Deflater(Deflater.BEST_SPEED),
+      BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          // the deflater was passed in, so it is not released by the stream itself
+          def.end();
+        }
+      }
+    };
+  }
+
+  private static void writeLines(List<String> lines, OutputStream out) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARACTER_ENCODING), BUFFER_SIZE);
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write(NEWLINE);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Sorts a run in memory and spills it to a compressed run file.
+   */
+  private class RunSorter implements Callable<File> {
+
+    private final List<String> run;
+    private final Comparator<String> comparator;
+    private final List<File> spilled;
+
+    private RunSorter(List<String> run, Comparator<String> comparator, List<File> spilled) {
+      this.run = run;
+      this.comparator = comparator;
+      this.spilled = spilled;
+    }
+
+    public File call() throws IOException {
+      Collections.sort(run, comparator);
+      File file = newRunFile(spilled);
+      writeLines(run, compressed(new FileOutputStream(file)));
+      return file;
+    }
+  }
+
+  /**
+   * Reads the lines of a compressed run file, one at a time.
+   */
+  private static class RunReader implements Closeable {
+
+    private final BufferedReader reader;
+    private final Inflater inflater = new Inflater();
+    private final int index;
+    @Nullable
+    private String line;
+
+    private RunReader(File file, int index) throws IOException {
+      InputStream in = new InflaterInputStream(new FileInputStream(file), inflater, BUFFER_SIZE);
+      this.reader = new BufferedReader(new InputStreamReader(in, CHARACTER_ENCODING), BUFFER_SIZE);
+      this.index = index;
+    }
+
+    /**
+     * @return false if there are no lines left
+     */
+    private boolean next() throws IOException {
+      line = reader.readLine();
+      return line != null;
+    }
+
+    public void close() throws IOException {
+      try {
+        reader.close();
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package org.gbif.ipt.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compact set of 64 bit fingerprints, each associated with an int value (e.g. the ordinal of the value the
+ * fingerprint was computed from).
+ * </br>
+ * Entries are stored off-heap in direct buffers, using open addressing with linear probing, so that tens of millions
+ * of entries neither create objects nor weigh on the garbage collector. Each entry takes 12 bytes. The table is split
+ * into segments by the highest bits of the fingerprint, every segment growing independently, which keeps each
+ * buffer well below the 2GB limit of a single buffer and spreads the cost of rehashing.
+ * </br>
+ * Fingerprints are expected to be well distributed hash values. This class is not thread-safe.
+ */
+public class FingerprintSet {
+
+  // value returned for absent fingerprints
+  public static final int ABSENT = -1;
+
+  private static final int SEGMENT_BITS = 6;
+  private static final int SEGMENTS = 1 << SEGMENT_BITS;
+  private static final int ENTRY_BYTES = 12;
+  private static final int MIN_SEGMENT_CAPACITY = 1 << 10;
+  private static final int MAX_SEGMENT_CAPACITY = 1 << 27;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  // 0 marks free slots in the table, so the fingerprint 0 is kept aside
+  private boolean hasZero;
+  private int zeroValue;
+  private long size;
+
+  /**
+   * Creates a new empty set.
+   */
+  public FingerprintSet() {
+    this(0);
+  }
+
+  /**
+   * Creates a new empty set, sized for the number of entries expected.
+   *
+   * @param expectedSize number of entries expected
+   */
+  public FingerprintSet(long expectedSize) {
+    long perSegment = (long) (expectedSize / LOAD_FACTOR / SEGMENTS) + 1;
+    int capacity = MIN_SEGMENT_CAPACITY;
+    while (capacity < perSegment && capacity < MAX_SEGMENT_CAPACITY) {
+      capacity <<= 1;
+    }
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(capacity);
+    }
+  }
+
+  /**
+   * Adds a fingerprint with its value, unless the set already contains the fingerprint.
+   *
+   * @param fingerprint fingerprint
+   * @param value value associated with fingerprint, must not be negative
+   *
+   * @return value associated with the fingerprint already in the set, or ABSENT if the fingerprint was added
+   */
+  public int putIfAbsent(long fingerprint, int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Fingerprint values must not be negative: " + value);
+    }
+    if (fingerprint == 0) {
+      if (hasZero) {
+        return zeroValue;
+      }
+      hasZero = true;
+      zeroValue = value;
+      size++;
+      return ABSENT;
+    }
+    int existing = segment(fingerprint).putIfAbsent(fingerprint, value);
+    if (existing == ABSENT) {
+      size++;
+    }
+    return existing;
+  }
+
+  /**
+   * @param fingerprint fingerprint
+   *
+   * @return value associated with the fingerprint, or ABSENT if the set doesn't contain the fingerprint
+   */
+  public int get(long fingerprint) {
+    if (fingerprint == 0) {
+      return hasZero ? zeroValue : ABSENT;
+    }
+    return segment(fingerprint).get(fingerprint);
+  }
+
+  /**
+   * @param fingerprint fingerprint
+   *
+   * @return true if the set contains the fingerprint, false otherwise
+   */
+  public boolean contains(long fingerprint) {
+    return get(fingerprint) != ABSENT;
+  }
+
+  /**
+   * @return number of fingerprints in the set
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * @return number of bytes allocated off-heap by the set
+   */
+  public long allocatedBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      bytes += (long) segment.capacity * ENTRY_BYTES;
+    }
+    return bytes;
+  }
+
+  private Segment segment(long fingerprint) {
+    return segments[(int) (fingerprint >>> (64 - SEGMENT_BITS))];
+  }
+
+  /**
+   * Computes a 64 bit fingerprint of a character sequence (FNV-1a, followed by a MurmurHash3 finalizer to spread the
+   * bits over the whole fingerprint).
+   *
+   * @param value character sequence
+   * @param ignoreCase true if the fingerprint should not depend on case, using the same comparison as
+   *        String.compareToIgnoreCase
+   *
+   * @return fingerprint
+   */
+  public static long fingerprint(CharSequence value, boolean ignoreCase) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (ignoreCase) {
+        c = Character.toLowerCase(Character.toUpperCase(c));
+      }
+      h ^= c;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Open addressing table of a single segment. Each slot holds the fingerprint (8 bytes) followed by its value
+   * (4 bytes), a fingerprint of 0 marking a free slot.
+   */
+  private static class Segment {
+
+    private ByteBuffer table;
+    private int capacity;
+    private int mask;
+    private int size;
+    private int threshold;
+
+    private Segment(int capacity) {
+      allocate(capacity);
+    }
+
+    private void allocate(int newCapacity) {
+      capacity = newCapacity;
+      mask = newCapacity - 1;
+      threshold = (int) (newCapacity * LOAD_FACTOR);
+      // direct buffers are zeroed on allocation, so all slots start free
+      table = ByteBuffer.allocateDirect(newCapacity * ENTRY_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    private int slot(long fingerprint) {
+      return (int) fingerprint & mask;
+    }
+
+    private int get(long fingerprint) {
+      int slot = slot(fingerprint);
+      while (true) {
+        long key = table.getLong(slot * ENTRY_BYTES);
+        if (key == 0) {
+          return ABSENT;
+        } else if (key == fingerprint) {
+          return table.getInt(slot * ENTRY_BYTES + 8);
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private int putIfAbsent(long fingerprint, int value) {
+      int slot = slot(fingerprint);
+      while (true) {
+        long key = table.getLong(slot * ENTRY_BYTES);
+        if (key == 0) {
+          break;
+        } else if (key == fingerprint) {
+          return table.getInt(slot * ENTRY_BYTES + 8);
+        }
+        slot = (slot + 1) & mask;
+      }
+      table.putLong(slot * ENTRY_BYTES, fingerprint);
+      table.putInt(slot * ENTRY_BYTES + 8, value);
+      size++;
+      if (size > threshold) {
+        grow();
+      }
+      return ABSENT;
+    }
+
+    private void grow() {
+      if (capacity >= MAX_SEGMENT_CAPACITY) {
+        if (size >= capacity - 1) {
+          throw new IllegalStateException("Fingerprint set segment is full: " + size + " entries");
+        }
+        // keep filling the segment beyond its load factor, at the cost of longer probes
+        threshold = capacity - 1;
+        return;
+      }
+      ByteBuffer old = table;
+      int oldCapacity = capacity;
+      allocate(capacity << 1);
+      for (int i = 0; i < oldCapacity; i++) {
+        long key = old.getLong(i * ENTRY_BYTES);
+        if (key != 0) {
+          int slot = slot(key);
+          while (table.getLong(slot * ENTRY_BYTES) != 0) {
+            slot = (slot + 1) & mask;
+          }
+          table.putLong(slot * ENTRY_BYTES, key);
+          table.putInt(slot * ENTRY_BYTES + 8, old.getInt(i * ENTRY_BYTES + 8));
+        }
+      }
+    }
+  }
+}
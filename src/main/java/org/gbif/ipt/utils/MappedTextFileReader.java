@@ -0,0 +1,498 @@
+package org.gbif.ipt.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Strings;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the rows of a delimited text file through a memory-mapped window of the file, finding line breaks, delimiters
+ * and quotes directly on the bytes. Only the values of the columns asked for get decoded into strings, so that wide
+ * files of which only a few columns are mapped are read much faster than with a CSVReader.
+ * </br>
+ * Rows are split like the CSVReader splits them: a line break (\n, \r or \r\n) always ends a row, blank lines are
+ * skipped, and a value starting with the quote character is quoted, a doubled quote character standing for a single
+ * one inside quotes. The values of columns not asked for are null if blank, or {@link #NOT_DECODED} otherwise, so
+ * that empty rows can still be told apart.
+ * </br>
+ * Delimiters and quotes are only looked for on bytes, so the reader only supports encodings in which ASCII characters
+ * are encoded as single bytes that can't be part of any other character, see {@link #supports}.
+ * </br>
+ * This class is not thread-safe.
+ */
+public class MappedTextFileReader implements PositionedRowIterator {
+
+  private static final Logger LOG = Logger.getLogger(MappedTextFileReader.class);
+  // value of the columns not decoded that aren't blank
+  public static final String NOT_DECODED = "<not decoded>";
+  public static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+  private static final byte LF = '\n';
+  private static final byte CR = '\r';
+
+  private final String fileName;
+  private final FileChannel channel;
+  // position in the file the rows end at
+  private final long end;
+  private final long windowSize;
+  private final Charset charset;
+  private final byte[] delimiter;
+  private final int quote;
+  // columns decoded, null to decode all columns
+  private final boolean[] decoded;
+
+  private MappedByteBuffer window;
+  // position in the file the window starts at
+  private long windowStart;
+  // position in the file of the next line
+  private long position;
+  // whether the last line ended with \r, a following \n being part of the line break
+  private boolean afterCr = false;
+  // bounds of the current line in the window
+  private int lineStart;
+  private int lineEnd;
+  // number of lines read, including header and blank lines
+  private int lines = 0;
+  private final Set<Integer> emptyLines = new HashSet<Integer>();
+
+  private String[] values = new String[64];
+  private byte[] scratch = new byte[1024];
+  private String[] next;
+  // position in the file of the line of the next row, and of the row returned last
+  private long nextStart = -1;
+  private long rowStart = -1;
+  private String errorMessage;
+  private Exception exception;
+
+  /**
+   * Opens the file and reads up to its first row.
+   *
+   * @param file delimited text file
+   * @param encoding encoding of the file, supported by the reader
+   * @param delimiter delimiter of the values
+   * @param quote quote character, null if values aren't quoted
+   * @param headerRows number of header lines skipped
+   * @param columns indexes of the columns decoded, null to decode all columns
+   *
+   * @throws IOException if the file could not be opened, or its first rows could not be read
+   */
+  public MappedTextFileReader(File file, String encoding, String delimiter, @Nullable Character quote, int headerRows,
+    @Nullable Set<Integer> columns) throws IOException {
+    this(file, encoding, delimiter, quote, headerRows, columns, 0, Long.MAX_VALUE, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Opens the file and reads up to the first row of a range of it, e.g. a range found by the TextFileSplitter.
+   *
+   * @param file delimited text file
+   * @param encoding encoding of the file, supported by the reader
+   * @param delimiter delimiter of the values
+   * @param quote quote character, null if values aren't quoted
+   * @param columns indexes of the columns decoded, null to decode all columns
+   * @param start position in the file of the first line of the range
+   * @param end position in the file the range ends at, just after a line break or at the end of the file
+   *
+   * @throws IOException if the file could not be opened, or the first rows of the range could not be read
+   */
+  public MappedTextFileReader(File file, String encoding, String delimiter, @Nullable Character quote,
+    @Nullable Set<Integer> columns, long start, long end) throws IOException {
+    this(file, encoding, delimiter, quote, 0, columns, start, end, DEFAULT_WINDOW_SIZE);
+  }
+
+  MappedTextFileReader(File file, String encoding, String delimiter, @Nullable Character quote, int headerRows,
+    @Nullable Set<Integer> columns, long start, long end, long windowSize) throws IOException {
+    if (!supports(encoding, delimiter, quote)) {
+      throw new IllegalArgumentException(
+        "Encoding " + encoding + " with delimiter [" + delimiter + "] and quote [" + quote + "] is not supported");
+    }
+    this.fileName = file.getName();
+    this.charset = Charset.forName(encoding);
+    this.delimiter = delimiter.getBytes(charset);
+    this.quote = quote == null ? -1 : quote;
+    this.windowSize = windowSize;
+    if (columns == null) {
+      this.decoded = null;
+    } else {
+      int max = -1;
+      for (Integer column : columns) {
+        max = Math.max(max, column);
+      }
+      this.decoded = new boolean[max + 1];
+      for (Integer column : columns) {
+        if (column >= 0) {
+          decoded[column] = true;
+        }
+      }
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    this.channel = raf.getChannel();
+    try {
+      this.end = Math.min(end, channel.size());
+      this.position = Math.min(start, this.end);
+      map(position);
+      for (int i = 0; i < headerRows && readLine(); i++) {
+        // header lines are skipped
+      }
+      next = readRow();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @param encoding encoding of the file
+   * @param delimiter delimiter of the values
+   * @param quote quote character, null if values aren't quoted
+   *
+   * @return true if a file with this encoding, delimiter and quote character can be read by this reader
+   */
+  public static boolean supports(@Nullable String encoding, @Nullable String delimiter, @Nullable Character quote) {
+    if (Strings.isNullOrEmpty(encoding) || Strings.isNullOrEmpty(delimiter)
+        || StringUtils.containsAny(delimiter, '\n', '\r')) {
+      return false;
+    }
+    if (quote != null && (quote >= 0x80 || quote == '\n' || quote == '\r')) {
+      return false;
+    }
+    Charset charset;
+    try {
+      charset = Charset.forName(encoding);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    // encodings where ASCII bytes are never part of another character
+    String name = charset.name();
+    return "UTF-8".equals(name) || "US-ASCII".equals(name) || name.startsWith("ISO-8859-")
+           || name.startsWith("windows-125");
+  }
+
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  public String[] next() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    String[] row = next;
+    rowStart = nextStart;
+    errorMessage = null;
+    exception = null;
+    try {
+      next = readRow();
+    } catch (IOException e) {
+      // the rest of the file can't be read, assume no more rows
+      LOG.debug("Exception caught reading " + fileName + ": " + e.getMessage(), e);
+      next = null;
+      exception = e;
+      errorMessage = e.getMessage();
+    }
+    return row;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException("Cannot remove a row from a text file");
+  }
+
+  public boolean hasRowError() {
+    return exception != null;
+  }
+
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  public Exception getException() {
+    return exception;
+  }
+
+  /**
+   * @return position in the file of the line of the row returned last, e.g. to read the file again from that row
+   */
+  public long getRowStart() {
+    return rowStart;
+  }
+
+  /**
+   * @return number of lines read so far, including header lines, blank lines and the line of the next row
+   */
+  public int getLines() {
+    return lines;
+  }
+
+  /**
+   * @return numbers of the blank lines skipped so far, the first line read being line 1
+   */
+  public Set<Integer> getEmptyLines() {
+    return emptyLines;
+  }
+
+  /**
+   * Closes the file. The mapped window is released once garbage collected.
+   */
+  public void close() {
+    next = null;
+    window = null;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOG.error("Cant close text file " + fileName, e);
+    }
+  }
+
+  private void map(long start) throws IOException {
+    map(start, windowSize);
+  }
+
+  /**
+   * Maps the window of the file starting at the position given, up to the end of the rows or 2GB at most.
+   */
+  private void map(long start, long size) throws IOException {
+    long length = Math.min(end - start, size);
+    if (length > Integer.MAX_VALUE) {
+      length = Integer.MAX_VALUE;
+    }
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    windowStart = start;
+  }
+
+  /**
+   * Reads up to the next non blank line, splitting it.
+   *
+   * @return values of the line, or null at the end of the file
+   */
+  private String[] readRow() throws IOException {
+    while (readLine()) {
+      String[] row = split();
+      if (row != null) {
+        nextStart = windowStart + lineStart;
+        return row;
+      }
+      emptyLines.add(lines);
+    }
+    return null;
+  }
+
+  /**
+   * Finds the bounds of the next line in the window, remapping the window if the line doesn't fit in it.
+   *
+   * @return false at the end of the file
+   */
+  private boolean readLine() throws IOException {
+    if (position >= windowStart + window.limit() && position < end) {
+      map(position);
+    }
+    if (afterCr) {
+      afterCr = false;
+      if (position < end && window.get((int) (position - windowStart)) == LF) {
+        position++;
+        if (position >= windowStart + window.limit() && position < end) {
+          map(position);
+        }
+      }
+    }
+    if (position >= end) {
+      return false;
+    }
+    int i = (int) (position - windowStart);
+    while (true) {
+      int limit = window.limit();
+      while (i < limit) {
+        byte b = window.get(i);
+        if (b == LF || b == CR) {
+          break;
+        }
+        i++;
+      }
+      if (i < limit || windowStart + limit >= end) {
+        break;
+      }
+      // the line goes on beyond the window: map a window starting at the line, larger if the line fills it
+      long scanned = windowStart + i - position;
+      if (windowStart == position && limit == Integer.MAX_VALUE) {
+        throw new IOException("Line at byte " + position + " of " + fileName + " is too long");
+      }
+      map(position, windowStart == position ? 2L * limit : windowSize);
+      i = (int) scanned;
+    }
+    lineStart = (int) (position - windowStart);
+    lineEnd = i;
+    lines++;
+    position = windowStart + i;
+    if (i < window.limit()) {
+      afterCr = window.get(i) == CR;
+      position++;
+    }
+    return true;
+  }
+
+  /**
+   * Splits the current line into values, the way a StrTokenizer does.
+   *
+   * @return values of the line, or null if the line is blank
+   */
+  private String[] split() {
+    if (isBlank(lineStart, lineEnd)) {
+      return null;
+    }
+    int count = 0;
+    int pos = lineStart;
+    while (pos >= 0 && pos < lineEnd) {
+      pos = readValue(pos, count++);
+      // a line ending with a delimiter ends with an empty value
+      if (pos >= lineEnd) {
+        setValue(count, isDecoded(count) ? "" : null);
+        count++;
+      }
+    }
+    return Arrays.copyOf(values, count);
+  }
+
+  /**
+   * Reads the value starting at the given position.
+   *
+   * @return position after the delimiter ending the value, or -1 if the value ends the line
+   */
+  private int readValue(int start, int column) {
+    boolean decode = isDecoded(column);
+    if (isDelimiter(start)) {
+      setValue(column, decode ? "" : null);
+      return start + delimiter.length;
+    }
+    if (quote < 0 || window.get(start) != quote) {
+      // unquoted value, up to the next delimiter
+      int pos = start;
+      boolean blank = true;
+      while (pos < lineEnd && !isDelimiter(pos)) {
+        blank = blank && isWhitespace(window.get(pos));
+        pos++;
+      }
+      if (decode) {
+        setValue(column, decode(start, pos - start));
+      } else {
+        setValue(column, blank ? null : NOT_DECODED);
+      }
+      return pos < lineEnd ? pos + delimiter.length : -1;
+    }
+    // quoted value, unquoted into the scratch buffer
+    int length = 0;
+    boolean blank = true;
+    boolean quoting = true;
+    int pos = start + 1;
+    int after = -1;
+    while (pos < lineEnd) {
+      byte b = window.get(pos);
+      if (quoting) {
+        if (b == quote) {
+          if (pos + 1 < lineEnd && window.get(pos + 1) == quote) {
+            // doubled quote inside quotes
+            length = append(length, b, decode);
+            blank = false;
+            pos += 2;
+          } else {
+            quoting = false;
+            pos++;
+          }
+          continue;
+        }
+      } else if (isDelimiter(pos)) {
+        after = pos + delimiter.length;
+        break;
+      } else if (b == quote) {
+        quoting = true;
+        pos++;
+        continue;
+      }
+      length = append(length, b, decode);
+      blank = blank && isWhitespace(b);
+      pos++;
+    }
+    if (decode) {
+      setValue(column, new String(scratch, 0, length, charset));
+    } else {
+      setValue(column, blank ? null : NOT_DECODED);
+    }
+    return after;
+  }
+
+  private boolean isDecoded(int column) {
+    return decoded == null || (column < decoded.length && decoded[column]);
+  }
+
+  private boolean isDelimiter(int pos) {
+    if (window.get(pos) != delimiter[0]) {
+      return false;
+    }
+    if (pos + delimiter.length > lineEnd) {
+      return false;
+    }
+    for (int i = 1; i < delimiter.length; i++) {
+      if (window.get(pos + i) != delimiter[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the bytes are all whitespace, bytes of non ASCII characters being decoded to tell
+   */
+  private boolean isBlank(int start, int end) {
+    for (int i = start; i < end; i++) {
+      byte b = window.get(i);
+      if (b < 0) {
+        return StringUtils.isBlank(decode(start, end - start));
+      }
+      if (!isWhitespace(b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b >= 0 && Character.isWhitespace((char) b);
+  }
+
+  private String decode(int start, int length) {
+    if (length == 0) {
+      return "";
+    }
+    ensureScratch(length);
+    window.position(start);
+    window.get(scratch, 0, length);
+    return new String(scratch, 0, length, charset);
+  }
+
+  private int append(int length, byte b, boolean decode) {
+    if (decode) {
+      ensureScratch(length + 1);
+      scratch[length] = b;
+    }
+    return length + 1;
+  }
+
+  private void ensureScratch(int length) {
+    if (scratch.length < length) {
+      scratch = Arrays.copyOf(scratch, Math.max(length, 2 * scratch.length));
+    }
+  }
+
+  private void setValue(int column, String value) {
+    if (column >= values.length) {
+      values = Arrays.copyOf(values, 2 * values.length);
+    }
+    values[column] = value;
+  }
+}
@@ -0,0 +1,244 @@
+package org.gbif.ipt.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the rows of a delimited text file split into ranges by the TextFileSplitter, parsing every range on its own
+ * thread with a MappedTextFileReader.
+ * </br>
+ * Rows are handed over to the consuming thread in batches. In ordered mode, rows come in the order of the file, the
+ * batches of each range being queued separately until all rows of the ranges before are consumed. Otherwise rows come
+ * in the order ranges get parsed, e.g. to count or sample the values of a column. The queues are bounded, so a range
+ * gets parsed only as fast as its rows are consumed.
+ * </br>
+ * Like the MappedTextFileReader, if a range can't be read the rows read so far are returned, the last one reporting
+ * the error, and the position in the file of every row returned is known. A reader must be consumed by a single
+ * thread, and closed afterwards.
+ */
+public class ParallelTextFileReader implements PositionedRowIterator {
+
+  private static final Logger LOG = Logger.getLogger(ParallelTextFileReader.class);
+  private static final int BATCH_SIZE = 1000;
+  // batches queued for each thread
+  private static final int QUEUED_BATCHES = 4;
+  private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+  private final String fileName;
+  private final ExecutorService executor;
+  // a queue per range in ordered mode, a single queue otherwise
+  private final List<BlockingQueue<Batch>> queues = new ArrayList<BlockingQueue<Batch>>();
+  private final int ranges;
+  private int rangesEnded = 0;
+  private Batch batch;
+  // index in the batch of the next row
+  private int batchIndex;
+  private String[] next;
+  // position in the file of the line of the next row, and of the row returned last
+  private long nextStart = -1;
+  private long rowStart = -1;
+  private String errorMessage;
+  private Exception exception;
+  private boolean closed = false;
+
+  /**
+   * Starts parsing all ranges, each on its own thread.
+   *
+   * @param file delimited text file
+   * @param encoding encoding of the file, supported by the MappedTextFileReader
+   * @param delimiter delimiter of the values
+   * @param quote quote character, null if values aren't quoted
+   * @param columns indexes of the columns decoded, null to decode all columns
+   * @param ranges ranges of the file, in the order of the file
+   * @param ordered true to return rows in the order of the file
+   */
+  public ParallelTextFileReader(final File file, final String encoding, final String delimiter,
+    @Nullable final Character quote, @Nullable final Set<Integer> columns, List<TextFileSplitter.Range> ranges,
+    boolean ordered) {
+    if (!MappedTextFileReader.supports(encoding, delimiter, quote)) {
+      throw new IllegalArgumentException(
+        "Encoding " + encoding + " with delimiter [" + delimiter + "] and quote [" + quote + "] is not supported");
+    }
+    this.fileName = file.getName();
+    this.ranges = ranges.size();
+    if (ordered) {
+      for (int i = 0; i < ranges.size(); i++) {
+        queues.add(new ArrayBlockingQueue<Batch>(QUEUED_BATCHES));
+      }
+    } else {
+      queues.add(new ArrayBlockingQueue<Batch>(QUEUED_BATCHES * Math.max(1, ranges.size())));
+    }
+    executor = Executors.newFixedThreadPool(Math.max(1, ranges.size()));
+    for (final TextFileSplitter.Range range : ranges) {
+      final BlockingQueue<Batch> queue = queues.get(ordered ? range.getIndex() : 0);
+      executor.submit(new Callable<Void>() {
+        public Void call() throws InterruptedException {
+          parse(file, encoding, delimiter, quote, columns, range, queue);
+          return null;
+        }
+      });
+    }
+    fetchNext();
+  }
+
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  public String[] next() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    String[] row = next;
+    rowStart = nextStart;
+    errorMessage = null;
+    exception = null;
+    fetchNext();
+    return row;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException("Cannot remove a row from a text file");
+  }
+
+  public boolean hasRowError() {
+    return exception != null;
+  }
+
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  public Exception getException() {
+    return exception;
+  }
+
+  public long getRowStart() {
+    return rowStart;
+  }
+
+  /**
+   * Stops parsing, waiting for the parsing threads to close their ranges.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    next = null;
+    executor.shutdownNow();
+    try {
+      if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("Parsing threads of " + fileName + " did not stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Takes the next row from the batches parsed, waiting for them if needed.
+   */
+  private void fetchNext() {
+    next = null;
+    try {
+      while (batch == null || batchIndex == batch.rows.size()) {
+        if (rangesEnded == ranges) {
+          executor.shutdown();
+          return;
+        }
+        Batch b = queues.get(queues.size() == 1 ? 0 : rangesEnded).take();
+        if (b.exception != null) {
+          // the rest of the range can't be read, assume no more rows
+          LOG.debug("Exception caught reading " + fileName + ": " + b.exception.getMessage(), b.exception);
+          exception = b.exception;
+          errorMessage = b.exception.getMessage();
+          rangesEnded = ranges;
+          executor.shutdownNow();
+          return;
+        }
+        if (b.rows == null) {
+          rangesEnded++;
+        } else {
+          batch = b;
+          batchIndex = 0;
+        }
+      }
+      nextStart = batch.starts[batchIndex];
+      next = batch.rows.get(batchIndex++);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      exception = e;
+      errorMessage = "Interrupted while reading " + fileName;
+      rangesEnded = ranges;
+    }
+  }
+
+  /**
+   * Runs on a parsing thread: parses a range into batches, ending with an end of range batch.
+   */
+  private static void parse(File file, String encoding, String delimiter, @Nullable Character quote,
+    @Nullable Set<Integer> columns, TextFileSplitter.Range range, BlockingQueue<Batch> queue)
+    throws InterruptedException {
+    MappedTextFileReader reader = null;
+    try {
+      reader = new MappedTextFileReader(file, encoding, delimiter, quote, columns, range.getStart(), range.getEnd());
+      List<String[]> rows = new ArrayList<String[]>(BATCH_SIZE);
+      long[] starts = new long[BATCH_SIZE];
+      while (reader.hasNext()) {
+        rows.add(reader.next());
+        starts[rows.size() - 1] = reader.getRowStart();
+        if (reader.hasRowError()) {
+          queue.put(new Batch(rows, starts, null));
+          queue.put(new Batch(null, null, reader.getException()));
+          return;
+        }
+        if (rows.size() == BATCH_SIZE) {
+          queue.put(new Batch(rows, starts, null));
+          rows = new ArrayList<String[]>(BATCH_SIZE);
+          starts = new long[BATCH_SIZE];
+        }
+      }
+      if (!rows.isEmpty()) {
+        queue.put(new Batch(rows, starts, null));
+      }
+      queue.put(new Batch(null, null, null));
+    } catch (IOException e) {
+      queue.put(new Batch(null, null, e));
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Rows parsed, or the end of a range if there are no rows, possibly failed.
+   */
+  private static class Batch {
+
+    private final List<String[]> rows;
+    // position in the file of the line of each row
+    private final long[] starts;
+    private final Exception exception;
+
+    private Batch(@Nullable List<String[]> rows, @Nullable long[] starts, @Nullable Exception exception) {
+      this.rows = rows;
+      this.starts = starts;
+      this.exception = exception;
+    }
+  }
+}
@@ -0,0 +1,751 @@
+package org.gbif.ipt.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Output stream writing a standard zip file whose entries are deflated on several cores, similar to pigz.
+ * </br>
+ * The data of each entry is cut into fixed-size blocks, deflated concurrently on a pool of threads. Each block is
+ * primed with the last 32KB of the block before as dictionary, so the compression ratio stays close to a single
+ * deflate stream. All blocks but the last one of an entry end with a sync flush, which aligns them on a byte boundary
+ * so that they can simply be concatenated into one valid deflate stream. The CRC is computed on the writing thread,
+ * and the number of blocks in flight is bounded so that memory use stays constant.
+ * </br>
+ * When written to a file, the local file header of each entry is rewritten with its sizes and CRC once the entry is
+ * closed, the header reserving room for a ZIP64 extra field in case the entry reaches 4GB. When written to a stream,
+ * entries are followed by a data descriptor like with java.util.zip.ZipOutputStream, and can't reach 4GB as their
+ * local file header has no ZIP64 extra field. ZIP64 extensions are used in the local file headers, central directory
+ * and end of central directory record only when sizes, offsets or the number of entries require them, so the
+ * resulting file can be read by any zip reader, including streaming readers. Entries of an existing zip file can also
+ * be copied as they are, e.g. to reuse the data files of a previous archive.
+ * </br>
+ * This class is not thread-safe: entries must be written by a single thread.
+ */
+public class ParallelZipOutputStream extends OutputStream {
+
+  public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+  // general purpose flags: entry name is UTF-8 (bit 11), data descriptor follows data (bit 3)
+  private static final int FLAG_UTF8 = 0x0800;
+  private static final int FLAG_DESCRIPTOR = 0x0008;
+  // length of the ZIP64 extra field of local file headers, holding both sizes
+  private static final int ZIP64_LOCAL_EXTRA_LENGTH = 20;
+  private static final int VERSION = 20;
+  private static final int VERSION_ZIP64 = 45;
+
+  private final OutputStream out;
+  // zip file written, null if written to a stream
+  private final RandomAccessFile file;
+  private final int level;
+  private final int blockSize;
+  private final ExecutorService executor;
+  private final int maxBlocksInFlight;
+  private final Deque<Future<byte[]>> blocksInFlight = new ArrayDeque<Future<byte[]>>();
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private final CRC32 crc = new CRC32();
+  private Entry entry;
+  private byte[] block;
+  private int blockLength;
+  // data of the block submitted last for the current entry, whose end primes the next block
+  private byte[] previousBlock;
+  private int previousBlockLength;
+  private long written = 0;
+  private boolean finished = false;
+
+  /**
+   * Creates a new zip output stream, compressing with the default compression level and block size.
+   *
+   * @param out stream the zip file is written to
+   * @param threads number of threads compressing blocks, 1 or less meaning blocks get compressed by the writing thread
+   */
+  public ParallelZipOutputStream(OutputStream out, int threads) {
+    this(out, threads, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Creates a new zip output stream.
+   *
+   * @param out stream the zip file is written to
+   * @param threads number of threads compressing blocks, 1 or less meaning blocks get compressed by the writing thread
+   * @param level compression level
+   * @param blockSize number of uncompressed bytes compressed as one block, at least 32KB
+   */
+  public ParallelZipOutputStream(OutputStream out, int threads, int level, int blockSize) {
+    this(out, null, threads, level, blockSize);
+  }
+
+  /**
+   * Creates a new zip file, compressing with the default compression level and block size. Entries written to a file
+   * can be of any size.
+   *
+   * @param zipFile zip file written, replaced if it exists
+   * @param threads number of threads compressing blocks, 1 or less meaning blocks get compressed by the writing thread
+   *
+   * @throws IOException if the file could not be opened
+   */
+  public ParallelZipOutputStream(File zipFile, int threads) throws IOException {
+    this(open(zipFile), threads, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+  }
+
+  private ParallelZipOutputStream(RandomAccessFile file, int threads, int level, int blockSize) {
+    this(new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 64 * 1024), file, threads, level,
+      blockSize);
+  }
+
+  private ParallelZipOutputStream(OutputStream out, RandomAccessFile file, int threads, int level, int blockSize) {
+    if (blockSize < DICTIONARY_SIZE) {
+      throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + " bytes");
+    }
+    this.out = out;
+    this.file = file;
+    this.level = level;
+    this.blockSize = blockSize;
+    this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    this.maxBlocksInFlight = Math.max(2, threads * 2);
+  }
+
+  private static RandomAccessFile open(File zipFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(zipFile, "rw");
+    file.setLength(0);
+    return file;
+  }
+
+  /**
+   * Begins writing a new zip entry, closing the current entry if still open. Only the name and time of the entry are
+   * used, entries always being deflated.
+   *
+   * @param zipEntry zip entry
+   *
+   * @throws IOException if an I/O error has occurred
+   */
+  public void putNextEntry(ZipEntry zipEntry) throws IOException {
+    ensureOpen();
+    if (entry != null) {
+      closeEntry();
+    }
+    entry = new Entry(zipEntry.getName().getBytes(UTF8),
+      dosTime(zipEntry.getTime() == -1 ? System.currentTimeMillis() : zipEntry.getTime()), written);
+    // written to a file, the local file header gets rewritten with the sizes once known
+    entry.flags = file == null ? FLAG_UTF8 | FLAG_DESCRIPTOR : FLAG_UTF8;
+    entry.method = ZipEntry.DEFLATED;
+    crc.reset();
+    block = new byte[blockSize];
+    blockLength = 0;
+    previousBlock = null;
+    previousBlockLength = 0;
+    // sizes and CRC follow the data, in the data descriptor or the rewritten header
+    byte[] header = localHeader(entry, false, file != null);
+    writeBytes(header, 0, header.length);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (entry == null) {
+      throw new IOException("No current zip entry");
+    }
+    crc.update(b, off, len);
+    entry.size += len;
+    while (len > 0) {
+      // a full block is only submitted once more data arrives, so that the last block of an entry is never empty
+      if (blockLength == blockSize) {
+        submitBlock(false);
+      }
+      int n = Math.min(len, blockSize - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Closes the current zip entry: its last block is compressed and all its blocks are written. The local file header
+   * is then rewritten with the sizes and CRC of the entry, or the data descriptor follows if written to a stream.
+   *
+   * @throws IOException if an I/O error has occurred
+   */
+  public void closeEntry() throws IOException {
+    ensureOpen();
+    if (entry == null) {
+      return;
+    }
+    submitBlock(true);
+    while (!blocksInFlight.isEmpty()) {
+      writeCompressed(blocksInFlight.removeFirst());
+    }
+    entry.crc = crc.getValue();
+    if (file != null) {
+      rewriteLocalHeader(entry);
+    } else if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC) {
+      // streaming readers only expect a ZIP64 data descriptor if the local file header has a ZIP64 extra field
+      throw new ZipException("Zip entry " + new String(entry.name, UTF8)
+                             + " reached 4GB, which requires the zip file to be written to a file");
+    } else {
+      writeDataDescriptor(entry);
+    }
+    entries.add(entry);
+    entry = null;
+    block = null;
+    previousBlock = null;
+  }
+
+  /**
+   * Copies the entries of an existing zip file as they are, without decompressing and compressing them again. The
+   * current entry gets closed first if still open.
+   *
+   * @param zipFile zip file to copy entries from
+   * @param excludedNames names of the entries not to copy
+   *
+   * @return names of the entries copied
+   *
+   * @throws IOException if the zip file could not be read, or an I/O error has occurred
+   */
+  public List<String> copyEntries(File zipFile, Collection<String> excludedNames) throws IOException {
+    ensureOpen();
+    if (entry != null) {
+      closeEntry();
+    }
+    List<String> copied = new ArrayList<String>();
+    RandomAccessFile source = new RandomAccessFile(zipFile, "r");
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      for (SourceEntry se : readCentralDirectory(source)) {
+        String name = new String(se.entry.name, UTF8);
+        if (excludedNames.contains(name)) {
+          continue;
+        }
+        Entry e = se.entry;
+        e.offset = written;
+        // sizes are known, so the local file header holds them, in a ZIP64 extra field if they don't fit
+        e.flags = e.flags & FLAG_UTF8;
+        byte[] localHeader = localHeader(e, true, false);
+        writeBytes(localHeader, 0, localHeader.length);
+
+        // data follows the local file header of the source entry, whose name and extra field lengths can differ
+        byte[] header = readFully(source, se.localHeaderOffset, 30);
+        if (u32(header, 0) != 0x04034b50L) {
+          throw new ZipException("Invalid local file header for zip entry " + name + " in " + zipFile.getName());
+        }
+        source.seek(se.localHeaderOffset + 30 + u16(header, 26) + u16(header, 28));
+        long remaining = e.compressedSize;
+        while (remaining > 0) {
+          int n = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (n < 0) {
+            throw new EOFException("Zip entry " + name + " truncated in " + zipFile.getName());
+          }
+          writeBytes(buffer, 0, n);
+          remaining -= n;
+        }
+        entries.add(e);
+        copied.add(name);
+      }
+    } finally {
+      source.close();
+    }
+    return copied;
+  }
+
+  /**
+   * Finishes writing the zip file, closing the current entry and writing the central directory, without closing the
+   * underlying stream.
+   *
+   * @throws IOException if an I/O error has occurred
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    try {
+      closeEntry();
+      long centralDirectoryOffset = written;
+      for (Entry e : entries) {
+        writeCentralDirectoryHeader(e);
+      }
+      writeEnd(centralDirectoryOffset, written - centralDirectoryOffset);
+      out.flush();
+    } finally {
+      finished = true;
+      shutdown();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Abandons the zip file, e.g. after a failure: blocks in flight are cancelled and the underlying stream gets closed.
+   * The zip file written so far is incomplete.
+   */
+  public void abort() {
+    finished = true;
+    for (Future<byte[]> f : blocksInFlight) {
+      f.cancel(true);
+    }
+    blocksInFlight.clear();
+    shutdown();
+    try {
+      out.close();
+      if (file != null) {
+        file.close();
+      }
+    } catch (IOException e) {
+      // ignore, the zip file is incomplete anyway
+    }
+  }
+
+  private void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (finished) {
+      throw new IOException("Zip file already finished");
+    }
+  }
+
+  /**
+   * Hands the current block over for compression, writing out the oldest blocks compressed if too many are in flight.
+   *
+   * @param last true if this is the last block of the entry
+   */
+  private void submitBlock(boolean last) throws IOException {
+    BlockCompressor compressor =
+      new BlockCompressor(block, blockLength, previousBlock, previousBlockLength, level, last);
+    previousBlock = block;
+    previousBlockLength = blockLength;
+    block = last ? null : new byte[blockSize];
+    blockLength = 0;
+
+    if (executor == null) {
+      try {
+        writeCompressed(compressor.call());
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException("Zip entry block could not be compressed", e);
+      }
+    } else {
+      blocksInFlight.addLast(executor.submit(compressor));
+      while (blocksInFlight.size() > maxBlocksInFlight) {
+        writeCompressed(blocksInFlight.removeFirst());
+      }
+    }
+  }
+
+  private void writeCompressed(Future<byte[]> future) throws IOException {
+    try {
+      writeCompressed(future.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing zip entry " + new String(entry.name, UTF8));
+    } catch (ExecutionException e) {
+      throw new IOException("Zip entry block could not be compressed", e.getCause());
+    }
+  }
+
+  private void writeCompressed(byte[] compressed) throws IOException {
+    writeBytes(compressed, 0, compressed.length);
+    entry.compressedSize += compressed.length;
+  }
+
+  /**
+   * @param e entry
+   * @param withSizes true if the sizes and CRC of the entry are known
+   * @param reserveZip64 true to include a ZIP64 extra field even if the sizes don't need it, so that the header can be
+   *        rewritten with any sizes
+   *
+   * @return local file header of the entry
+   */
+  private static byte[] localHeader(Entry e, boolean withSizes, boolean reserveZip64) {
+    boolean zip64 = withSizes && (e.size >= ZIP64_MAGIC || e.compressedSize >= ZIP64_MAGIC);
+    boolean zip64Extra = zip64 || reserveZip64;
+    ByteBuffer header = ByteBuffer.allocate(30 + e.name.length + (zip64Extra ? ZIP64_LOCAL_EXTRA_LENGTH : 0))
+      .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(0x04034b50);
+    header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+    header.putShort((short) e.flags);
+    header.putShort((short) e.method);
+    header.putInt((int) e.time);
+    header.putInt(withSizes ? (int) e.crc : 0);
+    header.putInt(!withSizes ? 0 : (int) (zip64 ? ZIP64_MAGIC : e.compressedSize));
+    header.putInt(!withSizes ? 0 : (int) (zip64 ? ZIP64_MAGIC : e.size));
+    header.putShort((short) e.name.length);
+    header.putShort((short) (zip64Extra ? ZIP64_LOCAL_EXTRA_LENGTH : 0));
+    header.put(e.name);
+    if (zip64Extra) {
+      // ZIP64 extended information extra field of local file headers, holding both sizes, only read if needed
+      header.putShort((short) 0x0001);
+      header.putShort((short) (ZIP64_LOCAL_EXTRA_LENGTH - 4));
+      header.putLong(withSizes ? e.size : 0);
+      header.putLong(withSizes ? e.compressedSize : 0);
+    }
+    return header.array();
+  }
+
+  /**
+   * Rewrites the local file header of an entry written to a file with its sizes and CRC, the header having the same
+   * length as when written first.
+   */
+  private void rewriteLocalHeader(Entry e) throws IOException {
+    byte[] header = localHeader(e, true, true);
+    out.flush();
+    file.seek(e.offset);
+    file.write(header);
+    file.seek(written);
+  }
+
+  private void writeDataDescriptor(Entry e) throws IOException {
+    writeInt(0x08074b50L);
+    writeInt(e.crc);
+    writeInt(e.compressedSize);
+    writeInt(e.size);
+  }
+
+  private void writeCentralDirectoryHeader(Entry e) throws IOException {
+    boolean zip64Size = e.size >= ZIP64_MAGIC;
+    boolean zip64CompressedSize = e.compressedSize >= ZIP64_MAGIC;
+    boolean zip64Offset = e.offset >= ZIP64_MAGIC;
+    int extraLength = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+    boolean zip64 = extraLength > 0;
+
+    writeInt(0x02014b50L);
+    writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+    writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+    writeShort(e.flags);
+    writeShort(e.method);
+    writeInt(e.time);
+    writeInt(e.crc);
+    writeInt(zip64CompressedSize ? ZIP64_MAGIC : e.compressedSize);
+    writeInt(zip64Size ? ZIP64_MAGIC : e.size);
+    writeShort(e.name.length);
+    writeShort(zip64 ? extraLength + 4 : 0);
+    // comment length, disk number start, internal and external file attributes
+    writeShort(0);
+    writeShort(0);
+    writeShort(0);
+    writeInt(0);
+    writeInt(zip64Offset ? ZIP64_MAGIC : e.offset);
+    writeBytes(e.name, 0, e.name.length);
+    if (zip64) {
+      // ZIP64 extended information extra field, holding only the values that overflowed, in this order
+      writeShort(0x0001);
+      writeShort(extraLength);
+      if (zip64Size) {
+        writeLong(e.size);
+      }
+      if (zip64CompressedSize) {
+        writeLong(e.compressedSize);
+      }
+      if (zip64Offset) {
+        writeLong(e.offset);
+      }
+    }
+  }
+
+  private void writeEnd(long centralDirectoryOffset, long centralDirectorySize) throws IOException {
+    int count = entries.size();
+    boolean zip64 = count >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC
+                    || centralDirectorySize >= ZIP64_MAGIC;
+    if (zip64) {
+      long zip64EndOffset = written;
+      // ZIP64 end of central directory record
+      writeInt(0x06064b50L);
+      writeLong(44);
+      writeShort(VERSION_ZIP64);
+      writeShort(VERSION_ZIP64);
+      writeInt(0);
+      writeInt(0);
+      writeLong(count);
+      writeLong(count);
+      writeLong(centralDirectorySize);
+      writeLong(centralDirectoryOffset);
+      // ZIP64 end of central directory locator
+      writeInt(0x07064b50L);
+      writeInt(0);
+      writeLong(zip64EndOffset);
+      writeInt(1);
+    }
+    // end of central directory record
+    writeInt(0x06054b50L);
+    writeShort(0);
+    writeShort(0);
+    writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+    writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+    writeInt(Math.min(centralDirectorySize, ZIP64_MAGIC));
+    writeInt(Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+    writeShort(0);
+  }
+
+  private void writeShort(int v) throws IOException {
+    out.write(v & 0xff);
+    out.write((v >>> 8) & 0xff);
+    written += 2;
+  }
+
+  private void writeInt(long v) throws IOException {
+    writeShort((int) (v & 0xffff));
+    writeShort((int) ((v >>> 16) & 0xffff));
+  }
+
+  private void writeLong(long v) throws IOException {
+    writeInt(v & ZIP64_MAGIC);
+    writeInt(v >>> 32);
+  }
+
+  private void writeBytes(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    written += len;
+  }
+
+  /**
+   * Reads the central directory of a zip file, using the ZIP64 end of central directory record if present.
+   */
+  private static List<SourceEntry> readCentralDirectory(RandomAccessFile source) throws IOException {
+    // the end of central directory record is at the very end of the file, only followed by a comment
+    long length = source.length();
+    int tailLength = (int) Math.min(length, 22 + 0xFFFF);
+    byte[] tail = readFully(source, length - tailLength, tailLength);
+    int end = tailLength - 22;
+    while (end >= 0 && u32(tail, end) != 0x06054b50L) {
+      end--;
+    }
+    if (end < 0) {
+      throw new ZipException("End of central directory record not found");
+    }
+    long count = u16(tail, end + 10);
+    long centralDirectorySize = u32(tail, end + 12);
+    long centralDirectoryOffset = u32(tail, end + 16);
+    long locatorOffset = length - tailLength + end - 20;
+    if (locatorOffset >= 0) {
+      byte[] locator = readFully(source, locatorOffset, 20);
+      if (u32(locator, 0) == 0x07064b50L) {
+        byte[] zip64End = readFully(source, u64(locator, 8), 56);
+        if (u32(zip64End, 0) != 0x06064b50L) {
+          throw new ZipException("Invalid ZIP64 end of central directory record");
+        }
+        count = u64(zip64End, 32);
+        centralDirectorySize = u64(zip64End, 40);
+        centralDirectoryOffset = u64(zip64End, 48);
+      }
+    }
+    if (centralDirectorySize > Integer.MAX_VALUE) {
+      throw new ZipException("Central directory too large: " + centralDirectorySize + " bytes");
+    }
+
+    byte[] cd = readFully(source, centralDirectoryOffset, (int) centralDirectorySize);
+    List<SourceEntry> sourceEntries = new ArrayList<SourceEntry>();
+    int pos = 0;
+    for (long i = 0; i < count; i++) {
+      if (pos + 46 > cd.length || u32(cd, pos) != 0x02014b50L) {
+        throw new ZipException("Invalid central directory header");
+      }
+      int nameLength = u16(cd, pos + 28);
+      int extraLength = u16(cd, pos + 30);
+      int commentLength = u16(cd, pos + 32);
+      byte[] name = new byte[nameLength];
+      System.arraycopy(cd, pos + 46, name, 0, nameLength);
+      Entry e = new Entry(name, u32(cd, pos + 12), 0);
+      e.flags = u16(cd, pos + 8);
+      e.method = u16(cd, pos + 10);
+      e.crc = u32(cd, pos + 16);
+      e.compressedSize = u32(cd, pos + 20);
+      e.size = u32(cd, pos + 24);
+      long localHeaderOffset = u32(cd, pos + 42);
+
+      // ZIP64 extended information extra field, holding only the values that overflowed, in this order
+      int extra = pos + 46 + nameLength;
+      int extraEnd = extra + extraLength;
+      while (extra + 4 <= extraEnd) {
+        int id = u16(cd, extra);
+        int size = u16(cd, extra + 2);
+        if (id == 0x0001) {
+          int value = extra + 4;
+          if (e.size == ZIP64_MAGIC) {
+            e.size = u64(cd, value);
+            value += 8;
+          }
+          if (e.compressedSize == ZIP64_MAGIC) {
+            e.compressedSize = u64(cd, value);
+            value += 8;
+          }
+          if (localHeaderOffset == ZIP64_MAGIC) {
+            localHeaderOffset = u64(cd, value);
+          }
+        }
+        extra += 4 + size;
+      }
+      sourceEntries.add(new SourceEntry(e, localHeaderOffset));
+      pos = extraEnd + commentLength;
+    }
+    return sourceEntries;
+  }
+
+  private static byte[] readFully(RandomAccessFile source, long offset, int length) throws IOException {
+    byte[] b = new byte[length];
+    source.seek(offset);
+    source.readFully(b);
+    return b;
+  }
+
+  private static int u16(byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+  }
+
+  private static long u32(byte[] b, int i) {
+    return u16(b, i) | (long) u16(b, i + 2) << 16;
+  }
+
+  private static long u64(byte[] b, int i) {
+    return u32(b, i) | u32(b, i + 4) << 32;
+  }
+
+  /**
+   * Converts a Java time into the MS-DOS date and time format used in zip files.
+   */
+  private static long dosTime(long time) {
+    Calendar c = Calendar.getInstance();
+    c.setTimeInMillis(time);
+    int year = c.get(Calendar.YEAR);
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (long) (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+           | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+  }
+
+  /**
+   * Zip entry written, kept for the central directory.
+   */
+  private static class Entry {
+
+    private final byte[] name;
+    private final long time;
+    // offset of the local file header
+    private long offset;
+    private int flags;
+    private int method;
+    private long crc;
+    private long size;
+    private long compressedSize;
+
+    private Entry(byte[] name, long time, long offset) {
+      this.name = name;
+      this.time = time;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * Entry read from the central directory of another zip file, with the offset of its local file header.
+   */
+  private static class SourceEntry {
+
+    private final Entry entry;
+    private final long localHeaderOffset;
+
+    private SourceEntry(Entry entry, long localHeaderOffset) {
+      this.entry = entry;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+
+  /**
+   * Compresses a single block into raw deflate data, primed with the end of the previous block as dictionary.
+   */
+  private static class BlockCompressor implements Callable<byte[]> {
+
+    private final byte[] data;
+    private final int length;
+    private final byte[] previous;
+    private final int previousLength;
+    private final int level;
+    private final boolean last;
+
+    private BlockCompressor(byte[] data, int length, byte[] previous, int previousLength, int level, boolean last) {
+      this.data = data;
+      this.length = length;
+      this.previous = previous;
+      this.previousLength = previousLength;
+      this.level = level;
+      this.last = last;
+    }
+
+    public byte[] call() {
+      Deflater deflater = new Deflater(level, true);
+      try {
+        if (previous != null) {
+          int dictionaryLength = Math.min(DICTIONARY_SIZE, previousLength);
+          deflater.setDictionary(previous, previousLength - dictionaryLength, dictionaryLength);
+        }
+        deflater.setInput(data, 0, length);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[16 * 1024];
+        if (last) {
+          deflater.finish();
+          while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+          }
+        } else {
+          // a sync flush ends the block on a byte boundary; a full output buffer means more output is pending
+          int n;
+          do {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            compressed.write(buffer, 0, n);
+          } while (n == buffer.length);
+        }
+        return compressed.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package org.gbif.ipt.utils;
+
+import org.gbif.utils.file.ClosableReportingIterator;
+
+/**
+ * Iterator over the rows of a text file telling where in the file each row starts, so that the file can be read again
+ * from any row returned, e.g. to resume reading it after getting interrupted.
+ */
+public interface PositionedRowIterator extends ClosableReportingIterator<String[]> {
+
+  /**
+   * @return position in the file of the line of the row returned last, or -1 if no row was returned yet
+   */
+  long getRowStart();
+}
@@ -0,0 +1,274 @@
+package org.gbif.ipt.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Pipeline reading rows on one thread, transforming them on a pool of threads, and handing them over to the consuming
+ * thread in the order they were read.
+ * </br>
+ * Rows are held in reusable slot objects, grouped in batches. The reader fills a free batch and submits it to the
+ * transform workers, and the consumer takes the transformed batches back in reading order. Once consumed, a batch is
+ * returned to the pool of free batches. The number of batches is fixed, so the reader blocks as soon as the consumer
+ * falls behind: at most batches * batchSize rows are ever held in memory.
+ * </br>
+ * With a single thread or less, rows are read and transformed by the consuming thread itself, one slot at a time.
+ * </br>
+ * A pipeline must be consumed by a single thread, and closed afterwards.
+ *
+ * @param <S> type of slot rows are held in
+ */
+public class RowPipeline<S> {
+
+  public static final int DEFAULT_BATCH_SIZE = 256;
+  private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+  /**
+   * Reads rows, one at a time, on the reading thread.
+   *
+   * @param <S> type of slot rows are held in
+   */
+  public interface Reader<S> {
+
+    /**
+     * Reads the next row into a slot.
+     *
+     * @param slot slot to fill, holding a row already consumed if reused
+     *
+     * @return false if there was no row left to read, the slot being left untouched
+     *
+     * @throws Exception if the row could not be read
+     */
+    boolean read(S slot) throws Exception;
+  }
+
+  /**
+   * Transforms rows, possibly on several threads at the same time.
+   *
+   * @param <S> type of slot rows are held in
+   */
+  public interface Transformer<S> {
+
+    /**
+     * Transforms the row held in a slot.
+     *
+     * @param slot slot holding the row read
+     *
+     * @throws Exception if the row could not be transformed
+     */
+    void transform(S slot) throws Exception;
+  }
+
+  private final Reader<S> reader;
+  private final Transformer<S> transformer;
+  private final ExecutorService readerExecutor;
+  private final ExecutorService transformExecutor;
+  private final BlockingQueue<Batch<S>> freeBatches;
+  private final BlockingQueue<Future<Batch<S>>> transformedBatches;
+  // inline mode only: the single slot rows are read into
+  private final S inlineSlot;
+  private Batch<S> batch;
+  private int position;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates and starts a new pipeline, with the default batch size and 4 batches per transform thread.
+   *
+   * @param reader reader
+   * @param transformer transformer
+   * @param slots creates the slots rows are held in
+   * @param threads number of threads transforming rows, 1 or less meaning rows get read and transformed inline
+   */
+  public RowPipeline(Reader<S> reader, Transformer<S> transformer, Supplier<S> slots, int threads) {
+    this(reader, transformer, slots, threads, DEFAULT_BATCH_SIZE, threads * 4);
+  }
+
+  /**
+   * Creates and starts a new pipeline.
+   *
+   * @param reader reader
+   * @param transformer transformer
+   * @param slots creates the slots rows are held in
+   * @param threads number of threads transforming rows, 1 or less meaning rows get read and transformed inline
+   * @param batchSize number of rows transformed together by one thread
+   * @param batches number of batches, bounding the number of rows held in memory, at least 2
+   */
+  public RowPipeline(Reader<S> reader, Transformer<S> transformer, Supplier<S> slots, int threads, int batchSize,
+    int batches) {
+    this.reader = reader;
+    this.transformer = transformer;
+    if (threads <= 1) {
+      readerExecutor = null;
+      transformExecutor = null;
+      freeBatches = null;
+      transformedBatches = null;
+      inlineSlot = slots.get();
+      return;
+    }
+    if (batchSize < 1 || batches < 2) {
+      throw new IllegalArgumentException("A pipeline needs at least 2 batches of 1 row");
+    }
+    inlineSlot = null;
+    freeBatches = new ArrayBlockingQueue<Batch<S>>(batches);
+    // one extra place for the end of the rows, or the reading failure
+    transformedBatches = new ArrayBlockingQueue<Future<Batch<S>>>(batches + 1);
+    for (int i = 0; i < batches; i++) {
+      freeBatches.add(new Batch<S>(slots, batchSize));
+    }
+    transformExecutor = Executors.newFixedThreadPool(threads);
+    readerExecutor = Executors.newSingleThreadExecutor();
+    readerExecutor.submit(new Callable<Void>() {
+      public Void call() {
+        read();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Returns the next row transformed, in reading order. The slot returned is only valid until this method gets
+   * called again, when it may be reused.
+   *
+   * @return slot holding the next row, or null if all rows have been consumed
+   *
+   * @throws Exception if a row could not be read or transformed, rethrowing the exception of the reader or
+   *         transformer
+   * @throws InterruptedException if the consuming thread was interrupted
+   */
+  public S next() throws Exception {
+    if (inlineSlot != null) {
+      if (!reader.read(inlineSlot)) {
+        return null;
+      }
+      transformer.transform(inlineSlot);
+      return inlineSlot;
+    }
+    while (batch == null || position == batch.size) {
+      if (batch != null) {
+        // consumed, ready to be filled again
+        freeBatches.put(batch);
+        batch = null;
+      }
+      Future<Batch<S>> next = transformedBatches.take();
+      try {
+        batch = next.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+          throw (Exception) cause;
+        }
+        throw e;
+      }
+      position = 0;
+      if (batch.size == 0) {
+        // the end of the rows, which stays at the head so that it is returned again
+        batch = null;
+        transformedBatches.put(next);
+        return null;
+      }
+    }
+    return batch.slots[position++];
+  }
+
+  /**
+   * Stops the pipeline, waiting for the reader to stop reading so that its source can be closed safely.
+   *
+   * @throws InterruptedException if the thread was interrupted while waiting for the reader to stop
+   */
+  public void close() throws InterruptedException {
+    if (readerExecutor == null || closed) {
+      return;
+    }
+    closed = true;
+    readerExecutor.shutdownNow();
+    transformExecutor.shutdownNow();
+    readerExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Runs on the reader thread: fills free batches and submits them to the transform threads, in reading order. The
+   * end of the rows, or the failure to read them, is marked once at the end. There is always room left for it, as
+   * every other element of the queue holds one of the batches.
+   */
+  private void read() {
+    try {
+      boolean more = true;
+      while (more && !closed) {
+        final Batch<S> next = freeBatches.take();
+        next.size = 0;
+        while (next.size < next.slots.length && !closed) {
+          if (!reader.read(next.slots[next.size])) {
+            more = false;
+            break;
+          }
+          next.size++;
+        }
+        if (next.size > 0) {
+          transformedBatches.put(transformExecutor.submit(new Callable<Batch<S>>() {
+            public Batch<S> call() throws Exception {
+              for (int i = 0; i < next.size; i++) {
+                transformer.transform(next.slots[i]);
+              }
+              return next;
+            }
+          }));
+        }
+      }
+      // an empty batch marks the end of the rows
+      transformedBatches.offer(completed(new Batch<S>(null, 0), null));
+    } catch (Throwable e) {
+      // nobody is waiting for the rows anymore once closed
+      if (!closed) {
+        transformedBatches.offer(completed(null, e));
+      }
+    }
+  }
+
+  /**
+   * @param batch batch returned by the future
+   * @param failure exception the future fails with instead, if any
+   *
+   * @return future completed already
+   */
+  private static <S> Future<Batch<S>> completed(final Batch<S> batch, @Nullable final Throwable failure) {
+    FutureTask<Batch<S>> future = new FutureTask<Batch<S>>(new Callable<Batch<S>>() {
+      public Batch<S> call() throws Exception {
+        if (failure instanceof Exception) {
+          throw (Exception) failure;
+        } else if (failure instanceof Error) {
+          throw (Error) failure;
+        }
+        return batch;
+      }
+    });
+    future.run();
+    return future;
+  }
+
+  /**
+   * Batch of slots, filled and transformed together.
+   */
+  private static class Batch<S> {
+
+    private final S[] slots;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    private Batch(Supplier<S> slots, int capacity) {
+      this.slots = (S[]) new Object[capacity];
+      for (int i = 0; i < capacity; i++) {
+        this.slots[i] = slots.get();
+      }
+    }
+  }
+}
@@ -0,0 +1,373 @@
+package org.gbif.ipt.utils;
+
+import org.gbif.utils.file.ClosableReportingIterator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Snapshot of the rows of a source spilled into a compressed local file, so that the rows can be read again without
+ * querying the source.
+ * </br>
+ * The file starts with a header holding the column names, the number of rows, the time the snapshot was taken and the
+ * fingerprint of the source settings it was taken with, so that it can tell when it no longer matches the source or
+ * expired. The header also keeps the watermark of an incremental source read before its rows, telling which rows
+ * changed after the snapshot was taken. The rows follow, values being kept as they are, null values included. The header and the rows are
+ * compressed separately, so that the header can be read on its own, and the file gets replaced at once when the rows
+ * were all written, a snapshot never being read half written.
+ */
+public class SourceSnapshot {
+
+  private static final Logger LOG = Logger.getLogger(SourceSnapshot.class);
+  // "IPTS"
+  private static final int MAGIC = 0x49505453;
+  private static final int VERSION = 2;
+  // row length marking the end of the rows
+  private static final int END = -1;
+  // value length of null values
+  private static final int NULL = -1;
+
+  private final File file;
+  private final String fingerprint;
+  private final long created;
+  private final long rows;
+  private final List<String> columns;
+  private final String watermark;
+
+  private SourceSnapshot(File file, String fingerprint, long created, long rows, List<String> columns,
+    @Nullable String watermark) {
+    this.file = file;
+    this.fingerprint = fingerprint;
+    this.created = created;
+    this.rows = rows;
+    this.columns = columns;
+    this.watermark = watermark;
+  }
+
+  /**
+   * Spills rows into a snapshot, replacing any snapshot taken before once all rows were written.
+   *
+   * @param file snapshot file
+   * @param fingerprint fingerprint of the source settings the rows are read with, the snapshot being valid for these
+   *        settings only
+   * @param columns names of the columns
+   * @param watermark watermark of an incremental source read before its rows, null if there is none
+   * @param rows rows of the source, not closed
+   *
+   * @return snapshot written
+   *
+   * @throws IOException if the file could not be written, or a row could not be read
+   */
+  public static SourceSnapshot write(File file, String fingerprint, List<String> columns, @Nullable String watermark,
+    ClosableReportingIterator<String[]> rows) throws IOException {
+    long created = System.currentTimeMillis();
+    File data = File.createTempFile(file.getName(), ".rows", file.getParentFile());
+    File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    try {
+      long count = 0;
+      DataOutputStream out = open(data);
+      try {
+        while (rows.hasNext()) {
+          String[] row = rows.next();
+          checkRead(rows, count + 1);
+          out.writeInt(row.length);
+          for (String value : row) {
+            writeValue(out, value);
+          }
+          count++;
+        }
+        // the rows may have ended because reading failed, even before the first row
+        checkRead(rows, count + 1);
+        out.writeInt(END);
+      } finally {
+        out.close();
+      }
+
+      // the header is compressed on its own, followed by the rows compressed already
+      out = open(tmp);
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(fingerprint);
+        out.writeLong(created);
+        out.writeLong(count);
+        out.writeInt(columns.size());
+        for (String column : columns) {
+          writeValue(out, column);
+        }
+        writeValue(out, watermark);
+      } finally {
+        out.close();
+      }
+      OutputStream append = new FileOutputStream(tmp, true);
+      try {
+        Files.copy(data.toPath(), append);
+      } finally {
+        append.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      return new SourceSnapshot(file, fingerprint, created, count, Collections.unmodifiableList(columns), watermark);
+    } finally {
+      data.delete();
+      tmp.delete();
+    }
+  }
+
+  /**
+   * @throws IOException if the last row could not be read, or the rows could not be read any further
+   */
+  private static void checkRead(ClosableReportingIterator<String[]> rows, long row) throws IOException {
+    if (rows.hasRowError() || rows.getException() != null) {
+      throw new IOException("Cant read row " + row + ": " + rows.getErrorMessage());
+    }
+  }
+
+  /**
+   * Reads the header of a snapshot.
+   *
+   * @param file snapshot file
+   *
+   * @return snapshot, or null if the file doesn't exist or can't be read
+   */
+  @Nullable
+  public static SourceSnapshot load(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          return null;
+        }
+        String fingerprint = in.readUTF();
+        long created = in.readLong();
+        long rows = in.readLong();
+        int size = in.readInt();
+        List<String> columns = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+          columns.add(readValue(in));
+        }
+        String watermark = readValue(in);
+        return new SourceSnapshot(file, fingerprint, created, rows, Collections.unmodifiableList(columns), watermark);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Cant read snapshot file " + file.getAbsolutePath() + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static DataOutputStream open(File file) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+  }
+
+  private static void writeValue(DataOutputStream out, @Nullable String value) throws IOException {
+    if (value == null) {
+      out.writeInt(NULL);
+    } else {
+      // unlike writeUTF, values of any length are written
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  @Nullable
+  private static String readValue(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length == NULL) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param fingerprint fingerprint of the current source settings
+   * @param ttlMillis time after which the snapshot expires, 0 or less if it never expires
+   *
+   * @return true if the snapshot was taken with the same settings, and did not expire
+   */
+  public boolean isValidFor(String fingerprint, long ttlMillis) {
+    return this.fingerprint.equals(fingerprint) && (ttlMillis <= 0 || getAge() < ttlMillis);
+  }
+
+  /**
+   * @return names of the columns
+   */
+  public List<String> getColumns() {
+    return columns;
+  }
+
+  /**
+   * @return number of rows
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * @return watermark of the source read before its rows, or null if the source is not incremental or has no rows
+   */
+  @Nullable
+  public String getWatermark() {
+    return watermark;
+  }
+
+  /**
+   * @return time the snapshot was taken
+   */
+  public Date getCreated() {
+    return new Date(created);
+  }
+
+  /**
+   * @return milliseconds since the snapshot was taken
+   */
+  public long getAge() {
+    return System.currentTimeMillis() - created;
+  }
+
+  /**
+   * @return size of the snapshot file in bytes
+   */
+  public long getSize() {
+    return file.length();
+  }
+
+  /**
+   * @return size of the snapshot file, formatted for display
+   */
+  public String getSizeFormatted() {
+    return FileUtils.formatSize(file.length(), 1);
+  }
+
+  /**
+   * Opens an iterator over the rows of the snapshot, in the order they were written.
+   *
+   * @throws IOException if the snapshot file could not be opened
+   */
+  public ClosableReportingIterator<String[]> rowIterator() throws IOException {
+    return new RowIterator();
+  }
+
+  /**
+   * Reads the rows following the header. If the file can't be read the rows read so far are returned, the last one
+   * reporting the error.
+   */
+  private class RowIterator implements ClosableReportingIterator<String[]> {
+
+    private final DataInputStream in;
+    private String[] next;
+    private String errorMessage;
+    private Exception exception;
+
+    private RowIterator() throws IOException {
+      InputStream gz = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+      in = new DataInputStream(new BufferedInputStream(gz));
+      try {
+        // skip the header
+        in.readInt();
+        in.readInt();
+        in.readUTF();
+        in.readLong();
+        in.readLong();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+          readValue(in);
+        }
+        readValue(in);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+      fetchNext();
+    }
+
+    private void fetchNext() {
+      next = null;
+      try {
+        int length = in.readInt();
+        if (length == END) {
+          return;
+        }
+        String[] row = new String[length];
+        for (int i = 0; i < length; i++) {
+          row[i] = readValue(in);
+        }
+        next = row;
+      } catch (EOFException e) {
+        exception = e;
+        errorMessage = "Snapshot file " + file.getName() + " ends unexpectedly";
+      } catch (IOException e) {
+        LOG.debug("Exception caught reading " + file.getName() + ": " + e.getMessage(), e);
+        exception = e;
+        errorMessage = e.getMessage();
+      }
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public String[] next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      String[] row = next;
+      errorMessage = null;
+      exception = null;
+      fetchNext();
+      return row;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException("Cannot remove a row from a snapshot");
+    }
+
+    public boolean hasRowError() {
+      return exception != null;
+    }
+
+    public String getErrorMessage() {
+      return errorMessage;
+    }
+
+    public Exception getException() {
+      return exception;
+    }
+
+    public void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        LOG.debug("Cant close snapshot file " + file.getName() + ": " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package org.gbif.ipt.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Index of the rows of a delimited text file: the number of rows, the numbers of its blank lines, and the position in
+ * the file of every Nth row, so that the file can be read from any row, or split into ranges, without scanning it.
+ * </br>
+ * An index is built by reading the file with MappedTextFileReaders, possibly splitting it into ranges counted in
+ * parallel, and is persisted as a small sidecar file. It holds the size and modification time of the file, and the
+ * settings it was read with, so that it can tell when it no longer matches the file and needs to be built again.
+ */
+public class TextFileIndex {
+
+  private static final Logger LOG = Logger.getLogger(TextFileIndex.class);
+  public static final int DEFAULT_INTERVAL = 10000;
+  // "IPTX"
+  private static final int MAGIC = 0x49505458;
+  private static final int VERSION = 1;
+
+  private final long fileSize;
+  private final long lastModified;
+  private final String settings;
+  private final int rows;
+  // rows indexed, in the order of the file, and the position of their lines
+  private final int[] checkpointRows;
+  private final long[] checkpointOffsets;
+  private final int[] emptyLines;
+
+  private TextFileIndex(long fileSize, long lastModified, String settings, int rows, int[] checkpointRows,
+    long[] checkpointOffsets, int[] emptyLines) {
+    this.fileSize = fileSize;
+    this.lastModified = lastModified;
+    this.settings = settings;
+    this.rows = rows;
+    this.checkpointRows = checkpointRows;
+    this.checkpointOffsets = checkpointOffsets;
+    this.emptyLines = emptyLines;
+  }
+
+  /**
+   * Builds the index of a file, counting its ranges in parallel, each on its own thread.
+   *
+   * @param file delimited text file
+   * @param settings settings the file is read with, e.g. its encoding and delimiters, the index being valid for these
+   *        settings only
+   * @param encoding encoding of the file, supported by the MappedTextFileReader
+   * @param delimiter delimiter of the values
+   * @param quote quote character, null if values aren't quoted
+   * @param headerRows number of header lines
+   * @param ranges ranges of the file after its header lines, in the order of the file
+   * @param interval number of rows between two rows indexed
+   *
+   * @return index of the file
+   *
+   * @throws IOException if the file could not be read
+   * @throws InterruptedException if the thread was interrupted while waiting for the ranges to be counted
+   */
+  public static TextFileIndex build(final File file, String settings, final String encoding, final String delimiter,
+    @Nullable final Character quote, int headerRows, List<TextFileSplitter.Range> ranges, final int interval)
+    throws IOException, InterruptedException {
+    // the modification time is taken first, so that a file changed while being read is indexed again next time
+    long fileSize = file.length();
+    long lastModified = file.lastModified();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, ranges.size()));
+    try {
+      List<Future<RangeCount>> counted = new ArrayList<Future<RangeCount>>();
+      for (final TextFileSplitter.Range range : ranges) {
+        counted.add(executor.submit(new Callable<RangeCount>() {
+          public RangeCount call() throws IOException {
+            return count(file, encoding, delimiter, quote, range, interval);
+          }
+        }));
+      }
+      // rows and line numbers of each range follow the ones of the ranges before
+      int rows = 0;
+      int lines = headerRows;
+      List<Integer> checkpointRows = new ArrayList<Integer>();
+      List<Long> checkpointOffsets = new ArrayList<Long>();
+      Set<Integer> emptyLines = new HashSet<Integer>();
+      for (Future<RangeCount> future : counted) {
+        RangeCount count;
+        try {
+          count = future.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        for (int i = 0; i < count.checkpointRows.size(); i++) {
+          checkpointRows.add(rows + count.checkpointRows.get(i));
+          checkpointOffsets.add(count.checkpointOffsets.get(i));
+        }
+        for (Integer line : count.emptyLines) {
+          emptyLines.add(lines + line);
+        }
+        rows += count.rows;
+        lines += count.lines;
+      }
+      int[] cpRows = new int[checkpointRows.size()];
+      long[] cpOffsets = new long[checkpointRows.size()];
+      for (int i = 0; i < cpRows.length; i++) {
+        cpRows[i] = checkpointRows.get(i);
+        cpOffsets[i] = checkpointOffsets.get(i);
+      }
+      int[] empty = new int[emptyLines.size()];
+      int i = 0;
+      for (Integer line : emptyLines) {
+        empty[i++] = line;
+      }
+      Arrays.sort(empty);
+      return new TextFileIndex(fileSize, lastModified, settings, rows, cpRows, cpOffsets, empty);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Counts the rows of a single range, numbering its rows from 0 and its lines from 1.
+   */
+  private static RangeCount count(File file, String encoding, String delimiter, @Nullable Character quote,
+    TextFileSplitter.Range range, int interval) throws IOException {
+    MappedTextFileReader reader =
+      new MappedTextFileReader(file, encoding, delimiter, quote, new HashSet<Integer>(), range.getStart(),
+        range.getEnd());
+    try {
+      RangeCount count = new RangeCount();
+      while (reader.hasNext()) {
+        reader.next();
+        if (reader.hasRowError()) {
+          throw new IOException(reader.getErrorMessage(), reader.getException());
+        }
+        if (count.rows % interval == 0) {
+          count.checkpointRows.add(count.rows);
+          count.checkpointOffsets.add(reader.getRowStart());
+        }
+        count.rows++;
+      }
+      count.lines = reader.getLines();
+      count.emptyLines.addAll(reader.getEmptyLines());
+      return count;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Loads an index persisted before.
+   *
+   * @param indexFile sidecar file of the index
+   *
+   * @return index, or null if the file doesn't exist or can't be read
+   */
+  @Nullable
+  public static TextFileIndex load(File indexFile) {
+    if (!indexFile.exists()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          return null;
+        }
+        long fileSize = in.readLong();
+        long lastModified = in.readLong();
+        String settings = in.readUTF();
+        int rows = in.readInt();
+        int[] checkpointRows = new int[in.readInt()];
+        long[] checkpointOffsets = new long[checkpointRows.length];
+        for (int i = 0; i < checkpointRows.length; i++) {
+          checkpointRows[i] = in.readInt();
+          checkpointOffsets[i] = in.readLong();
+        }
+        int[] emptyLines = new int[in.readInt()];
+        for (int i = 0; i < emptyLines.length; i++) {
+          emptyLines[i] = in.readInt();
+        }
+        return new TextFileIndex(fileSize, lastModified, settings, rows, checkpointRows, checkpointOffsets,
+          emptyLines);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Cant read index file " + indexFile.getAbsolutePath() + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Persists the index, replacing any index persisted before.
+   *
+   * @param indexFile sidecar file of the index
+   *
+   * @throws IOException if the file could not be written
+   */
+  public void save(File indexFile) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(fileSize);
+      out.writeLong(lastModified);
+      out.writeUTF(settings);
+      out.writeInt(rows);
+      out.writeInt(checkpointRows.length);
+      for (int i = 0; i < checkpointRows.length; i++) {
+        out.writeInt(checkpointRows[i]);
+        out.writeLong(checkpointOffsets[i]);
+      }
+      out.writeInt(emptyLines.length);
+      for (int line : emptyLines) {
+        out.writeInt(line);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @param file file indexed
+   * @param settings settings the file is read with
+   *
+   * @return true if the index still matches the file, i.e. the file didn't change and is read with the same settings
+   */
+  public boolean isValidFor(File file, String settings) {
+    return file.length() == fileSize && file.lastModified() == lastModified && this.settings.equals(settings);
+  }
+
+  /**
+   * @return number of rows, blank lines not included
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * @return numbers of the blank lines, the first line of the file being line 1
+   */
+  public Set<Integer> getEmptyLines() {
+    Set<Integer> lines = new HashSet<Integer>();
+    for (int line : emptyLines) {
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  /**
+   * Finds the closest row indexed at or before a row.
+   *
+   * @param row row number, the first row after the header lines being row 0
+   *
+   * @return row indexed, or null if no row is indexed at or before the row
+   */
+  @Nullable
+  public Checkpoint checkpoint(int row) {
+    int i = Arrays.binarySearch(checkpointRows, row);
+    if (i < 0) {
+      i = -i - 2;
+    }
+    return i < 0 ? null : new Checkpoint(checkpointRows[i], checkpointOffsets[i]);
+  }
+
+  /**
+   * Splits the rows of the file into ranges of about the same size, starting at rows indexed, without reading the
+   * file.
+   *
+   * @param parts number of ranges wanted
+   * @param minSize minimum size of a range in bytes
+   *
+   * @return ranges in the order of the file, fewer than wanted if too few rows are indexed
+   */
+  public List<TextFileSplitter.Range> ranges(int parts, long minSize) {
+    List<TextFileSplitter.Range> ranges = new ArrayList<TextFileSplitter.Range>();
+    if (checkpointOffsets.length == 0) {
+      return ranges;
+    }
+    long first = checkpointOffsets[0];
+    long partSize = Math.max(minSize, (fileSize - first) / Math.max(1, parts) + 1);
+    long start = first;
+    int i = 0;
+    while (start < fileSize) {
+      // the next range starts at the first row indexed at least a part size further
+      while (i < checkpointOffsets.length && checkpointOffsets[i] < start + partSize) {
+        i++;
+      }
+      long end = i < checkpointOffsets.length ? checkpointOffsets[i] : fileSize;
+      ranges.add(new TextFileSplitter.Range(ranges.size(), start, end));
+      start = end;
+    }
+    return ranges;
+  }
+
+  /**
+   * Row indexed.
+   */
+  public static class Checkpoint {
+
+    private final int row;
+    private final long offset;
+
+    private Checkpoint(int row, long offset) {
+      this.row = row;
+      this.offset = offset;
+    }
+
+    /**
+     * @return row number, the first row after the header lines being row 0
+     */
+    public int getRow() {
+      return row;
+    }
+
+    /**
+     * @return position in the file of the line of the row
+     */
+    public long getOffset() {
+      return offset;
+    }
+  }
+
+  /**
+   * Rows counted in a single range.
+   */
+  private static class RangeCount {
+
+    private int rows;
+    private int lines;
+    private final List<Integer> checkpointRows = new ArrayList<Integer>();
+    private final List<Long> checkpointOffsets = new ArrayList<Long>();
+    private final Set<Integer> emptyLines = new HashSet<Integer>();
+  }
+}
@@ -0,0 +1,149 @@
+package org.gbif.ipt.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a delimited text file into byte ranges aligned to row boundaries, so that the ranges can be parsed
+ * concurrently, e.g. by a MappedTextFileReader each.
+ * </br>
+ * Like the CSVReader and the MappedTextFileReader, rows are delimited by line breaks (\n, \r or \r\n) even inside
+ * quotes, so a range always starts just after a line break, never between the \r and \n of a single line break. A
+ * quoted value containing a line break is therefore split into two rows by any reader, wherever the ranges start.
+ */
+public class TextFileSplitter {
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final byte LF = '\n';
+  private static final byte CR = '\r';
+
+  private TextFileSplitter() {
+    // static utils class
+  }
+
+  /**
+   * Byte range of a text file.
+   */
+  public static class Range {
+
+    private final int index;
+    private final long start;
+    private final long end;
+
+    Range(int index, long start, long end) {
+      this.index = index;
+      this.start = start;
+      this.end = end;
+    }
+
+    /**
+     * @return index of the range, ranges being numbered from 0 in the order of the file
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    /**
+     * @return position of the first byte of the range
+     */
+    public long getStart() {
+      return start;
+    }
+
+    /**
+     * @return position just after the last byte of the range
+     */
+    public long getEnd() {
+      return end;
+    }
+  }
+
+  /**
+   * Splits the file into ranges of about the same size, after its header lines. Files too small to be split in as
+   * many ranges, or with too few line breaks, get fewer ranges.
+   *
+   * @param file text file
+   * @param headerRows number of header lines left out of the ranges
+   * @param parts number of ranges wanted
+   * @param minSize minimum size of a range in bytes
+   *
+   * @return ranges in the order of the file, none if the file holds header lines only
+   *
+   * @throws IOException if the file could not be read
+   */
+  public static List<Range> split(File file, int headerRows, int parts, long minSize) throws IOException {
+    List<Range> ranges = new ArrayList<Range>();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      long start = 0;
+      for (int i = 0; i < headerRows && start < size; i++) {
+        start = nextLine(channel, start, size);
+      }
+      long partSize = Math.max(minSize, (size - start) / Math.max(1, parts) + 1);
+      while (start < size) {
+        long end = start + partSize >= size ? size : nextLine(channel, start + partSize, size);
+        ranges.add(new Range(ranges.size(), start, end));
+        start = end;
+      }
+    } finally {
+      raf.close();
+    }
+    return ranges;
+  }
+
+  /**
+   * Restricts ranges to the rows from a position on, e.g. to resume reading a file from a row whose position was kept.
+   *
+   * @param ranges ranges in the order of the file
+   * @param start position in the file of the line of a row
+   *
+   * @return ranges ending after the position in the order of the file, numbered from 0, the first one starting at the
+   *         position
+   */
+  public static List<Range> from(List<Range> ranges, long start) {
+    List<Range> from = new ArrayList<Range>();
+    for (Range range : ranges) {
+      if (range.getEnd() > start) {
+        from.add(new Range(from.size(), Math.max(range.getStart(), start), range.getEnd()));
+      }
+    }
+    return from;
+  }
+
+  /**
+   * Finds the start of the first line beginning after the given position.
+   *
+   * @return position just after the first line break found from the position given, or the size of the file
+   */
+  private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    boolean afterCr = false;
+    while (position < size) {
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        byte b = buffer.get(i);
+        if (afterCr) {
+          // \r\n is a single line break
+          return b == LF ? position + i + 1 : position + i;
+        }
+        if (b == LF) {
+          return position + i + 1;
+        }
+        afterCr = b == CR;
+      }
+      position += read;
+    }
+    return size;
+  }
+}
@@ -0,0 +1,374 @@
+package org.gbif.ipt.utils;
+
+import org.gbif.utils.file.ClosableReportingIterator;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Reads the rows of a sheet of an .xlsx workbook with the event API of POI, without loading the workbook in memory.
+ * </br>
+ * The XML of the sheet is parsed with SAX on a thread of its own, rows being handed over in batches through a bounded
+ * queue, so that only a few batches are held in memory whatever the size of the sheet. Strings are looked up in the
+ * shared strings table of the workbook, and values are formatted as Excel displays them. Formula cells hold the result
+ * cached in the workbook when it was last saved, no formula being evaluated.
+ * </br>
+ * Like with the POI usermodel, rows not in the sheet are left out, and cells missing in a row are blank. If the sheet
+ * can't be parsed the rows read so far are returned, the last one reporting the error. A reader must be consumed by a
+ * single thread, and closed afterwards.
+ */
+public class XlsxSheetReader implements ClosableReportingIterator<String[]> {
+
+  private static final Logger LOG = Logger.getLogger(XlsxSheetReader.class);
+  private static final int BATCH_SIZE = 1000;
+  private static final int QUEUED_BATCHES = 4;
+  private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+  private final String fileName;
+  private final ExecutorService executor;
+  private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUED_BATCHES);
+  private boolean ended = false;
+  private Iterator<String[]> batch;
+  private String[] next;
+  private String errorMessage;
+  private Exception exception;
+  private boolean closed = false;
+
+  /**
+   * Opens the workbook and starts parsing the sheet.
+   *
+   * @param file .xlsx workbook
+   * @param sheetIdx index of the sheet, the first sheet being sheet 0
+   * @param rowSize number of values of every row, 0 for rows as long as their last cell
+   * @param skipRows number of rows skipped, e.g. header rows
+   *
+   * @throws IOException if the workbook could not be opened, or has no such sheet
+   */
+  public XlsxSheetReader(File file, int sheetIdx, final int rowSize, final int skipRows) throws IOException {
+    this.fileName = file.getName();
+    final OPCPackage pkg = open(file);
+    final InputStream sheet;
+    final XSSFSheetXMLHandler handler;
+    final RowHandler rows = new RowHandler(rowSize, skipRows, queue);
+    try {
+      XSSFReader reader = new XSSFReader(pkg);
+      handler = new XSSFSheetXMLHandler(reader.getStylesTable(), new ReadOnlySharedStringsTable(pkg), rows,
+        new DataFormatter(), false);
+      sheet = sheet(reader, sheetIdx);
+    } catch (OpenXML4JException e) {
+      pkg.revert();
+      throw new IOException("Cannot open invalid excel spreadsheet", e);
+    } catch (SAXException e) {
+      pkg.revert();
+      throw new IOException("Cannot read shared strings of excel spreadsheet", e);
+    } catch (IOException e) {
+      pkg.revert();
+      throw e;
+    }
+    executor = Executors.newSingleThreadExecutor();
+    executor.submit(new Callable<Void>() {
+      public Void call() throws InterruptedException {
+        parse(pkg, sheet, handler, rows);
+        return null;
+      }
+    });
+    fetchNext();
+  }
+
+  /**
+   * @param file excel workbook
+   *
+   * @return true if the workbook is an .xlsx workbook, whatever its file suffix
+   */
+  public static boolean isXlsx(File file) {
+    try {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        return FileMagic.valueOf(in) == FileMagic.OOXML;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("Cant read file " + file.getName() + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Lists the sheets of an .xlsx workbook, without parsing them.
+   *
+   * @param file .xlsx workbook
+   *
+   * @return names of the sheets, keyed on sheet index
+   *
+   * @throws IOException if the workbook could not be opened
+   */
+  public static Map<Integer, String> sheets(File file) throws IOException {
+    OPCPackage pkg = open(file);
+    try {
+      Map<Integer, String> sheets = new HashMap<Integer, String>();
+      XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+      for (int x = 0; iter.hasNext(); x++) {
+        iter.next().close();
+        sheets.put(x, iter.getSheetName());
+      }
+      return sheets;
+    } catch (OpenXML4JException e) {
+      throw new IOException("Cannot open invalid excel spreadsheet", e);
+    } finally {
+      pkg.revert();
+    }
+  }
+
+  private static OPCPackage open(File file) throws IOException {
+    LOG.info("Opening excel workbook [" + file.getName() + "] for streaming");
+    try {
+      return OPCPackage.open(file, PackageAccess.READ);
+    } catch (OpenXML4JException e) {
+      throw new IOException("Cannot open invalid excel spreadsheet", e);
+    }
+  }
+
+  /**
+   * @return XML of the sheet, the other sheets being closed
+   */
+  private static InputStream sheet(XSSFReader reader, int sheetIdx) throws IOException, OpenXML4JException {
+    Iterator<InputStream> iter = reader.getSheetsData();
+    for (int x = 0; iter.hasNext(); x++) {
+      InputStream sheet = iter.next();
+      if (x == sheetIdx) {
+        return sheet;
+      }
+      sheet.close();
+    }
+    throw new IOException("Excel spreadsheet has no sheet " + sheetIdx);
+  }
+
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  public String[] next() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    String[] row = next;
+    errorMessage = null;
+    exception = null;
+    fetchNext();
+    return row;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException("Cannot remove a row from an excel spreadsheet");
+  }
+
+  public boolean hasRowError() {
+    return exception != null;
+  }
+
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  public Exception getException() {
+    return exception;
+  }
+
+  /**
+   * Stops parsing, waiting for the parsing thread to close the workbook.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    next = null;
+    executor.shutdownNow();
+    try {
+      if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("Parsing thread of " + fileName + " did not stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Takes the next row from the batches parsed, waiting for them if needed.
+   */
+  private void fetchNext() {
+    next = null;
+    try {
+      while (batch == null || !batch.hasNext()) {
+        if (ended) {
+          return;
+        }
+        Batch b = queue.take();
+        if (b.exception != null) {
+          // the rest of the sheet can't be read, assume no more rows
+          LOG.debug("Exception caught reading " + fileName + ": " + b.exception.getMessage(), b.exception);
+          exception = b.exception;
+          errorMessage = b.exception.getMessage();
+          ended = true;
+          executor.shutdownNow();
+          return;
+        }
+        if (b.rows == null) {
+          ended = true;
+          executor.shutdown();
+        } else {
+          batch = b.rows.iterator();
+        }
+      }
+      next = batch.next();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      exception = e;
+      errorMessage = "Interrupted while reading " + fileName;
+      ended = true;
+    }
+  }
+
+  /**
+   * Runs on the parsing thread: parses the sheet into batches, ending with an end of sheet batch.
+   */
+  private static void parse(OPCPackage pkg, InputStream sheet, XSSFSheetXMLHandler handler, RowHandler rows)
+    throws InterruptedException {
+    try {
+      XMLReader parser = SAXHelper.newXMLReader();
+      parser.setContentHandler(handler);
+      parser.parse(new InputSource(sheet));
+      rows.flush();
+      rows.queue.put(new Batch(null, null));
+    } catch (InterruptedException e) {
+      throw e;
+    } catch (Exception e) {
+      // the reader was closed while rows were handed over, or the sheet can't be parsed
+      if (!rows.stopped) {
+        rows.queue.put(new Batch(null, e));
+      }
+    } finally {
+      try {
+        sheet.close();
+      } catch (IOException e) {
+        LOG.debug("Cant close sheet of excel spreadsheet: " + e.getMessage());
+      }
+      pkg.revert();
+    }
+  }
+
+  /**
+   * Collects the cells parsed into rows, and the rows into batches.
+   */
+  private static class RowHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+
+    private final int rowSize;
+    private int skipRows;
+    private final BlockingQueue<Batch> queue;
+    private List<String[]> rows = new ArrayList<String[]>(BATCH_SIZE);
+    private final List<String> row = new ArrayList<String>();
+    private boolean stopped = false;
+
+    private RowHandler(int rowSize, int skipRows, BlockingQueue<Batch> queue) {
+      this.rowSize = rowSize;
+      this.skipRows = skipRows;
+      this.queue = queue;
+    }
+
+    public void startRow(int rowNum) {
+      row.clear();
+    }
+
+    public void endRow(int rowNum) {
+      if (skipRows > 0) {
+        skipRows--;
+        return;
+      }
+      String[] values = new String[rowSize > 0 ? rowSize : row.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = i < row.size() ? row.get(i) : "";
+      }
+      rows.add(values);
+      if (rows.size() == BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+      // cells missing before this one are blank
+      int column = cellReference == null ? row.size() : new CellReference(cellReference).getCol();
+      while (row.size() < column) {
+        row.add("");
+      }
+      if (row.size() == column) {
+        row.add(formattedValue == null ? "" : formattedValue);
+      }
+    }
+
+    public void headerFooter(String text, boolean isHeader, String tagName) {
+      // headers and footers are not rows
+    }
+
+    private void flush() {
+      if (rows.isEmpty()) {
+        return;
+      }
+      try {
+        queue.put(new Batch(rows, null));
+      } catch (InterruptedException e) {
+        // the reader was closed, stop parsing
+        stopped = true;
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Reading of excel spreadsheet stopped");
+      }
+      rows = new ArrayList<String[]>(BATCH_SIZE);
+    }
+  }
+
+  /**
+   * Rows parsed, or the end of the sheet if there are no rows, possibly failed.
+   */
+  private static class Batch {
+
+    private final List<String[]> rows;
+    private final Exception exception;
+
+    private Batch(@Nullable List<String[]> rows, @Nullable Exception exception) {
+      this.rows = rows;
+      this.exception = exception;
+    }
+  }
+}
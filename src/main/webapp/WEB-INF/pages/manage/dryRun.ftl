@@ -0,0 +1,35 @@
+<#setting url_escaping_charset="UTF-8">
+<div id="preview-report">
+  <#if dryRun??>
+    <#if dryRun.valid>
+        <p class="actionMessage"><@s.text name='manage.overview.dryRun.success'/></p>
+    <#else>
+        <p class="errorMessage"><@s.text name='manage.overview.dryRun.invalid'/></p>
+    </#if>
+      <strong><@s.text name='manage.report.logMessage'/></strong>
+      <ul class="simple">
+        <#list dryRun.messages as msg>
+            <li>${msg.message} <span class="small">${msg.date?time?string}</span></li>
+        </#list>
+      </ul>
+  <#else>
+    <#list actionErrors as error>
+        <p class="errorMessage">${error}</p>
+    </#list>
+  </#if>
+</div>
+<#if dryRun??>
+  <#list dryRun.samples as sample>
+    <h3>${sample.fileName}</h3>
+    <table class="simple">
+     <tr>
+       <#list sample.columns as col><th>${col}</th></#list>
+     </tr>
+     <#list sample.rows as row><#if row??>
+       <tr<#if (row_index % 2) == 0> class="even"</#if>>
+         <#list row as col><td>${col!"<em>null</em>"}</td></#list>
+       </tr>
+       </#if></#list>
+    </table>
+  </#list>
+</#if>
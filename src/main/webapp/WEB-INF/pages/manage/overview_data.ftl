@@ -160,6 +160,15 @@
                 </#list>
               </table>
           </#if>
+            <div class="twenty_top">
+                <a href="dryRun.do?r=${resource.shortname}" class="button peekBtn">
+                    <input class="button" type="button" value='<@s.text name='button.dryRun'/>'/>
+                </a>
+                <img class="infoImg" src="${baseURL}/images/info.gif" />
+                <div class="info autop">
+                  <@s.text name='manage.overview.dryRun.help'/>
+                </div>
+            </div>
         </div>
     </#if>
   </div>
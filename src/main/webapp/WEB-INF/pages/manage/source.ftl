@@ -8,7 +8,8 @@ $(document).ready(function(){
 	$('.confirm').jConfirmAction({question : "<@s.text name="manage.source.confirmation.message"/>", yesAnswer : "<@s.text name="basic.yes"/>", cancelAnswer : "<@s.text name="basic.no"/>"});
 	$("#peekBtn").click(function(e) {
 		e.preventDefault();
-		$("#modalcontent").load("peek.do?r=${resource.shortname}&id=${id!}");
+		var offset = parseInt($("#peekOffset").val(), 10);
+		$("#modalcontent").load("peek.do?r=${resource.shortname}&id=${id!}&offset=" + (isNaN(offset) ? 0 : offset));
 		$("#modalbox").show();
     });
 	$("#modalbox").click(function(e) {
@@ -50,15 +51,24 @@ $(document).ready(function(){
                 <#if (logExists)>
                     <tr><th><@s.text name='manage.source.source.log'/></th><td><a href="${baseURL}/sourcelog.do?r=${resource.shortname}&s=${source.name}"><@s.text name='manage.source.download'/></a></td></tr>
                 </#if>
-              <#else>
+              <#elseif snapshot??>
+                <tr><th><@s.text name='manage.source.snapshot'/></th><td>${snapshot.created?datetime?string.medium}</td></tr>
+                <tr><th><@s.text name='manage.source.snapshot.age'/></th><td><@s.text name='manage.source.snapshot.hours'><@s.param>${(snapshot.age / 3600000)?string("0.#")}</@s.param></@s.text></td></tr>
+                <tr><th><@s.text name='manage.source.size'/></th><td>${snapshot.sizeFormatted}</td></tr>
+                <tr><th><@s.text name='manage.source.rows'/></th><td>${snapshot.rows}</td></tr>
               </#if>
             </table>
             <table class="bottomButtons">
               <tr>
                 <th>
                   <@s.submit cssClass="button" name="analyze" key="button.analyze"/>
+                  <#if source.isSqlSource() && sqlSource.snapshot && id?has_content>
+                    <@s.submit cssClass="button" name="refreshSnapshot" key="button.refreshSnapshot"/>
+                  </#if>
                   <!-- preview icon is taken from Gentleface Toolbar Icon Set available from http://gentleface.com/free_icon_set.html licensed under CC-BY -->
                   <a href="#" id="peekBtn" class="icon icon-preview peekBtn"/>
+                  <label for="peekOffset"><@s.text name='manage.source.peekOffset'/></label>
+                  <input type="text" id="peekOffset" size="8" value="0"/>
                 </th>
               </tr>
             </table>
@@ -118,6 +128,25 @@ $(document).ready(function(){
                 <@multivalue/>
               </div>
               <div class="halfcolumn">
+                <@input name="sqlSource.partitionColumn" help="i18n"/>
+              </div>
+              <div class="halfcolumn">
+                <@input name="sqlSource.partitions" help="i18n"/>
+              </div>
+              <div class="halfcolumn">
+                <@select name="sqlSource.partitionMode" options=partitionModes value="${sqlSource.partitionMode!}" i18nkey="sqlSource.partitionMode" />
+              </div>
+              <div class="halfcolumn">
+                <@input name="sqlSource.watermarkColumn" help="i18n"/>
+              </div>
+              <div class="fullcolumn">
+                <@text name="sqlSource.deletedSql" help="i18n"/>
+              </div>
+              <div class="halfcolumn">
+                <@checkbox name="sqlSource.snapshot" value="${sqlSource.snapshot?c}" help="i18n"/>
+              </div>
+              <div class="halfcolumn">
+                <@input name="sqlSource.snapshotTtl" help="i18n"/>
               </div>
           <#elseif source.isExcelSource()>
           <#-- excel source -->
@@ -72,6 +72,7 @@ $(document).ready(function(){
   <table id="translation" class="simple">
     <colgroup>
       <col width="400">
+      <col width="80">
       <!-- do not show column if term does not relate to vocabulary -->
       <#if (vocabTerms?size>0)>
         <col width="16">
@@ -80,6 +81,7 @@ $(document).ready(function(){
     </colgroup>
     <tr>
       <th><@s.text name="manage.translation.source.value"/></th>
+      <th><@s.text name="manage.translation.source.count"/></th>
       <!-- do not show column if term does not relate to vocabulary -->
       <#if (vocabTerms?size>0)>
         <th></th>
@@ -89,6 +91,7 @@ $(document).ready(function(){
     <#list sourceValuesMap?keys as k>
       <tr<#if (k_index % 2) == 1> class="even"</#if>>
         <td>${sourceValuesMap.get(k)!}</td>
+        <td>${sourceCountsMap.get(k)!}</td>
         <!-- do not show column if term does not relate to vocabulary -->
         <#if (vocabTerms?size>0)>
           <td><img src="${baseURL}/images/<#if vocabTerms[tmap.get(k)!k]??>good<#else>bad</#if>.gif"/></td>
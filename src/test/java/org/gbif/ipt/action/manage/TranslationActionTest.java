@@ -25,7 +25,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -63,12 +63,12 @@ public class TranslationActionTest {
     TranslationAction.Translation translation = new TranslationAction.Translation();
     RegistrationManager mockRegistrationManager = mock(RegistrationManager.class);
 
-    // mock getting list of values back for BasisOfRecord field/column in source
-    Set<String> values = new LinkedHashSet<String>();
-    values.add("spe");
-    values.add("obs");
-    values.add("fos");
-    when(mockSourceManager.inspectColumn(any(SourceBase.class), anyInt(), anyInt(), anyInt())).thenReturn(values);
+    // mock getting the values back for BasisOfRecord field/column in source, counted
+    Map<String, Long> values = new LinkedHashMap<String, Long>();
+    values.put("spe", 120L);
+    values.put("obs", 30L);
+    values.put("fos", 2L);
+    when(mockSourceManager.countColumnValues(any(SourceBase.class), anyInt(), anyInt(), anyInt())).thenReturn(values);
 
     // mock getI18nVocab - only called in prepare()
     Map<String, String> mockVocab = new HashMap<String, String>();
@@ -225,6 +225,10 @@ public class TranslationActionTest {
 
     // check an additional sessionScoped translation was read from source (added to source values)
     assertEquals(3, action.getTrans().getSourceValues().size());
+    // with the number of rows using each value
+    assertEquals("spe", action.getSourceValuesMap().get("k1"));
+    assertEquals(Long.valueOf(120), action.getSourceCountsMap().get("k1"));
+    assertEquals(Long.valueOf(2), action.getSourceCountsMap().get("k3"));
 
     // reloading source doesn't change the number of translated values, or persisted translations on the field itself
     assertEquals(2, action.getTrans().getTranslatedValues().size());
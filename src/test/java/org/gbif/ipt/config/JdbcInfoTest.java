@@ -70,4 +70,37 @@ public class JdbcInfoTest {
         10));
   }
 
+  @Test
+  public void testPartitionSql() {
+    JdbcSupport support = new JdbcSupport();
+
+    JdbcInfo info = support.new JdbcInfo("pgsql", "PostgreSQL", "org.postgresql.Driver",
+      "jdbc:postgresql://{host}/{database}", LIMIT_TYPE.LIMIT);
+    assertEquals("SELECT * FROM (select * from specimen) ipt_filtered WHERE (MOD(ABS(id), 4) = 0 OR id IS NULL)",
+      info.addPartition("select * from specimen;", "id", 4, 0));
+    assertEquals("SELECT * FROM (select * from specimen) ipt_filtered WHERE MOD(ABS(id), 4) = 3",
+      info.addPartition("select * from specimen", "id", 4, 3));
+    assertEquals("SELECT * FROM (select * from specimen) ipt_filtered WHERE (id < 10.5 OR id IS NULL)",
+      info.addRange("select * from specimen", "id", null, "10.5", true));
+    assertEquals("SELECT * FROM (select * from specimen) ipt_filtered WHERE id >= 10.5 AND id < 21",
+      info.addRange("select * from specimen", "id", "10.5", "21", false));
+    assertEquals("SELECT MIN(id), MAX(id) FROM (select * from specimen) ipt_bounds",
+      info.addBounds(" select * from specimen; ", "id"));
+    assertEquals("SELECT * FROM (select * from specimen) ipt_filtered WHERE modified >= ?",
+      info.addWatermark("select * from specimen;", "modified"));
+    assertEquals("SELECT MAX(modified) FROM (select * from specimen) ipt_watermark",
+      info.addMaxWatermark("select * from specimen", "modified"));
+    assertEquals("SELECT \"basis\", COUNT(*) FROM (select * from specimen) ipt_values WHERE \"basis\" IS NOT NULL "
+                 + "GROUP BY \"basis\" ORDER BY COUNT(*) DESC",
+      info.addValueCounts("select * from specimen;", "\"basis\""));
+    assertEquals("SELECT * FROM (select * from specimen) ipt_filtered ORDER BY CASE WHEN \"id\" IS NULL THEN 0 ELSE 1 "
+                 + "END, \"id\"", info.addKeyOrder("select * from specimen;", "\"id\"", false));
+    assertEquals("SELECT * FROM (select * from specimen) ipt_filtered WHERE \"id\" > ? ORDER BY CASE WHEN \"id\" IS "
+                 + "NULL THEN 0 ELSE 1 END, \"id\"", info.addKeyOrder("select * from specimen", "\"id\"", true));
+
+    info = support.new JdbcInfo("mssql", "Microsoft SQL Server", "net.sourceforge.jtds.jdbc.Driver",
+      "jdbc:jtds:sqlserver://{host}/{database}", LIMIT_TYPE.TOP);
+    assertEquals("SELECT * FROM (select * from specimen) ipt_filtered WHERE ABS(id) % 4 = 1",
+      info.addPartition("select * from specimen", "id", 4, 1));
+  }
 }
@@ -0,0 +1,150 @@
+package org.gbif.ipt.model;
+
+import org.gbif.utils.file.ClosableReportingIterator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExcelFileSourceTest {
+
+  private File dir;
+  private File file;
+  private File shadowFile;
+
+  @Before
+  public void setup() throws IOException {
+    dir = File.createTempFile("excel", "");
+    dir.delete();
+    dir.mkdirs();
+    file = new File(dir, "occurrences.xlsx");
+    shadowFile = new File(dir, "occurrences.shadow");
+  }
+
+  @After
+  public void teardown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  /**
+   * Writes a workbook with a single sheet, rows being written as given. Null rows are left out of the sheet, and
+   * empty rows are in the sheet without any cell.
+   */
+  private void write(String[]... rows) throws IOException {
+    XSSFWorkbook workbook = new XSSFWorkbook();
+    try {
+      Sheet sheet = workbook.createSheet("occurrences");
+      for (int i = 0; i < rows.length; i++) {
+        if (rows[i] != null) {
+          Row row = sheet.createRow(i);
+          for (int j = 0; j < rows[i].length; j++) {
+            row.createCell(j).setCellValue(rows[i][j]);
+          }
+        }
+      }
+      OutputStream out = new FileOutputStream(file);
+      try {
+        workbook.write(out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      workbook.close();
+    }
+  }
+
+  private ExcelFileSource source(File shadowFile) throws IOException {
+    ExcelFileSource source = new ExcelFileSource();
+    source.setName("occurrences");
+    source.setFile(file);
+    source.setShadowFile(shadowFile);
+    source.analyze();
+    return source;
+  }
+
+  private static List<String[]> read(ExcelFileSource source) {
+    List<String[]> rows = new ArrayList<String[]>();
+    ClosableReportingIterator<String[]> iter = source.rowIterator();
+    try {
+      while (iter.hasNext()) {
+        rows.add(iter.next());
+        assertFalse(iter.hasRowError());
+      }
+    } finally {
+      iter.close();
+    }
+    return rows;
+  }
+
+  @Test
+  public void testShadowRoundTrip() throws IOException {
+    String[] values = {"a\tb", "line\nbreak", "back\\slash", "\\t not a tab", "ends with a tab\t", "\\"};
+    write(values);
+    ExcelFileSource source = source(shadowFile);
+    assertTrue(shadowFile.exists());
+    assertEquals(1, source.getRows());
+    assertEquals(values.length, source.getColumns());
+
+    // values are read back from the shadow file as they are in the sheet
+    List<String[]> rows = read(source);
+    assertEquals(1, rows.size());
+    assertArrayEquals(values, rows.get(0));
+    assertArrayEquals(values, read(source(null)).get(0));
+  }
+
+  @Test
+  public void testShadowInvalidated() throws IOException {
+    write(new String[] {"id", "name"}, new String[] {"1", "Puma concolor"});
+    ExcelFileSource source = source(shadowFile);
+    assertEquals("Puma concolor", read(source).get(1)[1]);
+    long written = shadowFile.lastModified();
+
+    // reading again reuses the shadow file
+    assertEquals("Puma concolor", read(source).get(1)[1]);
+    assertEquals(written, shadowFile.lastModified());
+
+    // the workbook is edited: the shadow file is written again
+    write(new String[] {"id", "name"}, new String[] {"1", "Puma concolor"}, new String[] {"2", "Felis catus"});
+    assertTrue(file.setLastModified(file.lastModified() + 60000));
+    List<String[]> rows = read(source);
+    assertEquals(3, rows.size());
+    assertEquals("Felis catus", rows.get(2)[1]);
+  }
+
+  @Test
+  public void testShadowRowCount() throws IOException {
+    // a blank row, an empty row and a row left out of the sheet
+    write(new String[] {"id", "name"}, new String[] {"1", "Puma concolor"}, new String[] {" ", ""}, new String[0],
+      null, new String[] {"5", "Felis catus"});
+    ExcelFileSource withoutShadow = source(null);
+    ExcelFileSource withShadow = source(shadowFile);
+    assertTrue(shadowFile.exists());
+
+    // the shadow file has as many rows as the sheet
+    assertEquals(withoutShadow.getRows(), withShadow.getRows());
+    List<String[]> expected = read(withoutShadow);
+    List<String[]> rows = read(withShadow);
+    assertEquals(expected.size(), rows.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i), rows.get(i));
+    }
+    assertArrayEquals(new String[] {" ", ""}, rows.get(2));
+    assertArrayEquals(new String[] {"5", "Felis catus"}, rows.get(rows.size() - 1));
+  }
+}
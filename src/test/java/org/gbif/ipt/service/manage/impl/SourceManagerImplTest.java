@@ -2,6 +2,7 @@ package org.gbif.ipt.service.manage.impl;
 
 import org.gbif.ipt.config.AppConfig;
 import org.gbif.ipt.config.DataDir;
+import org.gbif.ipt.config.JdbcSupport;
 import org.gbif.ipt.model.FileSource;
 import org.gbif.ipt.model.Resource;
 import org.gbif.ipt.model.Source;
@@ -10,10 +11,14 @@ import org.gbif.ipt.model.TextFileSource;
 import org.gbif.ipt.service.AlreadyExistingException;
 import org.gbif.ipt.service.ImportException;
 import org.gbif.ipt.service.InvalidFilenameException;
+import org.gbif.utils.file.ClosableReportingIterator;
 import org.gbif.utils.file.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.Statement;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -21,8 +26,11 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -142,4 +150,39 @@ public class SourceManagerImplTest {
     assertFalse(manager.acceptableFileName("taxoñ.txt"));
     assertFalse(manager.acceptableFileName("taxon & aves.txt"));
   }
+
+  @Test(timeout = 30000)
+  public void testPartitionFailing() throws Exception {
+    // partitions fail with a runtime exception of the driver
+    JdbcSupport.JdbcInfo rdbms = mock(JdbcSupport.JdbcInfo.class);
+    when(rdbms.getDriver()).thenReturn(SqlConnectionPoolTest.FakeDriver.class.getName());
+    when(rdbms.getJdbcUrl(any(SqlSource.class))).thenReturn("jdbc:pooltest:partitions");
+    when(rdbms.addPartition(anyString(), anyString(), anyInt(), anyInt())).thenReturn("select * from specimen");
+    doThrow(new IllegalStateException("Driver failure")).when(rdbms).enableLargeResultSet(any(Statement.class));
+    src2.setRdbms(rdbms);
+    src2.setHost("localhost");
+    src2.setDatabase("specimens");
+    src2.setUsername("user");
+    src2.setPassword("secret");
+    src2.setSql("select * from specimen");
+    src2.setPartitionColumn("id");
+    src2.setPartitions(4);
+
+    Driver driver = new SqlConnectionPoolTest.FakeDriver();
+    DriverManager.registerDriver(driver);
+    try {
+      // the failure is reported instead of waiting for the rows of the partitions forever
+      ClosableReportingIterator<String[]> iter = manager.rowIterator(src2);
+      try {
+        iter.hasNext();
+        fail("Partition failure not reported");
+      } catch (IllegalStateException e) {
+        assertTrue(e.getMessage().contains("Driver failure"));
+      } finally {
+        iter.close();
+      }
+    } finally {
+      DriverManager.deregisterDriver(driver);
+    }
+  }
 }
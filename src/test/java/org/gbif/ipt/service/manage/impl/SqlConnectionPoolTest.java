@@ -0,0 +1,171 @@
+package org.gbif.ipt.service.manage.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SqlConnectionPoolTest {
+
+  private static final String URL = "jdbc:pooltest:db";
+  private static final FakeDriver DRIVER = new FakeDriver();
+
+  @BeforeClass
+  public static void register() throws SQLException {
+    DriverManager.registerDriver(DRIVER);
+  }
+
+  @AfterClass
+  public static void deregister() throws SQLException {
+    DriverManager.deregisterDriver(DRIVER);
+  }
+
+  @Before
+  public void setup() {
+    DRIVER.opened.set(0);
+    DRIVER.closed.set(0);
+  }
+
+  private SqlConnectionPool pool(int maxSize, long idleMillis) {
+    return new SqlConnectionPool(FakeDriver.class.getName(), URL, "user", "secret", maxSize, idleMillis);
+  }
+
+  @Test
+  public void testReuse() throws Exception {
+    SqlConnectionPool pool = pool(2, 60000);
+    Connection conn = pool.getConnection(1);
+    assertFalse(conn.isClosed());
+    conn.close();
+    // closing twice returns the connection once
+    conn.close();
+    assertTrue(conn.isClosed());
+    assertEquals(1, pool.getIdle());
+
+    pool.getConnection(1).close();
+    assertEquals(1, DRIVER.opened.get());
+    assertEquals(0, DRIVER.closed.get());
+  }
+
+  @Test
+  public void testMaxSize() throws Exception {
+    SqlConnectionPool pool = pool(2, 60000);
+    assertEquals(2, pool.getAvailable());
+    Connection first = pool.getConnection(1);
+    assertEquals(1, pool.getAvailable());
+    pool.getConnection(1);
+    assertEquals(0, pool.getAvailable());
+    try {
+      pool.getConnection(1);
+      fail("Pool handed out more connections than its maximum size");
+    } catch (SQLException e) {
+      // expected
+    }
+    first.close();
+    assertEquals(1, pool.getAvailable());
+    pool.getConnection(1);
+    assertEquals(2, DRIVER.opened.get());
+  }
+
+  @Test
+  public void testEvictAndClose() throws Exception {
+    SqlConnectionPool pool = pool(2, 0);
+    Connection first = pool.getConnection(1);
+    Connection second = pool.getConnection(1);
+    first.close();
+    Thread.sleep(5);
+    pool.evictIdle();
+    assertEquals(0, pool.getIdle());
+    assertEquals(1, DRIVER.closed.get());
+
+    // connections in use are closed when returned to a closed pool
+    pool.close();
+    second.close();
+    assertEquals(2, DRIVER.closed.get());
+  }
+
+  @Test
+  public void testMatches() {
+    SqlConnectionPool pool = pool(1, 60000);
+    assertTrue(pool.matches(FakeDriver.class.getName(), URL, "user", "secret"));
+    assertFalse(pool.matches(FakeDriver.class.getName(), URL, "user", "changed"));
+    assertFalse(pool.matches(FakeDriver.class.getName(), URL + "2", "user", "secret"));
+  }
+
+  /**
+   * Driver opening fake connections, counting connections opened and closed.
+   */
+  public static class FakeDriver implements Driver {
+
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+
+    public Connection connect(String url, Properties info) {
+      if (!acceptsURL(url)) {
+        return null;
+      }
+      opened.incrementAndGet();
+      return (Connection) Proxy
+        .newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler() {
+          private boolean isClosed = false;
+
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("close".equals(name)) {
+              if (!isClosed) {
+                isClosed = true;
+                closed.incrementAndGet();
+              }
+              return null;
+            } else if ("isClosed".equals(name)) {
+              return isClosed;
+            } else if ("getAutoCommit".equals(name) || "isValid".equals(name)) {
+              return true;
+            }
+            return null;
+          }
+        });
+    }
+
+    public boolean acceptsURL(String url) {
+      return url.startsWith("jdbc:pooltest:");
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+    }
+  }
+}
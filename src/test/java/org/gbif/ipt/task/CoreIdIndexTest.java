@@ -0,0 +1,139 @@
+package org.gbif.ipt.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoreIdIndexTest {
+
+  private File workDir;
+  private final List<String> orphans = new ArrayList<String>();
+
+  @Before
+  public void setup() throws IOException {
+    workDir = org.gbif.utils.file.FileUtils.createTempDir();
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(workDir);
+  }
+
+  private CoreIdIndex newIndex() throws IOException {
+    return new CoreIdIndex(workDir) {
+      @Override
+      protected void orphanFound(String dataFile, String coreId) {
+        orphans.add(dataFile + ":" + coreId);
+      }
+    };
+  }
+
+  @Test
+  public void testExtensionWrittenAfterCore() throws IOException {
+    CoreIdIndex index = newIndex();
+    try {
+      for (int i = 0; i < 100000; i++) {
+        index.addCoreId("urn:catalog:FISHES:" + i);
+      }
+      index.addCoreId(null);
+      index.coreCompleted();
+
+      index.validate("multimedia.txt", "urn:catalog:FISHES:1");
+      index.validate("multimedia.txt", "urn:catalog:FISHES:99999");
+      index.validate("multimedia.txt", "urn:catalog:FISHES:100000");
+      // comparisons are case sensitive
+      index.validate("multimedia.txt", "urn:catalog:fishes:1");
+      // missing coreids are reported as missing IDs, not as orphans
+      index.validate("multimedia.txt", null);
+      index.validate("multimedia.txt", "");
+      index.validate("description.txt", "urn:catalog:FISHES:5");
+
+      assertEquals(2, index.getOrphans("multimedia.txt"));
+      assertEquals(0, index.getOrphans("description.txt"));
+      assertEquals("multimedia.txt:urn:catalog:FISHES:100000", orphans.get(0));
+      assertEquals("multimedia.txt:urn:catalog:fishes:1", orphans.get(1));
+    } finally {
+      index.close();
+    }
+  }
+
+  @Test
+  public void testExtensionWrittenWithCore() throws IOException {
+    CoreIdIndex index = newIndex();
+    try {
+      // extension records written before the core is completed are checked once it is
+      index.addCoreId("1");
+      index.validate("multimedia.txt", "1");
+      index.validate("multimedia.txt", "2");
+      index.validate("multimedia.txt", "3");
+      index.addCoreId("2");
+      assertEquals(0, index.getOrphans("multimedia.txt"));
+      index.coreCompleted();
+      assertEquals(1, index.getOrphans("multimedia.txt"));
+      assertEquals("multimedia.txt:3", orphans.get(0));
+
+      index.validate("multimedia.txt", "4");
+      assertEquals(2, index.getOrphans("multimedia.txt"));
+    } finally {
+      index.close();
+    }
+    // no work files are left behind
+    assertEquals(0, workDir.list().length);
+  }
+
+  @Test
+  public void testFingerprintCollisions() throws IOException {
+    // IDs of the same length collide
+    CoreIdIndex index = new CoreIdIndex(workDir) {
+      @Override
+      long fingerprint(String id) {
+        return id.length();
+      }
+
+      @Override
+      protected void orphanFound(String dataFile, String coreId) {
+        orphans.add(dataFile + ":" + coreId);
+      }
+    };
+    try {
+      index.addCoreId("A1");
+      index.addCoreId("B22");
+      index.addCoreId("C2");
+      index.addCoreId("D333");
+      index.validate("multimedia.txt", "B22");
+      index.addCoreId("E22");
+      index.addCoreId("E22");
+      index.validate("multimedia.txt", "Y22");
+      index.coreCompleted();
+
+      index.validate("multimedia.txt", "A1");
+      index.validate("multimedia.txt", "C2");
+      index.validate("multimedia.txt", "X1");
+      index.validate("description.txt", "C2");
+      index.validate("description.txt", "E22");
+      // a fingerprint belonging to a single core ID counts as a link
+      index.validate("description.txt", "Z333");
+      // collisions between core IDs are only known once confirmed
+      assertEquals(0, index.getOrphans("multimedia.txt"));
+
+      index.confirmLinks();
+      assertEquals(2, index.getOrphans("multimedia.txt"));
+      assertEquals(0, index.getOrphans("description.txt"));
+      assertEquals(2, orphans.size());
+      assertTrue(orphans.contains("multimedia.txt:X1"));
+      assertTrue(orphans.contains("multimedia.txt:Y22"));
+    } finally {
+      index.close();
+    }
+    assertEquals(0, workDir.list().length);
+  }
+}
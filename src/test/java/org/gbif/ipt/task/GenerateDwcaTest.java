@@ -33,7 +33,10 @@ import org.gbif.ipt.mock.MockRegistryManager;
 import org.gbif.ipt.model.Extension;
 import org.gbif.ipt.model.FileSource;
 import org.gbif.ipt.model.Resource;
+import org.gbif.ipt.model.Source;
+import org.gbif.ipt.model.SqlSource;
 import org.gbif.ipt.model.User;
+import org.gbif.ipt.model.VersionHistory;
 import org.gbif.ipt.model.converter.ConceptTermConverter;
 import org.gbif.ipt.model.converter.ExtensionRowTypeConverter;
 import org.gbif.ipt.model.converter.JdbcInfoConverter;
@@ -43,6 +46,7 @@ import org.gbif.ipt.model.converter.UserEmailConverter;
 import org.gbif.ipt.model.factory.ExtensionFactory;
 import org.gbif.ipt.model.factory.ThesaurusHandlingRule;
 import org.gbif.ipt.model.voc.IdentifierStatus;
+import org.gbif.ipt.model.voc.PublicationStatus;
 import org.gbif.ipt.service.AlreadyExistingException;
 import org.gbif.ipt.service.ImportException;
 import org.gbif.ipt.service.InvalidFilenameException;
@@ -56,6 +60,7 @@ import org.gbif.ipt.service.manage.impl.ResourceManagerImpl;
 import org.gbif.ipt.service.manage.impl.SourceManagerImpl;
 import org.gbif.ipt.service.registry.RegistryManager;
 import org.gbif.ipt.struts2.SimpleTextProvider;
+import org.gbif.utils.file.ClosableReportingIterator;
 import org.gbif.utils.file.CompressionUtil;
 import org.gbif.utils.file.FileUtils;
 
@@ -63,9 +68,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import javax.validation.constraints.NotNull;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -83,11 +92,14 @@ import org.junit.Test;
 import org.xml.sax.SAXException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -239,6 +251,251 @@ public class GenerateDwcaTest {
     assertTrue(foundWarningAboutEmptyLine);
   }
 
+  /**
+   * Generating the same resource with data files written, and their rows transformed, in parallel must produce the
+   * same data file and counts.
+   */
+  @Test
+  public void testGenerateCoreFromSingleSourceFileInParallel() throws Exception {
+    File resourceXML = FileUtils.getClasspathFile("resources/res1/resource.xml");
+    File occurrence = FileUtils.getClasspathFile("resources/res1/occurrence.txt");
+    Resource resource = getResource(resourceXML, occurrence);
+
+    AppConfig parallelAppConfig = MockAppConfig.buildMock();
+    when(parallelAppConfig.getMaxDataFileThreads()).thenReturn(2);
+    when(parallelAppConfig.getMaxCompressionThreads()).thenReturn(2);
+    when(parallelAppConfig.getMaxTransformThreads()).thenReturn(3);
+
+    generateDwca = new GenerateDwca(resource, mockHandler, mockDataDir, mockSourceManager, parallelAppConfig,
+      mockVocabulariesManager);
+    Map<String, Integer> recordsByExtension = generateDwca.call();
+    assertEquals(1, recordsByExtension.size());
+    assertEquals(2, recordsByExtension.get(resource.getCoreRowType()).intValue());
+
+    File versionedDwca = new File(resourceDir, VERSIONED_ARCHIVE_FILENAME);
+    assertTrue(versionedDwca.exists());
+    File dir = FileUtils.createTempDir();
+    CompressionUtil.decompressFile(dir, versionedDwca, true);
+
+    // only data file, meta.xml and eml.xml are bundled, no segment files
+    assertEquals(3, dir.list().length);
+
+    Archive archive = ArchiveFactory.openArchive(dir);
+    assertEquals(DwcTerm.Occurrence, archive.getCore().getRowType());
+    CSVReader reader = archive.getCore().getCSVReader();
+    String[] row = reader.next();
+    assertEquals("1", row[0]);
+    assertEquals("puma concolor", row[3]);
+    row = reader.next();
+    assertEquals("2", row[0]);
+    assertEquals("pumm:concolor", row[3]);
+    reader.close();
+  }
+
+  /**
+   * A dry run samples each mapping up to the row limit, without publishing anything or touching the publication log.
+   */
+  @Test
+  public void testDryRun() throws Exception {
+    File resourceXML = FileUtils.getClasspathFile("resources/res1/resource.xml");
+    File occurrence = FileUtils.getClasspathFile("resources/res1/occurrence.txt");
+    Resource resource = getResource(resourceXML, occurrence);
+
+    generateDwca = new GenerateDwca(resource, mockHandler, 1, mockDataDir, mockSourceManager, mockAppConfig,
+      mockVocabulariesManager);
+    DryRunReport report = generateDwca.dryRun();
+
+    assertEquals(1, report.getSamples().size());
+    DryRunReport.DataFileSample sample = report.getSamples().get(0);
+    assertEquals(Constants.DWC_ROWTYPE_OCCURRENCE, sample.getRowType());
+    assertEquals("id", sample.getColumns().get(0));
+    assertEquals(1, sample.getRows().size());
+    assertEquals("1", sample.getRows().get(0)[0]);
+    assertTrue(report.getMetaXml().contains(sample.getFileName()));
+    assertTrue(report.isValid());
+
+    // nothing was published
+    assertFalse(new File(resourceDir, VERSIONED_ARCHIVE_FILENAME).exists());
+    assertFalse(new File(resourceDir, DataDir.PUBLICATION_LOG_FILENAME).exists());
+  }
+
+  /**
+   * A sample failing validation doesn't fail the dry run, the failure is reported instead.
+   */
+  @Test
+  public void testDryRunReportsValidationFailure() throws Exception {
+    File resourceXML = FileUtils.getClasspathFile("resources/res1/resource.xml");
+    File occurrence = FileUtils.getClasspathFile("resources/res1/occurrence_non_unique_ids.txt");
+    Resource resource = getResource(resourceXML, occurrence);
+
+    generateDwca = new GenerateDwca(resource, mockHandler, 10, mockDataDir, mockSourceManager, mockAppConfig,
+      mockVocabulariesManager);
+    DryRunReport report = generateDwca.dryRun();
+    assertEquals(4, report.getSamples().get(0).getRows().size());
+    assertFalse(report.isValid());
+  }
+
+  /**
+   * Generating a new version with unchanged data reuses the data files of the last published version, only eml.xml
+   * gets replaced. Changing the mapping makes the data files get generated again.
+   */
+  @Test
+  public void testReuseDataFilesOfLastPublishedVersion() throws Exception {
+    File resourceXML = FileUtils.getClasspathFile("resources/res1/resource.xml");
+    File occurrence = FileUtils.getClasspathFile("resources/res1/occurrence.txt");
+    Resource resource = getResource(resourceXML, occurrence);
+
+    // publish version 3.0
+    VersionHistory published = new VersionHistory(new BigDecimal("3.0"), PublicationStatus.PUBLIC);
+    resource.addVersionHistory(published);
+    generateDwca = new GenerateDwca(resource, mockHandler, mockDataDir, mockSourceManager, mockAppConfig,
+      mockVocabulariesManager);
+    published.setRecordsByExtension(generateDwca.call());
+    published.setReleased(new Date());
+    assertNotNull(published.getDataFingerprint());
+    assertFalse(isDataReused(generateDwca));
+
+    // version 4.0 with unchanged data
+    resource.setEmlVersion(new BigDecimal("4.0"));
+    VersionHistory next = new VersionHistory(new BigDecimal("4.0"), PublicationStatus.PUBLIC);
+    resource.addVersionHistory(next);
+    generateDwca = new GenerateDwca(resource, mockHandler, mockDataDir, mockSourceManager, mockAppConfig,
+      mockVocabulariesManager);
+    Map<String, Integer> recordsByExtension = generateDwca.call();
+    assertTrue(isDataReused(generateDwca));
+    assertEquals(2, recordsByExtension.get(resource.getCoreRowType()).intValue());
+    assertEquals(published.getDataFingerprint(), next.getDataFingerprint());
+
+    File versionedDwca = new File(resourceDir, VERSIONED_ARCHIVE_FILENAME);
+    File dir = FileUtils.createTempDir();
+    CompressionUtil.decompressFile(dir, versionedDwca, true);
+    assertEquals(3, dir.list().length);
+    Archive archive = ArchiveFactory.openArchive(dir);
+    assertEquals(DwcTerm.Occurrence, archive.getCore().getRowType());
+    CSVReader reader = archive.getCore().getCSVReader();
+    assertEquals("puma concolor", reader.next()[3]);
+    reader.close();
+
+    // version 5.0 with a changed mapping
+    resource.getMappings().get(0).setIdSuffix("-5");
+    resource.setEmlVersion(new BigDecimal("5.0"));
+    next.setReleased(new Date());
+    resource.addVersionHistory(new VersionHistory(new BigDecimal("5.0"), PublicationStatus.PUBLIC));
+    generateDwca = new GenerateDwca(resource, mockHandler, mockDataDir, mockSourceManager, mockAppConfig,
+      mockVocabulariesManager);
+    generateDwca.call();
+    assertFalse(isDataReused(generateDwca));
+    assertNotEquals(published.getDataFingerprint(), resource.getVersionHistory().get(0).getDataFingerprint());
+  }
+
+  private boolean isDataReused(GenerateDwca generateDwca) {
+    for (TaskMessage message : generateDwca.report().getMessages()) {
+      if (message.getMessage().contains("data files and meta.xml have been reused")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Publishing a resource whose core comes from an incremental sql source reads only the rows changed since the
+   * watermark of the last published version, merging them by ID into its data file and removing the rows deleted.
+   */
+  @Test
+  public void testIncrementalSqlSource() throws Exception {
+    File resourceXML = FileUtils.getClasspathFile("resources/res1/resource.xml");
+    File occurrence = FileUtils.getClasspathFile("resources/res1/occurrence.txt");
+    Resource resource = getResource(resourceXML, occurrence);
+
+    SqlSource source = new SqlSource();
+    source.setName("specimens");
+    source.setSql("select id, name, bor, kingdom from specimens");
+    source.setWatermarkColumn("modified");
+    source.setDeletedSql("select id from deleted_specimens where deleted >= ?");
+    source.setColumns(4);
+    resource.getMappings().get(0).setSource(source);
+
+    SourceManager sourceManager = mock(SourceManager.class);
+    when(sourceManager.maxWatermark(source)).thenReturn("10", "20");
+    when(sourceManager.rowIterator(any(Source.class), any(Set.class))).thenReturn(
+      rows(new String[] {"1", "puma concolor", "occurrence", "occurrence"},
+        new String[] {"2", "pumm:concolor", "occurrence", "occurrence"},
+        new String[] {"3", "lynx lynx", "occurrence", "occurrence"}));
+    when(sourceManager.rowIterator(source, "10")).thenReturn(
+      rows(new String[] {"3", "lynx pardinus", "occurrence", "occurrence"},
+        new String[] {"4", "felis silvestris", "occurrence", "occurrence"}));
+    when(sourceManager.deletedIds(source, "10")).thenReturn(Collections.singleton("2"));
+
+    // publish version 3.0, reading all rows
+    VersionHistory published = new VersionHistory(new BigDecimal("3.0"), PublicationStatus.PUBLIC);
+    resource.addVersionHistory(published);
+    generateDwca = new GenerateDwca(resource, mockHandler, mockDataDir, sourceManager, mockAppConfig,
+      mockVocabulariesManager);
+    published.setRecordsByExtension(generateDwca.call());
+    published.setReleased(new Date());
+    assertEquals(3, published.getRecordsByExtension().get(resource.getCoreRowType()).intValue());
+    assertEquals("10", published.getWatermarksBySource().get("specimens"));
+
+    // version 4.0 reads the rows changed since
+    resource.setEmlVersion(new BigDecimal("4.0"));
+    VersionHistory next = new VersionHistory(new BigDecimal("4.0"), PublicationStatus.PUBLIC);
+    resource.addVersionHistory(next);
+    generateDwca = new GenerateDwca(resource, mockHandler, mockDataDir, sourceManager, mockAppConfig,
+      mockVocabulariesManager);
+    Map<String, Integer> recordsByExtension = generateDwca.call();
+    assertEquals(3, recordsByExtension.get(resource.getCoreRowType()).intValue());
+    assertEquals("20", next.getWatermarksBySource().get("specimens"));
+    assertEquals(published.getConfigurationFingerprint(), next.getConfigurationFingerprint());
+
+    File dir = FileUtils.createTempDir();
+    CompressionUtil.decompressFile(dir, new File(resourceDir, VERSIONED_ARCHIVE_FILENAME), true);
+    Archive archive = ArchiveFactory.openArchive(dir);
+    CSVReader reader = archive.getCore().getCSVReader();
+    // unchanged records come first, followed by the records changed
+    String[] row = reader.next();
+    assertEquals("1", row[0]);
+    assertEquals("puma concolor", row[3]);
+    row = reader.next();
+    assertEquals("3", row[0]);
+    assertEquals("lynx pardinus", row[3]);
+    row = reader.next();
+    assertEquals("4", row[0]);
+    assertFalse(reader.hasNext());
+    reader.close();
+  }
+
+  private static ClosableReportingIterator<String[]> rows(String[]... rows) {
+    final Iterator<String[]> iter = Arrays.asList(rows).iterator();
+    return new ClosableReportingIterator<String[]>() {
+      public boolean hasNext() {
+        return iter.hasNext();
+      }
+
+      public String[] next() {
+        return iter.next();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      public void close() {
+      }
+
+      public boolean hasRowError() {
+        return false;
+      }
+
+      public String getErrorMessage() {
+        return null;
+      }
+
+      public Exception getException() {
+        return null;
+      }
+    };
+  }
+
   /**
    * Confirm resource DOI used for datasetID, when setting "doi used for DatasetID" has been turned on in the extension
    * mapping.
@@ -0,0 +1,106 @@
+package org.gbif.ipt.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GenerationCheckpointTest {
+
+  private File dir;
+
+  @Before
+  public void setup() throws IOException {
+    dir = new File(Files.createTempDirectory("checkpoint").toFile(), "dwca-checkpoint");
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(dir.getParentFile());
+  }
+
+  @Test
+  public void testResume() throws IOException {
+    GenerationCheckpoint checkpoint = GenerationCheckpoint.open(dir, "abc");
+    assertFalse(checkpoint.isResumed());
+    assertEquals(0, checkpoint.getSegmentProgress("occurrence.txt", 0).getLines());
+    assertFalse(checkpoint.getSegmentProgress("occurrence.txt", 0).isCompleted());
+
+    checkpoint.saveSegmentProgress("occurrence.txt", 0, new GenerationCheckpoint.SegmentProgress(2000, 51234, 3, true));
+    checkpoint.saveSegmentProgress("occurrence.txt", 1, new GenerationCheckpoint.SegmentProgress(1000, 17, 0, false));
+    checkpoint.saveSegmentProgress("occurrence.txt", 2,
+      new GenerationCheckpoint.SegmentProgress(500, 9, 1, false, 8192, null));
+    checkpoint.saveSegmentProgress("occurrence.txt", 3,
+      new GenerationCheckpoint.SegmentProgress(700, 11, 0, false, -1, "urn:catalog:700"));
+
+    // the generation got interrupted, and is resumed with the same configuration
+    checkpoint = GenerationCheckpoint.open(dir, "abc");
+    assertTrue(checkpoint.isResumed());
+    GenerationCheckpoint.SegmentProgress progress = checkpoint.getSegmentProgress("occurrence.txt", 0);
+    assertEquals(2000, progress.getLines());
+    assertEquals(51234, progress.getBytes());
+    assertEquals(3, progress.getRecordsSkipped());
+    assertTrue(progress.isCompleted());
+    progress = checkpoint.getSegmentProgress("occurrence.txt", 1);
+    assertEquals(1000, progress.getLines());
+    assertEquals(17, progress.getBytes());
+    assertFalse(progress.isCompleted());
+    assertEquals(-1, progress.getOffset());
+    assertNull(progress.getKey());
+    // where to resume reading the source is kept too
+    progress = checkpoint.getSegmentProgress("occurrence.txt", 2);
+    assertEquals(8192, progress.getOffset());
+    assertNull(progress.getKey());
+    progress = checkpoint.getSegmentProgress("occurrence.txt", 3);
+    assertEquals(-1, progress.getOffset());
+    assertEquals("urn:catalog:700", progress.getKey());
+  }
+
+  @Test
+  public void testDataFileCompleted() throws IOException {
+    GenerationCheckpoint checkpoint = GenerationCheckpoint.open(dir, "abc");
+    FileUtils.writeStringToFile(checkpoint.segmentFile("taxon.txt", 0), "1\tPuma concolor\n", "UTF-8");
+    FileUtils.writeStringToFile(checkpoint.segmentFile("taxon.txt", 1), "2\tPuma\n", "UTF-8");
+    checkpoint.saveSegmentProgress("taxon.txt", 0, new GenerationCheckpoint.SegmentProgress(1, 16, 0, true));
+    checkpoint.saveSegmentProgress("taxon.txt", 1, new GenerationCheckpoint.SegmentProgress(1, 7, 0, true));
+    assertFalse(checkpoint.isDataFileCompleted("taxon.txt"));
+
+    // a data file is only completed once its zip file exists
+    FileUtils.writeStringToFile(checkpoint.dataFileZip("taxon.txt"), "zip", "UTF-8");
+    checkpoint.dataFileCompleted("taxon.txt", 2, 5);
+    assertTrue(checkpoint.isDataFileCompleted("taxon.txt"));
+    assertEquals(5, checkpoint.getDataFileRecordsSkipped("taxon.txt"));
+    assertFalse(checkpoint.segmentFile("taxon.txt", 0).exists());
+    assertFalse(checkpoint.segmentFile("taxon.txt", 1).exists());
+
+    checkpoint = GenerationCheckpoint.open(dir, "abc");
+    assertTrue(checkpoint.isDataFileCompleted("taxon.txt"));
+    assertEquals(0, checkpoint.getSegmentProgress("taxon.txt", 0).getLines());
+    assertFalse(checkpoint.isDataFileCompleted("occurrence.txt"));
+  }
+
+  @Test
+  public void testConfigurationChanged() throws IOException {
+    GenerationCheckpoint checkpoint = GenerationCheckpoint.open(dir, "abc");
+    FileUtils.writeStringToFile(checkpoint.dataFileZip("taxon.txt"), "zip", "UTF-8");
+    checkpoint.dataFileCompleted("taxon.txt", 1, 0);
+
+    // a checkpoint made with another configuration is discarded
+    checkpoint = GenerationCheckpoint.open(dir, "def");
+    assertFalse(checkpoint.isResumed());
+    assertFalse(checkpoint.isDataFileCompleted("taxon.txt"));
+    assertFalse(checkpoint.dataFileZip("taxon.txt").exists());
+
+    checkpoint.delete();
+    assertFalse(dir.exists());
+  }
+}
@@ -0,0 +1,69 @@
+package org.gbif.ipt.task;
+
+import org.gbif.utils.file.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdentifierValidatorTest {
+
+  private File workDir;
+
+  @Before
+  public void setup() throws IOException {
+    workDir = FileUtils.createTempDir();
+  }
+
+  @Test
+  public void testUniqueIds() throws IOException {
+    IdentifierValidator validator = new IdentifierValidator(workDir);
+    try {
+      for (int i = 0; i < 10000; i++) {
+        validator.validate("urn:catalog:FISHES:" + i);
+      }
+      assertEquals(0, validator.getRecordsWithNoId());
+      assertEquals(0, validator.countDuplicates());
+    } finally {
+      validator.close();
+    }
+    // work files are removed
+    assertEquals(0, workDir.list().length);
+  }
+
+  @Test
+  public void testMissingAndDuplicateIds() throws IOException {
+    final List<String> duplicates = new ArrayList<String>();
+    IdentifierValidator validator = new IdentifierValidator(workDir) {
+      @Override
+      protected void duplicateFound(String id) {
+        duplicates.add(id);
+      }
+    };
+    try {
+      validator.validate("FISHES:1");
+      validator.validate("FISHES:2");
+      validator.validate(null);
+      validator.validate("");
+      // comparisons are case insensitive
+      validator.validate("fishes:1");
+      validator.validate("FISHES:3");
+      validator.validate("FISHES:1");
+      assertEquals(2, validator.getRecordsWithNoId());
+      assertEquals(2, validator.countDuplicates());
+      assertEquals(2, duplicates.size());
+      assertTrue(duplicates.contains("fishes:1"));
+      assertTrue(duplicates.contains("FISHES:1"));
+    } finally {
+      validator.close();
+    }
+    assertEquals(0, workDir.list().length);
+  }
+}
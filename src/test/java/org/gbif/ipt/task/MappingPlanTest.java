@@ -0,0 +1,85 @@
+package org.gbif.ipt.task;
+
+import org.gbif.api.model.common.DOI;
+import org.gbif.dwc.terms.DwcTerm;
+import org.gbif.ipt.model.PropertyMapping;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MappingPlanTest {
+
+  private static PropertyMapping mapping(DwcTerm term, Integer index, String defaultValue) {
+    PropertyMapping pm = new PropertyMapping();
+    pm.setTerm(term);
+    pm.setIndex(index);
+    pm.setDefaultValue(defaultValue);
+    return pm;
+  }
+
+  @Test
+  public void testApply() {
+    PropertyMapping basisOfRecord = mapping(DwcTerm.basisOfRecord, 1, "PreservedSpecimen");
+    Map<String, String> translation = Maps.newHashMap();
+    translation.put("obs", "HumanObservation");
+    translation.put("spec", "PreservedSpecimen");
+    basisOfRecord.setTranslation(translation);
+    PropertyMapping recordedBy = mapping(DwcTerm.recordedBy, null, "Leonardo Pisano");
+    PropertyMapping datasetID = mapping(DwcTerm.datasetID, 2, null);
+    // id column and one unmapped column
+    PropertyMapping[] inCols = {null, basisOfRecord, recordedBy, datasetID, null};
+
+    MappingPlan plan = MappingPlan.compile(inCols, false, null);
+    String[] in = {"1", "obs", "dataset-1"};
+    String[] record = new String[inCols.length];
+    plan.apply(in, record);
+    assertArrayEquals(new String[] {null, "HumanObservation", "Leonardo Pisano", "dataset-1", null}, record);
+    // translated values are updated in the source row
+    assertArrayEquals(new String[] {"1", "HumanObservation", "dataset-1"}, in);
+
+    // untranslated values are kept, null values get the default value
+    in = new String[] {"2", "fossil", null};
+    plan.apply(in, record);
+    assertEquals("fossil", record[1]);
+    assertNull(record[3]);
+    in = new String[] {"3", null, null};
+    plan.apply(in, record);
+    assertEquals("PreservedSpecimen", record[1]);
+  }
+
+  @Test
+  public void testDoiUsedForDatasetId() {
+    PropertyMapping datasetID = mapping(DwcTerm.datasetID, 1, "default");
+    PropertyMapping[] inCols = {null, datasetID};
+    DOI doi = new DOI("10.5072/bclona");
+
+    String[] record = new String[inCols.length];
+    MappingPlan.compile(inCols, true, doi).apply(new String[] {"1", "dataset-1"}, record);
+    assertEquals(doi.toString(), record[1]);
+    MappingPlan.compile(inCols, true, null).apply(new String[] {"1", "dataset-1"}, record);
+    assertEquals("dataset-1", record[1]);
+    MappingPlan.compile(inCols, false, doi).apply(new String[] {"1", null}, record);
+    assertEquals("default", record[1]);
+  }
+
+  @Test
+  public void testTranslationTable() {
+    Map<String, String> translation = Maps.newHashMap();
+    for (int i = 0; i < 1000; i++) {
+      translation.put("v" + i, "t" + i);
+    }
+    translation.put(null, "null");
+    MappingPlan.TranslationTable table = new MappingPlan.TranslationTable(translation);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("t" + i, table.value(table.find("v" + i)));
+    }
+    assertEquals("null", table.value(table.find(null)));
+    assertEquals(MappingPlan.TranslationTable.ABSENT, table.find("v1000"));
+  }
+}
@@ -0,0 +1,87 @@
+package org.gbif.ipt.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressMetricsTest {
+
+  @Test
+  public void testStages() throws InterruptedException {
+    ProgressMetrics metrics = new ProgressMetrics();
+    metrics.startStage("STARTED");
+    Thread.sleep(20);
+    metrics.startStage("DATAFILES");
+    metrics.startStage("STARTED");
+    Map<String, Long> millis = metrics.getStageMillis();
+    // stages keep the order they were first started in, the current one counted so far
+    assertEquals(Arrays.asList("STARTED", "DATAFILES"), new ArrayList<String>(millis.keySet()));
+    assertTrue(millis.get("STARTED") >= 20);
+
+    metrics.completed();
+    long completed = metrics.getStageMillis().get("STARTED");
+    Thread.sleep(20);
+    assertEquals(completed, (long) metrics.getStageMillis().get("STARTED"));
+  }
+
+  @Test
+  public void testDataFileCounts() throws InterruptedException {
+    ProgressMetrics metrics = new ProgressMetrics();
+    ProgressMetrics.DataFileMetrics dataFile = metrics.addDataFile("Occurrence", "occurrence", 1000);
+    assertEquals(ProgressMetrics.UNKNOWN, dataFile.getEtaMillis());
+
+    // two mappings written to the same data file, reporting their totals
+    ProgressMetrics.MappingCounter first = dataFile.newMappingCounter();
+    ProgressMetrics.MappingCounter second = dataFile.newMappingCounter();
+    first.update(100, 90, 10, 1000);
+    second.update(50, 50, 0, 500);
+    first.update(200, 180, 20, 2000);
+    assertEquals(250, dataFile.getRowsRead());
+    assertEquals(230, dataFile.getRowsWritten());
+    assertEquals(20, dataFile.getRowsSkipped());
+    assertEquals(2500, dataFile.getBytesWritten());
+
+    Thread.sleep(20);
+    assertTrue(dataFile.getEtaMillis() > 0);
+    assertTrue(dataFile.getRowsPerSecond() > 0);
+    // the only data file tells the time left
+    assertTrue(metrics.getEtaMillis() > 0);
+
+    assertFalse(dataFile.isCompleted());
+    dataFile.completed();
+    assertTrue(dataFile.isCompleted());
+    assertEquals(0, dataFile.getEtaMillis());
+  }
+
+  @Test
+  public void testUnknownEta() {
+    ProgressMetrics metrics = new ProgressMetrics();
+    metrics.addDataFile("Occurrence", "occurrence", 10).newMappingCounter().update(5, 5, 0, 50);
+    metrics.addDataFile("Multimedia", "multimedia", ProgressMetrics.UNKNOWN).newMappingCounter().update(5, 5, 0, 50);
+    assertEquals(ProgressMetrics.UNKNOWN, metrics.getEtaMillis());
+
+    List<ProgressMetrics.DataFileMetrics> dataFiles = metrics.getDataFiles();
+    assertEquals(2, dataFiles.size());
+    assertEquals("multimedia", dataFiles.get(1).getRowType());
+  }
+
+  @Test
+  public void testLateEstimate() {
+    ProgressMetrics metrics = new ProgressMetrics();
+    ProgressMetrics.DataFileMetrics dataFile = metrics.addDataFile("Occurrence", "occurrence", ProgressMetrics.UNKNOWN);
+    dataFile.newMappingCounter().update(5, 5, 0, 50);
+    assertEquals(ProgressMetrics.UNKNOWN, metrics.getEtaMillis());
+
+    // the rows get estimated while the data file is written
+    dataFile.setExpectedRows(10);
+    assertEquals(10, dataFile.getExpectedRows());
+    assertTrue(metrics.getEtaMillis() >= 0);
+  }
+}
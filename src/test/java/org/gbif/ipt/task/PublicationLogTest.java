@@ -0,0 +1,118 @@
+package org.gbif.ipt.task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PublicationLogTest {
+
+  private static final String EMPTY = "Empty lines skipped";
+  private static final String FILTERED = "Lines not matching the filter criteria";
+
+  private File dir;
+  private File logFile;
+  private File detailFile;
+
+  @Before
+  public void setup() throws IOException {
+    dir = org.gbif.utils.file.FileUtils.createTempDir();
+    logFile = new File(dir, "publication.log");
+    detailFile = new File(dir, "publication-detail.log.gz");
+  }
+
+  @After
+  public void teardown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  private void writeEntries(PublicationLog log, String category, int entries) {
+    for (int i = 1; i <= entries; i++) {
+      if (log.count(category)) {
+        log.write(category, category + " #" + i);
+      }
+    }
+  }
+
+  @Test
+  public void testSamplesAndCounts() throws IOException {
+    PublicationLog log = new PublicationLog(logFile, 10, null);
+    log.write("Start");
+    writeEntries(log, EMPTY, 25000);
+    writeEntries(log, FILTERED, 5);
+    // entries beyond the sample don't need to be built
+    assertFalse(log.count(EMPTY));
+    assertEquals(25001, log.getCount(EMPTY));
+    log.write("End");
+    log.close();
+
+    List<String> lines = FileUtils.readLines(logFile, "UTF-8");
+    assertEquals(1 + 10 + 5 + 1 + 2, lines.size());
+    assertEquals("Start", lines.get(0));
+    assertEquals(EMPTY + " #1", lines.get(1));
+    assertEquals(EMPTY + " #10", lines.get(10));
+    assertEquals(FILTERED + " #5", lines.get(15));
+    assertEquals("End", lines.get(16));
+    assertEquals(EMPTY + ": 25001 in total, only the first 10 were written", lines.get(17));
+    assertEquals(FILTERED + ": 5 in total", lines.get(18));
+    assertFalse(detailFile.exists());
+
+    // messages written once closed are dropped
+    log.write("Dropped");
+    assertEquals(19, FileUtils.readLines(logFile, "UTF-8").size());
+  }
+
+  @Test
+  public void testDetailFile() throws IOException {
+    PublicationLog log = new PublicationLog(logFile, 10, detailFile);
+    writeEntries(log, EMPTY, 25000);
+    log.close();
+
+    List<String> lines = FileUtils.readLines(logFile, "UTF-8");
+    assertEquals(11, lines.size());
+    assertTrue(lines.get(10).endsWith("(the others are written to publication-detail.log.gz)"));
+
+    InputStream in = new GZIPInputStream(new FileInputStream(detailFile));
+    try {
+      List<String> detail = IOUtils.readLines(in, "UTF-8");
+      assertEquals(24990, detail.size());
+      assertEquals(EMPTY + " #11", detail.get(0));
+      assertEquals(EMPTY + " #25000", detail.get(24989));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    final PublicationLog log = new PublicationLog(logFile, 100, null);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final String category = "Category " + t;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          writeEntries(log, category, 10000);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    log.close();
+    // 100 sampled lines and a count per category
+    assertEquals(4 * 101, FileUtils.readLines(logFile, "UTF-8").size());
+  }
+}
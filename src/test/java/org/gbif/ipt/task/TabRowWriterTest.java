@@ -0,0 +1,96 @@
+package org.gbif.ipt.task;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TabRowWriterTest {
+
+  private static final Pattern ESCAPE_CHARS = Pattern.compile("[\t\n\r]");
+  private static final char[] CHARS = {'a', 'Z', '1', ' ', '\t', '\n', '\r', '\u0000', '\u001f', 'é', '"', ';'};
+
+  /**
+   * Former implementation of GenerateDwca.tabRow, the reference the writer must match byte for byte.
+   */
+  private static String referenceRow(String[] columns) {
+    boolean empty = true;
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i] != null) {
+        empty = false;
+        columns[i] = StringUtils.trimToNull(ESCAPE_CHARS.matcher(columns[i]).replaceAll(" "));
+      }
+    }
+    return empty ? null : StringUtils.join(columns, '\t') + "\n";
+  }
+
+  @Test
+  public void testWrite() throws IOException {
+    StringWriter sw = new StringWriter();
+    TabRowWriter writer = new TabRowWriter(sw);
+    String id = "urn:catalog:FISHES:1";
+    String[] record = {id, " human\rObservation ", "\t", null};
+    assertTrue(writer.write(record));
+    assertFalse(writer.write(new String[] {null, null}));
+    assertEquals(0, writer.getBytesWritten());
+    writer.flush();
+    assertEquals("urn:catalog:FISHES:1\thuman Observation\t\t\n", sw.toString());
+    assertEquals(41, writer.getBytesWritten());
+    // values are cleaned in place, clean values are kept as is
+    assertSame(id, record[0]);
+    assertEquals("human Observation", record[1]);
+    assertNull(record[2]);
+  }
+
+  @Test
+  public void testSameAsReference() throws IOException {
+    Random random = new Random(42);
+    StringWriter sw = new StringWriter();
+    TabRowWriter writer = new TabRowWriter(sw);
+    StringBuilder expected = new StringBuilder();
+    for (int row = 0; row < 5000; row++) {
+      String[] columns = new String[1 + random.nextInt(10)];
+      for (int i = 0; i < columns.length; i++) {
+        if (random.nextInt(5) > 0) {
+          // some values longer than the buffer
+          char[] value = new char[random.nextInt(100) == 0 ? 10000 + random.nextInt(10000) : random.nextInt(20)];
+          for (int c = 0; c < value.length; c++) {
+            value[c] = CHARS[random.nextInt(CHARS.length)];
+          }
+          columns[i] = new String(value);
+        }
+      }
+      String[] reference = columns.clone();
+      String referenceRow = referenceRow(reference);
+      assertEquals(referenceRow != null, writer.write(columns));
+      if (referenceRow != null) {
+        expected.append(referenceRow);
+      }
+      for (int i = 0; i < columns.length; i++) {
+        assertEquals(reference[i], columns[i]);
+      }
+    }
+    writer.flush();
+    assertEquals(expected.toString(), sw.toString());
+    assertEquals(expected.toString().getBytes("UTF-8").length, writer.getBytesWritten());
+  }
+
+  @Test
+  public void testClean() throws IOException {
+    String[] columns = {" a\tb\r\n ", "  ", "c"};
+    new TabRowWriter(new StringWriter()).write(columns);
+    assertEquals(columns[0], TabRowWriter.clean(" a\tb\r\n "));
+    assertNull(TabRowWriter.clean("  "));
+    assertNull(TabRowWriter.clean(null));
+    assertSame(columns[2], TabRowWriter.clean(columns[2]));
+  }
+}
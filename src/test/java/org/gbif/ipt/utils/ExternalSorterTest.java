@@ -0,0 +1,77 @@
+package org.gbif.ipt.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExternalSorterTest {
+
+  private File dir;
+  private File scratchDir;
+
+  @Before
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("sort").toFile();
+    scratchDir = new File(dir, "scratch");
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  private List<String> randomLines(int count) {
+    Random random = new Random(count);
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      // few distinct keys differing in case only, so that stability matters
+      String key = random.nextBoolean() ? "id" : "ID";
+      lines.add(key + random.nextInt(count / 10 + 1) + "\t" + i);
+    }
+    return lines;
+  }
+
+  private void assertSorted(List<String> lines, int threads, int runSize) throws IOException {
+    File input = new File(dir, "input.txt");
+    File sorted = new File(dir, "sorted.txt");
+    FileUtils.writeLines(input, "UTF-8", lines, "\n");
+
+    new ExternalSorter(scratchDir, threads, runSize).sort(input, sorted, String.CASE_INSENSITIVE_ORDER);
+
+    List<String> expected = new ArrayList<String>(lines);
+    Collections.sort(expected, String.CASE_INSENSITIVE_ORDER);
+    assertEquals(expected, FileUtils.readLines(sorted, "UTF-8"));
+    // no runs are left behind
+    assertEquals(0, scratchDir.list().length);
+  }
+
+  @Test
+  public void testSortInMemory() throws IOException {
+    assertSorted(new ArrayList<String>(), 1, 100);
+    assertSorted(randomLines(99), 1, 100);
+  }
+
+  @Test
+  public void testSortSpilled() throws IOException {
+    assertSorted(randomLines(100), 1, 100);
+    assertSorted(randomLines(10000), 1, 1000);
+    assertSorted(randomLines(10000), 3, 999);
+  }
+
+  @Test
+  public void testSortMergedInPasses() throws IOException {
+    // more runs than merged at once
+    assertSorted(randomLines(5000), 4, 10);
+  }
+}
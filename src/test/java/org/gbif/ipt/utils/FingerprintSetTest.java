@@ -0,0 +1,50 @@
+package org.gbif.ipt.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintSetTest {
+
+  @Test
+  public void testPutIfAbsent() {
+    FingerprintSet set = new FingerprintSet();
+    assertEquals(FingerprintSet.ABSENT, set.putIfAbsent(42L, 0));
+    assertEquals(FingerprintSet.ABSENT, set.putIfAbsent(-42L, 1));
+    // fingerprint 0 is supported too
+    assertEquals(FingerprintSet.ABSENT, set.putIfAbsent(0L, 2));
+    assertEquals(3, set.size());
+
+    // existing fingerprints keep their first value
+    assertEquals(0, set.putIfAbsent(42L, 3));
+    assertEquals(2, set.putIfAbsent(0L, 4));
+    assertEquals(1, set.get(-42L));
+    assertEquals(3, set.size());
+    assertFalse(set.contains(43L));
+  }
+
+  @Test
+  public void testGrow() {
+    FingerprintSet set = new FingerprintSet();
+    long initialBytes = set.allocatedBytes();
+    int entries = 500000;
+    for (int i = 0; i < entries; i++) {
+      assertEquals(FingerprintSet.ABSENT, set.putIfAbsent(FingerprintSet.fingerprint("id" + i, false), i));
+    }
+    assertEquals(entries, set.size());
+    assertTrue(set.allocatedBytes() > initialBytes);
+    for (int i = 0; i < entries; i++) {
+      assertEquals(i, set.get(FingerprintSet.fingerprint("id" + i, false)));
+    }
+  }
+
+  @Test
+  public void testFingerprint() {
+    assertEquals(FingerprintSet.fingerprint("FISHES:1", true), FingerprintSet.fingerprint("fishes:1", true));
+    assertNotEquals(FingerprintSet.fingerprint("FISHES:1", false), FingerprintSet.fingerprint("fishes:1", false));
+    assertNotEquals(FingerprintSet.fingerprint("fishes:1", true), FingerprintSet.fingerprint("fishes:2", true));
+  }
+}
@@ -0,0 +1,128 @@
+package org.gbif.ipt.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedTextFileReaderTest {
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("mapped", ".txt");
+  }
+
+  @After
+  public void teardown() {
+    FileUtils.deleteQuietly(file);
+  }
+
+  private List<String[]> readAll(MappedTextFileReader reader) {
+    List<String[]> rows = new ArrayList<String[]>();
+    try {
+      while (reader.hasNext()) {
+        rows.add(reader.next());
+        assertFalse(reader.hasRowError());
+      }
+    } finally {
+      reader.close();
+    }
+    return rows;
+  }
+
+  @Test
+  public void testTabFile() throws IOException {
+    FileUtils.writeStringToFile(file, "id\tname\tcountry\n1\tPuma concolor\tCO\r\n\n  \t \r2\t\tPE\t\r3\tÁrbol\n", "UTF-8");
+    List<String[]> rows = readAll(new MappedTextFileReader(file, "UTF-8", "\t", null, 1, null));
+    assertEquals(3, rows.size());
+    assertArrayEquals(new String[] {"1", "Puma concolor", "CO"}, rows.get(0));
+    // a line ending with a delimiter ends with an empty value
+    assertArrayEquals(new String[] {"2", "", "PE", ""}, rows.get(1));
+    assertArrayEquals(new String[] {"3", "Árbol"}, rows.get(2));
+  }
+
+  @Test
+  public void testQuotes() throws IOException {
+    FileUtils.writeStringToFile(file,
+      "\"1\",\"Puma, concolor\",\"said \"\"hi\"\"\"\n2,Puma \"concolor\",\"a\"b\"c,d\"\n\"3\",\"\",x", "ISO-8859-1");
+    List<String[]> rows = readAll(new MappedTextFileReader(file, "ISO-8859-1", ",", '"', 0, null));
+    assertEquals(3, rows.size());
+    assertArrayEquals(new String[] {"1", "Puma, concolor", "said \"hi\""}, rows.get(0));
+    // only values starting with a quote are quoted
+    assertArrayEquals(new String[] {"2", "Puma \"concolor\"", "abc,d"}, rows.get(1));
+    assertArrayEquals(new String[] {"3", "", "x"}, rows.get(2));
+  }
+
+  @Test
+  public void testColumnsDecoded() throws IOException {
+    FileUtils.writeStringToFile(file, "1\ta\t  \tb\n\t\t\tc\n", "UTF-8");
+    Set<Integer> columns = new HashSet<Integer>(Arrays.asList(0, 2));
+    List<String[]> rows = readAll(new MappedTextFileReader(file, "UTF-8", "\t", null, 0, columns));
+    assertEquals(2, rows.size());
+    // columns not decoded tell if they are blank only
+    assertArrayEquals(new String[] {"1", MappedTextFileReader.NOT_DECODED, "  ", MappedTextFileReader.NOT_DECODED},
+      rows.get(0));
+    assertArrayEquals(new String[] {"", null, "", MappedTextFileReader.NOT_DECODED}, rows.get(1));
+  }
+
+  @Test
+  public void testMultiCharacterDelimiter() throws IOException {
+    FileUtils.writeStringToFile(file, "a||b||\nc|d||e", "UTF-8");
+    List<String[]> rows = readAll(new MappedTextFileReader(file, "UTF-8", "||", null, 0, null));
+    assertArrayEquals(new String[] {"a", "b", ""}, rows.get(0));
+    assertArrayEquals(new String[] {"c|d", "e"}, rows.get(1));
+  }
+
+  @Test
+  public void testLinesAcrossWindows() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append(i).append("\tvalue ").append(i);
+      // a line longer than the window too
+      if (i == 500) {
+        for (int c = 0; c < 300; c++) {
+          sb.append('x');
+        }
+      }
+      sb.append(i % 2 == 0 ? "\r\n" : "\r");
+    }
+    FileUtils.writeStringToFile(file, sb.toString(), "UTF-8");
+    List<String[]> rows = readAll(new MappedTextFileReader(file, "UTF-8", "\t", null, 0, null, 0, Long.MAX_VALUE, 64));
+    assertEquals(1000, rows.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(String.valueOf(i), rows.get(i)[0]);
+      assertTrue(rows.get(i)[1].startsWith("value " + i));
+    }
+    assertEquals(309, rows.get(500)[1].length());
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    assertTrue(readAll(new MappedTextFileReader(file, "UTF-8", "\t", null, 1, null)).isEmpty());
+  }
+
+  @Test
+  public void testSupports() {
+    assertTrue(MappedTextFileReader.supports("UTF-8", "\t", null));
+    assertTrue(MappedTextFileReader.supports("windows-1252", ",", '"'));
+    assertFalse(MappedTextFileReader.supports("UTF-16", "\t", null));
+    assertFalse(MappedTextFileReader.supports("Shift_JIS", "|", null));
+    assertFalse(MappedTextFileReader.supports("UTF-8", "\n", null));
+    assertFalse(MappedTextFileReader.supports("no-such-encoding", "\t", null));
+  }
+}
@@ -0,0 +1,150 @@
+package org.gbif.ipt.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelTextFileReaderTest {
+
+  private static final int ROWS = 10000;
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("parallel", ".txt");
+    StringBuilder sb = new StringBuilder("id\tname\n");
+    for (int i = 1; i <= ROWS; i++) {
+      sb.append(i).append("\t\"name\r\n").append(i).append('"');
+      // mixed line breaks, and a blank line every 1000 rows
+      sb.append(i % 3 == 0 ? "\r\n" : i % 3 == 1 ? "\n" : "\r");
+      if (i % 1000 == 0) {
+        sb.append(" \n");
+      }
+    }
+    FileUtils.writeStringToFile(file, sb.toString(), "UTF-8");
+  }
+
+  @After
+  public void teardown() {
+    FileUtils.deleteQuietly(file);
+  }
+
+  @Test
+  public void testSplit() throws IOException {
+    List<TextFileSplitter.Range> ranges = TextFileSplitter.split(file, 1, 7, 1);
+    assertEquals(7, ranges.size());
+    assertEquals("id\tname\n".length(), ranges.get(0).getStart());
+    assertEquals(file.length(), ranges.get(6).getEnd());
+    byte[] bytes = FileUtils.readFileToByteArray(file);
+    for (int i = 1; i < ranges.size(); i++) {
+      long start = ranges.get(i).getStart();
+      assertEquals(ranges.get(i - 1).getEnd(), start);
+      // ranges start after a line break, never inside \r\n
+      assertTrue(bytes[(int) start - 1] == '\n' || bytes[(int) start - 1] == '\r');
+      assertFalse(bytes[(int) start - 1] == '\r' && bytes[(int) start] == '\n');
+    }
+    // small files are not split below the minimum range size
+    assertEquals(1, TextFileSplitter.split(file, 1, 7, file.length()).size());
+  }
+
+  @Test
+  public void testOrdered() throws IOException {
+    List<TextFileSplitter.Range> ranges = TextFileSplitter.split(file, 1, 8, 1);
+    ParallelTextFileReader reader = new ParallelTextFileReader(file, "UTF-8", "\t", '"', null, ranges, true);
+    List<String[]> rows = new ArrayList<String[]>();
+    try {
+      while (reader.hasNext()) {
+        rows.add(reader.next());
+        assertFalse(reader.hasRowError());
+      }
+    } finally {
+      reader.close();
+    }
+    // a quoted line break ends the row like with any other reader
+    assertEquals(2 * ROWS, rows.size());
+    for (int i = 1; i <= ROWS; i++) {
+      assertEquals(String.valueOf(i), rows.get(2 * i - 2)[0]);
+      assertEquals("name", rows.get(2 * i - 2)[1]);
+      assertEquals(i + "\"", rows.get(2 * i - 1)[0]);
+    }
+  }
+
+  @Test
+  public void testResumeFromRowStart() throws IOException {
+    List<TextFileSplitter.Range> ranges = TextFileSplitter.split(file, 1, 8, 1);
+    ParallelTextFileReader reader = new ParallelTextFileReader(file, "UTF-8", "\t", '"', null, ranges, true);
+    long start;
+    try {
+      // row 7777 is the first line of a row split by its quoted line break
+      for (int i = 0; i < 2 * 7777 - 2; i++) {
+        reader.next();
+      }
+      assertTrue(reader.getRowStart() > 0);
+      assertEquals("7777", reader.next()[0]);
+      start = reader.getRowStart();
+    } finally {
+      reader.close();
+    }
+
+    // reading again from the position of the row returns the row and all rows after it
+    reader = new ParallelTextFileReader(file, "UTF-8", "\t", '"', null, TextFileSplitter.from(ranges, start), true);
+    int rows = 0;
+    try {
+      assertEquals("7777", reader.next()[0]);
+      assertEquals(start, reader.getRowStart());
+      rows++;
+      while (reader.hasNext()) {
+        reader.next();
+        rows++;
+      }
+    } finally {
+      reader.close();
+    }
+    assertEquals(2 * (ROWS - 7777 + 1), rows);
+  }
+
+  @Test
+  public void testUnordered() throws IOException {
+    List<TextFileSplitter.Range> ranges = TextFileSplitter.split(file, 1, 4, 1);
+    ParallelTextFileReader reader =
+      new ParallelTextFileReader(file, "UTF-8", "\t", '"', Collections.singleton(0), ranges, false);
+    Set<String> ids = new HashSet<String>();
+    try {
+      while (reader.hasNext()) {
+        String[] row = reader.next();
+        if (row.length > 1) {
+          ids.add(row[0]);
+          assertEquals(MappedTextFileReader.NOT_DECODED, row[1]);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    assertEquals(ROWS, ids.size());
+  }
+
+  @Test
+  public void testClosedEarly() throws IOException {
+    List<TextFileSplitter.Range> ranges = TextFileSplitter.split(file, 1, 4, 1);
+    ParallelTextFileReader reader = new ParallelTextFileReader(file, "UTF-8", "\t", '"', null, ranges, true);
+    assertEquals("1", reader.next()[0]);
+    reader.close();
+    assertFalse(reader.hasNext());
+    assertNull(reader.getException());
+  }
+}
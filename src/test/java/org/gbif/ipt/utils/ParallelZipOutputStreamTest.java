@@ -0,0 +1,209 @@
+package org.gbif.ipt.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ParallelZipOutputStreamTest {
+
+  private static final int[] SIZES = {0, 1, 1000, ParallelZipOutputStream.DEFAULT_BLOCK_SIZE,
+    ParallelZipOutputStream.DEFAULT_BLOCK_SIZE + 1, 2000000};
+
+  private byte[][] data() {
+    Random random = new Random(42);
+    byte[][] data = new byte[SIZES.length][];
+    for (int i = 0; i < SIZES.length; i++) {
+      StringBuilder sb = new StringBuilder();
+      while (sb.length() < SIZES[i]) {
+        sb.append("urn:catalog:FISHES:").append(random.nextInt(100000)).append("\tAnimalia\t")
+          .append(random.nextInt(50)).append('\n');
+      }
+      data[i] = sb.substring(0, SIZES[i]).getBytes();
+    }
+    return data;
+  }
+
+  private File write(byte[][] data, int threads) throws IOException {
+    return write(data, threads, false);
+  }
+
+  private File write(byte[][] data, int threads, boolean toFile) throws IOException {
+    File zip = File.createTempFile("parallel", ".zip");
+    zip.deleteOnExit();
+    Random random = new Random(42);
+    ParallelZipOutputStream out = toFile ? new ParallelZipOutputStream(zip, threads)
+      : new ParallelZipOutputStream(new FileOutputStream(zip), threads);
+    for (int i = 0; i < data.length; i++) {
+      out.putNextEntry(new ZipEntry("entry" + i + ".txt"));
+      // write in chunks of random size, not aligned with blocks
+      int off = 0;
+      while (off < data[i].length) {
+        int len = Math.min(data[i].length - off, 1 + random.nextInt(70000));
+        out.write(data[i], off, len);
+        off += len;
+      }
+      out.closeEntry();
+    }
+    out.close();
+    return zip;
+  }
+
+  private void assertReadable(File zip, byte[][] data) throws IOException {
+    // read using the central directory
+    ZipFile zipFile = new ZipFile(zip);
+    try {
+      assertEquals(data.length, zipFile.size());
+      for (int i = 0; i < data.length; i++) {
+        InputStream in = zipFile.getInputStream(zipFile.getEntry("entry" + i + ".txt"));
+        assertArrayEquals(data[i], IOUtils.toByteArray(in));
+        in.close();
+      }
+    } finally {
+      zipFile.close();
+    }
+
+    // read sequentially, using the local headers and data descriptors
+    ZipInputStream in = new ZipInputStream(zip.toURI().toURL().openStream());
+    try {
+      for (int i = 0; i < data.length; i++) {
+        assertEquals("entry" + i + ".txt", in.getNextEntry().getName());
+        assertArrayEquals(data[i], IOUtils.toByteArray(in));
+      }
+      assertNull(in.getNextEntry());
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testSingleThread() throws IOException {
+    byte[][] data = data();
+    assertReadable(write(data, 1), data);
+  }
+
+  @Test
+  public void testParallel() throws IOException {
+    byte[][] data = data();
+    File zip = write(data, 4);
+    assertReadable(zip, data);
+    // blocks are compressed identically whatever the number of threads
+    assertEquals(write(data, 1).length(), zip.length());
+  }
+
+  @Test
+  public void testFile() throws IOException {
+    byte[][] data = data();
+    File zip = write(data, 4, true);
+    assertReadable(zip, data);
+
+    // the local file header holds the sizes instead of a data descriptor, with room for ZIP64 sizes
+    byte[] header = new byte[30];
+    RandomAccessFile raf = new RandomAccessFile(zip, "r");
+    try {
+      raf.readFully(header);
+    } finally {
+      raf.close();
+    }
+    ByteBuffer b = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(0, b.getShort(6) & 0x0008);
+    ZipFile zipFile = new ZipFile(zip);
+    try {
+      ZipEntry entry = zipFile.getEntry("entry0.txt");
+      assertEquals(entry.getCrc(), b.getInt(14) & 0xFFFFFFFFL);
+      assertEquals(entry.getCompressedSize(), b.getInt(18));
+      assertEquals(entry.getSize(), b.getInt(22));
+    } finally {
+      zipFile.close();
+    }
+    assertEquals(20, b.getShort(28));
+
+    // an existing file is replaced
+    ParallelZipOutputStream out = new ParallelZipOutputStream(zip, 1);
+    out.putNextEntry(new ZipEntry("entry0.txt"));
+    out.write(data[2]);
+    out.close();
+    assertReadable(zip, new byte[][] {data[2]});
+  }
+
+  @Test
+  public void testCopyEntries() throws IOException {
+    byte[][] data = data();
+    // source written by java.util.zip, with an uncompressed entry
+    File source = File.createTempFile("source", ".zip");
+    source.deleteOnExit();
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(source));
+    for (int i = 0; i < data.length; i++) {
+      ZipEntry entry = new ZipEntry("entry" + i + ".txt");
+      if (i == 2) {
+        CRC32 crc = new CRC32();
+        crc.update(data[i]);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data[i].length);
+        entry.setCrc(crc.getValue());
+      }
+      zos.putNextEntry(entry);
+      zos.write(data[i]);
+      zos.closeEntry();
+    }
+    zos.close();
+
+    File zip = File.createTempFile("copy", ".zip");
+    zip.deleteOnExit();
+    ParallelZipOutputStream out = new ParallelZipOutputStream(new FileOutputStream(zip), 2);
+    List<String> copied = out.copyEntries(source, Collections.singleton("entry0.txt"));
+    assertEquals(data.length - 1, copied.size());
+    // replace the excluded entry
+    out.putNextEntry(new ZipEntry("entry0.txt"));
+    out.write(data[0]);
+    out.close();
+
+    // copy again from a zip written by ParallelZipOutputStream, using data descriptors
+    File copy = File.createTempFile("copy", ".zip");
+    copy.deleteOnExit();
+    out = new ParallelZipOutputStream(new FileOutputStream(copy), 2);
+    out.copyEntries(zip, Collections.<String>emptySet());
+    out.close();
+
+    ZipFile zipFile = new ZipFile(copy);
+    try {
+      assertEquals(data.length, zipFile.size());
+      for (int i = 0; i < data.length; i++) {
+        InputStream in = zipFile.getInputStream(zipFile.getEntry("entry" + i + ".txt"));
+        assertArrayEquals(data[i], IOUtils.toByteArray(in));
+        in.close();
+      }
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testWriteWithoutEntry() throws IOException {
+    ParallelZipOutputStream out = new ParallelZipOutputStream(new ByteArrayOutputStream(), 2);
+    try {
+      out.write(1);
+    } finally {
+      out.abort();
+    }
+  }
+}
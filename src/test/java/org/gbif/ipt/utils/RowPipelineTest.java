@@ -0,0 +1,176 @@
+package org.gbif.ipt.utils;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Supplier;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RowPipelineTest {
+
+  private static final Supplier<Row> ROWS = new Supplier<Row>() {
+    public Row get() {
+      return new Row();
+    }
+  };
+
+  private static class Row {
+
+    private int line;
+    private String value;
+  }
+
+  /**
+   * Reads a given number of rows, keeping track of how far it got ahead of the rows consumed.
+   */
+  private static class CountingReader implements RowPipeline.Reader<Row> {
+
+    private final int rows;
+    private final AtomicInteger consumed;
+    private volatile int maxAhead = 0;
+    private int line = 0;
+
+    private CountingReader(int rows, AtomicInteger consumed) {
+      this.rows = rows;
+      this.consumed = consumed;
+    }
+
+    public boolean read(Row row) throws IOException {
+      if (line == rows) {
+        return false;
+      }
+      row.line = ++line;
+      row.value = null;
+      maxAhead = Math.max(maxAhead, line - consumed.get());
+      return true;
+    }
+  }
+
+  private static final RowPipeline.Transformer<Row> TRANSFORMER = new RowPipeline.Transformer<Row>() {
+    public void transform(Row row) {
+      row.value = "row" + row.line;
+    }
+  };
+
+  private void assertOrdered(int threads, int rows) throws Exception {
+    AtomicInteger consumed = new AtomicInteger(0);
+    RowPipeline<Row> pipeline =
+      new RowPipeline<Row>(new CountingReader(rows, consumed), TRANSFORMER, ROWS, threads, 16, 4);
+    try {
+      Row row;
+      while ((row = pipeline.next()) != null) {
+        int line = consumed.incrementAndGet();
+        assertEquals(line, row.line);
+        assertEquals("row" + line, row.value);
+      }
+      // the end of the rows is returned again
+      assertNull(pipeline.next());
+    } finally {
+      pipeline.close();
+    }
+    assertEquals(rows, consumed.get());
+  }
+
+  @Test
+  public void testOrder() throws Exception {
+    assertOrdered(1, 1000);
+    assertOrdered(4, 0);
+    assertOrdered(4, 1);
+    assertOrdered(4, 16);
+    assertOrdered(4, 10000);
+  }
+
+  @Test
+  public void testBackPressure() throws Exception {
+    AtomicInteger consumed = new AtomicInteger(0);
+    CountingReader reader = new CountingReader(10000, consumed);
+    RowPipeline<Row> pipeline = new RowPipeline<Row>(reader, TRANSFORMER, ROWS, 4, 16, 4);
+    try {
+      while (pipeline.next() != null) {
+        consumed.incrementAndGet();
+        if (consumed.get() % 100 == 0) {
+          // slow consumer
+          Thread.sleep(1);
+        }
+      }
+    } finally {
+      pipeline.close();
+    }
+    // the reader never gets further ahead than all batches
+    assertTrue(reader.maxAhead <= 16 * 4 + 1);
+  }
+
+  @Test
+  public void testReaderFailure() throws Exception {
+    RowPipeline.Reader<Row> reader = new RowPipeline.Reader<Row>() {
+      private int line = 0;
+
+      public boolean read(Row row) throws IOException {
+        if (line == 100) {
+          throw new IOException("connection lost");
+        }
+        row.line = ++line;
+        return true;
+      }
+    };
+    RowPipeline<Row> pipeline = new RowPipeline<Row>(reader, TRANSFORMER, ROWS, 2, 16, 4);
+    int rows = 0;
+    try {
+      while (pipeline.next() != null) {
+        rows++;
+      }
+      fail("Reading failure not rethrown");
+    } catch (IOException e) {
+      assertEquals("connection lost", e.getMessage());
+    } finally {
+      pipeline.close();
+    }
+    // the rows read before the failure were all consumed
+    assertEquals(96, rows);
+  }
+
+  @Test
+  public void testTransformerFailure() throws Exception {
+    RowPipeline.Transformer<Row> transformer = new RowPipeline.Transformer<Row>() {
+      public void transform(Row row) {
+        if (row.line == 50) {
+          throw new IllegalStateException("bad row");
+        }
+      }
+    };
+    RowPipeline<Row> pipeline =
+      new RowPipeline<Row>(new CountingReader(1000, new AtomicInteger()), transformer, ROWS, 3, 16, 4);
+    int rows = 0;
+    try {
+      while (pipeline.next() != null) {
+        rows++;
+      }
+      fail("Transforming failure not rethrown");
+    } catch (IllegalStateException e) {
+      assertEquals("bad row", e.getMessage());
+    } finally {
+      pipeline.close();
+    }
+    // rows of the batches before the failing one were consumed
+    assertEquals(48, rows);
+  }
+
+  @Test
+  public void testCloseEarly() throws Exception {
+    CountingReader reader = new CountingReader(Integer.MAX_VALUE, new AtomicInteger());
+    RowPipeline<Row> pipeline = new RowPipeline<Row>(reader, TRANSFORMER, ROWS, 2, 16, 4);
+    for (int i = 1; i <= 10; i++) {
+      assertEquals(i, pipeline.next().line);
+    }
+    pipeline.close();
+    int line = reader.line;
+    Thread.sleep(50);
+    // the reader stopped reading
+    assertEquals(line, reader.line);
+  }
+}
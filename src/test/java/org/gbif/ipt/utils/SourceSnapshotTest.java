@@ -0,0 +1,171 @@
+package org.gbif.ipt.utils;
+
+import org.gbif.utils.file.ClosableReportingIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SourceSnapshotTest {
+
+  private static final List<String> COLUMNS = Arrays.asList("id", "name", "remarks");
+
+  private File dir;
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    dir = File.createTempFile("snapshot", "");
+    dir.delete();
+    dir.mkdirs();
+    file = new File(dir, "source.snapshot.gz");
+  }
+
+  @After
+  public void teardown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  private List<String[]> rows(int count) {
+    List<String[]> rows = new ArrayList<String[]>();
+    for (int i = 1; i <= count; i++) {
+      rows.add(new String[] {String.valueOf(i), "name\t" + i, i % 2 == 0 ? null : "line\nbreak"});
+    }
+    return rows;
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    List<String[]> rows = rows(5000);
+    SourceSnapshot written = SourceSnapshot.write(file, "fp", COLUMNS, "2017-03-21", new RowIterator(rows, -1));
+    assertEquals(5000, written.getRows());
+
+    SourceSnapshot snapshot = SourceSnapshot.load(file);
+    assertNotNull(snapshot);
+    assertEquals(COLUMNS, snapshot.getColumns());
+    assertEquals(5000, snapshot.getRows());
+    assertEquals(file.length(), snapshot.getSize());
+    assertEquals(written.getCreated(), snapshot.getCreated());
+    assertEquals("2017-03-21", snapshot.getWatermark());
+
+    // values are read back as written, null values included
+    ClosableReportingIterator<String[]> iter = snapshot.rowIterator();
+    try {
+      for (String[] row : rows) {
+        assertTrue(iter.hasNext());
+        assertArrayEquals(row, iter.next());
+        assertFalse(iter.hasRowError());
+      }
+      assertFalse(iter.hasNext());
+    } finally {
+      iter.close();
+    }
+  }
+
+  @Test
+  public void testValidity() throws Exception {
+    SourceSnapshot.write(file, "fp", COLUMNS, null, new RowIterator(rows(3), -1));
+    SourceSnapshot snapshot = SourceSnapshot.load(file);
+    assertNull(snapshot.getWatermark());
+    assertTrue(snapshot.isValidFor("fp", 0));
+    assertTrue(snapshot.isValidFor("fp", 60000));
+    assertFalse(snapshot.isValidFor("other", 60000));
+    Thread.sleep(5);
+    assertFalse(snapshot.isValidFor("fp", 1));
+
+    // not a snapshot
+    FileUtils.writeStringToFile(file, "id\tname\n", "UTF-8");
+    assertNull(SourceSnapshot.load(file));
+    FileUtils.deleteQuietly(file);
+    assertNull(SourceSnapshot.load(file));
+  }
+
+  @Test
+  public void testRowError() throws Exception {
+    SourceSnapshot.write(file, "fp", COLUMNS, null, new RowIterator(rows(3), -1));
+    try {
+      SourceSnapshot.write(file, "fp2", COLUMNS, null, new RowIterator(rows(10), 7));
+      fail("Snapshot written despite a row that could not be read");
+    } catch (IOException e) {
+      // expected
+    }
+    // the snapshot taken before is kept
+    SourceSnapshot snapshot = SourceSnapshot.load(file);
+    assertTrue(snapshot.isValidFor("fp", 0));
+    assertEquals(3, snapshot.getRows());
+    assertEquals(1, dir.listFiles().length);
+  }
+
+  @Test
+  public void testErrorBeforeFirstRow() throws Exception {
+    SourceSnapshot.write(file, "fp", COLUMNS, null, new RowIterator(rows(3), -1));
+    try {
+      // no rows, the source failing before the first one
+      SourceSnapshot.write(file, "fp2", COLUMNS, null, new RowIterator(new ArrayList<String[]>(), 0));
+      fail("Empty snapshot written despite rows that could not be read");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(3, SourceSnapshot.load(file).getRows());
+    assertEquals(1, dir.listFiles().length);
+  }
+
+  /**
+   * Iterates over rows, reporting an error on one of them.
+   */
+  private static class RowIterator implements ClosableReportingIterator<String[]> {
+
+    private final Iterator<String[]> rows;
+    private final int errorRow;
+    private int row = 0;
+
+    private RowIterator(List<String[]> rows, int errorRow) {
+      this.rows = rows.iterator();
+      this.errorRow = errorRow;
+    }
+
+    public boolean hasNext() {
+      return rows.hasNext();
+    }
+
+    public String[] next() {
+      row++;
+      return rows.next();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public boolean hasRowError() {
+      return row == errorRow;
+    }
+
+    public String getErrorMessage() {
+      return hasRowError() ? "Bad row" : null;
+    }
+
+    public Exception getException() {
+      return hasRowError() ? new Exception("Bad row") : null;
+    }
+
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package org.gbif.ipt.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TextFileIndexTest {
+
+  private static final int ROWS = 10000;
+  private static final String SETTINGS = "UTF-8|\\t|\"|1";
+
+  private File file;
+  private File indexFile;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("indexed", ".txt");
+    indexFile = new File(file.getAbsolutePath() + ".idx");
+    StringBuilder sb = new StringBuilder("id\tname\n");
+    for (int i = 1; i <= ROWS; i++) {
+      sb.append(i).append("\tname ").append(i);
+      // mixed line breaks, and a blank line every 1000 rows
+      sb.append(i % 3 == 0 ? "\r\n" : i % 3 == 1 ? "\n" : "\r");
+      if (i % 1000 == 0) {
+        sb.append(" \n");
+      }
+    }
+    FileUtils.writeStringToFile(file, sb.toString(), "UTF-8");
+  }
+
+  @After
+  public void teardown() {
+    FileUtils.deleteQuietly(file);
+    FileUtils.deleteQuietly(indexFile);
+  }
+
+  private TextFileIndex build(int parts) throws Exception {
+    List<TextFileSplitter.Range> ranges = TextFileSplitter.split(file, 1, parts, 1);
+    return TextFileIndex.build(file, SETTINGS, "UTF-8", "\t", '"', 1, ranges, 100);
+  }
+
+  @Test
+  public void testBuild() throws Exception {
+    TextFileIndex index = build(7);
+    assertEquals(ROWS, index.getRows());
+    Set<Integer> emptyLines = index.getEmptyLines();
+    assertEquals(ROWS / 1000, emptyLines.size());
+    // the header is line 1, the first blank line follows row 1000
+    assertTrue(emptyLines.contains(1002));
+    assertTrue(emptyLines.contains(ROWS + ROWS / 1000 + 1));
+    // same index whatever the number of ranges counted in parallel
+    TextFileIndex sequential = build(1);
+    assertEquals(index.getRows(), sequential.getRows());
+    assertEquals(emptyLines, sequential.getEmptyLines());
+  }
+
+  @Test
+  public void testCheckpoint() throws Exception {
+    TextFileIndex index = build(5);
+    TextFileIndex.Checkpoint checkpoint = index.checkpoint(4321);
+    assertNotNull(checkpoint);
+    assertTrue(checkpoint.getRow() <= 4321 && checkpoint.getRow() > 4321 - 100);
+    MappedTextFileReader reader =
+      new MappedTextFileReader(file, "UTF-8", "\t", '"', null, checkpoint.getOffset(), Long.MAX_VALUE);
+    try {
+      for (int row = checkpoint.getRow(); row < 4321; row++) {
+        reader.next();
+      }
+      // rows are numbered from 0, holding ids from 1
+      assertEquals("4322", reader.next()[0]);
+    } finally {
+      reader.close();
+    }
+    assertNull(index.checkpoint(-1));
+  }
+
+  @Test
+  public void testRanges() throws Exception {
+    TextFileIndex index = build(3);
+    List<TextFileSplitter.Range> ranges = index.ranges(4, 1);
+    assertEquals(4, ranges.size());
+    assertEquals("id\tname\n".length(), ranges.get(0).getStart());
+    assertEquals(file.length(), ranges.get(3).getEnd());
+    int rows = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      if (i > 0) {
+        assertEquals(ranges.get(i - 1).getEnd(), ranges.get(i).getStart());
+      }
+      MappedTextFileReader reader = new MappedTextFileReader(file, "UTF-8", "\t", '"', null,
+        ranges.get(i).getStart(), ranges.get(i).getEnd());
+      try {
+        while (reader.hasNext()) {
+          reader.next();
+          rows++;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    assertEquals(ROWS, rows);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    TextFileIndex index = build(4);
+    index.save(indexFile);
+    TextFileIndex loaded = TextFileIndex.load(indexFile);
+    assertNotNull(loaded);
+    assertTrue(loaded.isValidFor(file, SETTINGS));
+    assertEquals(index.getRows(), loaded.getRows());
+    assertEquals(index.getEmptyLines(), loaded.getEmptyLines());
+    assertEquals(index.checkpoint(777).getOffset(), loaded.checkpoint(777).getOffset());
+
+    // other settings or a changed file need a new index
+    assertFalse(loaded.isValidFor(file, "UTF-8|,|\"|1"));
+    FileUtils.writeStringToFile(file, "10001\tname 10001\n", "UTF-8", true);
+    assertFalse(loaded.isValidFor(file, SETTINGS));
+
+    // not an index
+    FileUtils.writeStringToFile(indexFile, "id\tname\n", "UTF-8");
+    assertNull(TextFileIndex.load(indexFile));
+    FileUtils.deleteQuietly(indexFile);
+    assertNull(TextFileIndex.load(indexFile));
+  }
+}
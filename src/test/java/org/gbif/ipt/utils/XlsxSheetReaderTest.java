@@ -0,0 +1,187 @@
+package org.gbif.ipt.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class XlsxSheetReaderTest {
+
+  private File dir;
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    dir = File.createTempFile("xlsx", "");
+    dir.delete();
+    dir.mkdirs();
+    file = new File(dir, "occurrences.xlsx");
+    write(file, 0);
+  }
+
+  @After
+  public void teardown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  /**
+   * Writes a workbook with a small sheet, followed by a sheet of many rows.
+   * <ul>
+   * <li>row 0 is the header row</li>
+   * <li>row 1 has a text, a date and a number</li>
+   * <li>row 2 is sparse, missing its 2nd and 3rd cells</li>
+   * <li>row 3 is not in the sheet</li>
+   * <li>row 4 only has its first cell</li>
+   * </ul>
+   */
+  private static void write(File file, int extraRows) throws IOException {
+    XSSFWorkbook workbook = new XSSFWorkbook();
+    try {
+      CellStyle dateStyle = workbook.createCellStyle();
+      dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd"));
+      Calendar date = Calendar.getInstance();
+      date.clear();
+      date.set(2017, Calendar.MARCH, 21);
+
+      Sheet sheet = workbook.createSheet("occurrences");
+      Row row = sheet.createRow(0);
+      row.createCell(0).setCellValue("id");
+      row.createCell(1).setCellValue("eventDate");
+      row.createCell(2).setCellValue("individualCount");
+      row.createCell(3).setCellValue("remarks");
+      row = sheet.createRow(1);
+      row.createCell(0).setCellValue("occ1");
+      row.createCell(1).setCellValue(date);
+      row.getCell(1).setCellStyle(dateStyle);
+      row.createCell(2).setCellValue(12);
+      row.createCell(3).setCellValue(2.5);
+      row = sheet.createRow(2);
+      row.createCell(0).setCellValue("occ2");
+      row.createCell(3).setCellValue("sparse");
+      row = sheet.createRow(4);
+      row.createCell(0).setCellValue("occ4");
+
+      Sheet large = workbook.createSheet("large");
+      for (int i = 0; i < extraRows; i++) {
+        large.createRow(i).createCell(0).setCellValue("row" + i);
+      }
+
+      OutputStream out = new FileOutputStream(file);
+      try {
+        workbook.write(out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      workbook.close();
+    }
+  }
+
+  @Test
+  public void testIsXlsx() throws IOException {
+    assertTrue(XlsxSheetReader.isXlsx(file));
+    File text = new File(dir, "occurrences.txt");
+    FileUtils.writeStringToFile(text, "id\teventDate\n", "UTF-8");
+    assertFalse(XlsxSheetReader.isXlsx(text));
+  }
+
+  @Test
+  public void testSheets() throws IOException {
+    Map<Integer, String> sheets = XlsxSheetReader.sheets(file);
+    assertEquals(2, sheets.size());
+    assertEquals("occurrences", sheets.get(0));
+    assertEquals("large", sheets.get(1));
+  }
+
+  @Test
+  public void testRows() throws IOException {
+    XlsxSheetReader reader = new XlsxSheetReader(file, 0, 4, 1);
+    try {
+      // dates and numbers are formatted as Excel displays them
+      assertTrue(reader.hasNext());
+      assertArrayEquals(new String[] {"occ1", "2017-03-21", "12", "2.5"}, reader.next());
+      assertFalse(reader.hasRowError());
+      // cells missing in a row are blank
+      assertArrayEquals(new String[] {"occ2", "", "", "sparse"}, reader.next());
+      // rows not in the sheet are left out, and rows are as long as the row size
+      assertArrayEquals(new String[] {"occ4", "", "", ""}, reader.next());
+      assertFalse(reader.hasNext());
+      assertFalse(reader.hasRowError());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testRowsAsLongAsLastCell() throws IOException {
+    XlsxSheetReader reader = new XlsxSheetReader(file, 0, 0, 0);
+    try {
+      assertArrayEquals(new String[] {"id", "eventDate", "individualCount", "remarks"}, reader.next());
+      assertEquals(4, reader.next().length);
+      assertEquals(4, reader.next().length);
+      assertArrayEquals(new String[] {"occ4"}, reader.next());
+      assertFalse(reader.hasNext());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testMissingSheet() {
+    try {
+      new XlsxSheetReader(file, 2, 0, 0);
+      fail("Sheet 2 does not exist");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testManyRows() throws IOException {
+    write(file, 25000);
+    XlsxSheetReader reader = new XlsxSheetReader(file, 1, 1, 0);
+    try {
+      int rows = 0;
+      while (reader.hasNext()) {
+        assertEquals("row" + rows, reader.next()[0]);
+        assertFalse(reader.hasRowError());
+        rows++;
+      }
+      assertEquals(25000, rows);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testCloseBeforeEnd() throws IOException {
+    // more rows than the batches queued, so the parsing thread is blocked handing rows over when closed
+    write(file, 25000);
+    XlsxSheetReader reader = new XlsxSheetReader(file, 1, 1, 0);
+    for (int i = 0; i < 10; i++) {
+      assertEquals("row" + i, reader.next()[0]);
+    }
+    reader.close();
+    assertFalse(reader.hasNext());
+    // closing twice does nothing
+    reader.close();
+    assertFalse(reader.hasNext());
+  }
+}